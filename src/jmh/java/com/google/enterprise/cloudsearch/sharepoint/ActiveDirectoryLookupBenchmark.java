@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import com.google.enterprise.cloudsearch.sharepoint.ActiveDirectoryClient.ADServerImpl;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Email lookups through {@link ADServerImpl} from 8 threads against an in-process LDAP stand-in,
+ * where every connection answers one request at a time after {@code latencyMicros}. A pool of
+ * one connection matches the previous single shared context.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ActiveDirectoryLookupBenchmark {
+  @Param({"1", "4", "8"})
+  public int poolSize;
+
+  @Param({"200", "1000"})
+  public int latencyMicros;
+
+  private ADServerImpl adServer;
+  private final AtomicInteger nextUser = new AtomicInteger();
+
+  @Setup
+  public void setUp() throws IOException {
+    adServer =
+        new ADServerImpl(
+            "localhost",
+            389,
+            "username",
+            "password",
+            "standard",
+            env -> newStandInContext(latencyMicros),
+            poolSize,
+            0,
+            60,
+            ActiveDirectoryClient.DEFAULT_BATCH_SIZE);
+    adServer.start();
+  }
+
+  @TearDown
+  public void tearDown() {
+    adServer.close();
+  }
+
+  @Benchmark
+  public Optional<String> getEmailByPrincipal() throws IOException {
+    return adServer.getEmailByPrincipal(
+        ActiveDirectoryPrincipal.parse("MYDOMAIN\\user" + (nextUser.incrementAndGet() % 1000)));
+  }
+
+  /** LDAP connection which serves one request at a time, like a single TCP connection. */
+  private static LdapContext newStandInContext(int latencyMicros) {
+    Object connection = new Object();
+    return (LdapContext)
+        Proxy.newProxyInstance(
+            LdapContext.class.getClassLoader(),
+            new Class<?>[] {LdapContext.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "getAttributes":
+                  synchronized (connection) {
+                    simulateLatency(latencyMicros);
+                    BasicAttributes rootDse = new BasicAttributes();
+                    rootDse.put("defaultNamingContext", "DC=MYDOMAIN,DC=COM");
+                    rootDse.put(
+                        "configurationNamingContext", "CN=Configuration,DC=MYDOMAIN,DC=COM");
+                    return rootDse;
+                  }
+                case "search":
+                  synchronized (connection) {
+                    simulateLatency(latencyMicros);
+                    BasicAttributes attributes = new BasicAttributes();
+                    attributes.put("dnsRoot", "mydomain.com");
+                    attributes.put("nETBIOSName", "MYDOMAIN");
+                    attributes.put("mail", "user@mydomain.com");
+                    return new SingleResult(new SearchResult("result", null, attributes));
+                  }
+                case "close":
+                  return null;
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            });
+  }
+
+  private static void simulateLatency(int latencyMicros) {
+    long end = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    while (System.nanoTime() < end) {
+      Thread.yield();
+    }
+  }
+
+  private static class SingleResult implements NamingEnumeration<SearchResult> {
+    private final Iterator<SearchResult> results;
+
+    SingleResult(SearchResult result) {
+      this.results = Collections.singletonList(result).iterator();
+    }
+
+    @Override
+    public SearchResult next() {
+      return results.next();
+    }
+
+    @Override
+    public boolean hasMore() {
+      return results.hasNext();
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public boolean hasMoreElements() {
+      return results.hasNext();
+    }
+
+    @Override
+    public SearchResult nextElement() {
+      return results.next();
+    }
+  }
+}
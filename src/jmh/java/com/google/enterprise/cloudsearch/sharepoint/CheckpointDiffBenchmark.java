@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import com.google.enterprise.cloudsearch.sharepoint.SharePointIncrementalCheckpoint.ChangeObjectType;
+import com.google.enterprise.cloudsearch.sharepoint.SharePointIncrementalCheckpoint.DiffKind;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link SharePointIncrementalCheckpoint#diff} between checkpoints of {@code contentDatabases}
+ * content databases, where a tenth of the databases were added, removed or modified, and encoding
+ * and parsing of those checkpoints.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CheckpointDiffBenchmark {
+  @Param({"10", "100", "1000"})
+  public int contentDatabases;
+
+  private SharePointIncrementalCheckpoint previous;
+  private SharePointIncrementalCheckpoint current;
+  private byte[] payload;
+
+  @Setup
+  public void setUp() throws IOException {
+    SharePointIncrementalCheckpoint.Builder previousBuilder =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB);
+    SharePointIncrementalCheckpoint.Builder currentBuilder =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB);
+    for (int i = 0; i < contentDatabases; i++) {
+      String id = String.format("{4fb7dea1-2912-4927-9eda-%012d}", i);
+      String token = "1;0;" + id + ";634727056594000000;" + (600 + i);
+      switch (i % 30) {
+        case 0:
+          currentBuilder.addChangeToken(id, token);
+          break;
+        case 1:
+          previousBuilder.addChangeToken(id, token);
+          break;
+        case 2:
+          previousBuilder.addChangeToken(id, token);
+          currentBuilder.addChangeToken(id, token + "1");
+          break;
+        default:
+          previousBuilder.addChangeToken(id, token);
+          currentBuilder.addChangeToken(id, token);
+      }
+    }
+    previous = previousBuilder.build();
+    current = currentBuilder.build();
+    payload = current.encodePayload();
+  }
+
+  @Benchmark
+  public Map<DiffKind, Set<String>> diff() {
+    return previous.diff(current);
+  }
+
+  @Benchmark
+  public byte[] encodePayload() throws IOException {
+    return current.encodePayload();
+  }
+
+  @Benchmark
+  public SharePointIncrementalCheckpoint parse() throws IOException {
+    return SharePointIncrementalCheckpoint.parse(payload);
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** HTML filtering of a SharePoint page with {@code paragraphs} paragraphs, default filters. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HtmlContentFilterBenchmark {
+  @Param({"10", "1000"})
+  public int paragraphs;
+
+  private HtmlContentFilter filter;
+  private byte[] html;
+
+  @Setup
+  public void setUp() {
+    filter = new HtmlContentFilter(ImmutableList.of("noscript", "div.noIndex", "script"));
+    html = SyntheticResponses.htmlPage(paragraphs).getBytes(UTF_8);
+  }
+
+  @Benchmark
+  public AbstractInputStreamContent getParsedHtmlContent() throws IOException {
+    return filter.getParsedHtmlContent(
+        new ByteArrayInputStream(html), "http://localhost:1", "text/html");
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * File downloads through {@link HttpClientImpl} against a local HTTP server standing in for
+ * SharePoint, with one redirect per file as for display form URLs. With {@code pooled} false,
+ * every request opens a new connection, as happens when response bodies are not drained or more
+ * connections are in use than the keep-alive pool holds. Under NTLM each new connection also
+ * costs an authentication handshake, which is not modelled here. The stand-in server disables
+ * Nagle's algorithm, as IIS does, so that responses on kept-alive connections are not delayed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"-Dhttp.maxConnections=8", "-Dsun.net.httpserver.nodelay=true"})
+@Threads(8)
+@State(Scope.Benchmark)
+public class HttpClientBenchmark {
+  private static final byte[] REDIRECT_BODY = new byte[2 * 1024];
+  private static final byte[] FILE_BODY = new byte[32 * 1024];
+
+  @Param({"false", "true"})
+  boolean pooled;
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private HttpClient client;
+  private URL fileUrl;
+
+  @Setup
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/Lists/Documents/DispForm.aspx",
+        exchange -> {
+          exchange
+              .getResponseHeaders()
+              .add(
+                  "Location",
+                  "http://localhost:" + server.getAddress().getPort() + "/Documents/file.txt");
+          respond(exchange, HttpURLConnection.HTTP_MOVED_TEMP, REDIRECT_BODY);
+        });
+    server.createContext(
+        "/Documents/file.txt", exchange -> respond(exchange, HttpURLConnection.HTTP_OK, FILE_BODY));
+    serverExecutor = Executors.newFixedThreadPool(16);
+    server.setExecutor(serverExecutor);
+    server.start();
+    fileUrl =
+        new URL(
+            "http://localhost:" + server.getAddress().getPort() + "/Lists/Documents/DispForm.aspx");
+    HttpClientImpl.ConnectionFactory connectionFactory =
+        pooled
+            ? new HttpClientImpl.ConnectionFactory()
+            : new HttpClientImpl.ConnectionFactory() {
+              @Override
+              HttpURLConnection getConnection(URL url) throws IOException {
+                HttpURLConnection connection = super.getConnection(url);
+                connection.setRequestProperty("Connection", "close");
+                return connection;
+              }
+            };
+    client =
+        new HttpClientImpl.Builder()
+            .setSharePointRequestContext(new SharePointRequestContext.Builder().build())
+            .setPerformBrowserLeniency(true)
+            .setConnectionFactory(connectionFactory)
+            .build();
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Benchmark
+  public long download() throws IOException {
+    try (InputStream contents = client.issueGetRequest(fileUrl).getContents()) {
+      return ByteStreams.exhaust(contents);
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    ByteStreams.exhaust(exchange.getRequestBody());
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
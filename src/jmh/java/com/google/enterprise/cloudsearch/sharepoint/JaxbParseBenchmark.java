@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import com.google.common.collect.ImmutableMap;
+import com.microsoft.schemas.sharepoint.soap.ItemData;
+import com.microsoft.schemas.sharepoint.soap.SPContentDatabase;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.transform.stream.StreamSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link SiteDataClient#jaxbParse} with the previous parse path, which rewrote the
+ * response string twice and created an Unmarshaller per call. {@code size} is the number of rows
+ * in a folder page, of custom fields of a list item, or of changed items in a content database
+ * change page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JaxbParseBenchmark {
+  private static final String XMLNS = "http://schemas.microsoft.com/sharepoint/soap/";
+
+  @Param({"folder", "listItem", "contentDatabaseChanges"})
+  public String response;
+
+  @Param({"100", "1000", "5000"})
+  public int size;
+
+  private String xml;
+  private Class<?> type;
+  private Map<String, String> rewrites;
+  private JAXBContext jaxbContext;
+
+  @Setup
+  public void setUp() throws JAXBException {
+    switch (response) {
+      case "folder":
+        xml = SyntheticResponses.folder(size);
+        type = ItemData.class;
+        rewrites = ImmutableMap.of("<Folder>", "<Folder xmlns='" + XMLNS + "'>");
+        break;
+      case "listItem":
+        xml = SyntheticResponses.listItem(size);
+        type = ItemData.class;
+        rewrites =
+            ImmutableMap.of(
+                "<Item>", "<ItemData xmlns='" + XMLNS + "'>", "</Item>", "</ItemData>");
+        break;
+      case "contentDatabaseChanges":
+        xml = SyntheticResponses.contentDatabaseChanges(size);
+        type = SPContentDatabase.class;
+        rewrites =
+            ImmutableMap.of("<SPContentDatabase ", "<SPContentDatabase xmlns='" + XMLNS + "' ");
+        break;
+      default:
+        throw new IllegalArgumentException(response);
+    }
+    jaxbContext = JAXBContext.newInstance("com.microsoft.schemas.sharepoint.soap");
+  }
+
+  @Benchmark
+  public Object streamingParse() throws IOException {
+    return SiteDataClient.jaxbParse(xml, type, rewrites, false);
+  }
+
+  @Benchmark
+  public Object stringRewriteParse() throws JAXBException {
+    String rewritten = xml;
+    for (Map.Entry<String, String> rewrite : rewrites.entrySet()) {
+      rewritten = rewritten.replace(rewrite.getKey(), rewrite.getValue());
+    }
+    rewritten = XmlResponseReader.BINARY_UNUSED_CHAR_PATTERN.matcher(rewritten).replaceAll("");
+    return jaxbContext
+        .createUnmarshaller()
+        .unmarshal(new StreamSource(new StringReader(rewritten)), type)
+        .getValue();
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import com.google.common.collect.Multimap;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Metadata extraction from a list item row with {@code customFields} custom fields. {@code
+ * compileAndExtract} compiles the schema's plan for each row; {@code extractWithPlanCache} looks
+ * the plan up by schema, as {@code getDoc} does for each item; {@code extractWithPlan} reuses a
+ * plan already looked up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataBenchmark {
+  @Param({"10", "100", "300", "500"})
+  public int customFields;
+
+  private List<Element> attributes;
+  private Element row;
+  private MetadataExtractionPlan.PlanCache planCache;
+  private MetadataExtractionPlan plan;
+  private String encodedName;
+
+  @Setup
+  public void setUp() throws Exception {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document document =
+        factory
+            .newDocumentBuilder()
+            .parse(
+                new ByteArrayInputStream(
+                    SyntheticResponses.listItem(customFields).getBytes("UTF-8")));
+    Element schema =
+        (Element)
+            document
+                .getElementsByTagNameNS("uuid:BDC6E3F0-6DA3-11d1-A2A3-00AA00C14882", "Schema")
+                .item(0);
+    row = (Element) document.getElementsByTagNameNS("#RowsetSchema", "row").item(0);
+    NodeList attributeTypes =
+        schema.getElementsByTagNameNS("uuid:BDC6E3F0-6DA3-11d1-A2A3-00AA00C14882", "AttributeType");
+    attributes = new ArrayList<>();
+    for (int i = 0; i < attributeTypes.getLength(); i++) {
+      attributes.add((Element) attributeTypes.item(i));
+    }
+    planCache = new MetadataExtractionPlan.PlanCache(1);
+    plan = planCache.get(attributes);
+    encodedName = SyntheticResponses.customFieldName(customFields);
+  }
+
+  @Benchmark
+  public Multimap<String, Object> compileAndExtract() {
+    return MetadataExtractionPlan.compile(attributes).extract(row);
+  }
+
+  @Benchmark
+  public Multimap<String, Object> extractWithPlanCache() {
+    return planCache.get(attributes).extract(row);
+  }
+
+  @Benchmark
+  public Multimap<String, Object> extractWithPlan() {
+    return plan.extract(row);
+  }
+
+  @Benchmark
+  public String decodeMetadataName() {
+    return MetadataExtractionPlan.decodeMetadataName(encodedName);
+  }
+}
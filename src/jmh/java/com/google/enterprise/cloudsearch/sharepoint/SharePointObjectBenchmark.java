@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and parsing of a list item {@link SharePointObject} payload, in the compact format
+ * used by {@link SharePointObject#encodePayload} and in the JSON format of earlier versions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SharePointObjectBenchmark {
+  private SharePointObject listItem;
+  private byte[] payload;
+  private byte[] jsonPayload;
+
+  @Setup
+  public void setUp() throws IOException {
+    listItem =
+        new SharePointObject.Builder(SharePointObject.LIST_ITEM)
+            .setSiteId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setWebId("{b2ea1067-3a54-4ab7-a459-c8ec864b97eb}")
+            .setListId("{133fcb96-7e9b-46c9-b5f3-09770a35ad8a}")
+            .setUrl("http://localhost:1/sites/SiteCollection/Lists/Custom List/Test Folder/2_.000")
+            .setObjectId("item")
+            .build();
+    payload = listItem.encodePayload();
+    jsonPayload = listItem.encodeJsonPayload();
+  }
+
+  @Benchmark
+  public byte[] encodePayload() throws IOException {
+    return listItem.encodePayload();
+  }
+
+  @Benchmark
+  public SharePointObject parse() throws IOException {
+    return SharePointObject.parse(payload);
+  }
+
+  @Benchmark
+  public byte[] encodeJsonPayload() throws IOException {
+    return listItem.encodeJsonPayload();
+  }
+
+  @Benchmark
+  public SharePointObject parseJson() throws IOException {
+    return SharePointObject.parse(jsonPayload);
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Encoding of list item and display form URLs as done for every document fetched. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SharePointUrlBenchmark {
+  private static final String ITEM_URL =
+      "http://localhost:1/sites/SiteCollection/Lists/Custom List/Test Folder/Ünïcode 2_.000";
+  private static final String DISPLAY_URL =
+      "http://localhost:1/sites/SiteCollection/Lists/Custom List/DispForm.aspx?ID=2&Source=x y";
+
+  @Benchmark
+  public URI escape() throws URISyntaxException {
+    return SharePointUrl.escape(ITEM_URL);
+  }
+
+  @Benchmark
+  public SharePointUrl buildWithBrowserLeniency() throws URISyntaxException {
+    return new SharePointUrl.Builder(DISPLAY_URL).build();
+  }
+
+  @Benchmark
+  public SharePointUrl buildWithoutBrowserLeniency() throws URISyntaxException {
+    return new SharePointUrl.Builder(ITEM_URL).setPerformBrowserLeniency(false).build();
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+/**
+ * Generates SiteData responses shaped like the ones SharePoint returns, at sizes chosen by the
+ * benchmark, so benchmarks run offline.
+ */
+final class SyntheticResponses {
+  private static final String ROWSET_NAMESPACES =
+      "xmlns:s='uuid:BDC6E3F0-6DA3-11d1-A2A3-00AA00C14882'"
+          + " xmlns:dt='uuid:C2F41010-65B3-11d1-A29F-00AA00C14882'"
+          + " xmlns:rs='urn:schemas-microsoft-com:rowset' xmlns:z='#RowsetSchema'";
+
+  private SyntheticResponses() {}
+
+  /** Folder content page, as returned for ObjectType.FOLDER, with {@code rows} items. */
+  static String folder(int rows) {
+    StringBuilder xml = new StringBuilder(rows * 1800);
+    xml.append("<Folder><Metadata>\n")
+        .append("<scope id=\"{f9cb02b3-7f29-4cac-804f-ba6e14f1eb39}\"><permissions>\n")
+        .append("<permission memberid='1' mask='206292717568' />\n")
+        .append("<permission memberid='3' mask='9223372036854775807' />\n")
+        .append("</permissions></scope></Metadata>\n")
+        .append("<xml ")
+        .append(ROWSET_NAMESPACES)
+        .append(">\n<rs:data ItemCount=\"")
+        .append(rows)
+        .append("\">\n");
+    for (int id = 1; id <= rows; id++) {
+      appendRow(xml, id);
+    }
+    return xml.append("</rs:data>\n</xml></Folder>").toString();
+  }
+
+  /**
+   * List item, as returned for ObjectType.LIST_ITEM, whose list has {@code customFields} fields in
+   * addition to the built in ones. Custom field names use SharePoint's _x0020_ style escaping.
+   */
+  static String listItem(int customFields) {
+    StringBuilder xml = new StringBuilder(2000 + customFields * 250);
+    xml.append("<Item><Metadata>\n")
+        .append("<scope id=\"{f9cb02b3-7f29-4cac-804f-ba6e14f1eb39}\"><permissions>\n")
+        .append("<permission memberid='1' mask='206292717568' />\n")
+        .append("</permissions></scope></Metadata>\n")
+        .append("<xml ")
+        .append(ROWSET_NAMESPACES)
+        .append(">\n<s:Schema id='RowsetSchema'>\n")
+        .append("<s:ElementType name='row' content='eltOnly' rs:CommandTimeout='30'>\n");
+    appendAttributeType(xml, "ows_ContentTypeId", "Content Type ID", 1);
+    appendAttributeType(xml, "ows_Title", "Title", 2);
+    appendAttributeType(xml, "ows_ID", "ID", 3);
+    for (int i = 0; i < customFields; i++) {
+      appendAttributeType(xml, customFieldName(i), "Custom Field " + i, 4 + i);
+    }
+    xml.append("</s:ElementType></s:Schema><scopes>\n")
+        .append("<scope id='{f9cb02b3-7f29-4cac-804f-ba6e14f1eb39}' >\n")
+        .append("<permission memberid='1' mask='206292717568' />\n")
+        .append("</scope>\n</scopes>\n<rs:data ItemCount=\"1\">\n");
+    StringBuilder row = new StringBuilder();
+    appendRow(row, 2);
+    // Insert custom field values before the end of the row element.
+    row.setLength(row.length() - "/>\n".length());
+    for (int i = 0; i < customFields; i++) {
+      row.append("\n ").append(customFieldName(i)).append("='");
+      switch (i % 3) {
+        case 0:
+          row.append("value ").append(i);
+          break;
+        case 1:
+          row.append(i).append(";#lookup ").append(i).append(";#").append(i + 1)
+              .append(";#other ").append(i);
+          break;
+        default:
+          row.append(";#choice a;#choice b;#");
+      }
+      row.append("'");
+    }
+    row.append("/>\n");
+    return xml.append(row).append("</rs:data>\n</xml></Item>").toString();
+  }
+
+  /** Content database change page, as returned by GetChanges, with {@code items} changed items. */
+  static String contentDatabaseChanges(int items) {
+    StringBuilder xml = new StringBuilder(items * 2200);
+    xml.append("<SPContentDatabase Change=\"Unchanged\" ItemCount=\"")
+        .append(items)
+        .append("\">\n<ContentDatabase>\n")
+        .append("<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;")
+        .append(603 + items)
+        .append("\"\n ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />\n</ContentDatabase>\n")
+        .append("<SPSite Change=\"Unchanged\" ItemCount=\"")
+        .append(items)
+        .append("\">\n<SPWeb Change=\"Unchanged\" ItemCount=\"")
+        .append(items)
+        .append("\">\n<SPList Change=\"Unchanged\" ItemCount=\"")
+        .append(items)
+        .append("\">\n");
+    for (int id = 1; id <= items; id++) {
+      xml.append("<SPListItem Change=\"Add\" ItemCount=\"0\" UpdateSecurity=\"False\"\n")
+          .append(" Id=\"{5085be94-b5c1-45c8-a047-d0f03344fe31}\"\n")
+          .append(" ParentId=\"{133fcb96-7e9b-46c9-b5f3-09770a35ad8a}_\"\n")
+          .append(" InternalUrl=\"/siteurl=/siteid={bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+          .append("/weburl=/webid={b2ea1067-3a54-4ab7-a459-c8ec864b97eb}")
+          .append("/listid={133fcb96-7e9b-46c9-b5f3-09770a35ad8a}/folderurl=/itemid=")
+          .append(id)
+          .append("\"\n DisplayUrl=\"/Lists/Announcements/DispForm.aspx?ID=")
+          .append(id)
+          .append("\"\n ServerUrl=\"http://localhost:1\" CRC=\"0\" Url=\"")
+          .append(id)
+          .append("_.000\">\n<ListItem>\n")
+          .append("<z:row xmlns:z='#RowsetSchema' ");
+      StringBuilder row = new StringBuilder();
+      appendRow(row, id);
+      xml.append(row, "<z:row ".length(), row.length())
+          .append("</ListItem></SPListItem>\n");
+    }
+    return xml.append("</SPList>\n</SPWeb>\n</SPSite>\n</SPContentDatabase>").toString();
+  }
+
+  /** SharePoint page with navigation, scripts and {@code paragraphs} paragraphs of content. */
+  static String htmlPage(int paragraphs) {
+    StringBuilder html = new StringBuilder(paragraphs * 300);
+    html.append("<html><head><title>Synthetic page</title>")
+        .append("<script>var _spPageContextInfo = {};</script></head><body>")
+        .append("<noscript>Enable JavaScript to use this page.</noscript>")
+        .append("<div class='noIndex'><ul>");
+    for (int i = 0; i < 20; i++) {
+      html.append("<li><a href='/sites/SiteCollection/Pages/").append(i).append(".aspx'>Page ")
+          .append(i).append("</a></li>");
+    }
+    html.append("</ul></div><div id='content'>");
+    for (int i = 0; i < paragraphs; i++) {
+      html.append("<p>Paragraph ").append(i)
+          .append(" of the synthetic page with <b>some</b> markup and a ")
+          .append("<a href='/sites/SiteCollection/Shared Documents/doc").append(i)
+          .append(".docx'>link</a> to a document in the site collection.</p>");
+    }
+    return html.append("</div></body></html>").toString();
+  }
+
+  /** Internal name of a custom field, escaped the way SharePoint escapes spaces and symbols. */
+  static String customFieldName(int i) {
+    return "ows_Custom_x0020_Field_x0020_" + i + "_x002e_";
+  }
+
+  private static void appendAttributeType(
+      StringBuilder xml, String name, String displayName, int number) {
+    xml.append("<s:AttributeType name='").append(name).append("' rs:name='").append(displayName)
+        .append("' rs:number='").append(number).append("'>\n")
+        .append("<s:datatype dt:type='string' dt:maxLength='512' />\n</s:AttributeType>\n");
+  }
+
+  /** Appends a list item row. Every tenth row carries a character reference SharePoint emits. */
+  static void appendRow(StringBuilder xml, int id) {
+    String title = id % 10 == 0 ? "Item&#31; " + id : "Item " + id;
+    String leaf = id + "_.000";
+    xml.append("<z:row ows_ContentTypeId='0x0100442459C9B5E59C4F9CFDC789A220FC92'\n")
+        .append(" ows_Title='").append(title).append("' ows_ContentType='Item' ows_ID='")
+        .append(id).append("'\n")
+        .append(" ows_Modified='2012-05-01T22:14:17Z' ows_Created='2012-05-01T22:14:17Z'\n")
+        .append(" ows_Author='1073741823;#System Account'\n")
+        .append(" ows_Editor='1073741823;#System Account' ows_owshiddenversion='1'\n")
+        .append(" ows_WorkflowVersion='1' ows__UIVersion='512' ows__UIVersionString='1.0'\n")
+        .append(" ows_Attachments='0' ows__ModerationStatus='0'\n")
+        .append(" ows_LinkTitleNoMenu='").append(title).append("'\n")
+        .append(" ows_LinkTitle='").append(title).append("' ows_SelectTitle='").append(id)
+        .append("'\n")
+        .append(" ows_Order='").append(id * 100).append(".000000000000'\n")
+        .append(" ows_GUID='{10E17D90-375F-47A5-94EE-6E75A3EF0E2D}'\n")
+        .append(" ows_FileRef='").append(id).append(";#sites/SiteCollection/Lists/Custom List/")
+        .append(leaf).append("'\n")
+        .append(" ows_FileDirRef='").append(id)
+        .append(";#sites/SiteCollection/Lists/Custom List'\n")
+        .append(" ows_Last_x0020_Modified='").append(id).append(";#2012-05-01T22:14:17Z'\n")
+        .append(" ows_Created_x0020_Date='").append(id).append(";#2012-05-01T22:14:17Z'\n")
+        .append(" ows_FSObjType='").append(id).append(";#0' ows_PermMask='0x7fffffffffffffff'\n")
+        .append(" ows_FileLeafRef='").append(id).append(";#").append(leaf).append("'\n")
+        .append(" ows_UniqueId='").append(id)
+        .append(";#{FD87F56D-DBE1-4EB1-8379-0B83082615E0}'\n")
+        .append(" ows_ProgId='").append(id).append(";#'\n")
+        .append(" ows_ScopeId='").append(id)
+        .append(";#{F9CB02B3-7F29-4CAC-804F-BA6E14F1EB39}'\n")
+        .append(" ows_ServerUrl='/sites/SiteCollection/Lists/Custom List/").append(leaf)
+        .append("'\n")
+        .append(" ows_EncodedAbsUrl='http://localhost:1/sites/SiteCollection/Lists/Custom%20List/")
+        .append(leaf).append("'\n")
+        .append(" ows_BaseName='").append(id).append("_' ows_MetaInfo='").append(id)
+        .append(";#' ows__Level='1' ows__IsCurrentVersion='1' ows_ServerRedirected='0'/>\n");
+  }
+}
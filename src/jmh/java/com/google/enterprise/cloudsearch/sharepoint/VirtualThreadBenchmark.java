@@ -0,0 +1,197 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.microsoft.schemas.sharepoint.soap.ItemData;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Documents fetched with {@code DOCUMENTS} in flight against a local stand-in for SharePoint
+ * which answers every request after {@code latencyMillis}. Each document gets its list item with
+ * {@link SiteDataClient#getContentItem} and downloads its file with {@link HttpClientImpl}, both
+ * blocking, as {@code getDoc} does for a list item. The SOAP call goes through the connector's
+ * JAX-WS port, throttling handler and JAXB parsing, as created by {@link
+ * SiteConnectorFactoryImpl}, and both calls take {@link AdaptiveThrottle} permits. The other
+ * calls {@code getDoc} makes for a list item, such as for its list and web, are usually served
+ * from caches and are left out.
+ *
+ * <p>With {@code PLATFORM} threads the pool is capped at {@code platformThreads}, standing in for
+ * what a connector host can afford; with {@code VIRTUAL} threads every document gets its own
+ * thread. {@code VIRTUAL} requires Java 21 or later. The stand-in runs in the benchmark's JVM, so
+ * on a host with few cores both kinds end up bound by CPU rather than by latency.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {
+      "-Dhttp.maxConnections=" + VirtualThreadBenchmark.DOCUMENTS,
+      "-Dsun.net.httpserver.nodelay=true"
+    })
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark {
+  static final int DOCUMENTS = 1024;
+
+  private static final String SOAP_NAMESPACE = "http://schemas.microsoft.com/sharepoint/soap/";
+
+  private static final byte[] SOAP_RESPONSE =
+      ("<?xml version='1.0' encoding='utf-8'?>"
+              + "<soap:Envelope xmlns:soap='http://schemas.xmlsoap.org/soap/envelope/'>"
+              + "<soap:Body><GetContentResponse xmlns='" + SOAP_NAMESPACE + "'>"
+              + "<GetContentResult>"
+              + SyntheticResponses.listItem(20).replace("&", "&amp;").replace("<", "&lt;")
+              + "</GetContentResult></GetContentResponse></soap:Body></soap:Envelope>")
+          .getBytes(UTF_8);
+  private static final String LIST_ID = "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}";
+  private static final byte[] FILE_BODY = new byte[16 * 1024];
+
+  /** Kind of thread each document runs on. */
+  public enum ThreadKind {
+    PLATFORM,
+    VIRTUAL
+  }
+
+  @Param({"PLATFORM", "VIRTUAL"})
+  ThreadKind threads;
+
+  @Param({"64"})
+  int platformThreads;
+
+  @Param({"50"})
+  int latencyMillis;
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private ExecutorService documentExecutor;
+  private HttpClient client;
+  private SiteDataClient siteDataClient;
+  private URL fileUrl;
+
+  @Setup
+  public void setup() throws IOException {
+    ConnectorThreads connectorThreads =
+        threads == ThreadKind.VIRTUAL ? ConnectorThreads.virtual() : ConnectorThreads.PLATFORM;
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), DOCUMENTS * 2);
+    server.createContext(
+        "/_vti_bin/SiteData.asmx", exchange -> respond(exchange, "text/xml", SOAP_RESPONSE));
+    server.createContext(
+        "/Documents/file.txt", exchange -> respond(exchange, "text/plain", FILE_BODY));
+    // A thread per request, so that the stand-in's latency doesn't depend on the thread kind.
+    // Platform threads, since the JDK's HTTP server reads requests holding a monitor.
+    serverExecutor = Executors.newCachedThreadPool();
+    server.setExecutor(serverExecutor);
+    server.start();
+    String baseUrl = "http://localhost:" + server.getAddress().getPort();
+    fileUrl = new URL(baseUrl + "/Documents/file.txt");
+    SharePointRequestContext requestContext = new SharePointRequestContext.Builder().build();
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, DOCUMENTS, 300);
+    client =
+        new HttpClientImpl.Builder()
+            .setSharePointRequestContext(requestContext)
+            .setThrottle(throttle)
+            .build();
+    siteDataClient =
+        new SiteConnectorFactoryImpl.Builder()
+            .setRequestContext(requestContext)
+            .setReferenceIdentitySourceConfiguration(ImmutableMap.of())
+            .setThrottle(throttle)
+            .build()
+            .getInstance(baseUrl, baseUrl)
+            .getSiteDataClient();
+    documentExecutor =
+        connectorThreads.newFixedThreadPool(
+            connectorThreads.isVirtual() ? DOCUMENTS : platformThreads, "document-%d");
+  }
+
+  @TearDown
+  public void tearDown() {
+    documentExecutor.shutdownNow();
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DOCUMENTS)
+  public long getDocs() throws InterruptedException, ExecutionException {
+    List<Future<Long>> documents = new ArrayList<>(DOCUMENTS);
+    for (int i = 0; i < DOCUMENTS; i++) {
+      documents.add(documentExecutor.submit(this::getDoc));
+    }
+    long bytes = 0;
+    for (Future<Long> document : documents) {
+      bytes += document.get();
+    }
+    return bytes;
+  }
+
+  private long getDoc() throws IOException {
+    ItemData item = siteDataClient.getContentItem(LIST_ID, "2");
+    long fields = item.getXml().getAny().size();
+    try (InputStream contents = client.issueGetRequest(fileUrl).getContents()) {
+      return fields + ByteStreams.exhaust(contents);
+    }
+  }
+
+  private void respond(HttpExchange exchange, String contentType, byte[] body)
+      throws IOException {
+    ByteStreams.exhaust(exchange.getRequestBody());
+    try {
+      Thread.sleep(latencyMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    exchange.getResponseHeaders().add("Content-Type", contentType);
+    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
@@ -25,11 +25,23 @@ import com.google.common.base.Strings;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration;
 import com.google.enterprise.cloudsearch.sharepoint.ActiveDirectoryPrincipal.PrincipalFormat;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -60,8 +72,14 @@ class ActiveDirectoryClient {
   private static final String ATTR_NAME = "name";
   private static final String ATTR_MAIL = "mail";
   private static final String ATTR_SID = "sid";
+  private static final String ATTR_OBJECTSID = "objectSid";
+  private static final String ATTR_USERPRINCIPALNAME = "userPrincipalName";
+  static final int DEFAULT_BATCH_SIZE = 100;
+  private static final String STORE_NAMESPACE_SID = "sid";
+  private static final String STORE_NAMESPACE_EMAIL = "email";
 
   private final ADServer adServer;
+  private final Optional<IdentityCacheStore> store;
   private final LoadingCache<String, Optional<String>> cache =
       CacheBuilder.newBuilder()
           // Cache will auto expire in 30 minutes after initial write or update.
@@ -80,8 +98,27 @@ class ActiveDirectoryClient {
                     log.log(Level.WARNING, "Could not resolve SID {0} to account name.", key);
                   }
                   log.log(Level.FINE, "SID {0} resolved to {1}", new Object[] {key, resolved});
+                  persist(STORE_NAMESPACE_SID, key, resolved);
                   return resolved;
                 }
+
+                @Override
+                public Map<String, Optional<String>> loadAll(Iterable<? extends String> keys)
+                    throws IOException {
+                  Set<String> sids = ImmutableSet.copyOf(keys);
+                  log.log(Level.FINE, "Performing batched lookup for {0} SIDs", sids.size());
+                  Map<String, Optional<String>> resolved = adServer.getUserAccountsBySid(sids);
+                  Map<String, Optional<String>> results = new HashMap<>();
+                  for (String sid : sids) {
+                    Optional<String> account = resolved.getOrDefault(sid, Optional.empty());
+                    if (!account.isPresent()) {
+                      log.log(Level.WARNING, "Could not resolve SID {0} to account name.", sid);
+                    }
+                    results.put(sid, account);
+                    persist(STORE_NAMESPACE_SID, sid, account);
+                  }
+                  return results;
+                }
               });
 
   private final LoadingCache<ActiveDirectoryPrincipal, Optional<String>> cacheEmailByPrincipal =
@@ -102,8 +139,32 @@ class ActiveDirectoryClient {
                       Level.FINE,
                       "Principal {0} resolved to {1}",
                       new Object[] {principal, resolved});
+                  persist(STORE_NAMESPACE_EMAIL, toStoreKey(principal), resolved);
                   return resolved;
                 }
+
+                @Override
+                public Map<ActiveDirectoryPrincipal, Optional<String>> loadAll(
+                    Iterable<? extends ActiveDirectoryPrincipal> keys) throws IOException {
+                  Set<ActiveDirectoryPrincipal> principals = ImmutableSet.copyOf(keys);
+                  log.log(
+                      Level.FINE,
+                      "Performing batched lookup for {0} principals",
+                      principals.size());
+                  Map<ActiveDirectoryPrincipal, Optional<String>> resolved =
+                      adServer.getEmailsByPrincipal(principals);
+                  Map<ActiveDirectoryPrincipal, Optional<String>> results = new HashMap<>();
+                  for (ActiveDirectoryPrincipal principal : principals) {
+                    Optional<String> email = resolved.getOrDefault(principal, Optional.empty());
+                    if (!email.isPresent()) {
+                      log.log(
+                          Level.WARNING, "Could not resolve principal {0} to email.", principal);
+                    }
+                    results.put(principal, email);
+                    persist(STORE_NAMESPACE_EMAIL, toStoreKey(principal), email);
+                  }
+                  return results;
+                }
               });
 
   String getUserAccountBySid(String sid) throws IOException {
@@ -144,15 +205,173 @@ class ActiveDirectoryClient {
     }
   }
 
+  /**
+   * Resolves {@code sids}, and the domain SIDs they belong to, with batched LDAP queries. Results
+   * are cached, so following {@link #getUserAccountBySid} calls for these SIDs don't query LDAP.
+   * Empty and invalid SIDs are ignored.
+   */
+  void prefetchUserAccountsBySid(Collection<String> sids) throws IOException {
+    Set<String> toResolve = new LinkedHashSet<>();
+    for (String sid : sids) {
+      if (Strings.isNullOrEmpty(sid) || !isValidSid(sid)) {
+        continue;
+      }
+      toResolve.add(sid.substring(0, sid.lastIndexOf("-")));
+      toResolve.add(sid);
+    }
+    if (toResolve.isEmpty()) {
+      return;
+    }
+    try {
+      cache.getAll(toResolve);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Resolves emails of {@code principals} with batched LDAP queries. Results are cached, so
+   * following {@link #getUserEmailByPrincipal} calls for these principals don't query LDAP.
+   */
+  void prefetchEmailsByPrincipal(Collection<ActiveDirectoryPrincipal> principals)
+      throws IOException {
+    if (principals.isEmpty()) {
+      return;
+    }
+    try {
+      cacheEmailByPrincipal.getAll(principals);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static boolean isValidSid(String sid) {
+    return sid.startsWith("S-1-") || sid.startsWith("s-1-");
+  }
+
   private static void validateSid(String sid) {
-    checkArgument(sid.startsWith("S-1-") || sid.startsWith("s-1-"), "Invalid SID: %s", sid);
+    checkArgument(isValidSid(sid), "Invalid SID: %s", sid);
+  }
+
+  /** Returns a filter matching any of {@code values} of {@code attribute}. */
+  @VisibleForTesting
+  static String orFilter(String attribute, List<String> values) {
+    checkArgument(!values.isEmpty(), "values can not be empty");
+    StringBuilder filter = new StringBuilder();
+    if (values.size() > 1) {
+      filter.append("(|");
+    }
+    for (String value : values) {
+      filter.append('(').append(attribute).append('=');
+      escapeFilterValue(value, filter);
+      filter.append(')');
+    }
+    if (values.size() > 1) {
+      filter.append(')');
+    }
+    return filter.toString();
+  }
+
+  /** Escapes characters with special meaning in LDAP filters, as defined in RFC 4515. */
+  private static void escapeFilterValue(String value, StringBuilder filter) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          filter.append("\\5c");
+          break;
+        case '*':
+          filter.append("\\2a");
+          break;
+        case '(':
+          filter.append("\\28");
+          break;
+        case ')':
+          filter.append("\\29");
+          break;
+        case '\0':
+          filter.append("\\00");
+          break;
+        default:
+          filter.append(c);
+      }
+    }
+  }
+
+  /** Converts a binary objectSid value to its string form, such as S-1-5-21-1-2-3-500. */
+  @VisibleForTesting
+  static String decodeSid(byte[] sid) {
+    checkArgument(sid.length >= 8 && sid.length == 8 + 4 * (sid[1] & 0xff), "Invalid SID");
+    long authority = 0;
+    for (int i = 2; i < 8; i++) {
+      authority = (authority << 8) | (sid[i] & 0xff);
+    }
+    StringBuilder result = new StringBuilder("S-").append(sid[0] & 0xff).append('-')
+        .append(authority);
+    for (int i = 8; i < sid.length; i += 4) {
+      long subAuthority = (sid[i] & 0xffL)
+          | (sid[i + 1] & 0xffL) << 8
+          | (sid[i + 2] & 0xffL) << 16
+          | (sid[i + 3] & 0xffL) << 24;
+      result.append('-').append(subAuthority);
+    }
+    return result.toString();
   }
 
   @VisibleForTesting
   ActiveDirectoryClient(ADServer adServer) throws IOException {
+    this(adServer, Optional.empty());
+  }
+
+  @VisibleForTesting
+  ActiveDirectoryClient(ADServer adServer, Optional<IdentityCacheStore> store)
+      throws IOException {
     checkNotNull(adServer);
     this.adServer = adServer;
+    this.store = checkNotNull(store);
     adServer.start();
+    if (store.isPresent()) {
+      warmUp(store.get());
+    }
+  }
+
+  /** Populates caches with identities resolved by a previous run. */
+  private void warmUp(IdentityCacheStore store) {
+    cache.putAll(store.getAll(STORE_NAMESPACE_SID));
+    Map<ActiveDirectoryPrincipal, Optional<String>> emails = new HashMap<>();
+    for (Map.Entry<String, Optional<String>> entry :
+        store.getAll(STORE_NAMESPACE_EMAIL).entrySet()) {
+      emails.put(ActiveDirectoryPrincipal.parse(entry.getKey()), entry.getValue());
+    }
+    cacheEmailByPrincipal.putAll(emails);
+    log.log(
+        Level.CONFIG,
+        "Loaded {0} SIDs and {1} emails from identity cache",
+        new Object[] {cache.size(), cacheEmailByPrincipal.size()});
+  }
+
+  private void persist(String namespace, String key, Optional<String> value) {
+    if (store.isPresent()) {
+      store.get().put(namespace, key, value);
+    }
+  }
+
+  private static String toStoreKey(ActiveDirectoryPrincipal principal) {
+    return principal.getPrincipalNameInFormat(principal.getFormat());
+  }
+
+  /**
+   * Closes connections to the AD server and writes identities resolved since the last flush to
+   * the identity cache file, if any.
+   */
+  void close() {
+    try {
+      adServer.close();
+    } finally {
+      if (store.isPresent()) {
+        store.get().close();
+      }
+    }
   }
 
   /**
@@ -180,9 +399,35 @@ class ActiveDirectoryClient {
     String username = Configuration.getString("adLookup.username", null).get();
     String password = Configuration.getString("adLookup.password", null).get();
     String method = Configuration.getString("adLookup.method", "standard").get();
+    int poolSize =
+        Configuration.getInteger("adLookup.pool.maxSize", LdapContextPool.DEFAULT_MAX_SIZE).get();
+    int healthCheckIntervalSecs =
+        Configuration.getInteger(
+                "adLookup.pool.healthCheckIntervalSecs",
+                LdapContextPool.DEFAULT_HEALTH_CHECK_INTERVAL_SECS)
+            .get();
+    int borrowTimeoutSecs =
+        Configuration.getInteger(
+                "adLookup.pool.borrowTimeoutSecs", LdapContextPool.DEFAULT_BORROW_TIMEOUT_SECS)
+            .get();
+    int batchSize = Configuration.getInteger("adLookup.batchSize", DEFAULT_BATCH_SIZE).get();
+    Configuration.checkConfiguration(
+        batchSize > 0, "Invalid batch size %s for AD lookup", batchSize);
+    Optional<IdentityCacheStore> store = IdentityCacheStore.fromConfiguration();
     return Optional.of(
         new ActiveDirectoryClient(
-            new ADServerImpl(host, port, username, password, method, contextBuilder)));
+            new ADServerImpl(
+                host,
+                port,
+                username,
+                password,
+                method,
+                contextBuilder,
+                poolSize,
+                healthCheckIntervalSecs,
+                borrowTimeoutSecs,
+                batchSize),
+            store));
   }
 
   interface ADServer {
@@ -198,17 +443,43 @@ class ActiveDirectoryClient {
      */
     Optional<String> getEmailByPrincipal(ActiveDirectoryPrincipal principal) throws IOException;
 
+    /*
+     * Resolves input SIDs to user account names using as few LDAP queries as possible. SIDs
+     * which are not available are missing from the returned map or mapped to {@link
+     * Optional.empty}.
+     */
+    Map<String, Optional<String>> getUserAccountsBySid(Collection<String> sids)
+        throws IOException;
+
+    /*
+     * Resolves input principals to user emails using as few LDAP queries as possible. Principals
+     * which are not available are missing from the returned map or mapped to {@link
+     * Optional.empty}.
+     */
+    Map<ActiveDirectoryPrincipal, Optional<String>> getEmailsByPrincipal(
+        Collection<ActiveDirectoryPrincipal> principals) throws IOException;
+
     /*
      * Initializes LDAP Context and verifies that successful connection can
      * established with AD server using provided connection properties.
      */
     void start() throws IOException;
+
+    /*
+     * Closes connections to AD server and stops any background tasks.
+     */
+    void close();
   }
 
   interface LdapContextBuilder {
     LdapContext buildContext(Hashtable<String, String> env) throws NamingException;
   }
 
+  @FunctionalInterface
+  private interface LdapOperation<T> {
+    T apply(LdapContext context) throws IOException, NamingException;
+  }
+
   private static class AdServerConfiguration {
     private final String dn;
     private final String dnsRoot;
@@ -234,9 +505,15 @@ class ActiveDirectoryClient {
     private final String[] attributes = {
       ATTR_SAMACCOUNTNAME, ATTR_NAME, ATTR_MAIL, ATTR_DNSROOT, ATTR_NETBIOSNAME
     };
+    /** Batched queries also return the attributes used to match results to lookups. */
+    private final SearchControls batchSearchCtls;
+    private final String[] batchAttributes = {
+      ATTR_SAMACCOUNTNAME, ATTR_NAME, ATTR_MAIL, ATTR_OBJECTSID, ATTR_USERPRINCIPALNAME
+    };
+    private final int batchSize;
     private final LdapContextBuilder contextBuilder;
-
-    private volatile LdapContext context;
+    /** Connections shared by all lookups, so lookups from indexing threads run in parallel. */
+    private final LdapContextPool pool;
     private final AtomicReference<AdServerConfiguration> serverConfiguration =
         new AtomicReference<>();
 
@@ -246,7 +523,11 @@ class ActiveDirectoryClient {
         String username,
         String password,
         String method,
-        LdapContextBuilder contextBuilder) {
+        LdapContextBuilder contextBuilder,
+        int poolSize,
+        int healthCheckIntervalSecs,
+        int borrowTimeoutSecs,
+        int batchSize) {
       checkNotNull(host);
       checkArgument(!("".equals(host)));
       checkNotNull(username);
@@ -254,6 +535,7 @@ class ActiveDirectoryClient {
       checkNotNull(password);
       checkArgument(!("".equals(password)));
       checkArgument(port > 0);
+      checkArgument(batchSize > 0);
       this.host = host;
       this.port = port;
       this.username = username;
@@ -262,7 +544,14 @@ class ActiveDirectoryClient {
       this.searchCtls = new SearchControls();
       searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
       searchCtls.setReturningAttributes(attributes);
+      this.batchSearchCtls = new SearchControls();
+      batchSearchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+      batchSearchCtls.setReturningAttributes(batchAttributes);
+      this.batchSize = batchSize;
       this.contextBuilder = checkNotNull(contextBuilder);
+      this.pool =
+          new LdapContextPool(
+              this::createContext, poolSize, healthCheckIntervalSecs, borrowTimeoutSecs);
     }
 
     @Override
@@ -272,72 +561,166 @@ class ActiveDirectoryClient {
         if (!results.isPresent()) {
           return Optional.empty();
         }
-        SearchResult sr = results.get();
-        Attributes attrbs = sr.getAttributes();
-        // use sAMAccountName when available
-        String sAMAccountName = (String) getAttribute(attrbs, ATTR_SAMACCOUNTNAME);
-        if (!Strings.isNullOrEmpty(sAMAccountName)) {
-          return Optional.of(sAMAccountName);
-        }
-        log.log(Level.FINER, "sAMAccountName is null for SID {0}. This might"
-            + " be domain object.", sid);
-        String name = (String) getAttribute(attrbs, ATTR_NAME);
-        if (Strings.isNullOrEmpty(name)) {
-          log.log(Level.WARNING, "name is null for SID {0}. Returing empty.", sid);
-          return Optional.empty();
-        }
-        return Optional.of(name);
+        return getAccountName(results.get().getAttributes(), sid);
       } catch (NamingException ne) {
         throw new IOException(ne);
       }
     }
 
     @Override
-    public Optional<String> getEmailByPrincipal(ActiveDirectoryPrincipal principal)
+    public Map<String, Optional<String>> getUserAccountsBySid(Collection<String> sids)
         throws IOException {
-      if (principal.getFormat() == PrincipalFormat.NETBIOS) {
-        if (!principal.getDomain().equalsIgnoreCase(serverConfiguration.get().netbiosName)) {
-          log.log(
-              Level.WARNING,
-              "NETBIOS mismatch for resolving principal {0}. Expected {1}. Returing empty.",
-              new Object[] {principal, serverConfiguration.get().netbiosName});
-          return Optional.empty();
+      Map<String, Optional<String>> resolved = new HashMap<>();
+      for (List<String> chunk : Iterables.partition(ImmutableSet.copyOf(sids), batchSize)) {
+        // SIDs are returned in upper case, input SIDs may start with "s-1-".
+        Map<String, String> sidByUpperCase = new HashMap<>();
+        for (String sid : chunk) {
+          validateSid(sid);
+          sidByUpperCase.put(sid.toUpperCase(Locale.ENGLISH), sid);
         }
         try {
-          return getEmailFromSearchResult(
-              getSAMAccountNameLookupResult(principal.getName()),
-              ATTR_SAMACCOUNTNAME,
-              principal.getName());
+          for (SearchResult result : getSearchResults(orFilter(ATTR_OBJECTSID, chunk))) {
+            Attributes attrbs = result.getAttributes();
+            String sid = getSid(attrbs);
+            String requested = sid == null ? null : sidByUpperCase.get(sid);
+            if (requested == null) {
+              log.log(Level.FINE, "Ignoring unrequested SID {0}", sid);
+              continue;
+            }
+            resolved.put(requested, getAccountName(attrbs, requested));
+          }
         } catch (NamingException ne) {
           throw new IOException(ne);
         }
-      } else if (principal.getFormat() == PrincipalFormat.DNS) {
-        if (!principal.getDomain().equalsIgnoreCase(serverConfiguration.get().dnsRoot)) {
-          log.log(
-              Level.WARNING,
-              "DnsRoot mismatch for resolving principal {0}. Returing empty.",
+      }
+      return resolved;
+    }
+
+    @Override
+    public Map<ActiveDirectoryPrincipal, Optional<String>> getEmailsByPrincipal(
+        Collection<ActiveDirectoryPrincipal> principals) throws IOException {
+      Map<ActiveDirectoryPrincipal, Optional<String>> resolved = new HashMap<>();
+      // Lookup value in lower case to principals, since AD attribute matching ignores case.
+      ListMultimap<String, ActiveDirectoryPrincipal> bySAMAccountName =
+          MultimapBuilder.linkedHashKeys().arrayListValues().build();
+      ListMultimap<String, ActiveDirectoryPrincipal> byUserPrincipalName =
+          MultimapBuilder.linkedHashKeys().arrayListValues().build();
+      for (ActiveDirectoryPrincipal principal : ImmutableSet.copyOf(principals)) {
+        if (!isServerDomain(principal)) {
+          resolved.put(principal, Optional.empty());
+          continue;
+        }
+        if (principal.getFormat() == PrincipalFormat.DNS) {
+          byUserPrincipalName.put(
+              PrincipalFormat.DNS
+                  .format(principal.getName(), principal.getDomain())
+                  .toLowerCase(Locale.ENGLISH),
               principal);
-          return Optional.empty();
+        } else {
+          bySAMAccountName.put(principal.getName().toLowerCase(Locale.ENGLISH), principal);
         }
-        try {
+      }
+      try {
+        resolveEmails(ATTR_SAMACCOUNTNAME, bySAMAccountName, resolved);
+        resolveEmails(ATTR_USERPRINCIPALNAME, byUserPrincipalName, resolved);
+      } catch (NamingException ne) {
+        throw new IOException(ne);
+      }
+      return resolved;
+    }
+
+    private void resolveEmails(
+        String lookupField,
+        ListMultimap<String, ActiveDirectoryPrincipal> byLookupValue,
+        Map<ActiveDirectoryPrincipal, Optional<String>> resolved)
+        throws IOException, NamingException {
+      for (List<String> chunk : Iterables.partition(byLookupValue.keySet(), batchSize)) {
+        String query = "(&(objectCategory=person)(objectClass=user)"
+            + orFilter(lookupField, chunk) + ")";
+        for (SearchResult result : getSearchResults(query)) {
+          Attributes attrbs = result.getAttributes();
+          String lookupValue = (String) getAttribute(attrbs, lookupField);
+          if (lookupValue == null) {
+            continue;
+          }
+          Optional<String> email = getEmail(attrbs, lookupField, lookupValue);
+          for (ActiveDirectoryPrincipal principal :
+              byLookupValue.get(lookupValue.toLowerCase(Locale.ENGLISH))) {
+            resolved.put(principal, email);
+          }
+        }
+      }
+    }
+
+    private Optional<String> getAccountName(Attributes attrbs, String sid)
+        throws NamingException {
+      // use sAMAccountName when available
+      String sAMAccountName = (String) getAttribute(attrbs, ATTR_SAMACCOUNTNAME);
+      if (!Strings.isNullOrEmpty(sAMAccountName)) {
+        return Optional.of(sAMAccountName);
+      }
+      log.log(Level.FINER, "sAMAccountName is null for SID {0}. This might"
+          + " be domain object.", sid);
+      String name = (String) getAttribute(attrbs, ATTR_NAME);
+      if (Strings.isNullOrEmpty(name)) {
+        log.log(Level.WARNING, "name is null for SID {0}. Returing empty.", sid);
+        return Optional.empty();
+      }
+      return Optional.of(name);
+    }
+
+    private String getSid(Attributes attrbs) throws NamingException {
+      Object sid = getAttribute(attrbs, ATTR_OBJECTSID);
+      if (sid instanceof byte[]) {
+        return decodeSid((byte[]) sid);
+      }
+      return sid == null ? null : sid.toString().toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns true if {@code principal} can be looked up on this server, which only has accounts
+     * of its own domain.
+     */
+    private boolean isServerDomain(ActiveDirectoryPrincipal principal) {
+      if (principal.getFormat() == PrincipalFormat.NETBIOS
+          && !principal.getDomain().equalsIgnoreCase(serverConfiguration.get().netbiosName)) {
+        log.log(
+            Level.WARNING,
+            "NETBIOS mismatch for resolving principal {0}. Expected {1}. Returing empty.",
+            new Object[] {principal, serverConfiguration.get().netbiosName});
+        return false;
+      }
+      if (principal.getFormat() == PrincipalFormat.DNS
+          && !principal.getDomain().equalsIgnoreCase(serverConfiguration.get().dnsRoot)) {
+        log.log(
+            Level.WARNING,
+            "DnsRoot mismatch for resolving principal {0}. Returing empty.",
+            principal);
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public Optional<String> getEmailByPrincipal(ActiveDirectoryPrincipal principal)
+        throws IOException {
+      if (!isServerDomain(principal)) {
+        return Optional.empty();
+      }
+      try {
+        if (principal.getFormat() == PrincipalFormat.DNS) {
           String lookupValue =
               PrincipalFormat.DNS.format(principal.getName(), principal.getDomain());
           return getEmailFromSearchResult(
-              getUPNLookupResult(lookupValue), "userPrincipalName", lookupValue);
-        } catch (NamingException ne) {
-          throw new IOException(ne);
-        }
-      } else if (principal.getFormat() == PrincipalFormat.NONE) {
-        try {
-          return getEmailFromSearchResult(
-              getSAMAccountNameLookupResult(principal.getName()),
-              ATTR_SAMACCOUNTNAME,
-              principal.getName());
-        } catch (NamingException ne) {
-          throw new IOException(ne);
+              getUPNLookupResult(lookupValue), ATTR_USERPRINCIPALNAME, lookupValue);
         }
+        return getEmailFromSearchResult(
+            getSAMAccountNameLookupResult(principal.getName()),
+            ATTR_SAMACCOUNTNAME,
+            principal.getName());
+      } catch (NamingException ne) {
+        throw new IOException(ne);
       }
-      return Optional.empty();
     }
 
     private Optional<String> getEmailFromSearchResult(
@@ -346,8 +729,11 @@ class ActiveDirectoryClient {
       if (!results.isPresent()) {
         return Optional.empty();
       }
-      SearchResult sr = results.get();
-      Attributes attrbs = sr.getAttributes();
+      return getEmail(results.get().getAttributes(), lookupField, lookupValue);
+    }
+
+    private Optional<String> getEmail(Attributes attrbs, String lookupField, String lookupValue)
+        throws NamingException {
       String email = (String) getAttribute(attrbs, ATTR_MAIL);
       if (Strings.isNullOrEmpty(email)) {
         log.log(
@@ -361,8 +747,16 @@ class ActiveDirectoryClient {
 
     @Override
     public void start() throws IOException {
-      initializeContext();
-      refreshConnection();
+      try {
+        withContext(this::loadServerConfiguration);
+      } catch (NamingException ne) {
+        throw new IOException(ne);
+      }
+    }
+
+    @Override
+    public void close() {
+      pool.close();
     }
 
     private Optional<SearchResult> getSidLookupResult(String sid)
@@ -391,112 +785,127 @@ class ActiveDirectoryClient {
 
     private Optional<SearchResult> getSearchResult(String query)
         throws IOException, NamingException {
-      refreshConnection();
-      // Use search base as empty when querying using global catalog
-      String searchBase = (port == 389 || port == 636) ? serverConfiguration.get().dn : "";
+      String searchBase = getSearchBase();
       log.log(
           Level.FINE,
           "Querying host {0} on port {1,number,#} with query {2} and search base {3}",
           new Object[] {host, port, query, searchBase});
-      NamingEnumeration<SearchResult> results = executeQuery(query, searchBase);
-      if (!results.hasMoreElements()) {
-        log.log(
-            Level.WARNING,
-            "No result found on host {0} on port {1,number,#} with query {2} and search base {3}."
-                + " Returing empty.",
-            new Object[] {host, port, query, searchBase});
-        return Optional.empty();
-      }
-      return Optional.of(results.next());
+      return withContext(
+          context -> {
+            NamingEnumeration<SearchResult> results =
+                context.search(searchBase, query, searchCtls);
+            if (!results.hasMoreElements()) {
+              log.log(
+                  Level.WARNING,
+                  "No result found on host {0} on port {1,number,#} with query {2}"
+                      + " and search base {3}. Returing empty.",
+                  new Object[] {host, port, query, searchBase});
+              return Optional.empty();
+            }
+            return Optional.of(results.next());
+          });
     }
 
-    private NamingEnumeration<SearchResult> executeQuery(String query, String searchBase)
-        throws NamingException {
-      return context.search(searchBase, query, searchCtls);
+    /** Returns all results of {@code query}, which may match many objects. */
+    private List<SearchResult> getSearchResults(String query)
+        throws IOException, NamingException {
+      String searchBase = getSearchBase();
+      log.log(
+          Level.FINE,
+          "Querying host {0} on port {1,number,#} with batched query {2} and search base {3}",
+          new Object[] {host, port, query, searchBase});
+      return withContext(
+          context -> {
+            List<SearchResult> results = new ArrayList<>();
+            NamingEnumeration<SearchResult> enumeration =
+                context.search(searchBase, query, batchSearchCtls);
+            try {
+              while (enumeration.hasMore()) {
+                results.add(enumeration.next());
+              }
+            } finally {
+              enumeration.close();
+            }
+            return results;
+          });
     }
 
-    private synchronized void initializeContext() throws IOException {
-      // Check if current context is still useful by calling
-      // context.getAttributes.
-      if (context != null) {
+    private String getSearchBase() {
+      // Use search base as empty when querying using global catalog
+      return (port == 389 || port == 636) ? serverConfiguration.get().dn : "";
+    }
+
+    /**
+     * Runs {@code operation} with a pooled connection. A connection which fails with a
+     * {@link CommunicationException} is discarded and the operation is retried once with another
+     * connection.
+     */
+    private <T> T withContext(LdapOperation<T> operation) throws IOException, NamingException {
+      for (boolean retry = true; ; retry = false) {
+        LdapContext context = pool.borrow();
+        boolean broken = false;
         try {
-          context.getAttributes("");
-          return;
-        } catch (NamingException ignore) {
-          ignore = null;
+          return operation.apply(context);
+        } catch (CommunicationException ce) {
+          broken = true;
+          if (!retry) {
+            throw ce;
+          }
+          log.log(
+              Level.INFO,
+              "Error communicating with LDAP host {0} on port {1,number,#}. Retrying.",
+              new Object[] {host, port});
+        } finally {
+          if (broken) {
+            pool.invalidate(context);
+          } else {
+            pool.release(context);
+          }
         }
       }
+    }
+
+    private LdapContext createContext() throws IOException {
       Hashtable<String, String> env = new Hashtable<String, String>();
       env.put(Context.INITIAL_CONTEXT_FACTORY,
           "com.sun.jndi.ldap.LdapCtxFactory");
       env.put("com.sun.jndi.ldap.read.timeout", "90000");
+      env.put("java.naming.ldap.attributes.binary", ATTR_OBJECTSID);
       env.put(Context.SECURITY_AUTHENTICATION, "simple");
       env.put(Context.SECURITY_PRINCIPAL, username);
       env.put(Context.SECURITY_CREDENTIALS, password);
       String ldapUrl = String.format("%s://%s:%d", protocol, host, port);
       env.put(Context.PROVIDER_URL, ldapUrl);
       try {
-        context = contextBuilder.buildContext(env);
+        return contextBuilder.buildContext(env);
       } catch (NamingException ne) {
         throw new IOException(ne);
       }
     }
 
-    private void refreshConnection() throws IOException {
-      refreshConnection(true);
-    }
-
-    private void refreshConnection(boolean retry) throws IOException {
-      if (context == null) {
-        throw new IOException("LDAP Context not initialized.");
+    private Void loadServerConfiguration(LdapContext context)
+        throws IOException, NamingException {
+      Attributes attributes = context.getAttributes("");
+      String defaultNamingContext = (String) getAttribute(attributes, ATTR_DEFAULTNAMINGCONTEXT);
+      if (Strings.isNullOrEmpty(defaultNamingContext)) {
+        throw new IOException("Default naming context is null or empty");
       }
-      try {
-        Attributes attributes = context.getAttributes("");
-        if (serverConfiguration.get() != null) {
-          return;
-        }
-        String defaultNamingContext = (String) getAttribute(attributes, ATTR_DEFAULTNAMINGCONTEXT);
-        if (Strings.isNullOrEmpty(defaultNamingContext)) {
-          throw new IOException("Default naming context is null or empty");
-        }
-        String configurationContext =
-            (String) getAttribute(attributes, ATTR_CONFIGURATIONNAMINGCONTEXT);
-        if (Strings.isNullOrEmpty(configurationContext)) {
-          throw new IOException("Configuration naming context is null or empty");
-        }
-        serverConfiguration.set(
-            getAdServerConfiguration(defaultNamingContext, configurationContext));
-      } catch (CommunicationException ce) {
-        if (retry) {
-          log.log(
-              Level.INFO,
-              "Error refreshing LDAP connection to host {0}"
-                  + " on port {1,number,#} for SID lookup. Retrying.",
-              new Object[] {host, port});
-          initializeContext();
-          refreshConnection(false);
-        } else {
-          throw new IOException(ce);
-        }
-      } catch (NamingException ne) {
-        if (retry) {
-          log.log(
-              Level.INFO,
-              "Error refreshing LDAP connection to host {0}"
-                  + " on port {1,number,#} for SID lookup. Retrying.",
-              new Object[] {host, port});
-          initializeContext();
-          refreshConnection(false);
-        } else {
-          throw new IOException(ne);
-        }
+      String configurationContext =
+          (String) getAttribute(attributes, ATTR_CONFIGURATIONNAMINGCONTEXT);
+      if (Strings.isNullOrEmpty(configurationContext)) {
+        throw new IOException("Configuration naming context is null or empty");
       }
+      serverConfiguration.set(
+          getAdServerConfiguration(context, defaultNamingContext, configurationContext));
+      return null;
     }
 
     private AdServerConfiguration getAdServerConfiguration(
-        String defaultNamingContext, String configurationContext) throws NamingException {
+        LdapContext context, String defaultNamingContext, String configurationContext)
+        throws NamingException {
       String query = String.format("(ncName=%s)", defaultNamingContext);
-      NamingEnumeration<SearchResult> ldapResults = executeQuery(query, configurationContext);
+      NamingEnumeration<SearchResult> ldapResults =
+          context.search(configurationContext, query, searchCtls);
       if (!ldapResults.hasMore()) {
         throw new NamingException(
             "Naming Configuration is not available for dn " + defaultNamingContext);
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.Integer.MAX_VALUE;
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of concurrent requests sent to each SharePoint host, adapting the limit to
+ * what the host can sustain. The limit grows by about one request for each limit's worth of
+ * successful requests, and halves when the host reports it is overloaded, through HTTP 429 or
+ * 503 or the SharePointError 2 response header. Requests started before the last decrease do
+ * not decrease the limit again, so one overload episode halves the limit only once. A {@code
+ * Retry-After} delay holds back all new requests to the host until it has passed.
+ *
+ * <p>A {@link CrawlSchedule} can further limit the rate and concurrency of requests to each host
+ * by time of day. The schedule is looked up for every request, so that windows and schedule
+ * changes take effect as soon as they apply.
+ *
+ * <p>One instance is shared by file downloads and all web service ports, so that they back off
+ * together.
+ */
+class AdaptiveThrottle {
+  private static final Logger log = Logger.getLogger(AdaptiveThrottle.class.getName());
+
+  static final int DEFAULT_MAX_CONCURRENCY_PER_HOST = 32;
+  static final int DEFAULT_MIN_CONCURRENCY_PER_HOST = 1;
+  static final int DEFAULT_MAX_RETRY_AFTER_SECS = 300;
+  static final String HTTP_RETRY_AFTER_HEADER = "Retry-After";
+  static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  /** Throttle which never holds back requests. */
+  static final AdaptiveThrottle DISABLED = new AdaptiveThrottle();
+
+  private static final Permit NO_OP_PERMIT = new Permit(null, 0);
+
+  private final boolean enabled;
+  private final boolean adaptive;
+  private final int maxConcurrencyPerHost;
+  private final int minConcurrencyPerHost;
+  private final long maxRetryAfterNanos;
+  private final Supplier<CrawlSchedule> schedule;
+  private final Clock clock;
+  private final ConcurrentMap<String, HostLimit> hosts = new ConcurrentHashMap<>();
+
+  private AdaptiveThrottle() {
+    this.enabled = false;
+    this.adaptive = false;
+    this.maxConcurrencyPerHost = Integer.MAX_VALUE;
+    this.minConcurrencyPerHost = Integer.MAX_VALUE;
+    this.maxRetryAfterNanos = 0;
+    this.schedule = () -> CrawlSchedule.NONE;
+    this.clock = Clock.systemDefaultZone();
+  }
+
+  AdaptiveThrottle(int minConcurrencyPerHost, int maxConcurrencyPerHost, long maxRetryAfterSecs) {
+    this(
+        true,
+        minConcurrencyPerHost,
+        maxConcurrencyPerHost,
+        maxRetryAfterSecs,
+        () -> CrawlSchedule.NONE,
+        Clock.systemDefaultZone());
+  }
+
+  /**
+   * Creates throttle which limits requests per {@code schedule}, and adapts to the hosts' load if
+   * {@code adaptive} is true. {@code clock} gives the local time of day for the schedule.
+   */
+  AdaptiveThrottle(
+      boolean adaptive,
+      int minConcurrencyPerHost,
+      int maxConcurrencyPerHost,
+      long maxRetryAfterSecs,
+      Supplier<CrawlSchedule> schedule,
+      Clock clock) {
+    checkArgument(minConcurrencyPerHost > 0, "min concurrency per host must be greater than 0");
+    checkArgument(
+        maxConcurrencyPerHost >= minConcurrencyPerHost,
+        "max concurrency per host must not be less than min concurrency per host");
+    checkArgument(maxRetryAfterSecs >= 0, "max retry after must not be negative");
+    this.enabled = true;
+    this.adaptive = adaptive;
+    this.schedule = checkNotNull(schedule);
+    this.clock = checkNotNull(clock);
+    this.minConcurrencyPerHost = minConcurrencyPerHost;
+    this.maxConcurrencyPerHost = maxConcurrencyPerHost;
+    this.maxRetryAfterNanos = TimeUnit.SECONDS.toNanos(maxRetryAfterSecs);
+  }
+
+  /**
+   * Creates throttle from configuration.
+   *
+   * <ul>
+   *   <li>sharepoint.throttle.enabled - whether the number of concurrent requests per host adapts
+   *       to the hosts' load, default true. A configured {@link CrawlSchedule} applies either way,
+   *       as do Retry-After delays while it does.
+   *   <li>sharepoint.throttle.maxConcurrencyPerHost - initial and maximum number of concurrent
+   *       requests per host, default 32. Scheduled concurrency above it is limited to it.
+   *   <li>sharepoint.throttle.minConcurrencyPerHost - number of concurrent requests per host
+   *       allowed however overloaded the host reports to be, default 1.
+   *   <li>sharepoint.throttle.maxRetryAfterSecs - longest Retry-After delay honored, default 300.
+   * </ul>
+   */
+  static AdaptiveThrottle fromConfiguration() {
+    checkState(Configuration.isInitialized(), "Configuration not initialized yet");
+    boolean adaptive = Configuration.getBoolean("sharepoint.throttle.enabled", true).get();
+    Optional<CrawlSchedule.Loader> schedule = CrawlSchedule.fromConfiguration();
+    if (!adaptive && !schedule.isPresent()) {
+      return DISABLED;
+    }
+    return new AdaptiveThrottle(
+        adaptive,
+        Configuration.getInteger(
+                "sharepoint.throttle.minConcurrencyPerHost", DEFAULT_MIN_CONCURRENCY_PER_HOST)
+            .get(),
+        Configuration.getInteger(
+                "sharepoint.throttle.maxConcurrencyPerHost", DEFAULT_MAX_CONCURRENCY_PER_HOST)
+            .get(),
+        Configuration.getInteger(
+                "sharepoint.throttle.maxRetryAfterSecs", DEFAULT_MAX_RETRY_AFTER_SECS)
+            .get(),
+        schedule.isPresent() ? schedule.get() : () -> CrawlSchedule.NONE,
+        Clock.systemDefaultZone());
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Waits until a request can be sent to {@code host}, within both the adaptive and the scheduled
+   * limits. The returned permit must be released once the response status is known.
+   */
+  Permit acquire(String host) throws IOException {
+    if (!enabled) {
+      return NO_OP_PERMIT;
+    }
+    HostLimit hostLimit =
+        hosts.computeIfAbsent(checkNotNull(host).toLowerCase(Locale.ENGLISH), HostLimit::new);
+    return new Permit(hostLimit, hostLimit.acquire());
+  }
+
+  /** Returns true if {@code responseCode} means the host is overloaded. */
+  static boolean isOverloaded(int responseCode) {
+    return responseCode == HTTP_TOO_MANY_REQUESTS
+        || responseCode == HttpURLConnection.HTTP_UNAVAILABLE;
+  }
+
+  /**
+   * Returns the delay asked for by a Retry-After header value, given in seconds or as an HTTP
+   * date. Returns 0 if {@code value} is null or can not be parsed.
+   */
+  static long parseRetryAfterMillis(String value) {
+    if (Strings.isNullOrEmpty(value)) {
+      return 0;
+    }
+    try {
+      return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())));
+    } catch (NumberFormatException e) {
+      // Not delay seconds, try HTTP date.
+    }
+    try {
+      ZonedDateTime retryAt = ZonedDateTime.parse(value.trim(), RFC_1123_DATE_TIME);
+      return Math.max(0, Duration.between(Instant.now(), retryAt.toInstant()).toMillis());
+    } catch (DateTimeParseException e) {
+      log.log(Level.FINE, "Unable to parse Retry-After header value {0}", value);
+      return 0;
+    }
+  }
+
+  @VisibleForTesting
+  double getLimit(String host) {
+    HostLimit hostLimit = hosts.get(host.toLowerCase(Locale.ENGLISH));
+    return hostLimit == null ? maxConcurrencyPerHost : hostLimit.getLimit();
+  }
+
+  @VisibleForTesting
+  int getInFlight(String host) {
+    HostLimit hostLimit = hosts.get(host.toLowerCase(Locale.ENGLISH));
+    return hostLimit == null ? 0 : hostLimit.getInFlight();
+  }
+
+  /** Returns true if a Retry-After delay currently holds back requests to {@code host}. */
+  @VisibleForTesting
+  boolean isHeldBack(String host) {
+    HostLimit hostLimit = hosts.get(host.toLowerCase(Locale.ENGLISH));
+    return hostLimit != null && hostLimit.isHeldBack();
+  }
+
+  /** Permission to send one request, released with the outcome of the request. */
+  static class Permit {
+    private final HostLimit hostLimit;
+    private final long acquiredNanos;
+    private boolean released;
+
+    private Permit(HostLimit hostLimit, long acquiredNanos) {
+      this.hostLimit = hostLimit;
+      this.acquiredNanos = acquiredNanos;
+    }
+
+    /** Releases the permit for a request the host handled. */
+    void succeeded() {
+      release(Outcome.SUCCEEDED, 0);
+    }
+
+    /**
+     * Releases the permit for a request the host rejected as overloaded, with the Retry-After
+     * delay it asked for, or 0.
+     */
+    void overloaded(long retryAfterMillis) {
+      release(Outcome.OVERLOADED, retryAfterMillis);
+    }
+
+    /** Releases the permit for a request which failed for another reason. */
+    void failed() {
+      release(Outcome.FAILED, 0);
+    }
+
+    private void release(Outcome outcome, long retryAfterMillis) {
+      if (hostLimit == null || released) {
+        return;
+      }
+      released = true;
+      hostLimit.release(acquiredNanos, outcome, retryAfterMillis);
+    }
+  }
+
+  private enum Outcome {
+    SUCCEEDED,
+    OVERLOADED,
+    FAILED
+  }
+
+  private class HostLimit {
+    private final String host;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private double limit = maxConcurrencyPerHost;
+    private int inFlight;
+    private long lastDecreaseNanos = System.nanoTime();
+    private long blockedUntilNanos = System.nanoTime();
+    private CrawlSchedule.Limits scheduled = CrawlSchedule.Limits.UNLIMITED;
+    private RateLimiter rateLimiter;
+
+    HostLimit(String host) {
+      this.host = host;
+    }
+
+    long acquire() throws IOException {
+      RateLimiter rate = updateSchedule();
+      if (rate != null) {
+        rate.acquire();
+      }
+      lock.lock();
+      try {
+        while (true) {
+          long now = System.nanoTime();
+          long blockedNanos = blockedUntilNanos - now;
+          int maxInFlight = Math.min((int) limit, scheduled.getConcurrency().orElse(MAX_VALUE));
+          if (blockedNanos > 0) {
+            available.awaitNanos(blockedNanos);
+          } else if (inFlight >= maxInFlight) {
+            available.await();
+          } else {
+            inFlight++;
+            return now;
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting to send request to " + host, e);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Applies the scheduled limits for the current time of day, and returns the rate limiter
+     * requests must go through, if any.
+     */
+    private RateLimiter updateSchedule() {
+      CrawlSchedule.Limits limits = schedule.get().getLimits(host, LocalTime.now(clock));
+      lock.lock();
+      try {
+        if (limits.equals(scheduled)) {
+          return rateLimiter;
+        }
+        log.log(
+            Level.INFO,
+            "Crawl schedule limits requests to SharePoint host {0} to {1}.",
+            new Object[] {host, limits});
+        scheduled = limits;
+        if (limits.getConcurrency().orElse(0) > maxConcurrencyPerHost) {
+          log.log(
+              Level.WARNING,
+              "Crawl schedule concurrency {1} for SharePoint host {0} is above "
+                  + "sharepoint.throttle.maxConcurrencyPerHost. Limiting to {2}.",
+              new Object[] {host, limits.getConcurrency().get(), maxConcurrencyPerHost});
+        }
+        if (!limits.getRequestsPerSecond().isPresent()) {
+          rateLimiter = null;
+        } else if (rateLimiter == null) {
+          rateLimiter = RateLimiter.create(limits.getRequestsPerSecond().get());
+        } else {
+          rateLimiter.setRate(limits.getRequestsPerSecond().get());
+        }
+        // Waiting requests may be allowed by a higher concurrency.
+        available.signalAll();
+        return rateLimiter;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void release(long acquiredNanos, Outcome outcome, long retryAfterMillis) {
+      lock.lock();
+      try {
+        inFlight--;
+        long now = System.nanoTime();
+        if (adaptive && outcome == Outcome.SUCCEEDED) {
+          limit = Math.min(maxConcurrencyPerHost, limit + 1 / limit);
+        } else if (outcome == Outcome.OVERLOADED) {
+          if (adaptive && acquiredNanos - lastDecreaseNanos >= 0) {
+            limit = Math.max(minConcurrencyPerHost, limit / 2);
+            lastDecreaseNanos = now;
+            log.log(
+                Level.WARNING,
+                "SharePoint host {0} is overloaded. Reducing concurrent requests to {1}.",
+                new Object[] {host, (int) limit});
+          }
+          // Retry-After is honored even when only the schedule limits requests.
+          long retryAfterNanos =
+              Math.min(maxRetryAfterNanos, TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+          if (retryAfterNanos > 0 && now + retryAfterNanos - blockedUntilNanos > 0) {
+            blockedUntilNanos = now + retryAfterNanos;
+            log.log(
+                Level.WARNING,
+                "Holding back requests to SharePoint host {0} for {1} ms.",
+                new Object[] {host, TimeUnit.NANOSECONDS.toMillis(retryAfterNanos)});
+          }
+        }
+        available.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    double getLimit() {
+      lock.lock();
+      try {
+        return limit;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    int getInFlight() {
+      lock.lock();
+      try {
+        return inFlight;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    boolean isHeldBack() {
+      lock.lock();
+      try {
+        return blockedUntilNanos - System.nanoTime() > 0;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Binary encoding of {@link SharePointObject} payloads, versioned and distinguishable from the
+ * JSON encoding by its first byte, which JSON text never starts with.
+ *
+ * <p>Version 1 is a marker byte, the version, the object type index (0 if none), then for each of
+ * site id, web id, list id, item id, object id and URL in that order a kind byte followed by:
+ *
+ * <ul>
+ *   <li>nothing, if the field is absent
+ *   <li>16 bytes, if the field is a GUID, with its braces and letter case given by the kind
+ *   <li>the index of an earlier field and the length of the prefix the field shares with it, if
+ *       that prefix is long enough, then the rest of the field as text
+ *   <li>otherwise the field as text: its UTF-8 length as a varint, then its UTF-8 bytes
+ * </ul>
+ *
+ * Objects which can't be represented, such as objects parsed from JSON with unknown keys or an
+ * unsupported object type, are encoded as JSON instead.
+ */
+final class CompactPayloadFormat {
+  private static final byte MARKER = 0;
+  private static final byte VERSION_1 = 1;
+
+  /** Object types by index, starting at 1. Only ever append to this list. */
+  private static final ImmutableList<String> OBJECT_TYPES =
+      ImmutableList.of(
+          SharePointObject.VIRTUAL_SERVER,
+          SharePointObject.SITE_COLLECTION,
+          SharePointObject.WEB,
+          SharePointObject.LIST,
+          SharePointObject.LIST_ITEM,
+          SharePointObject.ATTACHMENT,
+          SharePointObject.ASPX,
+          SharePointObject.NAMED_RESOURCE);
+
+  private static final int SITE_ID = 0;
+  private static final int WEB_ID = 1;
+  private static final int LIST_ID = 2;
+  private static final int ITEM_ID = 3;
+  private static final int OBJECT_ID = 4;
+  private static final int URL = 5;
+  private static final int FIELD_COUNT = 6;
+
+  private static final byte ABSENT = 0;
+  private static final byte TEXT = 1;
+  private static final byte GUID_BRACED_LOWER = 2;
+  private static final byte GUID_BRACED_UPPER = 3;
+  private static final byte GUID_LOWER = 4;
+  private static final byte GUID_UPPER = 5;
+  private static final byte PREFIXED = 6;
+
+  /** Shortest prefix worth referring to instead of repeating. */
+  private static final int MIN_PREFIX_LENGTH = 8;
+  private static final int GUID_LENGTH = 36;
+  private static final char[] LOWER_HEX = "0123456789abcdef".toCharArray();
+  private static final char[] UPPER_HEX = "0123456789ABCDEF".toCharArray();
+
+  private CompactPayloadFormat() {}
+
+  static boolean isCompact(byte[] payload) {
+    return payload.length > 0 && payload[0] == MARKER;
+  }
+
+  /** Returns {@code object} encoded, or empty if it can only be encoded as JSON. */
+  static Optional<byte[]> encode(SharePointObject object) {
+    if (!object.getUnknownKeys().isEmpty()) {
+      return Optional.empty();
+    }
+    int objectType = 0;
+    if (object.getObjectType() != null) {
+      objectType = OBJECT_TYPES.indexOf(object.getObjectType()) + 1;
+      if (objectType == 0) {
+        return Optional.empty();
+      }
+    }
+    String[] fields = getFields(object);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+    out.write(MARKER);
+    out.write(VERSION_1);
+    out.write(objectType);
+    for (int i = 0; i < FIELD_COUNT; i++) {
+      writeField(out, fields, i);
+    }
+    return Optional.of(out.toByteArray());
+  }
+
+  static SharePointObject decode(byte[] payload) throws IOException {
+    Input in = new Input(payload);
+    if (in.readByte() != MARKER) {
+      throw new IOException("Not a compact payload");
+    }
+    int version = in.readByte();
+    if (version != VERSION_1) {
+      throw new IOException("Unsupported payload version " + version);
+    }
+    int objectType = in.readByte();
+    if (objectType < 0 || objectType > OBJECT_TYPES.size()) {
+      throw new IOException("Unsupported object type " + objectType);
+    }
+    String[] fields = new String[FIELD_COUNT];
+    for (int i = 0; i < FIELD_COUNT; i++) {
+      fields[i] = readField(in, fields, i);
+    }
+    if (!in.isAtEnd()) {
+      throw new IOException("Unexpected data after payload");
+    }
+    return new SharePointObject(
+        objectType == 0 ? null : OBJECT_TYPES.get(objectType - 1),
+        fields[URL],
+        fields[OBJECT_ID],
+        fields[SITE_ID],
+        fields[WEB_ID],
+        fields[LIST_ID],
+        fields[ITEM_ID]);
+  }
+
+  private static String[] getFields(SharePointObject object) {
+    String[] fields = new String[FIELD_COUNT];
+    fields[SITE_ID] = object.getSiteId();
+    fields[WEB_ID] = object.getWebId();
+    fields[LIST_ID] = object.getListId();
+    fields[ITEM_ID] = object.getItemId();
+    fields[OBJECT_ID] = object.getObjectId();
+    fields[URL] = object.getUrl();
+    return fields;
+  }
+
+  private static void writeField(ByteArrayOutputStream out, String[] fields, int index) {
+    String value = fields[index];
+    if (value == null) {
+      out.write(ABSENT);
+      return;
+    }
+    byte guidKind = getGuidKind(value);
+    if (guidKind != TEXT) {
+      out.write(guidKind);
+      writeGuid(out, value);
+      return;
+    }
+    int prefixField = -1;
+    int prefixLength = 0;
+    for (int i = 0; i < index; i++) {
+      int length = commonPrefixLength(fields[i], value);
+      if (length > prefixLength) {
+        prefixField = i;
+        prefixLength = length;
+      }
+    }
+    if (prefixLength >= MIN_PREFIX_LENGTH) {
+      out.write(PREFIXED);
+      out.write(prefixField);
+      writeVarint(out, prefixLength);
+      writeText(out, value.substring(prefixLength));
+    } else {
+      out.write(TEXT);
+      writeText(out, value);
+    }
+  }
+
+  private static String readField(Input in, String[] fields, int index) throws IOException {
+    byte kind = in.readByte();
+    switch (kind) {
+      case ABSENT:
+        return null;
+      case TEXT:
+        return in.readText();
+      case GUID_BRACED_LOWER:
+        return "{" + in.readGuid(LOWER_HEX) + "}";
+      case GUID_BRACED_UPPER:
+        return "{" + in.readGuid(UPPER_HEX) + "}";
+      case GUID_LOWER:
+        return in.readGuid(LOWER_HEX);
+      case GUID_UPPER:
+        return in.readGuid(UPPER_HEX);
+      case PREFIXED:
+        return readPrefixedField(in, fields, index);
+      default:
+        throw new IOException("Unsupported field kind " + kind);
+    }
+  }
+
+  private static String readPrefixedField(Input in, String[] fields, int index)
+      throws IOException {
+    int prefixField = in.readByte();
+    if (prefixField < 0 || prefixField >= index || fields[prefixField] == null) {
+      throw new IOException("Invalid prefix field " + prefixField);
+    }
+    int prefixLength = in.readVarint();
+    if (prefixLength < 0 || prefixLength > fields[prefixField].length()) {
+      throw new IOException("Invalid prefix length " + prefixLength);
+    }
+    return fields[prefixField].substring(0, prefixLength) + in.readText();
+  }
+
+  /** Returns common prefix length, not splitting a surrogate pair. */
+  private static int commonPrefixLength(String a, String b) {
+    if (a == null) {
+      return 0;
+    }
+    int max = Math.min(a.length(), b.length());
+    int length = 0;
+    while (length < max && a.charAt(length) == b.charAt(length)) {
+      length++;
+    }
+    if (length > 0 && Character.isHighSurrogate(b.charAt(length - 1))) {
+      length--;
+    }
+    return length;
+  }
+
+  /** Returns the GUID kind of {@code value}, or {@link #TEXT} if it isn't a GUID. */
+  private static byte getGuidKind(String value) {
+    boolean braced = value.length() == GUID_LENGTH + 2;
+    if (braced) {
+      if (value.charAt(0) != '{' || value.charAt(value.length() - 1) != '}') {
+        return TEXT;
+      }
+    } else if (value.length() != GUID_LENGTH) {
+      return TEXT;
+    }
+    int offset = braced ? 1 : 0;
+    boolean lower = false;
+    boolean upper = false;
+    for (int i = 0; i < GUID_LENGTH; i++) {
+      char c = value.charAt(offset + i);
+      if (i == 8 || i == 13 || i == 18 || i == 23) {
+        if (c != '-') {
+          return TEXT;
+        }
+      } else if (c >= 'a' && c <= 'f') {
+        lower = true;
+      } else if (c >= 'A' && c <= 'F') {
+        upper = true;
+      } else if (c < '0' || c > '9') {
+        return TEXT;
+      }
+    }
+    if (lower && upper) {
+      return TEXT;
+    }
+    if (braced) {
+      return upper ? GUID_BRACED_UPPER : GUID_BRACED_LOWER;
+    }
+    return upper ? GUID_UPPER : GUID_LOWER;
+  }
+
+  private static void writeGuid(ByteArrayOutputStream out, String guid) {
+    int offset = guid.charAt(0) == '{' ? 1 : 0;
+    int high = -1;
+    for (int i = 0; i < GUID_LENGTH; i++) {
+      char c = guid.charAt(offset + i);
+      if (c == '-') {
+        continue;
+      }
+      int digit = Character.digit(c, 16);
+      if (high < 0) {
+        high = digit;
+      } else {
+        out.write((high << 4) | digit);
+        high = -1;
+      }
+    }
+  }
+
+  private static void writeText(ByteArrayOutputStream out, String value) {
+    byte[] bytes = value.getBytes(UTF_8);
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /** Reads a payload, throwing {@link IOException} if it is truncated. */
+  private static final class Input {
+    private final byte[] payload;
+    private int position;
+
+    Input(byte[] payload) {
+      this.payload = payload;
+    }
+
+    byte readByte() throws IOException {
+      if (position >= payload.length) {
+        throw new IOException("Truncated payload");
+      }
+      return payload[position++];
+    }
+
+    int readVarint() throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        byte b = readByte();
+        value |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Invalid varint");
+    }
+
+    String readText() throws IOException {
+      int length = readVarint();
+      if (length < 0 || length > payload.length - position) {
+        throw new IOException("Truncated payload");
+      }
+      String text = new String(payload, position, length, UTF_8);
+      position += length;
+      return text;
+    }
+
+    String readGuid(char[] hex) throws IOException {
+      char[] guid = new char[GUID_LENGTH];
+      int c = 0;
+      for (int i = 0; i < 16; i++) {
+        if (c == 8 || c == 13 || c == 18 || c == 23) {
+          guid[c++] = '-';
+        }
+        int b = readByte() & 0xff;
+        guid[c++] = hex[b >>> 4];
+        guid[c++] = hex[b & 0x0f];
+      }
+      return new String(guid);
+    }
+
+    boolean isAtEnd() {
+      return position == payload.length;
+    }
+  }
+}
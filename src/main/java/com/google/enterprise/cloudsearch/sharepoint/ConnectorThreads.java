@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads of the connector's own pools, which spend most of their time blocked on
+ * SOAP, HTTP and LDAP calls. On a JVM with virtual threads (Java 21 or later) they can be
+ * virtual, so that a pool is sized by how many requests SharePoint should see instead of by how
+ * many platform threads the JVM can afford.
+ *
+ * <p>Code run on these threads must not block while holding a monitor, which pins a virtual
+ * thread to its carrier. Use {@link java.util.concurrent.locks.ReentrantLock} instead of {@code
+ * synchronized} around I/O.
+ */
+class ConnectorThreads {
+  private static final Logger log = Logger.getLogger(ConnectorThreads.class.getName());
+
+  /** Uses a platform thread for each pool thread. */
+  static final ConnectorThreads PLATFORM = new ConnectorThreads(Optional.empty());
+
+  private static final Optional<ThreadFactory> VIRTUAL_THREAD_FACTORY =
+      findVirtualThreadFactory();
+
+  private final Optional<ThreadFactory> virtualThreadFactory;
+
+  private ConnectorThreads(Optional<ThreadFactory> virtualThreadFactory) {
+    this.virtualThreadFactory = virtualThreadFactory;
+  }
+
+  /**
+   * Creates thread configuration from configuration.
+   *
+   * <ul>
+   *   <li>sharepoint.virtualThreads.enabled - run connector pools on virtual threads, default
+   *       false. Ignored, with a warning, if the JVM doesn't support virtual threads.
+   * </ul>
+   */
+  static ConnectorThreads fromConfiguration() {
+    checkState(Configuration.isInitialized(), "Configuration not initialized yet");
+    if (!Configuration.getBoolean("sharepoint.virtualThreads.enabled", false).get()) {
+      return PLATFORM;
+    }
+    if (!isVirtualThreadSupported()) {
+      log.log(
+          Level.WARNING,
+          "Virtual threads are not supported by Java {0}. Using platform threads.",
+          System.getProperty("java.version"));
+      return PLATFORM;
+    }
+    return virtual();
+  }
+
+  /**
+   * Uses a virtual thread for each pool thread.
+   *
+   * @throws IllegalStateException if the JVM doesn't support virtual threads
+   */
+  static ConnectorThreads virtual() {
+    checkState(isVirtualThreadSupported(), "virtual threads are not supported");
+    return new ConnectorThreads(VIRTUAL_THREAD_FACTORY);
+  }
+
+  static boolean isVirtualThreadSupported() {
+    return VIRTUAL_THREAD_FACTORY.isPresent();
+  }
+
+  boolean isVirtual() {
+    return virtualThreadFactory.isPresent();
+  }
+
+  /**
+   * Returns a factory for threads named by {@code nameFormat}, such as {@code
+   * sharepoint-item-fetch-%d}. Platform threads are daemon threads; virtual threads always are.
+   */
+  ThreadFactory newThreadFactory(String nameFormat) {
+    ThreadFactoryBuilder builder = new ThreadFactoryBuilder().setNameFormat(nameFormat);
+    if (virtualThreadFactory.isPresent()) {
+      return builder.setThreadFactory(virtualThreadFactory.get()).build();
+    }
+    return builder.setDaemon(true).build();
+  }
+
+  /** Returns a pool running at most {@code maxThreads} tasks at a time. */
+  ExecutorService newFixedThreadPool(int maxThreads, String nameFormat) {
+    checkArgument(maxThreads > 0, "max threads must be greater than 0");
+    return Executors.newFixedThreadPool(maxThreads, newThreadFactory(nameFormat));
+  }
+
+  /** Returns a pool starting a thread whenever none is idle, for callers bounding their tasks. */
+  ExecutorService newCachedThreadPool(String nameFormat) {
+    return Executors.newCachedThreadPool(newThreadFactory(nameFormat));
+  }
+
+  @Override
+  public String toString() {
+    return isVirtual() ? "virtual" : "platform";
+  }
+
+  /** Looks up {@code Thread.ofVirtual().factory()}, which the connector's target Java lacks. */
+  private static Optional<ThreadFactory> findVirtualThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return Optional.of(
+          (ThreadFactory)
+              Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      log.log(Level.FINE, "Virtual threads not available", e);
+      return Optional.empty();
+    }
+  }
+}
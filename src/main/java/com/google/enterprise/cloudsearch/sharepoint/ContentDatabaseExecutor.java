@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs per content database work, such as SiteData calls, in parallel with a bound on the number
+ * of concurrent requests sent to the farm. Results are always returned in input order, so callers
+ * can merge them deterministically.
+ */
+class ContentDatabaseExecutor {
+  static final int DEFAULT_MAX_CONCURRENCY = 4;
+
+  /** Work for a single content database. */
+  @FunctionalInterface
+  interface Task<K, V> {
+    V apply(K input) throws IOException;
+  }
+
+  private final int maxConcurrency;
+  private final ExecutorService executor;
+
+  ContentDatabaseExecutor(int maxConcurrency) {
+    this(maxConcurrency, ConnectorThreads.PLATFORM);
+  }
+
+  ContentDatabaseExecutor(int maxConcurrency, ConnectorThreads threads) {
+    checkArgument(maxConcurrency > 0, "max concurrency must be greater than 0");
+    checkNotNull(threads);
+    this.maxConcurrency = maxConcurrency;
+    this.executor =
+        maxConcurrency == 1
+            ? null
+            : threads.newFixedThreadPool(maxConcurrency, "sharepoint-content-db-%d");
+  }
+
+  /**
+   * Creates executor from configuration.
+   *
+   * <ul>
+   *   <li>sharepoint.contentDatabase.maxConcurrency - maximum number of content databases
+   *       processed in parallel, default 4. Use 1 to process content databases sequentially.
+   * </ul>
+   */
+  static ContentDatabaseExecutor fromConfiguration() {
+    checkState(Configuration.isInitialized(), "Configuration not initialized yet");
+    return new ContentDatabaseExecutor(
+        Configuration.getInteger(
+                "sharepoint.contentDatabase.maxConcurrency", DEFAULT_MAX_CONCURRENCY)
+            .get(),
+        ConnectorThreads.fromConfiguration());
+  }
+
+  int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * Applies {@code task} to each of {@code inputs} and returns results in input order. If any task
+   * fails, remaining tasks are cancelled and the failure of the first failing input is thrown.
+   */
+  <K, V> List<V> map(List<K> inputs, Task<K, V> task) throws IOException {
+    checkNotNull(task);
+    List<V> results = new ArrayList<>(inputs.size());
+    if (executor == null || inputs.size() <= 1) {
+      for (K input : inputs) {
+        results.add(task.apply(input));
+      }
+      return results;
+    }
+    List<Future<V>> futures = new ArrayList<>(inputs.size());
+    for (K input : inputs) {
+      futures.add(executor.submit(() -> task.apply(input)));
+    }
+    try {
+      for (Future<V> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while processing content databases", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      for (Future<V> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  void shutdown() {
+    if (executor != null) {
+      MoreExecutors.shutdownAndAwaitTermination(executor, 10, TimeUnit.SECONDS);
+    }
+  }
+}
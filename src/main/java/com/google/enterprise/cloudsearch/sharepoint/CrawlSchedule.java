@@ -0,0 +1,368 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maximum request rate and concurrency for each SharePoint host by time of day, so that the
+ * connector can use a farm's full capacity off-peak and back off during business hours.
+ *
+ * <p>A schedule is read from a properties file, with one entry per host and a {@code default}
+ * entry for all other hosts. Each entry is a comma separated list of windows, in local time. A
+ * window which ends before it starts wraps around midnight, and one which ends when it starts
+ * covers the whole day. {@code rate} is in requests per second. Either limit may be left out.
+ *
+ * <pre>
+ * default = 08:00-18:00 rate=5 concurrency=4, 18:00-08:00 rate=50
+ * sp.example.com = 07:00-19:00 rate=2 concurrency=2
+ * </pre>
+ *
+ * <p>Hosts are matched by name only, as requests are throttled per host name, so an entry applies
+ * to all ports of its host and must not include a port. A colon in a properties key would also
+ * have to be escaped.
+ *
+ * <p>Requests outside of any window are only limited by {@link AdaptiveThrottle}.
+ */
+class CrawlSchedule {
+  private static final Logger log = Logger.getLogger(CrawlSchedule.class.getName());
+
+  static final String DEFAULT_HOST = "default";
+  static final int DEFAULT_RELOAD_INTERVAL_SECS = 60;
+
+  /** Schedule which does not limit any host. */
+  static final CrawlSchedule NONE = new CrawlSchedule(ImmutableMap.of());
+
+  private static final Splitter WINDOW_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+  private static final Splitter FIELD_SPLITTER =
+      Splitter.on(' ').trimResults().omitEmptyStrings();
+
+  private final ImmutableMap<String, ImmutableList<Window>> windowsByHost;
+
+  private CrawlSchedule(ImmutableMap<String, ImmutableList<Window>> windowsByHost) {
+    this.windowsByHost = windowsByHost;
+  }
+
+  /**
+   * Creates a loader for the schedule from configuration, if a schedule is configured. The
+   * schedule file is read again when it changes, so that a new schedule takes effect without a
+   * restart.
+   *
+   * <ul>
+   *   <li>sharepoint.crawlSchedule.file - path to the schedule file, default none.
+   *   <li>sharepoint.crawlSchedule.reloadIntervalSecs - how often the schedule file is checked
+   *       for changes, default 60.
+   * </ul>
+   */
+  static Optional<Loader> fromConfiguration() {
+    checkState(Configuration.isInitialized(), "Configuration not initialized yet");
+    String file = Configuration.getString("sharepoint.crawlSchedule.file", "").get();
+    if (Strings.isNullOrEmpty(file)) {
+      return Optional.empty();
+    }
+    int reloadIntervalSecs =
+        Configuration.getInteger(
+                "sharepoint.crawlSchedule.reloadIntervalSecs", DEFAULT_RELOAD_INTERVAL_SECS)
+            .get();
+    Configuration.checkConfiguration(
+        reloadIntervalSecs > 0, "Invalid crawl schedule reload interval %s", reloadIntervalSecs);
+    try {
+      return Optional.of(
+          new Loader(
+              Paths.get(file), TimeUnit.SECONDS.toNanos(reloadIntervalSecs), System::nanoTime));
+    } catch (IOException | IllegalArgumentException e) {
+      throw new InvalidConfigurationException("Unable to load crawl schedule " + file, e);
+    }
+  }
+
+  /**
+   * Parses a schedule with one entry per host.
+   *
+   * @throws IllegalArgumentException if an entry is malformed
+   */
+  static CrawlSchedule parse(Properties properties) {
+    ImmutableMap.Builder<String, ImmutableList<Window>> windowsByHost = ImmutableMap.builder();
+    for (String host : properties.stringPropertyNames()) {
+      checkArgument(
+          host.indexOf(':') < 0,
+          "Crawl schedule host %s can not include a port, entries apply to all ports of a host",
+          host);
+      windowsByHost.put(
+          host.toLowerCase(Locale.ENGLISH), parseWindows(host, properties.getProperty(host)));
+    }
+    return new CrawlSchedule(windowsByHost.build());
+  }
+
+  private static ImmutableList<Window> parseWindows(String host, String value) {
+    ImmutableList.Builder<Window> windows = ImmutableList.builder();
+    for (String window : WINDOW_SPLITTER.split(value)) {
+      try {
+        windows.add(Window.parse(window));
+      } catch (DateTimeParseException | IllegalArgumentException e) {
+        throw new IllegalArgumentException(
+            String.format("Invalid crawl schedule window [%s] for %s", window, host), e);
+      }
+    }
+    return windows.build();
+  }
+
+  /** Returns the limits for {@code host} at {@code time}. */
+  Limits getLimits(String host, LocalTime time) {
+    List<Window> windows = windowsByHost.get(host.toLowerCase(Locale.ENGLISH));
+    if (windows == null) {
+      windows = windowsByHost.getOrDefault(DEFAULT_HOST, ImmutableList.of());
+    }
+    for (Window window : windows) {
+      if (window.contains(time)) {
+        return window.limits;
+      }
+    }
+    return Limits.UNLIMITED;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof CrawlSchedule)) {
+      return false;
+    }
+    return windowsByHost.equals(((CrawlSchedule) o).windowsByHost);
+  }
+
+  @Override
+  public int hashCode() {
+    return windowsByHost.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return windowsByHost.toString();
+  }
+
+  /** Maximum request rate and concurrency for a host. */
+  static class Limits {
+    static final Limits UNLIMITED = new Limits(Optional.empty(), Optional.empty());
+
+    private final Optional<Double> requestsPerSecond;
+    private final Optional<Integer> concurrency;
+
+    Limits(Optional<Double> requestsPerSecond, Optional<Integer> concurrency) {
+      requestsPerSecond.ifPresent(
+          rate -> checkArgument(rate > 0, "rate must be greater than 0"));
+      concurrency.ifPresent(max -> checkArgument(max > 0, "concurrency must be greater than 0"));
+      this.requestsPerSecond = requestsPerSecond;
+      this.concurrency = concurrency;
+    }
+
+    Optional<Double> getRequestsPerSecond() {
+      return requestsPerSecond;
+    }
+
+    Optional<Integer> getConcurrency() {
+      return concurrency;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Limits)) {
+        return false;
+      }
+      Limits other = (Limits) o;
+      return requestsPerSecond.equals(other.requestsPerSecond)
+          && concurrency.equals(other.concurrency);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(requestsPerSecond, concurrency);
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .omitNullValues()
+          .add("rate", requestsPerSecond.orElse(null))
+          .add("concurrency", concurrency.orElse(null))
+          .toString();
+    }
+  }
+
+  private static class Window {
+    private final LocalTime start;
+    private final LocalTime end;
+    private final Limits limits;
+
+    Window(LocalTime start, LocalTime end, Limits limits) {
+      this.start = checkNotNull(start);
+      this.end = checkNotNull(end);
+      this.limits = checkNotNull(limits);
+    }
+
+    /** Parses a window such as {@code 08:00-18:00 rate=5 concurrency=4}. */
+    static Window parse(String value) {
+      List<String> fields = FIELD_SPLITTER.splitToList(value);
+      List<String> times = Splitter.on('-').trimResults().splitToList(fields.get(0));
+      checkArgument(times.size() == 2, "window must be start-end");
+      Optional<Double> rate = Optional.empty();
+      Optional<Integer> concurrency = Optional.empty();
+      for (String field : fields.subList(1, fields.size())) {
+        if (field.startsWith("rate=")) {
+          rate = Optional.of(Double.parseDouble(field.substring("rate=".length())));
+        } else if (field.startsWith("concurrency=")) {
+          concurrency = Optional.of(Integer.parseInt(field.substring("concurrency=".length())));
+        } else {
+          throw new IllegalArgumentException("unknown limit " + field);
+        }
+      }
+      return new Window(
+          LocalTime.parse(times.get(0)),
+          LocalTime.parse(times.get(1)),
+          new Limits(rate, concurrency));
+    }
+
+    boolean contains(LocalTime time) {
+      if (start.equals(end)) {
+        return true;
+      }
+      if (start.isBefore(end)) {
+        return !time.isBefore(start) && time.isBefore(end);
+      }
+      return !time.isBefore(start) || time.isBefore(end);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Window)) {
+        return false;
+      }
+      Window other = (Window) o;
+      return start.equals(other.start) && end.equals(other.end) && limits.equals(other.limits);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(start, end, limits);
+    }
+
+    @Override
+    public String toString() {
+      return start + "-" + end + " " + limits;
+    }
+  }
+
+  /**
+   * Supplies the schedule in a file, read again when the file's modification time changes. If
+   * the changed file can not be read or parsed, the previous schedule stays in effect.
+   */
+  static class Loader implements Supplier<CrawlSchedule> {
+    private final Path file;
+    private final long reloadIntervalNanos;
+    private final LongSupplier nanoClock;
+    /** Held while reading the file, so not a monitor, which would pin a virtual thread. */
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile CrawlSchedule schedule;
+    private FileTime lastModified;
+    private long nextCheckNanos;
+
+    Loader(Path file, long reloadIntervalNanos, LongSupplier nanoClock) throws IOException {
+      this.file = checkNotNull(file);
+      this.reloadIntervalNanos = reloadIntervalNanos;
+      this.nanoClock = checkNotNull(nanoClock);
+      this.lastModified = Files.getLastModifiedTime(file);
+      this.schedule = read(file);
+      this.nextCheckNanos = nanoClock.getAsLong() + reloadIntervalNanos;
+      log.log(Level.CONFIG, "Crawl schedule loaded from {0}: {1}", new Object[] {file, schedule});
+    }
+
+    @Override
+    public CrawlSchedule get() {
+      reloadIfModified();
+      return schedule;
+    }
+
+    private void reloadIfModified() {
+      lock.lock();
+      try {
+        long now = nanoClock.getAsLong();
+        if (now - nextCheckNanos < 0) {
+          return;
+        }
+        nextCheckNanos = now + reloadIntervalNanos;
+        FileTime modified = Files.getLastModifiedTime(file);
+        if (modified.equals(lastModified)) {
+          return;
+        }
+        lastModified = modified;
+        schedule = read(file);
+        log.log(Level.INFO, "Crawl schedule reloaded from {0}: {1}", new Object[] {file, schedule});
+      } catch (IOException | IllegalArgumentException e) {
+        log.log(
+            Level.WARNING,
+            "Unable to reload crawl schedule from " + file + ". Keeping previous schedule.",
+            e);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private static CrawlSchedule read(Path file) throws IOException {
+      Properties properties = new Properties();
+      try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        properties.load(reader);
+      }
+      return parse(properties);
+    }
+  }
+}
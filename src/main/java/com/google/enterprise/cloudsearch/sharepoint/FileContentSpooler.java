@@ -0,0 +1,235 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.common.io.ByteStreams;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Turns downloaded file content into upload content without holding large files in heap. Content
+ * up to the in memory threshold is buffered, larger content is spilled to a temporary file.
+ * Content larger than the maximum size, if any, is skipped.
+ *
+ * <p>Spilled content can be read any number of times, so that failed uploads can be retried.
+ * Its temporary file is deleted by {@link #discard} for content which won't be uploaded, once the
+ * content has been garbage collected after its upload, or by {@link #close}.
+ */
+class FileContentSpooler {
+  private static final Logger log = Logger.getLogger(FileContentSpooler.class.getName());
+
+  static final int DEFAULT_IN_MEMORY_THRESHOLD_BYTES = 1024 * 1024;
+  static final int DEFAULT_MAX_SIZE_BYTES = 0;
+
+  private static final String TEMP_FILE_PREFIX = "sharepoint-content-";
+
+  private final int inMemoryThresholdBytes;
+  private final long maxSizeBytes;
+  private final ReferenceQueue<TempFileContent> collected = new ReferenceQueue<>();
+  private final Set<TempFileReference> tempFiles = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Creates spooler keeping content up to {@code inMemoryThresholdBytes} in memory, and skipping
+   * content larger than {@code maxSizeBytes}, or no content if 0.
+   */
+  FileContentSpooler(int inMemoryThresholdBytes, long maxSizeBytes) {
+    checkArgument(inMemoryThresholdBytes >= 0, "in memory threshold can not be less than 0");
+    checkArgument(maxSizeBytes >= 0, "maximum content size can not be less than 0");
+    this.inMemoryThresholdBytes = inMemoryThresholdBytes;
+    this.maxSizeBytes = maxSizeBytes == 0 ? Long.MAX_VALUE : maxSizeBytes;
+  }
+
+  /**
+   * Creates spooler from configuration.
+   *
+   * <ul>
+   *   <li>sharepoint.content.inMemoryThresholdBytes - content up to this size is kept in memory,
+   *       larger content is written to a temporary file, default 1 MB
+   *   <li>sharepoint.content.maxSizeBytes - content larger than this is not indexed, and only
+   *       its item's metadata is. Default 0, for no limit.
+   * </ul>
+   */
+  static FileContentSpooler fromConfiguration() {
+    checkState(Configuration.isInitialized(), "Configuration not initialized yet");
+    return new FileContentSpooler(
+        Configuration.getInteger(
+                "sharepoint.content.inMemoryThresholdBytes", DEFAULT_IN_MEMORY_THRESHOLD_BYTES)
+            .get(),
+        Configuration.getInteger("sharepoint.content.maxSizeBytes", DEFAULT_MAX_SIZE_BYTES)
+            .get());
+  }
+
+  /**
+   * Returns true if a response with {@code contentLength} header value is known to exceed the
+   * maximum size, so download can be skipped. Missing or malformed values are not rejected here.
+   */
+  boolean exceedsMaxSize(String contentLength) {
+    if (contentLength == null) {
+      return false;
+    }
+    try {
+      return Long.parseLong(contentLength.trim()) > maxSizeBytes;
+    } catch (NumberFormatException e) {
+      log.log(Level.FINE, "Could not parse Content-Length: {0}", contentLength);
+      return false;
+    }
+  }
+
+  /**
+   * Reads {@code contents} into upload content. Returns empty if content is larger than the
+   * maximum size. Caller remains responsible for closing {@code contents}.
+   */
+  Optional<AbstractInputStreamContent> spool(String contentType, InputStream contents)
+      throws IOException {
+    checkNotNull(contents, "contents can not be null");
+    deleteCollected();
+    byte[] head = ByteStreams.toByteArray(ByteStreams.limit(contents, inMemoryThresholdBytes + 1L));
+    if (head.length > maxSizeBytes) {
+      return Optional.empty();
+    }
+    if (head.length <= inMemoryThresholdBytes) {
+      return Optional.of(new ByteArrayContent(contentType, head));
+    }
+    Path tempFile = Files.createTempFile(TEMP_FILE_PREFIX, ".tmp");
+    boolean spooled = false;
+    try {
+      long size;
+      try (OutputStream out = Files.newOutputStream(tempFile)) {
+        out.write(head);
+        InputStream remaining =
+            maxSizeBytes == Long.MAX_VALUE
+                ? contents
+                : ByteStreams.limit(contents, maxSizeBytes + 1 - head.length);
+        size = head.length + ByteStreams.copy(remaining, out);
+      }
+      if (size > maxSizeBytes) {
+        return Optional.empty();
+      }
+      TempFileContent content = new TempFileContent(contentType, tempFile, size);
+      tempFiles.add(new TempFileReference(content, collected));
+      spooled = true;
+      return Optional.of(content);
+    } finally {
+      if (!spooled) {
+        Files.deleteIfExists(tempFile);
+      }
+    }
+  }
+
+  /** Deletes the temporary file of {@code content}, if any, when it won't be uploaded. */
+  static void discard(AbstractInputStreamContent content) {
+    if (!(content instanceof TempFileContent)) {
+      return;
+    }
+    deleteTempFile(((TempFileContent) content).getFile());
+  }
+
+  /** Deletes the temporary files of all content spooled so far which haven't been deleted yet. */
+  void close() {
+    deleteCollected();
+    for (TempFileReference reference : tempFiles) {
+      tempFiles.remove(reference);
+      deleteTempFile(reference.file);
+    }
+  }
+
+  /** Deletes the temporary files of content which was garbage collected. */
+  private void deleteCollected() {
+    Reference<? extends TempFileContent> reference;
+    while ((reference = collected.poll()) != null) {
+      tempFiles.remove(reference);
+      deleteTempFile(((TempFileReference) reference).file);
+    }
+  }
+
+  private static void deleteTempFile(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Unable to delete temporary file " + file, e);
+    }
+  }
+
+  /** Tracks the temporary file of content, to delete it once the content is unreachable. */
+  private static class TempFileReference extends PhantomReference<TempFileContent> {
+    private final Path file;
+
+    TempFileReference(TempFileContent content, ReferenceQueue<TempFileContent> queue) {
+      super(content, queue);
+      this.file = content.getFile();
+    }
+  }
+
+  /** Content backed by a temporary file, opened anew for each read. */
+  static class TempFileContent extends AbstractInputStreamContent {
+    private final Path file;
+    private final long length;
+
+    TempFileContent(String type, Path file, long length) {
+      super(type);
+      this.file = checkNotNull(file);
+      this.length = length;
+    }
+
+    @Override
+    public long getLength() {
+      return length;
+    }
+
+    @Override
+    public boolean retrySupported() {
+      return true;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return Files.newInputStream(file);
+    }
+
+    @Override
+    public TempFileContent setType(String type) {
+      return (TempFileContent) super.setType(type);
+    }
+
+    @Override
+    public TempFileContent setCloseInputStream(boolean closeInputStream) {
+      return (TempFileContent) super.setCloseInputStream(closeInputStream);
+    }
+
+    Path getFile() {
+      return file;
+    }
+  }
+}
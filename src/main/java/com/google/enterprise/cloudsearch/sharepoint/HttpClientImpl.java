@@ -21,12 +21,13 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -35,10 +36,21 @@ class HttpClientImpl implements HttpClient {
   private static final Logger log = Logger.getLogger(HttpClientImpl.class.getName());
   static final String HTTP_SHAREPOINT_ERROR_HEADER = "SharePointError";
   static final String HTTP_REDIRECT_LOCATION_HEADER = "Location";
+  static final String HTTP_MAX_CONNECTIONS_PROPERTY = "http.maxConnections";
+  /**
+   * Maximum number of bytes read from a response body which is discarded, such as the body of a
+   * redirect or error response, so that its connection can be reused. Longer bodies are closed
+   * with their connection, which is cheaper than reading them.
+   */
+  static final int MAX_DRAIN_BYTES = 64 * 1024;
+  private static final int DRAIN_BUFFER_SIZE = 4 * 1024;
+  /** Value {@link #configureConnectionPool} set {@code http.maxConnections} to, if any. */
+  private static String configuredMaxConnections;
   private SharePointRequestContext requestContext;
   private final int maxRedirectsAllowed;
   private final boolean performBrowserLeniency;
   private final ConnectionFactory connectionFactory;
+  private final AdaptiveThrottle throttle;
 
   private HttpClientImpl(Builder builder) {
     requestContext = checkNotNull(builder.requestContext);
@@ -46,6 +58,43 @@ class HttpClientImpl implements HttpClient {
     maxRedirectsAllowed = builder.maxRedirectsAllowed;
     performBrowserLeniency = builder.performBrowserLeniency;
     connectionFactory = checkNotNull(builder.connectionFactory);
+    throttle = checkNotNull(builder.throttle);
+  }
+
+  /**
+   * Sets the number of idle connections per destination kept alive by {@link HttpURLConnection},
+   * which pools connections for both file downloads and web service calls, from {@code
+   * sharepoint.http.maxConnectionsPerHost}. NTLM authenticates connections rather than requests,
+   * so a pooled connection is reused without another authentication handshake.
+   *
+   * <p>This doesn't limit the number of concurrent connections: a request finding no idle
+   * connection opens a new one, and connections beyond this limit are closed once their response
+   * is read. Concurrent requests per host are bounded by {@link AdaptiveThrottle}, so this should
+   * be at least its maximum concurrency per host for every connection to be reused.
+   *
+   * <p>The {@code http.maxConnections} system property takes precedence if set explicitly. The
+   * JDK reads it once per JVM, when the first connection is returned to the pool, so this should
+   * be called before the first request and a later different value may not take effect.
+   */
+  static synchronized void configureConnectionPool(int maxConnectionsPerHost) {
+    checkArgument(maxConnectionsPerHost > 0, "max connections per host must be greater than 0");
+    String current = System.getProperty(HTTP_MAX_CONNECTIONS_PROPERTY);
+    if (current != null && !current.equals(configuredMaxConnections)) {
+      log.log(
+          Level.CONFIG,
+          "Keeping explicitly set {0}={1}",
+          new Object[] {HTTP_MAX_CONNECTIONS_PROPERTY, current});
+      return;
+    }
+    String value = Integer.toString(maxConnectionsPerHost);
+    if (current != null && !current.equals(value)) {
+      log.log(
+          Level.WARNING,
+          "Changing {0} from {1} to {2}, which has no effect once connections have been pooled",
+          new Object[] {HTTP_MAX_CONNECTIONS_PROPERTY, current, value});
+    }
+    System.setProperty(HTTP_MAX_CONNECTIONS_PROPERTY, value);
+    configuredMaxConnections = value;
   }
 
   /**
@@ -54,104 +103,130 @@ class HttpClientImpl implements HttpClient {
    * locations properly if it contains query string parameters and auto redirect fails. Most modern
    * browsers support supports redirects with query strings. When {@link #performBrowserLeniency} is
    * true, connector follows entire redirection chain and encodes redirect locations.
+   *
+   * <p>The request holds a {@link #throttle} permit until the returned contents are closed, so
+   * that the download counts against the host's concurrent requests.
    */
   @Override
   public FileInfo issueGetRequest(URL url) throws IOException {
     int redirectAttempt = 0;
     final URL initialRequest = url;
-    HttpURLConnection conn;
-    int responseCode;
-    do {
-      log.log(Level.FINER, "Handling URL {0}", url);
-      conn = connectionFactory.getConnection(url);
-      boolean isWhiteListed =
-          initialRequest.getHost().equalsIgnoreCase(url.getHost())
-              && initialRequest.getPort() == url.getPort();
-      requestContext.addContext(conn, isWhiteListed);
-      conn.setDoInput(true);
-      conn.setDoOutput(false);
-      // Set follow redirects to true here if connector need not to handle
-      // encoding of redirect URLs.
-      conn.setInstanceFollowRedirects(!performBrowserLeniency);
-      responseCode = conn.getResponseCode();
-      if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
-        return null;
-      }
-      if (responseCode == HttpURLConnection.HTTP_OK || !performBrowserLeniency) {
-        break;
-      }
-      if (responseCode != HttpURLConnection.HTTP_MOVED_TEMP
-          && responseCode != HttpURLConnection.HTTP_MOVED_PERM) {
+    HttpURLConnection conn = null;
+    int responseCode = 0;
+    // Permit for the request being handled, released at the latest when this method exits unless
+    // handed over to the returned contents.
+    AdaptiveThrottle.Permit permit = null;
+    try {
+      do {
+        log.log(Level.FINER, "Handling URL {0}", url);
+        conn = connectionFactory.getConnection(url);
+        boolean isWhiteListed =
+            initialRequest.getHost().equalsIgnoreCase(url.getHost())
+                && initialRequest.getPort() == url.getPort();
+        requestContext.addContext(conn, isWhiteListed);
+        conn.setDoInput(true);
+        conn.setDoOutput(false);
+        // Set follow redirects to true here if connector need not to handle
+        // encoding of redirect URLs.
+        conn.setInstanceFollowRedirects(!performBrowserLeniency);
+        permit = throttle.acquire(url.getHost());
+        responseCode = getResponseCode(conn, permit);
+        if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+          closeConnection(conn, responseCode);
+          return null;
+        }
+        if (responseCode == HttpURLConnection.HTTP_OK || !performBrowserLeniency) {
+          break;
+        }
+        if (responseCode != HttpURLConnection.HTTP_MOVED_TEMP
+            && responseCode != HttpURLConnection.HTTP_MOVED_PERM) {
+          closeConnection(conn, responseCode);
+          throw new IOException(
+              String.format("Got status code %d for URL %s", responseCode, url));
+        }
+        if ((maxRedirectsAllowed == 0)) {
+          closeConnection(conn, responseCode);
+          throw new IOException(
+              String.format(
+                  "Got status code %d for url %s "
+                      + "but connector is configured to follow 0 redirects.",
+                  responseCode, initialRequest));
+        }
+        redirectAttempt++;
+        String redirectLocation = conn.getHeaderField(HTTP_REDIRECT_LOCATION_HEADER);
+        // Drain input stream for current connection since redirect is detected, so that the
+        // connection can be reused for the redirect location.
+        drainAndClose(conn.getInputStream());
+        releasePermit(permit, conn, responseCode);
+        permit = null;
+        if (Strings.isNullOrEmpty(redirectLocation)) {
+          throw new IOException(
+              "No redirect location available for URL " + url);
+        }
+        log.log(
+            Level.INFO,
+            "Redirected to URL {0} from URL {1}",
+            new Object[] {redirectLocation, url});
+        try {
+          url =
+              new SharePointUrl.Builder(redirectLocation)
+                  .setPerformBrowserLeniency(performBrowserLeniency)
+                  .build()
+                  .toURL();
+        } catch (IllegalArgumentException | URISyntaxException e) {
+          throw new IOException("Invalid redirection url " + redirectLocation, e);
+        }
+      } while (redirectAttempt <= maxRedirectsAllowed);
+      if (responseCode != HttpURLConnection.HTTP_OK) {
         closeConnection(conn, responseCode);
-        throw new IOException(String.format("Got status code %d for URL %s", responseCode, url));
-      }
-      if ((maxRedirectsAllowed == 0)) {
         throw new IOException(
             String.format(
-                "Got status code %d for url %s "
-                    + "but connector is configured to follow 0 redirects.",
-                responseCode, initialRequest));
+                "Got status code %d for initial " + "request %s after %d redirect attempts.",
+                responseCode, initialRequest, redirectAttempt));
       }
-      redirectAttempt++;
-      String redirectLocation = conn.getHeaderField(HTTP_REDIRECT_LOCATION_HEADER);
-      // Close input stream for current connection since redirect is detected.
-      tryCloseInputStream(conn.getInputStream());
-      if (Strings.isNullOrEmpty(redirectLocation)) {
-        throw new IOException(
-            "No redirect location available for URL " + url);
-      }
-      log.log(
-          Level.INFO, "Redirected to URL {0} from URL {1}", new Object[] {redirectLocation, url});
-      try {
-        url =
-            new SharePointUrl.Builder(redirectLocation)
-                .setPerformBrowserLeniency(performBrowserLeniency)
-                .build()
-                .toURL();
-      } catch (IllegalArgumentException | URISyntaxException e) {
-        throw new IOException("Invalid redirection url " + redirectLocation, e);
-      }
-    } while (redirectAttempt <= maxRedirectsAllowed);
-    if (responseCode != HttpURLConnection.HTTP_OK) {
-      closeConnection(conn, responseCode);
-      throw new IOException(
-          String.format(
-              "Got status code %d for initial " + "request %s after %d redirect attempts.",
-              responseCode, initialRequest, redirectAttempt));
-    }
-    String errorHeader = conn.getHeaderField(HTTP_SHAREPOINT_ERROR_HEADER);
-    // SharePoint adds header SharePointError to response to indicate error
-    // on SharePoint for requested URL.
-    // errorHeader = 2 if SharePoint rejects current request because
-    // of current processing load
-    // errorHeader = 0 for other errors on SharePoint server
-
-    if (errorHeader != null) {
-      closeConnection(conn, responseCode);
-      if ("2".equals(errorHeader)) {
-        throw new IOException(
-            "Got error 2 from SharePoint for URL ["
-                + url
-                + "]. Error Code 2 indicates SharePoint has rejected current "
-                + "request because of current processing load on SharePoint.");
-      } else {
-        throw new IOException(
-            "Got error " + errorHeader + " from SharePoint for URL [" + url + "].");
+      String errorHeader = conn.getHeaderField(HTTP_SHAREPOINT_ERROR_HEADER);
+      // SharePoint adds header SharePointError to response to indicate error
+      // on SharePoint for requested URL.
+      // errorHeader = 2 if SharePoint rejects current request because
+      // of current processing load
+      // errorHeader = 0 for other errors on SharePoint server
+
+      if (errorHeader != null) {
+        closeConnection(conn, responseCode);
+        if ("2".equals(errorHeader)) {
+          throw new IOException(
+              "Got error 2 from SharePoint for URL ["
+                  + url
+                  + "]. Error Code 2 indicates SharePoint has rejected current "
+                  + "request because of current processing load on SharePoint.");
+        } else {
+          throw new IOException(
+              "Got error " + errorHeader + " from SharePoint for URL [" + url + "].");
+        }
       }
-    }
 
-    List<FileInfo.FileHeader> headers = new LinkedList<FileInfo.FileHeader>();
-    // Start at 1 since index 0 is special.
-    for (int i = 1;; i++) {
-      String key = conn.getHeaderFieldKey(i);
-      if (key == null) {
-        break;
+      List<FileInfo.FileHeader> headers = new ArrayList<FileInfo.FileHeader>();
+      // Start at 1 since index 0 is special.
+      for (int i = 1;; i++) {
+        String key = conn.getHeaderFieldKey(i);
+        if (key == null) {
+          break;
+        }
+        String value = conn.getHeaderField(i);
+        headers.add(new FileInfo.FileHeader(key, value));
+      }
+      log.log(Level.FINER, "Response HTTP headers: {0}", headers);
+      InputStream contents =
+          throttle.isEnabled()
+              ? new PermitReleasingInputStream(conn.getInputStream(), permit)
+              : conn.getInputStream();
+      permit = null;
+      return new FileInfo.Builder(contents).setHeaders(headers).build();
+    } finally {
+      if (permit != null) {
+        releasePermit(permit, conn, responseCode);
       }
-      String value = conn.getHeaderField(i);
-      headers.add(new FileInfo.FileHeader(key, value));
     }
-    log.log(Level.FINER, "Response HTTP headers: {0}", headers);
-    return new FileInfo.Builder(conn.getInputStream()).setHeaders(headers).build();
   }
 
   /** Returns redirect location for input URL if one available (HTTP 302). Null otherwise. */
@@ -165,12 +240,14 @@ class HttpClientImpl implements HttpClient {
     }
     HttpURLConnection conn = connectionFactory.getConnection(url);
     int responseCode = 0;
+    AdaptiveThrottle.Permit permit = null;
     try {
       requestContext.addContext(conn, true);
       conn.setDoInput(true);
       conn.setDoOutput(false);
       conn.setInstanceFollowRedirects(false);
-      responseCode = conn.getResponseCode();
+      permit = throttle.acquire(url.getHost());
+      responseCode = getResponseCode(conn, permit);
       if (responseCode != HttpURLConnection.HTTP_MOVED_TEMP) {
         log.log(
             Level.WARNING,
@@ -180,7 +257,52 @@ class HttpClientImpl implements HttpClient {
       }
       return conn.getHeaderField(HTTP_REDIRECT_LOCATION_HEADER);
     } finally {
-      closeConnection(conn, responseCode);
+      try {
+        closeConnection(conn, responseCode);
+      } finally {
+        if (permit != null) {
+          releasePermit(permit, conn, responseCode);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends the request, releasing {@code permit} as failed if no response is received. Otherwise
+   * the caller releases the permit with {@link #releasePermit} once done with the response.
+   */
+  private static int getResponseCode(HttpURLConnection conn, AdaptiveThrottle.Permit permit)
+      throws IOException {
+    boolean received = false;
+    try {
+      int responseCode = conn.getResponseCode();
+      received = true;
+      return responseCode;
+    } finally {
+      if (!received) {
+        permit.failed();
+      }
+    }
+  }
+
+  /** Releases {@code permit} with whether the host reported being overloaded. */
+  private void releasePermit(
+      AdaptiveThrottle.Permit permit, HttpURLConnection conn, int responseCode) {
+    if (responseCode == 0) {
+      // No response received.
+      permit.failed();
+    } else if (!throttle.isEnabled()) {
+      permit.succeeded();
+    } else if (AdaptiveThrottle.isOverloaded(responseCode)
+        || (responseCode == HttpURLConnection.HTTP_OK
+            && "2".equals(conn.getHeaderField(HTTP_SHAREPOINT_ERROR_HEADER)))) {
+      permit.overloaded(
+          AdaptiveThrottle.parseRetryAfterMillis(
+              conn.getHeaderField(AdaptiveThrottle.HTTP_RETRY_AFTER_HEADER)));
+    } else if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+      permit.failed();
+    } else {
+      permit.succeeded();
     }
   }
 
@@ -189,7 +311,28 @@ class HttpClientImpl implements HttpClient {
         responseCode >= HttpURLConnection.HTTP_BAD_REQUEST
             ? conn.getErrorStream()
             : conn.getInputStream();
-    tryCloseInputStream(inputStream);
+    drainAndClose(inputStream);
+  }
+
+  /**
+   * Reads up to {@link #MAX_DRAIN_BYTES} of a discarded response body before closing it, so that
+   * {@link HttpURLConnection} returns the connection to the keep-alive pool.
+   */
+  private void drainAndClose(InputStream streamToClose) {
+    if (streamToClose == null) {
+      return;
+    }
+    try {
+      byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+      int drained = 0;
+      int read;
+      while (drained < MAX_DRAIN_BYTES && (read = streamToClose.read(buffer)) > 0) {
+        drained += read;
+      }
+    } catch (IOException e) {
+      log.log(Level.FINE, "Error draining input stream", e);
+    }
+    tryCloseInputStream(streamToClose);
   }
 
   private boolean tryCloseInputStream(InputStream streamToClose) {
@@ -205,6 +348,29 @@ class HttpClientImpl implements HttpClient {
     }
   }
 
+  /** Response body which releases the request's throttle permit when closed. */
+  private static class PermitReleasingInputStream extends FilterInputStream {
+    private final AdaptiveThrottle.Permit permit;
+
+    PermitReleasingInputStream(InputStream in, AdaptiveThrottle.Permit permit) {
+      super(in);
+      this.permit = checkNotNull(permit);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        permit.succeeded();
+      }
+    }
+  }
+
+  /**
+   * Opens connections for requests. Connections are pooled per host by {@link HttpURLConnection},
+   * see {@link #configureConnectionPool}.
+   */
   static class ConnectionFactory {
     HttpURLConnection getConnection(URL url) throws IOException {
       return (HttpURLConnection) url.openConnection();
@@ -216,6 +382,7 @@ class HttpClientImpl implements HttpClient {
     private boolean performBrowserLeniency;
     private SharePointRequestContext requestContext;
     private ConnectionFactory connectionFactory;
+    private AdaptiveThrottle throttle;
 
     public Builder() {
       // http://docs.oracle.com/javase/7/docs/api/java/net/doc-files/net-properties.html
@@ -223,6 +390,7 @@ class HttpClientImpl implements HttpClient {
       maxRedirectsAllowed = 20;
       performBrowserLeniency = false;
       connectionFactory = new ConnectionFactory();
+      throttle = AdaptiveThrottle.DISABLED;
     }
 
     Builder setSharePointRequestContext(SharePointRequestContext requestContext) {
@@ -240,6 +408,11 @@ class HttpClientImpl implements HttpClient {
       return this;
     }
 
+    Builder setThrottle(AdaptiveThrottle throttle) {
+      this.throttle = checkNotNull(throttle);
+      return this;
+    }
+
     @VisibleForTesting
     Builder setConnectionFactory(ConnectionFactory connectionFactory) {
       this.connectionFactory = checkNotNull(connectionFactory);
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local file backed copy of resolved identities, so a restarted connector starts with warm caches
+ * instead of resolving every principal again.
+ *
+ * <p>The file starts with a version header followed by one tab separated entry per line, holding
+ * namespace, key, value and the time the value was resolved. New entries are appended by a
+ * background thread. When loading, the latest entry for a key wins, entries older than the time
+ * to live are dropped and the file is rewritten without stale entries. Entries resolved to nothing
+ * have a shorter time to live, so identities created since are looked up again soon after a
+ * restart. A file with a different version is ignored.
+ *
+ * <p>Recording entries doesn't lock, and the file is written without holding the lock on the
+ * loaded entries, so neither lookups nor {@link #getAll} wait on file I/O.
+ */
+class IdentityCacheStore {
+  private static final Logger log = Logger.getLogger(IdentityCacheStore.class.getName());
+
+  static final String VERSION_HEADER = "#sharepoint-identity-cache v1";
+  static final int DEFAULT_TTL_HOURS = 24;
+  /** Same as the expiration of the in memory caches of {@link ActiveDirectoryClient}. */
+  static final int DEFAULT_NEGATIVE_TTL_MINUTES = 30;
+  static final int DEFAULT_FLUSH_INTERVAL_SECS = 30;
+
+  private static final Splitter FIELD_SPLITTER = Splitter.on('\t');
+
+  private final Path file;
+  private final long ttlMillis;
+  private final long negativeTtlMillis;
+  private final LongSupplier clock;
+  /** Latest entry for each namespace and key, used to compact the file. Guarded by itself. */
+  private final Map<String, Map<String, Entry>> entries = new HashMap<>();
+  private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>();
+  private final ScheduledExecutorService writerExecutor;
+  /**
+   * Guards the file, the writer and the fields below. A lock rather than a monitor, so that a
+   * virtual thread writing the file doesn't pin its carrier thread.
+   */
+  private final ReentrantLock fileLock = new ReentrantLock();
+  private Writer writer;
+  private int appendedSinceCompaction;
+  private boolean closed;
+
+  /**
+   * Creates a store keeping entries for {@code ttlMillis}, or {@code negativeTtlMillis} for
+   * entries resolved to nothing, and writing new entries every {@code flushIntervalSecs}, or only
+   * on close if 0.
+   */
+  IdentityCacheStore(Path file, long ttlMillis, long negativeTtlMillis, int flushIntervalSecs)
+      throws IOException {
+    this(file, ttlMillis, negativeTtlMillis, flushIntervalSecs, System::currentTimeMillis);
+  }
+
+  @VisibleForTesting
+  IdentityCacheStore(
+      Path file,
+      long ttlMillis,
+      long negativeTtlMillis,
+      int flushIntervalSecs,
+      LongSupplier clock)
+      throws IOException {
+    checkArgument(ttlMillis > 0, "time to live must be greater than 0");
+    checkArgument(negativeTtlMillis >= 0, "negative time to live can not be less than 0");
+    checkArgument(flushIntervalSecs >= 0, "flush interval can not be less than 0");
+    this.file = checkNotNull(file);
+    this.ttlMillis = ttlMillis;
+    this.negativeTtlMillis = Math.min(negativeTtlMillis, ttlMillis);
+    this.clock = checkNotNull(clock);
+    load();
+    compact();
+    if (flushIntervalSecs == 0) {
+      writerExecutor = null;
+    } else {
+      writerExecutor =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactoryBuilder()
+                  .setNameFormat("identity-cache-writer-%d")
+                  .setDaemon(true)
+                  .build());
+      writerExecutor.scheduleWithFixedDelay(
+          this::flushQuietly, flushIntervalSecs, flushIntervalSecs, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Creates a store from configuration if a cache file is configured. Returns {@link
+   * Optional#empty} otherwise.
+   *
+   * <ul>
+   *   <li>adLookup.cache.file - file to persist resolved identities in, disabled by default
+   *   <li>adLookup.cache.ttlHours - resolved identities older than this are not loaded, default
+   *       24
+   *   <li>adLookup.cache.negativeTtlMinutes - identities which could not be resolved older than
+   *       this are not loaded, default 30. Use 0 to not keep them across restarts.
+   *   <li>adLookup.cache.flushIntervalSecs - how often new entries are written, default 30. Use
+   *       0 to write them only when the connector stops.
+   * </ul>
+   */
+  static Optional<IdentityCacheStore> fromConfiguration() throws IOException {
+    checkState(Configuration.isInitialized(), "Configuration not initialized yet");
+    String file = Configuration.getString("adLookup.cache.file", "").get();
+    if (Strings.isNullOrEmpty(file)) {
+      return Optional.empty();
+    }
+    int ttlHours = Configuration.getInteger("adLookup.cache.ttlHours", DEFAULT_TTL_HOURS).get();
+    Configuration.checkConfiguration(
+        ttlHours > 0, "Invalid time to live %s for identity cache", ttlHours);
+    int negativeTtlMinutes =
+        Configuration.getInteger("adLookup.cache.negativeTtlMinutes", DEFAULT_NEGATIVE_TTL_MINUTES)
+            .get();
+    Configuration.checkConfiguration(
+        negativeTtlMinutes >= 0,
+        "Invalid negative time to live %s for identity cache",
+        negativeTtlMinutes);
+    int flushIntervalSecs =
+        Configuration.getInteger("adLookup.cache.flushIntervalSecs", DEFAULT_FLUSH_INTERVAL_SECS)
+            .get();
+    Configuration.checkConfiguration(
+        flushIntervalSecs >= 0, "Invalid flush interval %s for identity cache", flushIntervalSecs);
+    return Optional.of(
+        new IdentityCacheStore(
+            Paths.get(file),
+            TimeUnit.HOURS.toMillis(ttlHours),
+            TimeUnit.MINUTES.toMillis(negativeTtlMinutes),
+            flushIntervalSecs));
+  }
+
+  /**
+   * Returns the values in {@code namespace} which haven't expired. Empty values were resolved to
+   * nothing.
+   */
+  Map<String, Optional<String>> getAll(String namespace) {
+    Map<String, Optional<String>> values = new LinkedHashMap<>();
+    long now = clock.getAsLong();
+    synchronized (entries) {
+      for (Entry entry : entries.getOrDefault(namespace, new HashMap<>()).values()) {
+        if (!isExpired(entry, now)) {
+          values.put(entry.key, entry.value);
+        }
+      }
+    }
+    return values;
+  }
+
+  /** Records a resolved value. It is written to the file by the next flush. */
+  void put(String namespace, String key, Optional<String> value) {
+    pending.add(new Entry(namespace, key, value, clock.getAsLong()));
+  }
+
+  /** Writes pending entries to the file, compacting it once most of it is stale. */
+  void flush() throws IOException {
+    fileLock.lock();
+    try {
+      if (closed || pending.isEmpty()) {
+        return;
+      }
+      List<Entry> written = new ArrayList<>();
+      Entry entry;
+      while ((entry = pending.poll()) != null) {
+        entry.writeTo(writer);
+        written.add(entry);
+      }
+      writer.flush();
+      appendedSinceCompaction += written.size();
+      int size = 0;
+      synchronized (entries) {
+        for (Entry next : written) {
+          entries.computeIfAbsent(next.namespace, k -> new HashMap<>()).put(next.key, next);
+        }
+        for (Map<String, Entry> namespace : entries.values()) {
+          size += namespace.size();
+        }
+      }
+      if (appendedSinceCompaction > size) {
+        compact();
+      }
+    } finally {
+      fileLock.unlock();
+    }
+  }
+
+  /** Writes pending entries and closes the file. */
+  void close() {
+    if (writerExecutor != null) {
+      MoreExecutors.shutdownAndAwaitTermination(writerExecutor, 10, TimeUnit.SECONDS);
+    }
+    flushQuietly();
+    fileLock.lock();
+    try {
+      closed = true;
+      writer.close();
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Error closing identity cache file " + file, e);
+    } finally {
+      fileLock.unlock();
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (IOException | RuntimeException e) {
+      log.log(Level.WARNING, "Error writing identity cache file " + file, e);
+    }
+  }
+
+  private boolean isExpired(Entry entry, long now) {
+    if (entry.value.isPresent()) {
+      return entry.writtenMillis < now - ttlMillis;
+    }
+    return negativeTtlMillis == 0 || entry.writtenMillis < now - negativeTtlMillis;
+  }
+
+  private void load() throws IOException {
+    long now = clock.getAsLong();
+    int loaded = 0;
+    try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+      String header = reader.readLine();
+      if (!VERSION_HEADER.equals(header)) {
+        log.log(Level.WARNING, "Ignoring identity cache file {0} with unknown version", file);
+        return;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        Entry entry = Entry.parse(line);
+        if (entry == null) {
+          log.log(Level.FINE, "Skipping invalid identity cache entry {0}", line);
+          continue;
+        }
+        Map<String, Entry> namespace =
+            entries.computeIfAbsent(entry.namespace, k -> new HashMap<>());
+        if (isExpired(entry, now)) {
+          namespace.remove(entry.key);
+        } else {
+          namespace.put(entry.key, entry);
+          loaded++;
+        }
+      }
+    } catch (NoSuchFileException e) {
+      log.log(Level.CONFIG, "Identity cache file {0} doesn't exist yet", file);
+      return;
+    }
+    log.log(Level.CONFIG, "Loaded {0} entries from identity cache file {1}",
+        new Object[] {loaded, file});
+  }
+
+  /** Rewrites the file with the latest entry for each key, and reopens it for appending. */
+  private void compact() throws IOException {
+    fileLock.lock();
+    try {
+      if (writer != null) {
+        writer.close();
+      }
+      Path parent = file.toAbsolutePath().getParent();
+      if (parent != null) {
+        Files.createDirectories(parent);
+      }
+      Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+      long now = clock.getAsLong();
+      List<Entry> current = new ArrayList<>();
+      synchronized (entries) {
+        for (Map<String, Entry> namespace : entries.values()) {
+          namespace.values().removeIf(entry -> isExpired(entry, now));
+          current.addAll(namespace.values());
+        }
+      }
+      try (BufferedWriter out = Files.newBufferedWriter(temp, UTF_8)) {
+        out.write(VERSION_HEADER);
+        out.write('\n');
+        for (Entry entry : current) {
+          entry.writeTo(out);
+        }
+      } catch (IOException e) {
+        Files.deleteIfExists(temp);
+        throw e;
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+      writer = Files.newBufferedWriter(file, UTF_8, StandardOpenOption.APPEND);
+      appendedSinceCompaction = 0;
+    } finally {
+      fileLock.unlock();
+    }
+  }
+
+  private static class Entry {
+    private final String namespace;
+    private final String key;
+    private final Optional<String> value;
+    private final long writtenMillis;
+
+    Entry(String namespace, String key, Optional<String> value, long writtenMillis) {
+      this.namespace = checkNotNull(namespace);
+      this.key = checkNotNull(key);
+      this.value = checkNotNull(value);
+      this.writtenMillis = writtenMillis;
+    }
+
+    /** Returns the entry on {@code line}, or null if the line is not a valid entry. */
+    static Entry parse(String line) {
+      List<String> fields = FIELD_SPLITTER.splitToList(line);
+      if (fields.size() != 4) {
+        return null;
+      }
+      long writtenMillis;
+      try {
+        writtenMillis = Long.parseLong(fields.get(3));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      String value = unescape(fields.get(2));
+      return new Entry(
+          unescape(fields.get(0)),
+          unescape(fields.get(1)),
+          value.isEmpty() ? Optional.empty() : Optional.of(value),
+          writtenMillis);
+    }
+
+    void writeTo(Writer out) throws IOException {
+      out.write(escape(namespace));
+      out.write('\t');
+      out.write(escape(key));
+      out.write('\t');
+      out.write(escape(value.orElse("")));
+      out.write('\t');
+      out.write(Long.toString(writtenMillis));
+      out.write('\n');
+    }
+  }
+
+  @VisibleForTesting
+  static String escape(String value) {
+    StringBuilder escaped = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          escaped.append("\\\\");
+          break;
+        case '\t':
+          escaped.append("\\t");
+          break;
+        case '\n':
+          escaped.append("\\n");
+          break;
+        case '\r':
+          escaped.append("\\r");
+          break;
+        default:
+          escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+
+  @VisibleForTesting
+  static String unescape(String value) {
+    StringBuilder unescaped = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c != '\\' || i + 1 == value.length()) {
+        unescaped.append(c);
+        continue;
+      }
+      char next = value.charAt(++i);
+      switch (next) {
+        case 't':
+          unescaped.append('\t');
+          break;
+        case 'n':
+          unescaped.append('\n');
+          break;
+        case 'r':
+          unescaped.append('\r');
+          break;
+        default:
+          unescaped.append(next);
+      }
+    }
+    return unescaped.toString();
+  }
+}
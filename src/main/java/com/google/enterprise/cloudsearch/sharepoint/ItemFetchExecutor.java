@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the steps of fetching a single item which don't depend on each other, such as downloading
+ * the file content while the calling thread looks up the parent folder's scope, in parallel. With
+ * a concurrency of 1, each step runs on the calling thread as soon as it is submitted.
+ */
+class ItemFetchExecutor {
+  static final int DEFAULT_MAX_CONCURRENCY = 8;
+
+  /** A step of fetching an item. */
+  @FunctionalInterface
+  interface Task<V> {
+    V call() throws IOException;
+  }
+
+  private final int maxConcurrency;
+  private final ExecutorService executor;
+
+  ItemFetchExecutor(int maxConcurrency) {
+    this(maxConcurrency, ConnectorThreads.PLATFORM);
+  }
+
+  ItemFetchExecutor(int maxConcurrency, ConnectorThreads threads) {
+    checkArgument(maxConcurrency > 0, "max concurrency must be greater than 0");
+    checkNotNull(threads);
+    this.maxConcurrency = maxConcurrency;
+    this.executor =
+        maxConcurrency == 1
+            ? null
+            : threads.newFixedThreadPool(maxConcurrency, "sharepoint-item-fetch-%d");
+  }
+
+  /**
+   * Creates executor from configuration.
+   *
+   * <ul>
+   *   <li>sharepoint.itemFetch.maxConcurrency - maximum number of item fetch steps run in
+   *       parallel, across all items, besides the threads traversing items, default 8. Use 1 to
+   *       run the steps of each item sequentially. With virtual threads, see {@link
+   *       ConnectorThreads}, this can be raised to the number of concurrent requests the farm
+   *       should see.
+   * </ul>
+   */
+  static ItemFetchExecutor fromConfiguration() {
+    checkState(Configuration.isInitialized(), "Configuration not initialized yet");
+    return new ItemFetchExecutor(
+        Configuration.getInteger("sharepoint.itemFetch.maxConcurrency", DEFAULT_MAX_CONCURRENCY)
+            .get(),
+        ConnectorThreads.fromConfiguration());
+  }
+
+  int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /** Starts {@code task}, or runs it right away if steps run sequentially. */
+  <V> CompletableFuture<V> submit(Task<V> task) {
+    checkNotNull(task);
+    if (executor == null) {
+      CompletableFuture<V> result = new CompletableFuture<>();
+      try {
+        result.complete(task.call());
+      } catch (IOException | RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+      return result;
+    }
+    return CompletableFuture.supplyAsync(
+        () -> {
+          try {
+            return task.call();
+          } catch (IOException e) {
+            throw new CompletionException(e);
+          }
+        },
+        executor);
+  }
+
+  /** Waits for {@code future} and returns its result, or throws the failure of its task. */
+  static <V> V get(CompletableFuture<V> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while fetching item", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  void shutdown() {
+    if (executor != null) {
+      MoreExecutors.shutdownAndAwaitTermination(executor, 10, TimeUnit.SECONDS);
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Bounded pool of LDAP connections. Idle connections are validated by a background health check
+ * instead of before every query, and connections that fail a query are discarded by the caller
+ * through {@link #invalidate}.
+ */
+class LdapContextPool {
+  private static final Logger log = Logger.getLogger(LdapContextPool.class.getName());
+
+  static final int DEFAULT_MAX_SIZE = 4;
+  static final int DEFAULT_HEALTH_CHECK_INTERVAL_SECS = 60;
+  static final int DEFAULT_BORROW_TIMEOUT_SECS = 120;
+
+  /** Opens a new LDAP connection. */
+  @FunctionalInterface
+  interface ContextFactory {
+    LdapContext create() throws IOException;
+  }
+
+  private final ContextFactory factory;
+  private final int maxSize;
+  private final long borrowTimeoutSecs;
+  /** Permits for borrowed connections and for idle connections being health checked. */
+  private final Semaphore permits;
+  /** Idle connections, most recently used first. */
+  private final BlockingDeque<LdapContext> idle = new LinkedBlockingDeque<>();
+  private final ScheduledExecutorService healthCheckExecutor;
+  private volatile boolean closed;
+
+  LdapContextPool(
+      ContextFactory factory, int maxSize, long healthCheckIntervalSecs, long borrowTimeoutSecs) {
+    checkArgument(maxSize > 0, "pool size must be greater than 0");
+    checkArgument(healthCheckIntervalSecs >= 0, "health check interval can not be less than 0");
+    checkArgument(borrowTimeoutSecs > 0, "borrow timeout must be greater than 0");
+    this.factory = checkNotNull(factory);
+    this.maxSize = maxSize;
+    this.borrowTimeoutSecs = borrowTimeoutSecs;
+    this.permits = new Semaphore(maxSize, true);
+    if (healthCheckIntervalSecs == 0) {
+      healthCheckExecutor = null;
+    } else {
+      healthCheckExecutor =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactoryBuilder()
+                  .setNameFormat("ldap-pool-health-check-%d")
+                  .setDaemon(true)
+                  .build());
+      healthCheckExecutor.scheduleWithFixedDelay(
+          this::checkIdleConnections,
+          healthCheckIntervalSecs,
+          healthCheckIntervalSecs,
+          TimeUnit.SECONDS);
+    }
+  }
+
+  int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Returns an idle connection, or opens a new one if fewer than max size connections are open.
+   * Blocks while all connections are in use. Every borrowed connection must be passed to either
+   * {@link #release} or {@link #invalidate}.
+   */
+  LdapContext borrow() throws IOException {
+    try {
+      if (!permits.tryAcquire(borrowTimeoutSecs, TimeUnit.SECONDS)) {
+        throw new IOException(
+            "Timed out waiting " + borrowTimeoutSecs + " seconds for an LDAP connection");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for an LDAP connection", e);
+    }
+    LdapContext context = idle.pollFirst();
+    if (context != null) {
+      return context;
+    }
+    try {
+      return checkNotNull(factory.create());
+    } catch (IOException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /** Returns a healthy connection to the pool, or closes it if the pool is closed. */
+  void release(LdapContext context) {
+    idle.offerFirst(checkNotNull(context));
+    if (closed) {
+      closeIdleConnections();
+    }
+    permits.release();
+  }
+
+  /** Closes a connection which failed, so it is replaced on a later {@link #borrow}. */
+  void invalidate(LdapContext context) {
+    closeQuietly(context);
+    permits.release();
+  }
+
+  /**
+   * Validates idle connections, least recently used first, and closes the ones which fail.
+   * Connections in use are skipped, so the check never delays a lookup.
+   */
+  @VisibleForTesting
+  void checkIdleConnections() {
+    int toCheck = idle.size();
+    for (int i = 0; i < toCheck && permits.tryAcquire(); i++) {
+      try {
+        LdapContext context = idle.pollLast();
+        if (context == null) {
+          break;
+        }
+        try {
+          context.getAttributes("");
+          // Healthy connections move to the front, so the next one checked is an unchecked one.
+          idle.offerFirst(context);
+        } catch (NamingException | RuntimeException e) {
+          log.log(Level.FINE, "Closing LDAP connection which failed health check", e);
+          closeQuietly(context);
+        }
+      } finally {
+        permits.release();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int getIdleCount() {
+    return idle.size();
+  }
+
+  @VisibleForTesting
+  boolean isHealthCheckStopped() {
+    return healthCheckExecutor == null || healthCheckExecutor.isTerminated();
+  }
+
+  /**
+   * Stops the health check and closes idle connections. Connections in use are closed when they
+   * are released.
+   */
+  void close() {
+    closed = true;
+    if (healthCheckExecutor != null) {
+      MoreExecutors.shutdownAndAwaitTermination(healthCheckExecutor, 10, TimeUnit.SECONDS);
+    }
+    closeIdleConnections();
+  }
+
+  private void closeIdleConnections() {
+    LdapContext context;
+    while ((context = idle.pollFirst()) != null) {
+      closeQuietly(context);
+    }
+  }
+
+  private static void closeQuietly(LdapContext context) {
+    try {
+      context.close();
+    } catch (NamingException | RuntimeException e) {
+      log.log(Level.FINEST, "Error closing LDAP connection", e);
+    }
+  }
+}
@@ -16,15 +16,19 @@
 
 package com.google.enterprise.cloudsearch.sharepoint;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.jws.WebMethod;
 import javax.jws.WebParam;
+import javax.xml.ws.BindingProvider;
 import javax.xml.ws.Holder;
 
 /**
@@ -33,22 +37,41 @@ import javax.xml.ws.Holder;
  * mode of a parameter and only prints it when appropriate. The mode of a
  * parameter defines when it is sent, so this logging method accurately
  * represents the exchange of information.
+ *
+ * <p>Every web method call is also recorded in a {@link WebServiceMetricsSink}, tagged with the
+ * endpoint the service talks to, whether or not logging is enabled.
  */
 class LoggingWSHandler implements InvocationHandler {
   private static final Logger log
       = Logger.getLogger(LoggingWSHandler.class.getName());
 
   private final Object wrapped;
+  private final WebServiceMetricsSink metricsSink;
+  private final String endpoint;
 
   public LoggingWSHandler(Object wrapped) {
+    this(wrapped, WebServiceMetricsSink.NO_OP, "");
+  }
+
+  LoggingWSHandler(Object wrapped, WebServiceMetricsSink metricsSink, String endpoint) {
     this.wrapped = wrapped;
+    this.metricsSink = checkNotNull(metricsSink);
+    this.endpoint = checkNotNull(endpoint);
   }
 
   public static <T> T create(Class<T> webServiceInterface, T wrapped) {
-    InvocationHandler invokeHandler = new LoggingWSHandler(wrapped);
+    return create(webServiceInterface, wrapped, WebServiceMetricsSink.NO_OP, "");
+  }
+
+  static <T> T create(Class<T> webServiceInterface, T wrapped,
+      WebServiceMetricsSink metricsSink, String endpoint) {
+    InvocationHandler invokeHandler = new LoggingWSHandler(wrapped, metricsSink, endpoint);
+    // Keep the port's response context reachable, e.g. for ThrottlingWSHandler.
+    Class<?>[] interfaces = wrapped instanceof BindingProvider
+        ? new Class<?>[] {webServiceInterface, BindingProvider.class}
+        : new Class<?>[] {webServiceInterface};
     Object oInstance = Proxy.newProxyInstance(
-        LoggingWSHandler.class.getClassLoader(),
-        new Class<?>[] {webServiceInterface}, invokeHandler);
+        LoggingWSHandler.class.getClassLoader(), interfaces, invokeHandler);
     @SuppressWarnings("unchecked")
     T tInstance = (T) oInstance;
     return tInstance;
@@ -58,17 +81,15 @@ class LoggingWSHandler implements InvocationHandler {
   public Object invoke(Object proxy, Method method, Object[] args)
       throws Throwable {
     final Level logLevel = Level.FINE;
+    WebMethod webMethod = method.getAnnotation(WebMethod.class);
     String inArgs = null;
-    if (log.isLoggable(logLevel)) {
-      WebMethod webMethod = method.getAnnotation(WebMethod.class);
-      if (webMethod != null) {
-        inArgs = formArgumentString(method, args, WebParam.Mode.IN);
-        log.log(logLevel, "WS Request {0}: {1}",
-            new Object[] {webMethod.operationName(), inArgs});
-      }
+    if (webMethod != null && log.isLoggable(logLevel)) {
+      inArgs = formArgumentString(method, args, WebParam.Mode.IN);
+      log.log(logLevel, "WS Request {0}: {1}",
+          new Object[] {webMethod.operationName(), inArgs});
     }
     Object ret;
-    long startMillis = System.currentTimeMillis();
+    long startNanos = System.nanoTime();
     try {
       ret = method.invoke(wrapped, args);
     } catch (IllegalAccessException ex) {
@@ -76,22 +97,54 @@ class LoggingWSHandler implements InvocationHandler {
     } catch (IllegalArgumentException ex) {
       throw new RuntimeException("Misconfigured LoggingWSHandler", ex);
     } catch (InvocationTargetException ex) {
+      if (webMethod != null) {
+        metricsSink.record(endpoint, webMethod.operationName(), elapsedMillis(startNanos), 0,
+            true);
+      }
       throw ex.getCause();
     }
-    if (log.isLoggable(logLevel)) {
-      WebMethod webMethod = method.getAnnotation(WebMethod.class);
-      if (webMethod != null) {
+    if (webMethod != null) {
+      long durationMillis = elapsedMillis(startNanos);
+      metricsSink.record(endpoint, webMethod.operationName(), durationMillis,
+          responseChars(method, args, ret), false);
+      if (log.isLoggable(logLevel)) {
         String outArgs = formArgumentString(method, args, WebParam.Mode.OUT);
         log.log(logLevel, "WS Response {0}: {1}",
             new Object[] {webMethod.operationName(), outArgs});
         log.log(logLevel, "Duration: WS Request {0} - {1} : {2,number,#} ms",
-            new Object[] {webMethod.operationName(), inArgs,
-            System.currentTimeMillis() - startMillis});
+            new Object[] {webMethod.operationName(), inArgs, durationMillis});
       }
     }
     return ret;
   }
 
+  private static long elapsedMillis(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Returns the number of characters in String values returned by the call, through OUT and
+   * INOUT holders or as the return value. SharePoint returns its XML payloads as such Strings.
+   */
+  private static long responseChars(Method method, Object[] args, Object ret) {
+    long chars = ret instanceof String ? ((String) ret).length() : 0;
+    Annotation[][] annotates = method.getParameterAnnotations();
+    for (int i = 0; i < annotates.length; i++) {
+      for (Annotation annotate : annotates[i]) {
+        if (!(annotate instanceof WebParam)) {
+          break;
+        }
+        if (((WebParam) annotate).mode() != WebParam.Mode.IN && args[i] != null) {
+          Object value = ((Holder<?>) args[i]).value;
+          if (value instanceof String) {
+            chars += ((String) value).length();
+          }
+        }
+      }
+    }
+    return chars;
+  }
+
   private String formArgumentString(Method method, Object[] args,
       WebParam.Mode mode) {
     StringBuilder argsBuffer = new StringBuilder();
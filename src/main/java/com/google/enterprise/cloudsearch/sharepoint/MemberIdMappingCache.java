@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of {@link MemberIdMapping} keyed by site collection URL. Concurrent lookups for the same
+ * site collection share a single in-flight load. Keeps hit, miss and refresh counters, which are
+ * reported through {@link WebServiceMetrics#registerCache}.
+ */
+class MemberIdMappingCache {
+  private static final Logger log = Logger.getLogger(MemberIdMappingCache.class.getName());
+
+  /** Retrieves a fresh {@link MemberIdMapping} for a site collection. */
+  @FunctionalInterface
+  interface Loader {
+    MemberIdMapping load(String siteUrl) throws IOException;
+  }
+
+  private final String name;
+  private final LoadingCache<String, MemberIdMapping> cache;
+  private final AtomicLong refreshCount = new AtomicLong();
+
+  MemberIdMappingCache(String name, long expirationSecs, Loader loader) {
+    this.name = checkNotNull(name);
+    checkArgument(expirationSecs >= 0, "cache expiration can not be less than 0");
+    checkNotNull(loader);
+    this.cache =
+        CacheBuilder.newBuilder()
+            .expireAfterWrite(expirationSecs, TimeUnit.SECONDS)
+            .recordStats()
+            .build(
+                new CacheLoader<String, MemberIdMapping>() {
+                  @Override
+                  public MemberIdMapping load(String siteUrl) throws IOException {
+                    return loader.load(siteUrl);
+                  }
+                });
+  }
+
+  MemberIdMapping get(String siteUrl) throws IOException {
+    try {
+      return cache.get(siteUrl);
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /** Discard the cached mapping for {@code siteUrl}, e.g. when the change feed reports it. */
+  void invalidate(String siteUrl) {
+    cache.invalidate(siteUrl);
+  }
+
+  /**
+   * Discard the cached mapping for {@code siteUrl} because it is known to be out-of-date. Next
+   * {@link #get} loads a fresh mapping.
+   */
+  void refresh(String siteUrl) {
+    refreshCount.incrementAndGet();
+    cache.invalidate(siteUrl);
+    log.log(Level.FINE, "Refreshing {0} for {1}: {2}", new Object[] {name, siteUrl, this});
+  }
+
+  String getName() {
+    return name;
+  }
+
+  long getHitCount() {
+    return cache.stats().hitCount();
+  }
+
+  long getMissCount() {
+    return cache.stats().missCount();
+  }
+
+  long getRefreshCount() {
+    return refreshCount.get();
+  }
+
+  long getSize() {
+    return cache.size();
+  }
+
+  @Override
+  public String toString() {
+    CacheStats stats = cache.stats();
+    return name
+        + " [hits="
+        + stats.hitCount()
+        + ", misses="
+        + stats.missCount()
+        + ", refreshes="
+        + refreshCount.get()
+        + ", size="
+        + cache.size()
+        + "]";
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+
+/**
+ * Metadata extraction for the rows of a list item schema. Property names are resolved once per
+ * schema, from the field display names, or for attributes missing from the schema from their
+ * decoded internal names, so that each row only looks names up and splits values.
+ */
+class MetadataExtractionPlan {
+  static final int DEFAULT_MAX_CACHED_PLANS = 1000;
+
+  private static final String OWS_PREFIX = "ows_";
+  private static final String OWS_META_INFO = "ows_MetaInfo";
+  private static final String VALUE_SEPARATOR = ";#";
+
+  /** Internal and display names of the schema fields, alternating, in schema order. */
+  private final ImmutableList<String> namePairs;
+  /** Property names of schema fields, by field internal name. */
+  private final ImmutableMap<String, String> schemaPropertyNames;
+  /** Property names of row attributes missing from the schema, resolved on first use. */
+  private final ConcurrentMap<String, String> otherPropertyNames = new ConcurrentHashMap<>();
+
+  private MetadataExtractionPlan(
+      ImmutableList<String> namePairs, ImmutableMap<String, String> schemaPropertyNames) {
+    this.namePairs = namePairs;
+    this.schemaPropertyNames = schemaPropertyNames;
+  }
+
+  /**
+   * Compiles plan for {@code attributes}, the {@code AttributeType} elements of a list item
+   * schema.
+   */
+  static MetadataExtractionPlan compile(List<Element> attributes) {
+    ImmutableList.Builder<String> namePairsBuilder = ImmutableList.builder();
+    for (Element attribute : attributes) {
+      if (isField(attribute)) {
+        namePairsBuilder.add(attribute.getAttribute("name"), attribute.getAttribute("rs:name"));
+      }
+    }
+    ImmutableList<String> namePairs = namePairsBuilder.build();
+    Map<String, String> propertyNames = new HashMap<>();
+    for (int i = 0; i < namePairs.size(); i += 2) {
+      String internalName = namePairs.get(i);
+      String propertyName = getNormalizedPropertyName(namePairs.get(i + 1));
+      if (propertyNames.putIfAbsent(internalName, propertyName) != null) {
+        throw new IllegalStateException("Duplicate field " + internalName);
+      }
+    }
+    return new MetadataExtractionPlan(namePairs, ImmutableMap.copyOf(propertyNames));
+  }
+
+  /** Whether this plan was compiled from the same fields as {@code attributes}. */
+  private boolean matches(List<Element> attributes) {
+    int i = 0;
+    for (Element attribute : attributes) {
+      if (!isField(attribute)) {
+        continue;
+      }
+      if (i == namePairs.size()
+          || !namePairs.get(i).equals(attribute.getAttribute("name"))
+          || !namePairs.get(i + 1).equals(attribute.getAttribute("rs:name"))) {
+        return false;
+      }
+      i += 2;
+    }
+    return i == namePairs.size();
+  }
+
+  private static boolean isField(Element attribute) {
+    return attribute.hasAttribute("name") && attribute.hasAttribute("rs:name");
+  }
+
+  /** Hash of the internal and display names of the fields in {@code attributes}. */
+  private static int getSchemaHash(List<Element> attributes) {
+    int hash = 1;
+    for (Element attribute : attributes) {
+      if (isField(attribute)) {
+        hash = 31 * hash + attribute.getAttribute("name").hashCode();
+        hash = 31 * hash + attribute.getAttribute("rs:name").hashCode();
+      }
+    }
+    return hash;
+  }
+
+  /** Returns metadata values of {@code row}, by property name, in attribute order. */
+  Multimap<String, Object> extract(Element row) {
+    NamedNodeMap map = row.getAttributes();
+    int length = map.getLength();
+    Multimap<String, Object> values = LinkedHashMultimap.create(length, 2);
+    for (int i = 0; i < length; i++) {
+      Attr attribute = (Attr) map.item(i);
+      String attributeName = attribute.getName();
+      if (OWS_META_INFO.equals(attributeName)) {
+        // ows_MetaInfo is parsed out into other fields for us by SharePoint.
+        // We filter it since it only duplicates those other fields.
+        continue;
+      }
+      addValues(getPropertyName(attributeName), attribute.getValue(), values);
+    }
+    return values;
+  }
+
+  String getPropertyName(String attributeName) {
+    String propertyName = schemaPropertyNames.get(attributeName);
+    if (propertyName != null) {
+      return propertyName;
+    }
+    return otherPropertyNames.computeIfAbsent(
+        attributeName, name -> getNormalizedPropertyName(sanitizeInternalFieldName(name)));
+  }
+
+  private static void addValues(String name, String value, Multimap<String, Object> values) {
+    if (isLookupValue(value)) {
+      // This is a lookup field. We need to take alternative values only.
+      // Ignore the integer part. 314;#pi;#42;#the answer
+      addParts(name, value, 1, 2, values);
+    } else if (value.startsWith(VALUE_SEPARATOR) && value.endsWith(VALUE_SEPARATOR)) {
+      // This is a multi-choice field. Values will be in the form:
+      // ;#value1;#value2;#
+      addParts(name, value, 0, 1, values);
+    } else {
+      values.put(name, value);
+    }
+  }
+
+  /** Whether {@code value} starts with one or more digits followed by ;#. */
+  private static boolean isLookupValue(String value) {
+    int digits = 0;
+    while (digits < value.length() && isAsciiDigit(value.charAt(digits))) {
+      digits++;
+    }
+    return digits > 0 && value.startsWith(VALUE_SEPARATOR, digits);
+  }
+
+  /**
+   * Adds the non-empty parts of {@code value} separated by ;#, taking every {@code step}th part
+   * from the {@code first}. Same parts as {@code value.split(";#")}, without a regex.
+   */
+  private static void addParts(
+      String name, String value, int first, int step, Multimap<String, Object> values) {
+    int part = 0;
+    int start = 0;
+    while (start <= value.length()) {
+      int end = value.indexOf(VALUE_SEPARATOR, start);
+      if (end < 0) {
+        end = value.length();
+      }
+      if (part >= first && (part - first) % step == 0 && end > start) {
+        values.put(name, value.substring(start, end));
+      }
+      part++;
+      start = end + VALUE_SEPARATOR.length();
+    }
+  }
+
+  private static String sanitizeInternalFieldName(String name) {
+    if (name.startsWith(OWS_PREFIX)) {
+      name = name.substring(OWS_PREFIX.length());
+    }
+    return decodeMetadataName(name);
+  }
+
+  /**
+   * SharePoint encodes special characters as _x????_ where the ? are lowercase hex digits. Each
+   * such encoding is a UTF-16 character. For example, _x0020_ is space and _xffe5_ is the
+   * fullwidth yen sign.
+   */
+  static String decodeMetadataName(String name) {
+    int escape = name.indexOf("_x");
+    if (escape < 0) {
+      return name;
+    }
+    StringBuilder decoded = null;
+    int copied = 0;
+    while (escape >= 0) {
+      if (isEscape(name, escape)) {
+        if (decoded == null) {
+          decoded = new StringBuilder(name.length());
+        }
+        decoded
+            .append(name, copied, escape)
+            .append((char) Integer.parseInt(name.substring(escape + 2, escape + 6), 16));
+        copied = escape + 7;
+        escape = name.indexOf("_x", copied);
+      } else {
+        escape = name.indexOf("_x", escape + 1);
+      }
+    }
+    if (decoded == null) {
+      return name;
+    }
+    return decoded.append(name, copied, name.length()).toString();
+  }
+
+  /** Whether an _x????_ escape starts at {@code index} of {@code name}. */
+  private static boolean isEscape(String name, int index) {
+    if (index + 7 > name.length() || name.charAt(index + 6) != '_') {
+      return false;
+    }
+    for (int i = index + 2; i < index + 6; i++) {
+      char c = name.charAt(i);
+      if (!isAsciiDigit(c) && (c < 'a' || c > 'f')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Converts property display name to potential property definition name defined in structured
+   * data by removing non alphanumeric characters from property display name.
+   */
+  static String getNormalizedPropertyName(String displayName) {
+    StringBuilder normalized = null;
+    for (int i = 0; i < displayName.length(); i++) {
+      char c = displayName.charAt(i);
+      boolean alphanumeric = isAsciiDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+      if (normalized != null) {
+        if (alphanumeric) {
+          normalized.append(c);
+        }
+      } else if (!alphanumeric) {
+        normalized = new StringBuilder(displayName.length()).append(displayName, 0, i);
+      }
+    }
+    return normalized == null ? displayName : normalized.toString();
+  }
+
+  private static boolean isAsciiDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /**
+   * Plans of recently seen schemas, keyed by a hash of their field names. Lists sharing a schema,
+   * such as the libraries of a site template, share its plan. A hit hashes and compares the field
+   * names in place, so looking up the plan for a row doesn't copy the schema. Schemas with
+   * colliding hashes replace each other's plan.
+   *
+   * <p>There is one plan per distinct list schema. A plan holds the names and property name of
+   * each field, so with the default bound the cache stays in the order of ten megabytes even for
+   * schemas of a hundred fields.
+   */
+  static class PlanCache {
+    private final Cache<Integer, MetadataExtractionPlan> plans;
+
+    PlanCache(int maxSize) {
+      checkArgument(maxSize >= 0, "maximum size can not be less than 0");
+      this.plans = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    }
+
+    /**
+     * Creates cache from configuration.
+     *
+     * <ul>
+     *   <li>sharepoint.metadata.planCache.maxSize - maximum number of list schemas whose plans
+     *       are kept, default 1000. Use 0 to compile the plan for every item.
+     * </ul>
+     */
+    static PlanCache fromConfiguration() {
+      checkState(Configuration.isInitialized(), "Configuration not initialized yet");
+      return new PlanCache(
+          Configuration.getInteger(
+                  "sharepoint.metadata.planCache.maxSize", DEFAULT_MAX_CACHED_PLANS)
+              .get());
+    }
+
+    /** Returns plan for {@code attributes}, compiling it if its schema wasn't seen recently. */
+    MetadataExtractionPlan get(List<Element> attributes) {
+      int hash = getSchemaHash(attributes);
+      MetadataExtractionPlan plan = plans.getIfPresent(hash);
+      if (plan != null && plan.matches(attributes)) {
+        return plan;
+      }
+      // Concurrent misses for the same schema may each compile it. Plans are equivalent, so the
+      // last one cached wins.
+      plan = compile(attributes);
+      plans.put(hash, plan);
+      return plan;
+    }
+  }
+}
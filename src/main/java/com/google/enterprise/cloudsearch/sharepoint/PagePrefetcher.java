@@ -0,0 +1,242 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import com.google.enterprise.cloudsearch.sharepoint.SiteDataClient.CursorPaginator;
+import com.google.enterprise.cloudsearch.sharepoint.SiteDataClient.Paginator;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Fetches the next pages of a {@link Paginator} in the background while the caller processes the
+ * current one, so that SiteData round trips overlap with processing. A page's request depends on
+ * the previous page, so each paginator has at most one request in flight, and at most {@code
+ * depth} pages fetched ahead of the caller.
+ */
+class PagePrefetcher {
+  static final int DEFAULT_DEPTH = 1;
+
+  private final int depth;
+  private final ExecutorService executor;
+
+  PagePrefetcher(int depth) {
+    this(depth, ConnectorThreads.PLATFORM);
+  }
+
+  PagePrefetcher(int depth, ConnectorThreads threads) {
+    checkArgument(depth >= 0, "depth must be 0 or greater");
+    checkNotNull(threads);
+    this.depth = depth;
+    this.executor = depth == 0 ? null : threads.newCachedThreadPool("sharepoint-page-fetch-%d");
+  }
+
+  /**
+   * Creates prefetcher from configuration.
+   *
+   * <ul>
+   *   <li>sharepoint.pagePrefetch.depth - maximum number of folder and change log pages fetched
+   *       ahead of the page being processed, default 1. Use 0 to fetch each page when it is
+   *       needed. Pages fetched ahead of a full change batch are discarded.
+   * </ul>
+   */
+  static PagePrefetcher fromConfiguration() {
+    checkState(Configuration.isInitialized(), "Configuration not initialized yet");
+    int depth = Configuration.getInteger("sharepoint.pagePrefetch.depth", DEFAULT_DEPTH).get();
+    Configuration.checkConfiguration(depth >= 0, "Invalid page prefetch depth %s", depth);
+    return new PagePrefetcher(depth, ConnectorThreads.fromConfiguration());
+  }
+
+  int getDepth() {
+    return depth;
+  }
+
+  /** Returns {@code pages}, with its next pages fetched ahead. Close it when done. */
+  <E> PrefetchingPaginator<E, Void> prefetch(Paginator<E> pages) {
+    return new PrefetchingPaginator<>(pages, () -> null, depth, executor);
+  }
+
+  /**
+   * Returns {@code pages}, with its next pages fetched ahead. Its cursor is the cursor after the
+   * last page returned, not after the last page fetched. Close it when done.
+   */
+  <E, C> PrefetchingPaginator<E, C> prefetch(CursorPaginator<E, C> pages) {
+    return new PrefetchingPaginator<>(pages, pages::getCursor, depth, executor);
+  }
+
+  void shutdown() {
+    if (executor != null) {
+      MoreExecutors.shutdownAndAwaitTermination(executor, 10, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Paginator returning pages fetched in the background. A failed fetch is thrown by the {@link
+   * #next} call which would have returned its page, and no page after it is fetched unless {@link
+   * #next} is called again. Closing it discards pages fetched ahead; a request already in flight
+   * is left to complete.
+   */
+  static class PrefetchingPaginator<E, C> implements CursorPaginator<E, C>, AutoCloseable {
+    private final Paginator<E> pages;
+    private final Supplier<C> cursor;
+    private final int depth;
+    private final ExecutorService executor;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pageFetched = lock.newCondition();
+    private final Deque<Page<E, C>> fetched = new ArrayDeque<>();
+    private C currentCursor;
+    private boolean fetching;
+    /** Set once the last page fetched was the end of the pages, or failed. */
+    private boolean stopped;
+    private boolean closed;
+
+    private PrefetchingPaginator(
+        Paginator<E> pages, Supplier<C> cursor, int depth, ExecutorService executor) {
+      this.pages = checkNotNull(pages);
+      this.cursor = checkNotNull(cursor);
+      this.depth = depth;
+      this.executor = executor;
+      this.currentCursor = cursor.get();
+    }
+
+    @Override
+    public E next() throws IOException {
+      if (executor == null) {
+        return pages.next();
+      }
+      Page<E, C> page;
+      lock.lock();
+      try {
+        checkState(!closed, "paginator is closed");
+        fetchAhead();
+        while (fetched.isEmpty()) {
+          if (stopped && !fetching) {
+            return null;
+          }
+          pageFetched.await();
+        }
+        page = fetched.poll();
+        currentCursor = page.cursor;
+        if (page.failure == null) {
+          fetchAhead();
+        } else {
+          // Callers usually give up on a failure, so the paginator only continues after the
+          // failed page if the caller asks for the next page.
+          stopped = false;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while fetching page", e);
+      } finally {
+        lock.unlock();
+      }
+      if (page.failure instanceof IOException) {
+        throw (IOException) page.failure;
+      } else if (page.failure instanceof RuntimeException) {
+        throw (RuntimeException) page.failure;
+      } else if (page.failure instanceof Error) {
+        throw (Error) page.failure;
+      }
+      return page.value;
+    }
+
+    @Override
+    public C getCursor() {
+      if (executor == null) {
+        return cursor.get();
+      }
+      lock.lock();
+      try {
+        return currentCursor;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void close() {
+      lock.lock();
+      try {
+        closed = true;
+        fetched.clear();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Starts fetching if there's room for another page. Must hold lock. */
+    private void fetchAhead() {
+      if (!fetching && !stopped && !closed && fetched.size() < depth) {
+        fetching = true;
+        executor.execute(this::fetch);
+      }
+    }
+
+    private void fetch() {
+      while (true) {
+        Page<E, C> page;
+        try {
+          E value = pages.next();
+          page = new Page<>(value, cursor.get(), null);
+        } catch (IOException | RuntimeException | Error e) {
+          page = new Page<>(null, cursor.get(), e);
+        }
+        lock.lock();
+        try {
+          if (closed) {
+            fetching = false;
+            return;
+          }
+          fetched.add(page);
+          pageFetched.signalAll();
+          if (page.value == null) {
+            stopped = true;
+          }
+          if (stopped || fetched.size() >= depth) {
+            fetching = false;
+            return;
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  private static class Page<E, C> {
+    private final E value;
+    private final C cursor;
+    private final Throwable failure;
+
+    Page(E value, C cursor, Throwable failure) {
+      this.value = value;
+      this.cursor = cursor;
+      this.failure = failure;
+    }
+  }
+}
@@ -16,14 +16,17 @@
 
 package com.google.enterprise.cloudsearch.sharepoint;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.LoadingCache;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
 import com.microsoft.schemas.sharepoint.soap.List;
 import com.microsoft.schemas.sharepoint.soap.PolicyUser;
 import com.microsoft.schemas.sharepoint.soap.TrueFalseType;
 import com.microsoft.schemas.sharepoint.soap.VirtualServer;
-import com.microsoft.schemas.sharepoint.soap.Web;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Locale;
@@ -38,29 +41,39 @@ import java.util.concurrent.TimeUnit;
 class RareModificationCache {
   private final Executor executor;
   private final VirtualServerKey virtualServerKey;
-  private final LoadingCache<CacheKey<?>, Object> cache
-      = CacheBuilder.newBuilder()
-      .expireAfterAccess(5, TimeUnit.MINUTES)
-      .expireAfterWrite(30, TimeUnit.MINUTES)
-      .build(new AsyncCacheLoader<CacheKey<?>, Object>() {
-        @Override
-        protected Executor executor() {
-          return executor;
-        }
-
-        @Override
-        public Object load(CacheKey<?> key) throws IOException {
-          return key.computeValue();
-        }
-      });
+  private final LoadingCache<CacheKey<?>, Object> cache;
 
   public RareModificationCache(SiteDataClient virtualServerSiteDataClient,
       Executor executor) {
+    this(virtualServerSiteDataClient, executor, new Builder());
+  }
+
+  private RareModificationCache(SiteDataClient virtualServerSiteDataClient,
+      Executor executor, Builder builder) {
     if (virtualServerSiteDataClient == null || executor == null) {
       throw new NullPointerException();
     }
     this.executor = executor;
     this.virtualServerKey = new VirtualServerKey(virtualServerSiteDataClient);
+    CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+        .maximumSize(builder.maximumSize)
+        .expireAfterAccess(builder.expireAfterAccessSecs, TimeUnit.SECONDS)
+        .expireAfterWrite(builder.expireAfterWriteSecs, TimeUnit.SECONDS);
+    if (builder.refreshAfterWriteSecs > 0) {
+      // Stale entries are served while AsyncCacheLoader reloads them on executor.
+      cacheBuilder.refreshAfterWrite(builder.refreshAfterWriteSecs, TimeUnit.SECONDS);
+    }
+    this.cache = cacheBuilder.build(new AsyncCacheLoader<CacheKey<?>, Object>() {
+      @Override
+      protected Executor executor() {
+        return RareModificationCache.this.executor;
+      }
+
+      @Override
+      public Object load(CacheKey<?> key) throws IOException {
+        return key.computeValue();
+      }
+    });
   }
 
   /**
@@ -82,15 +95,26 @@ class RareModificationCache {
     return get(virtualServerKey);
   }
 
-  public CachedWeb getWeb(SiteDataClient siteDataClient) throws IOException {
-    return get(new WebKey(siteDataClient));
-  }
-
   public CachedList getList(SiteDataClient siteDataClient, String listId)
       throws IOException {
     return get(new ListKey(siteDataClient, listId));
   }
 
+  public void invalidateVirtualServer() {
+    cache.invalidate(virtualServerKey);
+  }
+
+  /**
+   * Invalidates list {@code listId} for all webs. List ids are unique, but
+   * change notifications don't identify the SiteDataClient used to load it.
+   */
+  public void invalidateList(String listId) {
+    String normalizedListId = listId.toUpperCase(Locale.ENGLISH);
+    cache.asMap().keySet().removeIf(
+        key -> key instanceof ListKey
+            && ((ListKey) key).listId.equals(normalizedListId));
+  }
+
   /**
    * The key used to identify a cache entry. Therefore, {@link Object#equals}
    * and {@link Object#hashCode} must be valid.
@@ -121,8 +145,11 @@ class RareModificationCache {
   public static final class CachedVirtualServer {
     public final long anonymousDenyMask;
     public final boolean policyContainsDeny;
+    /** Policies and content database listing of the Virtual Server. */
+    public final VirtualServer virtualServer;
 
-    private CachedVirtualServer(VirtualServer vs) {
+    public CachedVirtualServer(VirtualServer vs) {
+      this.virtualServer = vs;
       this.anonymousDenyMask
           = vs.getPolicies().getAnonymousDenyMask().longValue();
       boolean policyContainsDeny = false;
@@ -138,64 +165,23 @@ class RareModificationCache {
     }
   }
 
-  @VisibleForTesting
-  static final class WebKey implements CacheKey<CachedWeb> {
-    private final SiteDataClient siteDataClient;
-
-    public WebKey(SiteDataClient siteDataClient) {
-      this.siteDataClient = siteDataClient;
-    }
-
-    @Override
-    public CachedWeb computeValue() throws IOException {
-      return new CachedWeb(siteDataClient.getContentWeb());
-    }
-
-    @Override
-    public boolean equals(Object o) {
-      if (!(o instanceof WebKey)) {
-        return false;
-      }
-      WebKey webKey = (WebKey) o;
-      return siteDataClient.equals(webKey.siteDataClient);
-    }
-
-    @Override
-    public int hashCode() {
-      return siteDataClient.hashCode();
-    }
-  }
-
-  public static final class CachedWeb {
-    public final String noIndex;
-    public final TrueFalseType allowAnonymousAccess;
-    public final TrueFalseType anonymousViewListItems;
-    public final long anonymousPermMask;
-    public final String webTitle;
-
-    public CachedWeb(Web w) {
-      this.noIndex = w.getMetadata().getNoIndex();
-      this.allowAnonymousAccess = w.getMetadata().getAllowAnonymousAccess();
-      this.anonymousViewListItems = w.getMetadata().getAnonymousViewListItems();
-      this.anonymousPermMask
-          = w.getMetadata().getAnonymousPermMask().longValue();
-      this.webTitle = w.getMetadata().getTitle();
-    }
-  }
-
   @VisibleForTesting
   static final class ListKey implements CacheKey<CachedList> {
     private final SiteDataClient siteDataClient;
+    /** Normalized list id, used for equality. */
     private final String listId;
+    /** List id as provided by caller, used for SharePoint requests. */
+    private final String requestListId;
 
     public ListKey(SiteDataClient siteDataClient, String listId) {
       this.siteDataClient = siteDataClient;
       this.listId = listId.toUpperCase(Locale.ENGLISH);
+      this.requestListId = listId;
     }
 
     @Override
     public CachedList computeValue() throws IOException {
-      return new CachedList(siteDataClient.getContentList(listId));
+      return new CachedList(siteDataClient.getContentList(requestListId));
     }
 
     @Override
@@ -215,6 +201,7 @@ class RareModificationCache {
   }
 
   public static final class CachedList {
+    public final String id;
     public final TrueFalseType noIndex;
     public final int readSecurity;
     public final TrueFalseType allowAnonymousAccess;
@@ -224,13 +211,15 @@ class RareModificationCache {
     public final String defaultViewUrl;
     public final String defaultViewItemUrl;
     /**
-     * This field must not be used for general ACL inheritance of direct
-     * decendants of the list. This is intended only for use when determining
-     * whether anonymous access is permitted for list items and attachments.
+     * Scope of the list when it was cached, which may be stale. This field
+     * must not be used for general ACL inheritance of direct decendants of
+     * the list, except to confirm that an item shares the list's scope: an
+     * item can't have a scope the list no longer has.
      */
     public final String scopeId;
 
     public CachedList(List l) {
+      this.id = l.getMetadata().getID();
       this.noIndex = l.getMetadata().getNoIndex();
       this.readSecurity = l.getMetadata().getReadSecurity();
       this.allowAnonymousAccess = l.getMetadata().getAllowAnonymousAccess();
@@ -245,4 +234,85 @@ class RareModificationCache {
       this.scopeId = l.getMetadata().getScopeID();
     }
   }
+
+  /** Cache sizing and expiration settings. */
+  static class Builder {
+    private boolean enabled = true;
+    private long maximumSize = 10000;
+    private long expireAfterAccessSecs = TimeUnit.MINUTES.toSeconds(5);
+    private long expireAfterWriteSecs = TimeUnit.MINUTES.toSeconds(30);
+    private long refreshAfterWriteSecs = 0;
+
+    Builder setEnabled(boolean enabled) {
+      this.enabled = enabled;
+      return this;
+    }
+
+    Builder setMaximumSize(long maximumSize) {
+      this.maximumSize = maximumSize;
+      return this;
+    }
+
+    Builder setExpireAfterAccessSecs(long expireAfterAccessSecs) {
+      this.expireAfterAccessSecs = expireAfterAccessSecs;
+      return this;
+    }
+
+    Builder setExpireAfterWriteSecs(long expireAfterWriteSecs) {
+      this.expireAfterWriteSecs = expireAfterWriteSecs;
+      return this;
+    }
+
+    Builder setRefreshAfterWriteSecs(long refreshAfterWriteSecs) {
+      this.refreshAfterWriteSecs = refreshAfterWriteSecs;
+      return this;
+    }
+
+    boolean isEnabled() {
+      return enabled;
+    }
+
+    /**
+     * Reads cache settings from configuration.
+     *
+     * <ul>
+     *   <li>sharepoint.metadataCache.enabled - default true
+     *   <li>sharepoint.metadataCache.maxSize - default 10000 entries
+     *   <li>sharepoint.metadataCache.expireAfterAccessSecs - default 300
+     *   <li>sharepoint.metadataCache.expireAfterWriteSecs - default 1800
+     *   <li>sharepoint.metadataCache.refreshAfterWriteSecs - default 0, no
+     *       asynchronous refresh
+     * </ul>
+     */
+    static Builder fromConfiguration() {
+      checkState(Configuration.isInitialized(), "configuration not initialized");
+      return new Builder()
+          .setEnabled(
+              Configuration.getBoolean("sharepoint.metadataCache.enabled", true).get())
+          .setMaximumSize(
+              Configuration.getInteger("sharepoint.metadataCache.maxSize", 10000).get())
+          .setExpireAfterAccessSecs(
+              Configuration.getInteger(
+                  "sharepoint.metadataCache.expireAfterAccessSecs", 5 * 60).get())
+          .setExpireAfterWriteSecs(
+              Configuration.getInteger(
+                  "sharepoint.metadataCache.expireAfterWriteSecs", 30 * 60).get())
+          .setRefreshAfterWriteSecs(
+              Configuration.getInteger(
+                  "sharepoint.metadataCache.refreshAfterWriteSecs", 0).get());
+    }
+
+    RareModificationCache build(SiteDataClient virtualServerSiteDataClient,
+        Executor executor) {
+      checkArgument(maximumSize >= 0, "maximum size can not be less than 0");
+      checkArgument(expireAfterAccessSecs >= 0,
+          "expire after access can not be less than 0");
+      checkArgument(expireAfterWriteSecs >= 0,
+          "expire after write can not be less than 0");
+      checkArgument(refreshAfterWriteSecs >= 0,
+          "refresh after write can not be less than 0");
+      return new RareModificationCache(
+          virtualServerSiteDataClient, executor, this);
+    }
+  }
 }
@@ -57,6 +57,13 @@ class SharePointConfiguration {
   private final ImmutableMap<String, IdentitySourceConfiguration>
       referenceIdentitySourceConfiguration;
   private final boolean stripDomainInUserPrincipals;
+  private final int memberIdMappingCacheExpirationSecs;
+  private final int siteUserMappingCacheExpirationSecs;
+  private final int changesMaxBatchSize;
+  private final int childIdsMaxBatchSize;
+  private final boolean incrementalGroupSync;
+  private final int groupCacheMaxGroups;
+  private final int maxConnectionsPerHost;
 
   private static boolean isCredentialOptional() {
     return System.getProperty("os.name", "").contains("Windows");
@@ -113,6 +120,27 @@ class SharePointConfiguration {
         checkNotNull(builder.referenceIdentitySourceConfiguration);
     this.stripDomainInUserPrincipals = builder.stripDomainInUserPrincipals;
     this.sharePointDeploymentType = builder.sharePointDeploymentType;
+    checkArgument(
+        builder.memberIdMappingCacheExpirationSecs >= 0,
+        "MemberIdMapping cache expiration can not be less than 0");
+    this.memberIdMappingCacheExpirationSecs = builder.memberIdMappingCacheExpirationSecs;
+    checkArgument(
+        builder.siteUserMappingCacheExpirationSecs >= 0,
+        "Site user mapping cache expiration can not be less than 0");
+    this.siteUserMappingCacheExpirationSecs = builder.siteUserMappingCacheExpirationSecs;
+    checkArgument(
+        builder.changesMaxBatchSize > 0, "Changes max batch size must be greater than 0");
+    this.changesMaxBatchSize = builder.changesMaxBatchSize;
+    checkArgument(
+        builder.childIdsMaxBatchSize >= 0, "Child ids max batch size can not be less than 0");
+    this.childIdsMaxBatchSize = builder.childIdsMaxBatchSize;
+    this.incrementalGroupSync = builder.incrementalGroupSync;
+    checkArgument(
+        builder.groupCacheMaxGroups >= 0, "Group cache max groups can not be less than 0");
+    this.groupCacheMaxGroups = builder.groupCacheMaxGroups;
+    checkArgument(
+        builder.maxConnectionsPerHost > 0, "Max connections per host must be greater than 0");
+    this.maxConnectionsPerHost = builder.maxConnectionsPerHost;
   }
 
   @Override
@@ -138,7 +166,16 @@ class SharePointConfiguration {
         && Objects.equals(
             referenceIdentitySourceConfiguration, that.referenceIdentitySourceConfiguration)
         && Objects.equals(stripDomainInUserPrincipals, that.stripDomainInUserPrincipals)
-        && Objects.equals(sharePointDeploymentType, that.sharePointDeploymentType);
+        && Objects.equals(sharePointDeploymentType, that.sharePointDeploymentType)
+        && Objects.equals(
+            memberIdMappingCacheExpirationSecs, that.memberIdMappingCacheExpirationSecs)
+        && Objects.equals(
+            siteUserMappingCacheExpirationSecs, that.siteUserMappingCacheExpirationSecs)
+        && Objects.equals(changesMaxBatchSize, that.changesMaxBatchSize)
+        && Objects.equals(childIdsMaxBatchSize, that.childIdsMaxBatchSize)
+        && Objects.equals(incrementalGroupSync, that.incrementalGroupSync)
+        && Objects.equals(groupCacheMaxGroups, that.groupCacheMaxGroups)
+        && Objects.equals(maxConnectionsPerHost, that.maxConnectionsPerHost);
   }
 
   @Override
@@ -157,7 +194,14 @@ class SharePointConfiguration {
         performBrowserLeniency,
         referenceIdentitySourceConfiguration,
         stripDomainInUserPrincipals,
-        sharePointDeploymentType);
+        sharePointDeploymentType,
+        memberIdMappingCacheExpirationSecs,
+        siteUserMappingCacheExpirationSecs,
+        changesMaxBatchSize,
+        childIdsMaxBatchSize,
+        incrementalGroupSync,
+        groupCacheMaxGroups,
+        maxConnectionsPerHost);
   }
 
   boolean isSiteCollectionUrl() {
@@ -200,6 +244,34 @@ class SharePointConfiguration {
     return sharePointDeploymentType;
   }
 
+  int getMemberIdMappingCacheExpirationSecs() {
+    return memberIdMappingCacheExpirationSecs;
+  }
+
+  int getSiteUserMappingCacheExpirationSecs() {
+    return siteUserMappingCacheExpirationSecs;
+  }
+
+  int getChangesMaxBatchSize() {
+    return changesMaxBatchSize;
+  }
+
+  int getChildIdsMaxBatchSize() {
+    return childIdsMaxBatchSize;
+  }
+
+  boolean isIncrementalGroupSync() {
+    return incrementalGroupSync;
+  }
+
+  int getGroupCacheMaxGroups() {
+    return groupCacheMaxGroups;
+  }
+
+  int getMaxConnectionsPerHost() {
+    return maxConnectionsPerHost;
+  }
+
   boolean isPerformXmlValidation() {
     return performXmlValidation;
   }
@@ -245,6 +317,20 @@ class SharePointConfiguration {
         + stripDomainInUserPrincipals
         + ", sharePointDeploymentType="
         + sharePointDeploymentType
+        + ", memberIdMappingCacheExpirationSecs="
+        + memberIdMappingCacheExpirationSecs
+        + ", siteUserMappingCacheExpirationSecs="
+        + siteUserMappingCacheExpirationSecs
+        + ", changesMaxBatchSize="
+        + changesMaxBatchSize
+        + ", childIdsMaxBatchSize="
+        + childIdsMaxBatchSize
+        + ", incrementalGroupSync="
+        + incrementalGroupSync
+        + ", groupCacheMaxGroups="
+        + groupCacheMaxGroups
+        + ", maxConnectionsPerHost="
+        + maxConnectionsPerHost
         + "]";
   }
 
@@ -263,6 +349,13 @@ class SharePointConfiguration {
     private boolean stripDomainInUserPrincipals;
     private SharePointDeploymentType sharePointDeploymentType =
         SharePointDeploymentType.ON_PREMISES;
+    private int memberIdMappingCacheExpirationSecs = 30 * 60;
+    private int siteUserMappingCacheExpirationSecs = 30 * 60;
+    private int changesMaxBatchSize = 10000;
+    private int childIdsMaxBatchSize = 0;
+    private boolean incrementalGroupSync;
+    private int groupCacheMaxGroups = 100000;
+    private int maxConnectionsPerHost = 20;
 
     Builder(SharePointUrl sharePointUrl) {
       this.sharePointUrl = sharePointUrl;
@@ -330,6 +423,41 @@ class SharePointConfiguration {
       return this;
     }
 
+    Builder setMemberIdMappingCacheExpirationSecs(int memberIdMappingCacheExpirationSecs) {
+      this.memberIdMappingCacheExpirationSecs = memberIdMappingCacheExpirationSecs;
+      return this;
+    }
+
+    Builder setSiteUserMappingCacheExpirationSecs(int siteUserMappingCacheExpirationSecs) {
+      this.siteUserMappingCacheExpirationSecs = siteUserMappingCacheExpirationSecs;
+      return this;
+    }
+
+    Builder setChangesMaxBatchSize(int changesMaxBatchSize) {
+      this.changesMaxBatchSize = changesMaxBatchSize;
+      return this;
+    }
+
+    Builder setChildIdsMaxBatchSize(int childIdsMaxBatchSize) {
+      this.childIdsMaxBatchSize = childIdsMaxBatchSize;
+      return this;
+    }
+
+    Builder setIncrementalGroupSync(boolean incrementalGroupSync) {
+      this.incrementalGroupSync = incrementalGroupSync;
+      return this;
+    }
+
+    Builder setGroupCacheMaxGroups(int groupCacheMaxGroups) {
+      this.groupCacheMaxGroups = groupCacheMaxGroups;
+      return this;
+    }
+
+    Builder setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+      this.maxConnectionsPerHost = maxConnectionsPerHost;
+      return this;
+    }
+
     SharePointConfiguration build() throws URISyntaxException {
       if ((sharePointUrl == null)
           || (sharePointSiteCollectionOnly == null)
@@ -375,6 +503,20 @@ class SharePointConfiguration {
                 SharePointDeploymentType.ON_PREMISES,
                 (v) -> SharePointDeploymentType.valueOf(v.toUpperCase(Locale.ENGLISH)))
             .get();
+    int memberIdMappingCacheExpirationSecs =
+        Configuration.getInteger("sharepoint.memberIdMappingCache.expirationSecs", 30 * 60).get();
+    int siteUserMappingCacheExpirationSecs =
+        Configuration.getInteger("sharepoint.siteUserMappingCache.expirationSecs", 30 * 60).get();
+    int changesMaxBatchSize =
+        Configuration.getInteger("sharepoint.changes.maxBatchSize", 10000).get();
+    int childIdsMaxBatchSize =
+        Configuration.getInteger("sharepoint.childIds.maxBatchSize", 0).get();
+    boolean incrementalGroupSync =
+        Configuration.getBoolean("sharepoint.identity.incrementalGroupSync", false).get();
+    int groupCacheMaxGroups =
+        Configuration.getInteger("sharepoint.identity.groupCache.maxGroups", 100000).get();
+    int maxConnectionsPerHost =
+        Configuration.getInteger("sharepoint.http.maxConnectionsPerHost", 20).get();
 
     Iterable<String> siteCollections = Splitter.on(',')
         .trimResults().omitEmptyStrings()
@@ -403,6 +545,13 @@ class SharePointConfiguration {
           .setReferenceIdentitySourceConfiguration(
               IdentitySourceConfiguration.getReferenceIdentitySourcesFromConfiguration())
           .setSharePointDeploymentType(sharePointDeploymentType)
+          .setMemberIdMappingCacheExpirationSecs(memberIdMappingCacheExpirationSecs)
+          .setSiteUserMappingCacheExpirationSecs(siteUserMappingCacheExpirationSecs)
+          .setChangesMaxBatchSize(changesMaxBatchSize)
+          .setChildIdsMaxBatchSize(childIdsMaxBatchSize)
+          .setIncrementalGroupSync(incrementalGroupSync)
+          .setGroupCacheMaxGroups(groupCacheMaxGroups)
+          .setMaxConnectionsPerHost(maxConnectionsPerHost)
           .build();
     } catch (Exception e) {
       throw new InvalidConfigurationException("Invalid SharePoint Configuration", e);
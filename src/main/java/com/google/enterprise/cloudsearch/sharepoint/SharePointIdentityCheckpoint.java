@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Identity connector checkpoint holding the change token each site collection's groups are
+ * current as of, keyed by site collection URL. Groups are listed one content database per page, in
+ * content database ID order. Tokens of the page in progress are kept apart from the tokens of the
+ * last complete traversal, so site collections which no longer exist are dropped at the end of
+ * each traversal.
+ */
+public class SharePointIdentityCheckpoint extends GenericJson {
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  /** Change tokens recorded by the last complete traversal. */
+  @Key private Map<String, SiteCollectionToken> tokens;
+  /** Change tokens recorded so far by the traversal in progress. */
+  @Key private Map<String, SiteCollectionToken> pendingTokens;
+  /** Last content database listed by the traversal in progress. */
+  @Key private String lastContentDatabaseId;
+
+  public SharePointIdentityCheckpoint() {
+    super();
+    setFactory(JSON_FACTORY);
+  }
+
+  private SharePointIdentityCheckpoint(
+      Map<String, SiteCollectionToken> tokens,
+      Map<String, SiteCollectionToken> pendingTokens,
+      String lastContentDatabaseId) {
+    this();
+    this.tokens = ImmutableMap.copyOf(tokens);
+    this.pendingTokens = ImmutableMap.copyOf(pendingTokens);
+    this.lastContentDatabaseId = lastContentDatabaseId;
+  }
+
+  /** Change token of a site collection, with the site collection ID it belongs to. */
+  public static class SiteCollectionToken extends GenericJson {
+    @Key private String id;
+    @Key private String changeToken;
+
+    public SiteCollectionToken() {
+      super();
+      setFactory(JSON_FACTORY);
+    }
+
+    SiteCollectionToken(String id, String changeToken) {
+      this();
+      this.id = checkNotNull(id);
+      this.changeToken = checkNotNull(changeToken);
+    }
+
+    String getId() {
+      return id;
+    }
+
+    String getChangeToken() {
+      return changeToken;
+    }
+  }
+
+  /** Returns an empty checkpoint, for the first traversal. */
+  static SharePointIdentityCheckpoint empty() {
+    return new SharePointIdentityCheckpoint(ImmutableMap.of(), ImmutableMap.of(), null);
+  }
+
+  /** Returns the parsed checkpoint, or {@link #empty} if {@code payload} is null or empty. */
+  static SharePointIdentityCheckpoint parse(byte[] payload) throws IOException {
+    if (payload == null || payload.length == 0) {
+      return empty();
+    }
+    SharePointIdentityCheckpoint parsed =
+        JSON_FACTORY.fromString(new String(payload, UTF_8), SharePointIdentityCheckpoint.class);
+    if (parsed.tokens == null) {
+      parsed.tokens = ImmutableMap.of();
+    }
+    if (parsed.pendingTokens == null) {
+      parsed.pendingTokens = ImmutableMap.of();
+    }
+    return parsed;
+  }
+
+  byte[] encodePayload() throws IOException {
+    return JSON_FACTORY.toByteArray(this);
+  }
+
+  /**
+   * Returns the change token recorded for {@code siteCollectionUrl} by the last complete
+   * traversal, or null if there is none.
+   */
+  SiteCollectionToken getToken(String siteCollectionUrl) {
+    return tokens.get(siteCollectionUrl);
+  }
+
+  Map<String, SiteCollectionToken> getTokens() {
+    return tokens;
+  }
+
+  Map<String, SiteCollectionToken> getPendingTokens() {
+    return pendingTokens;
+  }
+
+  /** Returns the last content database listed by the traversal in progress, or null. */
+  String getLastContentDatabaseId() {
+    return lastContentDatabaseId;
+  }
+
+  /**
+   * Returns the checkpoint after listing the groups of {@code contentDatabaseId}, whose site
+   * collections are current as of {@code pageTokens}. Completes the traversal if {@code hasMore}
+   * is false.
+   */
+  SharePointIdentityCheckpoint nextPage(
+      String contentDatabaseId, Map<String, SiteCollectionToken> pageTokens, boolean hasMore) {
+    Map<String, SiteCollectionToken> updated = new HashMap<>(pendingTokens);
+    updated.putAll(pageTokens);
+    return hasMore
+        ? new SharePointIdentityCheckpoint(tokens, updated, contentDatabaseId)
+        : new SharePointIdentityCheckpoint(updated, ImmutableMap.of(), null);
+  }
+}
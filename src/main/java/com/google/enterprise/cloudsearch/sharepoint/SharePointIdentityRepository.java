@@ -20,6 +20,8 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterableImpl;
@@ -30,18 +32,30 @@ import com.google.enterprise.cloudsearch.sdk.identity.IdentityGroup;
 import com.google.enterprise.cloudsearch.sdk.identity.IdentityUser;
 import com.google.enterprise.cloudsearch.sdk.identity.Repository;
 import com.google.enterprise.cloudsearch.sdk.identity.RepositoryContext;
+import com.google.enterprise.cloudsearch.sharepoint.PagePrefetcher.PrefetchingPaginator;
+import com.google.enterprise.cloudsearch.sharepoint.SharePointIdentityCheckpoint.SiteCollectionToken;
 import com.microsoft.schemas.sharepoint.soap.ContentDatabase;
 import com.microsoft.schemas.sharepoint.soap.ContentDatabases;
+import com.microsoft.schemas.sharepoint.soap.SPSite;
+import com.microsoft.schemas.sharepoint.soap.SPWeb;
+import com.microsoft.schemas.sharepoint.soap.Site;
 import com.microsoft.schemas.sharepoint.soap.Sites;
+import com.microsoft.schemas.sharepoint.soap.TrueFalseType;
 import com.microsoft.schemas.sharepoint.soap.VirtualServer;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.Authenticator;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -59,6 +73,17 @@ class SharePointIdentityRepository implements Repository {
   private SiteConnectorFactory siteConnectorFactory;
   private NtlmAuthenticator ntlmAuthenticator;
   private RepositoryContext repositoryContext;
+  private Optional<ActiveDirectoryClient> activeDirectoryClient = Optional.empty();
+  private SiteCollectionExecutor siteCollectionExecutor;
+  private PagePrefetcher pagePrefetcher;
+  /**
+   * Groups of each site collection as of its change token in the checkpoint, by site collection
+   * URL. Used in incremental mode to list groups of site collections without group changes. Holds
+   * at most the configured number of groups, and is empty after a restart, so groups of site
+   * collections missing from it are listed again.
+   */
+  private Cache<String, List<IdentityGroup>> groupsBySiteCollection =
+      CacheBuilder.newBuilder().maximumSize(0).build();
 
   SharePointIdentityRepository() {
     this(new SiteConnectorFactoryImpl.Builder(), new AuthenticationClientFactoryImpl());
@@ -81,6 +106,7 @@ class SharePointIdentityRepository implements Repository {
     checkState(Configuration.isInitialized());
     this.repositoryContext = checkNotNull(context);
     sharepointConfiguration = SharePointConfiguration.fromConfiguration();
+    HttpClientImpl.configureConnectionPool(sharepointConfiguration.getMaxConnectionsPerHost());
     String username = sharepointConfiguration.getUserName();
     String password = sharepointConfiguration.getPassword();
     ntlmAuthenticator = new NtlmAuthenticator(username, password);
@@ -107,6 +133,7 @@ class SharePointIdentityRepository implements Repository {
             .build();
       }
     }
+    AdaptiveThrottle throttle = AdaptiveThrottle.fromConfiguration();
     SharePointRequestContext requestContext =
         new SharePointRequestContext.Builder()
             .setAuthenticationHandler(formsAuthenticationHandler)
@@ -114,14 +141,25 @@ class SharePointIdentityRepository implements Repository {
             .setReadTimeoutMillis(sharepointConfiguration.getWebservicesReadTimeoutMills())
             .setUserAgent(sharepointConfiguration.getSharePointUserAgent())
             .build();
+    activeDirectoryClient = ActiveDirectoryClient.fromConfiguration();
+    siteCollectionExecutor = SiteCollectionExecutor.fromConfiguration();
+    pagePrefetcher = PagePrefetcher.fromConfiguration();
+    if (sharepointConfiguration.isIncrementalGroupSync()) {
+      groupsBySiteCollection =
+          CacheBuilder.newBuilder()
+              .maximumWeight(sharepointConfiguration.getGroupCacheMaxGroups())
+              .weigher((String siteUrl, List<IdentityGroup> groups) -> groups.size())
+              .build();
+    }
     siteConnectorFactory =
         siteConnectorFactoryBuilder
             .setRequestContext(requestContext)
             .setXmlValidation(sharepointConfiguration.isPerformXmlValidation())
-            .setActiveDirectoryClient(ActiveDirectoryClient.fromConfiguration())
+            .setActiveDirectoryClient(activeDirectoryClient)
             .setReferenceIdentitySourceConfiguration(
                 sharepointConfiguration.getReferenceIdentitySourceConfiguration())
             .setSharePointDeploymentType(sharepointConfiguration.getSharePointDeploymentType())
+            .setThrottle(throttle)
             .build();
   }
 
@@ -134,56 +172,228 @@ class SharePointIdentityRepository implements Repository {
   @Override
   public CheckpointCloseableIterable<IdentityGroup> listGroups(byte[] checkpoint)
       throws IOException {
+    SharePointIdentityCheckpoint previous;
+    try {
+      previous = SharePointIdentityCheckpoint.parse(checkpoint);
+    } catch (IOException | IllegalArgumentException e) {
+      log.log(Level.WARNING, "Error parsing checkpoint. Listing all groups.", e);
+      previous = SharePointIdentityCheckpoint.empty();
+    }
     return sharepointConfiguration.isSiteCollectionUrl()
-        ? getLocalGroupsSiteCollectionOnly()
-        : getLocalGroupsVirtualServer();
+        ? getLocalGroupsSiteCollectionOnly(previous)
+        : getLocalGroupsVirtualServer(previous);
   }
 
   @Override
   public void close() {
     MoreExecutors.shutdownAndAwaitTermination(scheduledExecutorService, 2, TimeUnit.SECONDS);
+    activeDirectoryClient.ifPresent(ActiveDirectoryClient::close);
+    if (siteCollectionExecutor != null) {
+      siteCollectionExecutor.shutdown();
+    }
+    if (pagePrefetcher != null) {
+      pagePrefetcher.shutdown();
+    }
   }
 
-  private CheckpointCloseableIterable<IdentityGroup> getLocalGroupsSiteCollectionOnly()
-      throws IOException {
+  private CheckpointCloseableIterable<IdentityGroup> getLocalGroupsSiteCollectionOnly(
+      SharePointIdentityCheckpoint previous) throws IOException {
     SiteConnector scConnector = checkNotNull(getSiteConnectorForSiteCollectionOnly());
-    return new CheckpointCloseableIterableImpl.Builder<IdentityGroup>(
-            scConnector.getSharePointGroups(repositoryContext))
+    Map<String, SiteCollectionToken> pageTokens = new HashMap<>();
+    List<IdentityGroup> groups = getSiteCollectionGroups(scConnector, previous, pageTokens);
+    SharePointIdentityCheckpoint checkpoint = previous.nextPage(null, pageTokens, false);
+    retainGroupsOf(checkpoint);
+    return new CheckpointCloseableIterableImpl.Builder<IdentityGroup>(groups)
+        .setCheckpoint(checkpoint.encodePayload())
+        .setHasMore(false)
         .build();
   }
 
-  private CheckpointCloseableIterable<IdentityGroup> getLocalGroupsVirtualServer()
-      throws IOException {
+  /**
+   * Returns the groups of one content database per call, in content database ID order, so that
+   * groups of the whole virtual server are never held at once. Groups of the site collections of
+   * the content database are listed in parallel. The checkpoint records the last content database
+   * listed and has more is set until all content databases are listed.
+   */
+  private CheckpointCloseableIterable<IdentityGroup> getLocalGroupsVirtualServer(
+      SharePointIdentityCheckpoint previous) throws IOException {
     SiteConnector vsConnector = checkNotNull(getSiteConnectorForVirtualServer());
     VirtualServer vs = vsConnector.getSiteDataClient().getContentVirtualServer();
-    List<IdentityGroup> allGroups = new ArrayList<>();
+    TreeMap<String, ContentDatabases.ContentDatabase> contentDatabases = new TreeMap<>();
     for (ContentDatabases.ContentDatabase cdcd : vs.getContentDatabases().getContentDatabase()) {
-      ContentDatabase cd;
+      contentDatabases.put(cdcd.getID(), cdcd);
+    }
+    String lastContentDatabaseId = previous.getLastContentDatabaseId();
+    Map.Entry<String, ContentDatabases.ContentDatabase> next =
+        lastContentDatabaseId == null
+            ? contentDatabases.firstEntry()
+            : contentDatabases.higherEntry(lastContentDatabaseId);
+    Map<String, SiteCollectionToken> pageTokens = new ConcurrentHashMap<>();
+    List<IdentityGroup> groups =
+        next == null
+            ? Collections.emptyList()
+            : getSiteCollectionsGroups(
+                getContentDatabaseSiteCollections(vsConnector, next.getKey()),
+                previous,
+                pageTokens);
+    boolean hasMore = next != null && contentDatabases.higherKey(next.getKey()) != null;
+    SharePointIdentityCheckpoint checkpoint =
+        previous.nextPage(next == null ? null : next.getKey(), pageTokens, hasMore);
+    if (!hasMore) {
+      retainGroupsOf(checkpoint);
+    }
+    return new CheckpointCloseableIterableImpl.Builder<IdentityGroup>(groups)
+        .setCheckpoint(checkpoint.encodePayload())
+        .setHasMore(hasMore)
+        .build();
+  }
+
+  /** Returns the groups of {@code siteCollections}, listed by {@link SiteCollectionExecutor}. */
+  private List<IdentityGroup> getSiteCollectionsGroups(
+      List<SiteConnector> siteCollections,
+      SharePointIdentityCheckpoint previous,
+      Map<String, SiteCollectionToken> pageTokens)
+      throws IOException {
+    SiteCollectionExecutor.Results<List<IdentityGroup>> results =
+        siteCollectionExecutor.iterate(
+            siteCollections,
+            SharePointIdentityRepository::getHost,
+            scConnector -> getSiteCollectionGroups(scConnector, previous, pageTokens));
+    List<IdentityGroup> groups = new ArrayList<>();
+    try {
+      results.forEachRemaining(groups::addAll);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      results.cancel();
+    }
+    return groups;
+  }
+
+  /** Returns connectors for the site collections of a content database. */
+  private List<SiteConnector> getContentDatabaseSiteCollections(
+      SiteConnector vsConnector, String contentDatabaseId) throws IOException {
+    ContentDatabase cd;
+    try {
+      cd = vsConnector.getSiteDataClient().getContentContentDatabase(contentDatabaseId, true);
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Failed to get content database: " + contentDatabaseId, ex);
+      return Collections.emptyList();
+    }
+    if (cd.getSites() == null) {
+      return Collections.emptyList();
+    }
+    List<SiteConnector> siteCollections = new ArrayList<>();
+    for (Sites.Site siteListing : cd.getSites().getSite()) {
+      String siteString = vsConnector.encodeDocId(siteListing.getURL());
+      siteString = getCanonicalUrl(siteString);
+      SharePointUrl sharePointSiteUrl;
       try {
-        cd = vsConnector.getSiteDataClient().getContentContentDatabase(cdcd.getID(), true);
-      } catch (IOException ex) {
-        log.log(Level.WARNING, "Failed to get content database: " + cdcd.getID(), ex);
+        sharePointSiteUrl = buildSharePointUrl(siteString);
+        ntlmAuthenticator.addPermitForHost(sharePointSiteUrl.toURL());
+      } catch (URISyntaxException e) {
+        log.log(Level.WARNING, "Error parsing site url", e);
         continue;
       }
-      if (cd.getSites() == null) {
-        continue;
+      siteCollections.add(getSiteConnector(siteString, siteString));
+    }
+    return siteCollections;
+  }
+
+  /**
+   * Returns the groups of a site collection. In incremental mode, groups listed by the previous
+   * traversal are reused if the change log of the site collection has no group, user or security
+   * changes since the change token in {@code previous}. Records the change token the returned
+   * groups are current as of in {@code pageTokens}.
+   */
+  private List<IdentityGroup> getSiteCollectionGroups(
+      SiteConnector scConnector,
+      SharePointIdentityCheckpoint previous,
+      Map<String, SiteCollectionToken> pageTokens)
+      throws IOException {
+    String siteUrl = scConnector.getSiteUrl();
+    SiteCollectionToken token = previous.getToken(siteUrl);
+    List<IdentityGroup> cached = groupsBySiteCollection.getIfPresent(siteUrl);
+    if (sharepointConfiguration.isIncrementalGroupSync() && token != null && cached != null) {
+      Optional<String> unchangedToken = getChangeTokenIfGroupsUnchanged(scConnector, token);
+      if (unchangedToken.isPresent()) {
+        log.log(Level.FINE, "No group changes for site collection {0}", siteUrl);
+        pageTokens.put(siteUrl, new SiteCollectionToken(token.getId(), unchangedToken.get()));
+        return cached;
       }
-      for (Sites.Site siteListing : cd.getSites().getSite()) {
-        String siteString = vsConnector.encodeDocId(siteListing.getURL());
-        siteString = getCanonicalUrl(siteString);
-        SharePointUrl sharePointSiteUrl;
-        try {
-          sharePointSiteUrl = buildSharePointUrl(siteString);
-          ntlmAuthenticator.addPermitForHost(sharePointSiteUrl.toURL());
-        } catch (URISyntaxException e) {
-          log.log(Level.WARNING, "Error parsing site url", e);
-          continue;
+    }
+    Site site = scConnector.getSiteDataClient().getContentSite();
+    List<IdentityGroup> groups = scConnector.getSharePointGroups(repositoryContext, site);
+    pageTokens.put(
+        siteUrl,
+        new SiteCollectionToken(site.getMetadata().getID(), site.getMetadata().getChangeId()));
+    if (sharepointConfiguration.isIncrementalGroupSync()) {
+      groupsBySiteCollection.put(siteUrl, groups);
+    }
+    return groups;
+  }
+
+  /**
+   * Returns the change token at the end of the change log of a site collection if no change since
+   * {@code token} can affect its groups. Returns {@link Optional#empty} otherwise, including when
+   * the change log can not be read.
+   */
+  private Optional<String> getChangeTokenIfGroupsUnchanged(
+      SiteConnector scConnector, SiteCollectionToken token) {
+    try (PrefetchingPaginator<SPSite, String> changes =
+        pagePrefetcher.prefetch(
+            scConnector
+                .getSiteDataClient()
+                .getChangesSPSite(token.getId(), token.getChangeToken()))) {
+      SPSite change;
+      while ((change = changes.next()) != null) {
+        if (hasGroupChanges(change)) {
+          return Optional.empty();
         }
-        SiteConnector scConnector = getSiteConnector(siteString, siteString);
-        allGroups.addAll(scConnector.getSharePointGroups(repositoryContext));
       }
+      return Optional.ofNullable(changes.getCursor());
+    } catch (IOException e) {
+      log.log(
+          Level.WARNING,
+          "Error reading changes for site collection " + scConnector.getSiteUrl()
+              + ". Listing all its groups.",
+          e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Returns true if site collection groups or users may have changed. As for the member ID mapping
+   * of the content connector, these show up as site collection changes or web security updates.
+   */
+  private static boolean hasGroupChanges(SPSite change) {
+    if (!"Unchanged".equals(change.getChange())
+        || change.getUpdateSecurity() == TrueFalseType.TRUE) {
+      return true;
     }
-    return new CheckpointCloseableIterableImpl.Builder<IdentityGroup>(allGroups).build();
+    List<SPWeb> webs = change.getSPWeb();
+    if (webs == null) {
+      return false;
+    }
+    for (SPWeb web : webs) {
+      if (web.getUpdateSecurity() == TrueFalseType.TRUE) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String getHost(SiteConnector scConnector) {
+    try {
+      return new URL(scConnector.getSiteUrl()).getHost();
+    } catch (MalformedURLException e) {
+      return scConnector.getSiteUrl();
+    }
+  }
+
+  /** Drops cached groups of site collections which were not listed by a complete traversal. */
+  private void retainGroupsOf(SharePointIdentityCheckpoint checkpoint) {
+    groupsBySiteCollection.asMap().keySet().retainAll(checkpoint.getTokens().keySet());
   }
 
   private SiteConnector getSiteConnectorForSiteCollectionOnly() throws IOException {
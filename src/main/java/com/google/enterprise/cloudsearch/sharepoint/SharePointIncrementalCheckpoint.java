@@ -23,21 +23,43 @@ import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Key;
 import com.google.api.client.util.Value;
-import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-/** Object for holding SharePoint change tokens. */
+/**
+ * Object for holding SharePoint change tokens.
+ *
+ * <p>Version 2 checkpoints are encoded as compact JSON, GZIP compressed once larger than {@link
+ * #COMPRESSION_THRESHOLD} bytes, and may hold change tokens for individual site collections of a
+ * content database, for site collections whose changes failed to process. Checkpoints without a
+ * version are version 1, encoded as pretty printed JSON, and are still parsed.
+ */
 public class SharePointIncrementalCheckpoint extends GenericJson {
   private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
 
+  static final int CURRENT_VERSION = 2;
+  /** Encoded JSON size in bytes above which payloads are compressed. */
+  static final int COMPRESSION_THRESHOLD = 1024;
+
+  @Key private Integer version;
   @Key private ChangeObjectType objectType;
   @Key private Map<String, String> tokens;
+  @Key private Map<String, Map<String, String>> siteTokens;
 
   public SharePointIncrementalCheckpoint() {
     super();
@@ -46,8 +68,10 @@ public class SharePointIncrementalCheckpoint extends GenericJson {
 
   private SharePointIncrementalCheckpoint(Builder builder) {
     super();
+    this.version = CURRENT_VERSION;
     this.objectType = builder.objectType;
-    this.tokens = ImmutableMap.copyOf(builder.tokens);
+    this.tokens = ImmutableSortedMap.copyOf(builder.tokens);
+    this.siteTokens = builder.siteTokens.isEmpty() ? null : copyOf(builder.siteTokens);
     setFactory(JSON_FACTORY);
   }
 
@@ -68,7 +92,8 @@ public class SharePointIncrementalCheckpoint extends GenericJson {
 
   /** Builder object for creating {@link SharePointIncrementalCheckpoint} */
   public static class Builder {
-    private final Map<String, String> tokens = new HashMap<>();
+    private final Map<String, String> tokens = new TreeMap<>();
+    private final Map<String, Map<String, String>> siteTokens = new TreeMap<>();
     private final ChangeObjectType objectType;
 
     Builder(ChangeObjectType changeObjectType) {
@@ -80,22 +105,48 @@ public class SharePointIncrementalCheckpoint extends GenericJson {
       return this;
     }
 
+    /**
+     * Adds change token of {@code objectId} to process changes of site collection {@code siteId}
+     * from, independently of the change token of {@code objectId} itself.
+     */
+    Builder addSiteChangeToken(String objectId, String siteId, String changeToken) {
+      siteTokens.computeIfAbsent(objectId, k -> new TreeMap<>()).put(siteId, changeToken);
+      return this;
+    }
+
     SharePointIncrementalCheckpoint build() {
       return new SharePointIncrementalCheckpoint(this);
     }
   }
 
   private static SharePointIncrementalCheckpoint parse(String payloadString) throws IOException {
-    if (Strings.isNullOrEmpty(payloadString)) {
+    if (payloadString.isEmpty()) {
       return null;
     }
-    return JSON_FACTORY.fromString(payloadString, SharePointIncrementalCheckpoint.class);
+    SharePointIncrementalCheckpoint parsed =
+        JSON_FACTORY.fromString(payloadString, SharePointIncrementalCheckpoint.class);
+    if (parsed.version != null && (parsed.version < 1 || parsed.version > CURRENT_VERSION)) {
+      throw new IOException("Unsupported checkpoint version " + parsed.version);
+    }
+    // Sorted, for diff to merge token maps.
+    if (parsed.tokens != null) {
+      parsed.tokens = ImmutableSortedMap.copyOf(parsed.tokens);
+    }
+    if (parsed.siteTokens != null) {
+      parsed.siteTokens = copyOf(parsed.siteTokens);
+    }
+    return parsed;
   }
 
   static SharePointIncrementalCheckpoint parse(byte[] payload) throws IOException {
     if (payload == null) {
       return null;
     }
+    if (isCompressed(payload)) {
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(payload))) {
+        payload = ByteStreams.toByteArray(in);
+      }
+    }
     SharePointIncrementalCheckpoint parsed = parse(new String(payload, UTF_8));
     if (parsed == null || !parsed.isValid()) {
       return null;
@@ -104,57 +155,95 @@ public class SharePointIncrementalCheckpoint extends GenericJson {
   }
 
   byte[] encodePayload() throws IOException {
-    return this.toPrettyString().getBytes(UTF_8);
+    byte[] json = JSON_FACTORY.toByteArray(this);
+    if (json.length <= COMPRESSION_THRESHOLD) {
+      return json;
+    }
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(json.length / 4);
+    try (OutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(json);
+    }
+    return compressed.toByteArray();
+  }
+
+  /** Whether {@code payload} starts with the GZIP magic number, which JSON text never does. */
+  private static boolean isCompressed(byte[] payload) {
+    return payload.length >= 2
+        && payload[0] == (byte) GZIPInputStream.GZIP_MAGIC
+        && payload[1] == (byte) (GZIPInputStream.GZIP_MAGIC >> 8);
+  }
+
+  private static ImmutableSortedMap<String, Map<String, String>> copyOf(
+      Map<String, Map<String, String>> siteTokens) {
+    ImmutableSortedMap.Builder<String, Map<String, String>> copy =
+        ImmutableSortedMap.naturalOrder();
+    for (Map.Entry<String, Map<String, String>> entry : siteTokens.entrySet()) {
+      copy.put(entry.getKey(), ImmutableSortedMap.copyOf(entry.getValue()));
+    }
+    return copy.build();
+  }
+
+  int getVersion() {
+    return version == null ? 1 : version;
   }
 
   Map<String, String> getTokens() {
     return tokens;
   }
 
+  /** Returns change tokens of site collections, by object id then site collection id. */
+  Map<String, Map<String, String>> getSiteTokens() {
+    return siteTokens == null ? ImmutableSortedMap.of() : siteTokens;
+  }
+
   ChangeObjectType getObjectType() {
     return objectType;
   }
 
+  /** Compares object ids and their change tokens in one pass over both sorted token maps. */
   Map<DiffKind, Set<String>> diff(SharePointIncrementalCheckpoint other) {
-    Set<String> added =
-        other
-            .getTokens()
-            .keySet()
-            .stream()
-            .filter(e -> !this.tokens.containsKey(e))
-            .collect(Collectors.toSet());
-    Set<String> removed =
-        this.getTokens()
-            .keySet()
-            .stream()
-            .filter(e -> !other.tokens.containsKey(e))
-            .collect(Collectors.toSet());
-    Set<String> updated =
-        this.getTokens()
-            .keySet()
-            .stream()
-            .filter(
-                e ->
-                    other.tokens.containsKey(e)
-                        && !Objects.equals(tokens.get(e), other.tokens.get(e)))
-            .collect(Collectors.toSet());
-    Set<String> notModified =
-        this.getTokens()
-            .keySet()
-            .stream()
-            .filter(
-                e ->
-                    other.tokens.containsKey(e)
-                        && Objects.equals(tokens.get(e), other.tokens.get(e)))
-            .collect(Collectors.toSet());
+    ImmutableSortedSet.Builder<String> added = ImmutableSortedSet.naturalOrder();
+    ImmutableSortedSet.Builder<String> removed = ImmutableSortedSet.naturalOrder();
+    ImmutableSortedSet.Builder<String> updated = ImmutableSortedSet.naturalOrder();
+    ImmutableSortedSet.Builder<String> notModified = ImmutableSortedSet.naturalOrder();
+    Iterator<Map.Entry<String, String>> these = sorted(this.tokens).entrySet().iterator();
+    Iterator<Map.Entry<String, String>> others = sorted(other.tokens).entrySet().iterator();
+    Map.Entry<String, String> mine = these.hasNext() ? these.next() : null;
+    Map.Entry<String, String> theirs = others.hasNext() ? others.next() : null;
+    while (mine != null || theirs != null) {
+      int order =
+          mine == null ? 1 : theirs == null ? -1 : mine.getKey().compareTo(theirs.getKey());
+      if (order < 0) {
+        removed.add(mine.getKey());
+        mine = these.hasNext() ? these.next() : null;
+      } else if (order > 0) {
+        added.add(theirs.getKey());
+        theirs = others.hasNext() ? others.next() : null;
+      } else {
+        if (Objects.equals(mine.getValue(), theirs.getValue())) {
+          notModified.add(mine.getKey());
+        } else {
+          updated.add(mine.getKey());
+        }
+        mine = these.hasNext() ? these.next() : null;
+        theirs = others.hasNext() ? others.next() : null;
+      }
+    }
     return ImmutableMap.<DiffKind, Set<String>>builder()
-        .put(DiffKind.ADD, added)
-        .put(DiffKind.REMOVE, removed)
-        .put(DiffKind.MODIFIED, updated)
-        .put(DiffKind.NOT_MODIFIED, notModified)
+        .put(DiffKind.ADD, added.build())
+        .put(DiffKind.REMOVE, removed.build())
+        .put(DiffKind.MODIFIED, updated.build())
+        .put(DiffKind.NOT_MODIFIED, notModified.build())
         .build();
   }
 
+  /** Returns {@code tokens} in object id order, copying it only if it isn't sorted already. */
+  private static SortedMap<String, String> sorted(Map<String, String> tokens) {
+    return tokens instanceof ImmutableSortedMap
+        ? (SortedMap<String, String>) tokens
+        : new TreeMap<>(tokens);
+  }
+
   boolean isValid() {
     return objectType != null && tokens != null && !tokens.isEmpty();
   }
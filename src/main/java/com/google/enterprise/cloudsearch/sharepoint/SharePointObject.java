@@ -27,6 +27,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Optional;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -72,13 +73,32 @@ public class SharePointObject extends GenericJson {
   }
 
   public SharePointObject(Builder builder) {
-    this.objectType = builder.objectType;
-    this.url = builder.url;
-    this.objectId = builder.objectId;
-    this.siteId = builder.siteId;
-    this.webId = builder.webId;
-    this.listId = builder.listId;
-    this.itemId = builder.itemId;
+    this(
+        builder.objectType,
+        builder.url,
+        builder.objectId,
+        builder.siteId,
+        builder.webId,
+        builder.listId,
+        builder.itemId);
+  }
+
+  /** Constructor for {@link CompactPayloadFormat} parsing. */
+  SharePointObject(
+      String objectType,
+      String url,
+      String objectId,
+      String siteId,
+      String webId,
+      String listId,
+      String itemId) {
+    this.objectType = objectType;
+    this.url = url;
+    this.objectId = objectId;
+    this.siteId = siteId;
+    this.webId = webId;
+    this.listId = listId;
+    this.itemId = itemId;
     setFactory(JSON_FACTORY);
   }
 
@@ -87,14 +107,30 @@ public class SharePointObject extends GenericJson {
     return JSON_FACTORY.fromString(payloadString, SharePointObject.class);
   }
 
+  /** Parses payload encoded by {@link #encodePayload}, or by earlier versions as JSON. */
   static SharePointObject parse(byte[] payload) throws IOException {
     if (payload == null) {
       return new SharePointObject();
     }
+    if (CompactPayloadFormat.isCompact(payload)) {
+      return CompactPayloadFormat.decode(payload);
+    }
     return parse(new String(payload, UTF_8));
   }
 
+  /**
+   * Encodes payload in {@link CompactPayloadFormat}, or as JSON if this object can't be
+   * represented in it.
+   */
   byte[] encodePayload() throws IOException {
+    Optional<byte[]> compact = CompactPayloadFormat.encode(this);
+    if (compact.isPresent()) {
+      return compact.get();
+    }
+    return encodeJsonPayload();
+  }
+
+  byte[] encodeJsonPayload() throws IOException {
     return this.toPrettyString().getBytes(UTF_8);
   }
 
@@ -23,6 +23,7 @@ import static com.google.enterprise.cloudsearch.sdk.indexing.IndexingItemBuilder
 import com.google.api.client.http.AbstractInputStreamContent;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.HttpMediaType;
+import com.google.api.client.json.GenericJson;
 import com.google.api.client.util.DateTime;
 import com.google.api.client.util.Strings;
 import com.google.api.services.cloudsearch.v1.model.Item;
@@ -35,9 +36,7 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Multimap;
-import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterableImpl;
@@ -54,6 +53,7 @@ import com.google.enterprise.cloudsearch.sdk.indexing.IncludeExcludeFilter;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingItemBuilder;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingItemBuilder.FieldOrValue;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingItemBuilder.ItemType;
+import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService.ContentFormat;
 import com.google.enterprise.cloudsearch.sdk.indexing.StructuredData;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.ApiOperation;
@@ -62,12 +62,15 @@ import com.google.enterprise.cloudsearch.sdk.indexing.template.PushItems;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.Repository;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.RepositoryContext;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.RepositoryDoc;
+import com.google.enterprise.cloudsearch.sharepoint.PagePrefetcher.PrefetchingPaginator;
+import com.google.enterprise.cloudsearch.sharepoint.RareModificationCache.CachedList;
+import com.google.enterprise.cloudsearch.sharepoint.RareModificationCache.CachedVirtualServer;
 import com.google.enterprise.cloudsearch.sharepoint.SharePointIncrementalCheckpoint.ChangeObjectType;
 import com.google.enterprise.cloudsearch.sharepoint.SharePointIncrementalCheckpoint.DiffKind;
 import com.google.enterprise.cloudsearch.sharepoint.SiteDataClient.CursorPaginator;
-import com.google.enterprise.cloudsearch.sharepoint.SiteDataClient.Paginator;
+import com.google.enterprise.cloudsearch.sharepoint.UrlResolutionCache.ListItemLocation;
+import com.google.enterprise.cloudsearch.sharepoint.UrlResolutionCache.SiteAndWeb;
 import com.microsoft.schemas.sharepoint.soap.ContentDatabase;
-import com.microsoft.schemas.sharepoint.soap.ContentDatabases;
 import com.microsoft.schemas.sharepoint.soap.ItemData;
 import com.microsoft.schemas.sharepoint.soap.Lists;
 import com.microsoft.schemas.sharepoint.soap.SPContentDatabase;
@@ -98,6 +101,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -105,20 +110,21 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 import javax.xml.namespace.QName;
 import javax.xml.ws.Holder;
-import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -185,9 +191,9 @@ class SharePointRepository implements Repository {
 
   private static final String OWS_ITEM_TITLE = "ows_Title";
   private static final String OWS_ITEM_OBJECT_ID = "ows_UniqueId";
+  /** List item id within its list. */
+  private static final String OWS_ID_ATTRIBUTE = "ows_ID";
 
-  private static final Pattern METADATA_ESCAPE_PATTERN = Pattern.compile("_x([0-9a-f]{4})_");
-  private static final Pattern ALTERNATIVE_VALUE_PATTERN = Pattern.compile("^\\d+;#");
   private static final Pattern GUID_PATTERN =
       Pattern.compile(
           "[0-9a-fA-F]{8}\\-[0-9a-fA-F]{4}\\-[0-9a-fA-F]{4}\\-[0-9a-fA-F]{4}\\-[0-9a-fA-F]{12}");
@@ -307,7 +313,19 @@ class SharePointRepository implements Repository {
   private SharePointIncrementalCheckpoint initIncrementalCheckpoint;
   private ContentTemplate listItemContentTemplate;
   private HtmlContentFilter htmlContentFilter;
+  private FileContentSpooler fileContentSpooler;
   private IncludeExcludeFilter includeExcludeFilter;
+  private RareModificationCache.Builder rareModificationCacheBuilder;
+  /** Created on first use, since it needs the Virtual Server SiteDataClient. */
+  private volatile RareModificationCache rareModificationCache;
+  private final ReentrantLock rareModificationCacheLock = new ReentrantLock();
+  private UrlResolutionCache urlResolutionCache;
+  private MetadataExtractionPlan.PlanCache metadataExtractionPlans;
+  private ContentDatabaseExecutor contentDatabaseExecutor;
+  private ItemFetchExecutor itemFetchExecutor;
+  private PagePrefetcher pagePrefetcher;
+  private WebServiceMetrics webServiceMetrics;
+  private Optional<ActiveDirectoryClient> activeDirectoryClient = Optional.empty();
 
   SharePointRepository() {
     this(
@@ -332,6 +350,7 @@ class SharePointRepository implements Repository {
   public void init(RepositoryContext repositoryContext) throws RepositoryException {
     checkState(Configuration.isInitialized(), "config should be initailized");
     sharepointConfiguration = SharePointConfiguration.fromConfiguration();
+    HttpClientImpl.configureConnectionPool(sharepointConfiguration.getMaxConnectionsPerHost());
     String username = sharepointConfiguration.getUserName();
     String password = sharepointConfiguration.getPassword();
     ntlmAuthenticator = new NtlmAuthenticator(username, password);
@@ -359,6 +378,7 @@ class SharePointRepository implements Repository {
             .build();
       }
     }
+    AdaptiveThrottle throttle = AdaptiveThrottle.fromConfiguration();
     SharePointRequestContext requestContext =
         new SharePointRequestContext.Builder()
             .setAuthenticationHandler(formsAuthenticationHandler)
@@ -371,27 +391,53 @@ class SharePointRepository implements Repository {
             .setSharePointRequestContext(requestContext)
             .setMaxRedirectsAllowed(20)
             .setPerformBrowserLeniency(sharepointConfiguration.isPerformBrowserLeniency())
+            .setThrottle(throttle)
             .build();
-    Optional<ActiveDirectoryClient> activeDirectorClient;
     try {
-      activeDirectorClient = ActiveDirectoryClient.fromConfiguration();
+      activeDirectoryClient = ActiveDirectoryClient.fromConfiguration();
     } catch (IOException e) {
       throw new StartupException("Unable to create instance of ActiveDirectoryClient", e);
     }
-    siteConnectorFactory =
+    webServiceMetrics = WebServiceMetrics.fromConfiguration();
+    webServiceMetrics.registerMBean();
+    int summaryLogIntervalSecs = webServiceMetrics.getSummaryLogIntervalSecs();
+    if (summaryLogIntervalSecs > 0) {
+      scheduledExecutorService.scheduleAtFixedRate(
+          webServiceMetrics::logSummary,
+          summaryLogIntervalSecs,
+          summaryLogIntervalSecs,
+          TimeUnit.SECONDS);
+    }
+    SiteConnectorFactoryImpl siteConnectorFactoryImpl =
         siteConnectorFactoryBuilder
             .setRequestContext(requestContext)
             .setXmlValidation(sharepointConfiguration.isPerformXmlValidation())
-            .setActiveDirectoryClient(activeDirectorClient)
+            .setActiveDirectoryClient(activeDirectoryClient)
             .setReferenceIdentitySourceConfiguration(
                 sharepointConfiguration.getReferenceIdentitySourceConfiguration())
             .setStripDomainInUserPrincipals(sharepointConfiguration.isStripDomainInUserPrincipals())
             .setSharePointDeploymentType(sharepointConfiguration.getSharePointDeploymentType())
+            .setMemberIdMappingCacheExpirationSecs(
+                sharepointConfiguration.getMemberIdMappingCacheExpirationSecs())
+            .setSiteUserMappingCacheExpirationSecs(
+                sharepointConfiguration.getSiteUserMappingCacheExpirationSecs())
+            .setWebServiceMetricsSink(webServiceMetrics)
+            .setThrottle(throttle)
             .build();
+    webServiceMetrics.registerCache(siteConnectorFactoryImpl.getMemberIdMappingCache());
+    webServiceMetrics.registerCache(siteConnectorFactoryImpl.getSiteUserMappingCache());
+    siteConnectorFactory = siteConnectorFactoryImpl;
     initIncrementalCheckpoint = computeIncrementalCheckpoint();
     listItemContentTemplate = ContentTemplate.fromConfiguration("sharepointItem");
     htmlContentFilter = HtmlContentFilter.fromConfiguration();
+    fileContentSpooler = FileContentSpooler.fromConfiguration();
     includeExcludeFilter = IncludeExcludeFilter.fromConfiguration();
+    rareModificationCacheBuilder = RareModificationCache.Builder.fromConfiguration();
+    urlResolutionCache = UrlResolutionCache.fromConfiguration();
+    metadataExtractionPlans = MetadataExtractionPlan.PlanCache.fromConfiguration();
+    contentDatabaseExecutor = ContentDatabaseExecutor.fromConfiguration();
+    itemFetchExecutor = ItemFetchExecutor.fromConfiguration();
+    pagePrefetcher = PagePrefetcher.fromConfiguration();
     if (repositoryContext.getDefaultAclMode() == DefaultAclMode.FALLBACK) {
       log.log(Level.WARNING, "The default ACL in FALLBACK mode will be ignored.");
     }
@@ -489,21 +535,7 @@ class SharePointRepository implements Repository {
       CursorPaginator<SPSite, String> changes = scConnector
           .getSiteDataClient()
           .getChangesSPSite(siteCollectionGuid, changeToken);
-      PushItems.Builder modifiedItems = new PushItems.Builder();
-      SPSite change;
-      while ((change = changes.next()) != null) {
-        getModifiedDocIdsSite(change, modifiedItems);
-        changeToken = changes.getCursor();
-      }
-      SharePointIncrementalCheckpoint updatedCheckpoint =
-          new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.SITE_COLLECTION)
-              .addChangeToken(siteCollectionGuid, changeToken)
-              .build();
-      return new CheckpointCloseableIterableImpl.Builder<ApiOperation>(
-              Collections.singleton(modifiedItems.build()))
-          .setCheckpoint(updatedCheckpoint.encodePayload())
-          .setHasMore(false)
-          .build();
+      return getChangesSiteCollection(siteCollectionGuid, changes, changeToken);
     }
 
     // This is a case where we try to handle change in configuration where connector is pointing to
@@ -522,11 +554,25 @@ class SharePointRepository implements Repository {
     String changeToken = initIncrementalCheckpoint.getTokens().get(siteCollectionGuid);
     CursorPaginator<SPSite, String> changes =
         scConnector.getSiteDataClient().getChangesSPSite(siteCollectionGuid, changeToken);
-    PushItems.Builder modifiedItems = new PushItems.Builder();
-    SPSite change;
-    while ((change = changes.next()) != null) {
-      getModifiedDocIdsSite(change, modifiedItems);
-      changeToken = changes.getCursor();
+    return getChangesSiteCollection(siteCollectionGuid, changes, changeToken);
+  }
+
+  /**
+   * Returns push items for changes in {@code changes}, stopping once the batch is full. The
+   * returned checkpoint holds the change token reached, and has more is set if the change log
+   * wasn't exhausted.
+   */
+  private CheckpointCloseableIterable<ApiOperation> getChangesSiteCollection(
+      String siteCollectionGuid, CursorPaginator<SPSite, String> changes, String changeToken)
+      throws IOException {
+    PushItemsBatch modifiedItems =
+        new PushItemsBatch(sharepointConfiguration.getChangesMaxBatchSize());
+    try (PrefetchingPaginator<SPSite, String> pages = pagePrefetcher.prefetch(changes)) {
+      SPSite change;
+      while (!modifiedItems.isFull() && (change = pages.next()) != null) {
+        getModifiedDocIdsSite(change, modifiedItems);
+        changeToken = pages.getCursor();
+      }
     }
     SharePointIncrementalCheckpoint updatedCheckpoint =
         new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.SITE_COLLECTION)
@@ -535,14 +581,16 @@ class SharePointRepository implements Repository {
     return new CheckpointCloseableIterableImpl.Builder<ApiOperation>(
             Collections.singleton(modifiedItems.build()))
         .setCheckpoint(updatedCheckpoint.encodePayload())
-        .setHasMore(false)
+        .setHasMore(modifiedItems.isFull())
         .build();
   }
 
-  private void getModifiedDocIdsSite(SPSite changes, PushItems.Builder pushItems)
+  private void getModifiedDocIdsSite(SPSite changes, PushItemsBatch pushItems)
       throws IOException {
     if (isModified(changes.getChange())) {
       String encodedDocId = getCanonicalUrl(changes.getServerUrl() + changes.getDisplayUrl());
+      // Site collection groups or security may have changed. Cached member id mapping is stale.
+      siteConnectorFactory.invalidateMemberIdMapping(encodedDocId);
       SharePointObject siteCollection =
           new SharePointObject.Builder(SharePointObject.SITE_COLLECTION)
               .setUrl(encodedDocId)
@@ -563,17 +611,21 @@ class SharePointRepository implements Repository {
     }
   }
 
-  private void getModifiedDocIdsWeb(SPWeb changes, PushItems.Builder pushItems) throws IOException {
+  private void getModifiedDocIdsWeb(SPWeb changes, PushItemsBatch pushItems) throws IOException {
     if (isModified(changes.getChange())) {
       InternalUrl internalUrl = new InternalUrl(changes.getInternalUrl());
       String encodedDocId = getCanonicalUrl(changes.getServerUrl() + changes.getDisplayUrl());
-      boolean isSiteCollection;
+      SiteConnector siteConnector;
       try {
-        SiteConnector siteConnector = getConnectorForDocId(encodedDocId);
-        isSiteCollection = siteConnector.isWebSiteCollection();
+        siteConnector = getConnectorForDocId(encodedDocId);
       } catch (URISyntaxException e) {
         throw new IOException(e);
       }
+      boolean isSiteCollection = siteConnector.isWebSiteCollection();
+      if (changes.getUpdateSecurity() == TrueFalseType.TRUE) {
+        // Web users and permissions feed member id mapping for the site collection.
+        siteConnectorFactory.invalidateMemberIdMapping(siteConnector.getSiteUrl());
+      }
       SharePointObject payload =
           new SharePointObject.Builder(
                   isSiteCollection ? SharePointObject.SITE_COLLECTION : SharePointObject.WEB)
@@ -600,9 +652,13 @@ class SharePointRepository implements Repository {
 
   private void getModifiedDocIdsList(
       SPList changes,
-      PushItems.Builder pushItems)
+      PushItemsBatch pushItems)
       throws IOException {
     if (isModified(changes.getChange())) {
+      RareModificationCache cache = rareModificationCache;
+      if (cache != null) {
+        cache.invalidateList(changes.getId());
+      }
       InternalUrl internalUrl = new InternalUrl(changes.getInternalUrl());
       if (!internalUrl.siteId.isPresent() || !internalUrl.webId.isPresent()) {
         log.log(
@@ -639,7 +695,7 @@ class SharePointRepository implements Repository {
 
   private void getModifiedDocIdsListItem(
       SPListItem changes,
-      PushItems.Builder pushItems)
+      PushItemsBatch pushItems)
       throws IOException {
     if (isModified(changes.getChange())) {
       SPListItem.ListItem listItem = changes.getListItem();
@@ -674,6 +730,7 @@ class SharePointRepository implements Repository {
               changes.getId());
         } else {
           String encodedDocId = getCanonicalUrl(changes.getServerUrl() + serverUrl);
+          cacheListItemLocation(encodedDocId, internalUrl.listId.get(), data);
           SharePointObject payload =
               new SharePointObject.Builder(SharePointObject.LIST_ITEM)
                   .setListId(internalUrl.listId.get())
@@ -712,21 +769,20 @@ class SharePointRepository implements Repository {
     SharePointIncrementalCheckpoint.Builder newCheckpoint =
         new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB);
     Map<DiffKind, Set<String>> diff = previous.diff(current);
+    if (!diff.get(DiffKind.ADD).isEmpty() || !diff.get(DiffKind.REMOVE).isEmpty()) {
+      // Cached Virtual Server lists content databases.
+      invalidateCachedVirtualServer();
+    }
     Set<String> notModified = diff.get(DiffKind.NOT_MODIFIED);
     // Copy over not modified items
     for (String contentDbId : notModified) {
       newCheckpoint.addChangeToken(contentDbId, previous.getTokens().get(contentDbId));
     }
 
-    // Process changes in previously known content DBs
-    Set<String> modified = diff.get(DiffKind.MODIFIED);
-    PushItems.Builder modifiedItems = new PushItems.Builder();
-    SiteConnector vsSiteConnector = getSiteConnectorForVirtualServer();
-    for (String contentDbId : modified) {
-      newCheckpoint.addChangeToken(
-          contentDbId,
-          getModifiedDocIdsContentDb(
-              vsSiteConnector, contentDbId, previous.getTokens().get(contentDbId), modifiedItems));
+    // Change tokens to start from for previously known content DBs with changes.
+    Map<String, String> startTokens = new TreeMap<>();
+    for (String contentDbId : diff.get(DiffKind.MODIFIED)) {
+      startTokens.put(contentDbId, previous.getTokens().get(contentDbId));
     }
 
     // Process newly discovered content DBs.
@@ -741,49 +797,210 @@ class SharePointRepository implements Repository {
           initIncrementalCheckpoint.getTokens().containsKey(contentDbId)
               ? initIncrementalCheckpoint.getTokens().get(contentDbId)
               : current.getTokens().get(contentDbId);
-      newCheckpoint.addChangeToken(
-          contentDbId,
-          getModifiedDocIdsContentDb(vsSiteConnector, contentDbId, changeToken, modifiedItems));
+      startTokens.put(contentDbId, changeToken);
+    }
+
+    SiteDataClient vsSiteDataClient = getSiteConnectorForVirtualServer().getSiteDataClient();
+    PushItemsBatch modifiedItems =
+        new PushItemsBatch(sharepointConfiguration.getChangesMaxBatchSize());
+    // Site collections whose changes failed to process are retried from their own change tokens,
+    // so that one failing site collection doesn't hold back the change token of its content DB.
+    Map<String, Map<String, String>> siteTokens = new TreeMap<>();
+    for (Map.Entry<String, Map<String, String>> sites : previous.getSiteTokens().entrySet()) {
+      // Site collections of removed content DBs are dropped.
+      if (current.getTokens().containsKey(sites.getKey())) {
+        retrySiteChanges(
+            vsSiteDataClient, sites.getKey(), sites.getValue(), modifiedItems, siteTokens);
+      }
+    }
+
+    // Pages of each change log are fetched in parallel, one page per content DB at a time, then
+    // processed in content DB id order so that push items and change tokens don't depend on which
+    // content DB responded first. Stops once the batch is full, keeping the change tokens reached
+    // so far in the checkpoint.
+    Map<String, PrefetchingPaginator<SPContentDatabase, String>> paginators = new TreeMap<>();
+    for (Map.Entry<String, String> start : startTokens.entrySet()) {
+      paginators.put(
+          start.getKey(),
+          pagePrefetcher.prefetch(
+              vsSiteDataClient.getChangesContentDatabase(start.getKey(), start.getValue())));
+    }
+    Map<String, String> changeTokens = new TreeMap<>(startTokens);
+    boolean virtualServerAdded = false;
+    List<String> pending = new ArrayList<>(paginators.keySet());
+    try {
+      while (!pending.isEmpty() && !modifiedItems.isFull()) {
+        List<SPContentDatabase> pages =
+            contentDatabaseExecutor.map(
+                pending, contentDbId -> paginators.get(contentDbId).next());
+        List<String> stillPending = new ArrayList<>();
+        for (int i = 0; i < pending.size(); i++) {
+          String contentDbId = pending.get(i);
+          SPContentDatabase change = pages.get(i);
+          if (change == null) {
+            continue;
+          }
+          stillPending.add(contentDbId);
+          if (!virtualServerAdded && isModified(change.getChange())) {
+            SharePointObject vsObject =
+                new SharePointObject.Builder(SharePointObject.VIRTUAL_SERVER).build();
+            PushItem pushItem =
+                new PushItem()
+                    .encodePayload(vsObject.encodePayload())
+                    .setType(PUSH_TYPE_MODIFIED);
+            modifiedItems.addPushItem(VIRTUAL_SERVER_ID, pushItem);
+            invalidateCachedVirtualServer();
+            virtualServerAdded = true;
+          }
+          List<SPSite> changedSites = change.getSPSite();
+          if (changedSites == null) {
+            continue;
+          }
+          String pageToken = changeTokens.get(contentDbId);
+          for (SPSite site : changedSites) {
+            if (!addModifiedDocIdsSite(contentDbId, site, modifiedItems)) {
+              // Retried from this page, unless already pending from an earlier one.
+              siteTokens
+                  .computeIfAbsent(contentDbId, k -> new TreeMap<>())
+                  .putIfAbsent(site.getId(), pageToken);
+            }
+          }
+          changeTokens.put(contentDbId, paginators.get(contentDbId).getCursor());
+        }
+        pending = stillPending;
+      }
+    } finally {
+      // Discard pages fetched ahead of a full batch.
+      for (PrefetchingPaginator<SPContentDatabase, String> paginator : paginators.values()) {
+        paginator.close();
+      }
+    }
+    for (Map.Entry<String, String> changeToken : changeTokens.entrySet()) {
+      newCheckpoint.addChangeToken(changeToken.getKey(), changeToken.getValue());
+    }
+    for (Map.Entry<String, Map<String, String>> sites : siteTokens.entrySet()) {
+      for (Map.Entry<String, String> siteToken : sites.getValue().entrySet()) {
+        newCheckpoint.addSiteChangeToken(sites.getKey(), siteToken.getKey(), siteToken.getValue());
+      }
     }
 
     return new CheckpointCloseableIterableImpl.Builder<ApiOperation>(
             Collections.singleton(modifiedItems.build()))
         .setCheckpoint(newCheckpoint.build().encodePayload())
-        .setHasMore(false)
+        .setHasMore(!pending.isEmpty() || modifiedItems.isFull())
         .build();
   }
 
-  private String getModifiedDocIdsContentDb(
-      SiteConnector vsConnector,
-      String contentDb,
-      String lastChangeToken,
-      PushItems.Builder modifiedItems)
-      throws IOException {
-    CursorPaginator<SPContentDatabase, String> changesContentDatabase =
-        vsConnector.getSiteDataClient().getChangesContentDatabase(contentDb, lastChangeToken);
-    String changeToken = lastChangeToken;
-    boolean virtualServerAdded = false;
-    SPContentDatabase change;
-    while ((change = changesContentDatabase.next()) != null) {
-      if (!virtualServerAdded && isModified(change.getChange())) {
-        SharePointObject vsObject =
-            new SharePointObject.Builder(SharePointObject.VIRTUAL_SERVER).build();
-        PushItem pushItem =
-            new PushItem().encodePayload(vsObject.encodePayload()).setType(PUSH_TYPE_MODIFIED);
-        modifiedItems.addPushItem(VIRTUAL_SERVER_ID, pushItem);
-        virtualServerAdded = true;
-      }
-      List<SPSite> changedSites = change.getSPSite();
-      if (changedSites == null) {
-        continue;
+  /**
+   * Processes changes of the site collections in {@code sites} from their change tokens in the
+   * change log of content DB {@code contentDbId}, skipping changes of other site collections.
+   * Adds change tokens to {@code siteTokens} for site collections failing again, or not caught up
+   * with the change log once the batch is full. Failing to read the change log, such as for a
+   * change token no longer in it, keeps the change tokens reached so far instead of failing the
+   * batch, so that one site collection can't hold back changes of the others.
+   */
+  private void retrySiteChanges(
+      SiteDataClient siteDataClient,
+      String contentDbId,
+      Map<String, String> sites,
+      PushItemsBatch modifiedItems,
+      Map<String, Map<String, String>> siteTokens) {
+    // Site collections failing on the same change log page are retried together.
+    Map<String, Set<String>> sitesByToken = new TreeMap<>();
+    for (Map.Entry<String, String> site : sites.entrySet()) {
+      sitesByToken.computeIfAbsent(site.getValue(), k -> new TreeSet<>()).add(site.getKey());
+    }
+    for (Map.Entry<String, Set<String>> retry : sitesByToken.entrySet()) {
+      Set<String> pending = retry.getValue();
+      String changeToken = retry.getKey();
+      try (PrefetchingPaginator<SPContentDatabase, String> pages =
+          pagePrefetcher.prefetch(
+              siteDataClient.getChangesContentDatabase(contentDbId, changeToken))) {
+        while (!pending.isEmpty() && !modifiedItems.isFull()) {
+          SPContentDatabase change = pages.next();
+          if (change == null) {
+            // Caught up with the change log.
+            pending.clear();
+            break;
+          }
+          List<SPSite> changedSites = change.getSPSite();
+          if (changedSites != null) {
+            for (SPSite site : changedSites) {
+              if (site.getId() != null
+                  && pending.contains(site.getId())
+                  && !addModifiedDocIdsSite(contentDbId, site, modifiedItems)) {
+                pending.remove(site.getId());
+                siteTokens
+                    .computeIfAbsent(contentDbId, k -> new TreeMap<>())
+                    .put(site.getId(), changeToken);
+              }
+            }
+          }
+          changeToken = pages.getCursor();
+        }
+      } catch (IOException e) {
+        log.log(
+            Level.WARNING,
+            String.format(
+                "Error retrying changes of site collections %s in content DB %s from change"
+                    + " token %s",
+                pending, contentDbId, changeToken),
+            e);
+      }
+      for (String siteId : pending) {
+        siteTokens.computeIfAbsent(contentDbId, k -> new TreeMap<>()).put(siteId, changeToken);
       }
+    }
+  }
 
-      for (SPSite site : changedSites) {
-        getModifiedDocIdsSite(site, modifiedItems);
+  /**
+   * Adds push items for changes of site collection {@code site}, returning false if they failed to
+   * process and can be retried on their own.
+   */
+  private boolean addModifiedDocIdsSite(
+      String contentDbId, SPSite site, PushItemsBatch modifiedItems) throws IOException {
+    try {
+      getModifiedDocIdsSite(site, modifiedItems);
+      return true;
+    } catch (IOException e) {
+      if (site.getId() == null) {
+        throw e;
       }
-      changeToken = changesContentDatabase.getCursor();
+      log.log(
+          Level.WARNING,
+          String.format(
+              "Error processing changes of site collection %s in content DB %s",
+              site.getId(), contentDbId),
+          e);
+      return false;
+    }
+  }
+
+  /**
+   * Push items for a single {@link #getChanges} batch. The batch is full once it holds the
+   * configured maximum number of items; callers stop after the change log page being processed.
+   */
+  private static class PushItemsBatch {
+    private final PushItems.Builder builder = new PushItems.Builder();
+    private final int maxSize;
+    private int size;
+
+    PushItemsBatch(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    void addPushItem(String id, PushItem pushItem) {
+      builder.addPushItem(id, pushItem);
+      size++;
+    }
+
+    boolean isFull() {
+      return size >= maxSize;
+    }
+
+    PushItems build() {
+      return builder.build();
     }
-    return changeToken;
   }
 
   @Override
@@ -951,6 +1168,23 @@ class SharePointRepository implements Repository {
   @Override
   public void close() {
     MoreExecutors.shutdownAndAwaitTermination(scheduledExecutorService, 10, TimeUnit.SECONDS);
+    if (contentDatabaseExecutor != null) {
+      contentDatabaseExecutor.shutdown();
+    }
+    if (itemFetchExecutor != null) {
+      itemFetchExecutor.shutdown();
+    }
+    if (pagePrefetcher != null) {
+      pagePrefetcher.shutdown();
+    }
+    if (webServiceMetrics != null) {
+      webServiceMetrics.logSummary();
+      webServiceMetrics.unregisterMBean();
+    }
+    activeDirectoryClient.ifPresent(ActiveDirectoryClient::close);
+    if (fileContentSpooler != null) {
+      fileContentSpooler.close();
+    }
   }
 
   private SiteConnector getConnectorForDocId(String url) throws IOException, URISyntaxException {
@@ -974,20 +1208,25 @@ class SharePointRepository implements Repository {
       log.log(Level.WARNING, "URL {0} not white listed", docUrl);
       return null;
     }
-    String rootUrl = docUrl.getRootUrl();
-    SiteConnector rootConnector = getSiteConnector(rootUrl, rootUrl);
-    Holder<String> site = new Holder<String>();
-    Holder<String> web = new Holder<String>();
-    long result = rootConnector.getSiteDataClient().getSiteAndWeb(url, site, web);
-    if (result != 0) {
-      return null;
+    SiteAndWeb siteAndWeb = urlResolutionCache.getSiteAndWeb(url).orElse(null);
+    if (siteAndWeb == null) {
+      String rootUrl = docUrl.getRootUrl();
+      SiteConnector rootConnector = getSiteConnector(rootUrl, rootUrl);
+      Holder<String> site = new Holder<String>();
+      Holder<String> web = new Holder<String>();
+      long result = rootConnector.getSiteDataClient().getSiteAndWeb(url, site, web);
+      if (result != 0) {
+        return null;
+      }
+      siteAndWeb = new SiteAndWeb(site.value, web.value);
+      urlResolutionCache.putSiteAndWeb(url, siteAndWeb);
     }
     if (sharepointConfiguration.isSiteCollectionUrl()) {
         if (!sharepointConfiguration.getSiteCollectionsToInclude().isEmpty()) {
-            if (!sharepointConfiguration.isSiteCollectionIncluded(site.value)) {
+            if (!sharepointConfiguration.isSiteCollectionIncluded(siteAndWeb.site)) {
                 return null;
             }
-        } else if (!sharepointConfiguration.getSharePointUrl().getUrl().equals(site.value)) {
+        } else if (!sharepointConfiguration.getSharePointUrl().getUrl().equals(siteAndWeb.site)) {
             // Performing case sensitive comparison as mismatch in URL casing
             // between SharePoint Server and connector can result in broken ACL
             // inheritance chain on GSA.
@@ -999,10 +1238,10 @@ class SharePointRepository implements Repository {
                 new Object[] {url, sharepointConfiguration.getSharePointUrl()});
             return null;
         }
-    } else if (!sharepointConfiguration.isSiteCollectionIncluded(site.value)) {
+    } else if (!sharepointConfiguration.isSiteCollectionIncluded(siteAndWeb.site)) {
         return null;
     }
-    return getSiteConnector(site.value, web.value);
+    return getSiteConnector(siteAndWeb.site, siteAndWeb.web);
   }
 
   private SharePointIncrementalCheckpoint computeIncrementalCheckpoint()
@@ -1034,17 +1273,10 @@ class SharePointRepository implements Repository {
       VirtualServer vs = vsConnector.getSiteDataClient().getContentVirtualServer();
       SharePointIncrementalCheckpoint.Builder builder =
           new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB);
-      for (ContentDatabases.ContentDatabase cdcd : vs.getContentDatabases().getContentDatabase()) {
-        try {
-          ContentDatabase cd =
-              vsConnector.getSiteDataClient().getContentContentDatabase(cdcd.getID(), true);
-          builder.addChangeToken(
-              cd.getMetadata().getID(),
-              cd.getMetadata().getChangeId());
-        } catch (IOException ex) {
-          log.log(Level.WARNING, "Failed to get content database: " + cdcd.getID(), ex);
-          continue;
-        }
+      for (ContentDatabase cd : getContentDatabases(vsConnector, vs)) {
+        builder.addChangeToken(
+            cd.getMetadata().getID(),
+            cd.getMetadata().getChangeId());
       }
       return builder.build();
     } catch (IOException e) {
@@ -1063,14 +1295,7 @@ class SharePointRepository implements Repository {
       SiteConnector vsConnector = getSiteConnectorForVirtualServer();
       checkNotNull(vsConnector);
       VirtualServer vs = vsConnector.getSiteDataClient().getContentVirtualServer();
-      for (ContentDatabases.ContentDatabase cdcd : vs.getContentDatabases().getContentDatabase()) {
-        ContentDatabase cd;
-        try {
-          cd = vsConnector.getSiteDataClient().getContentContentDatabase(cdcd.getID(), true);
-        } catch (IOException ex) {
-          log.log(Level.WARNING, "Failed to get content database: " + cdcd.getID(), ex);
-          continue;
-        }
+      for (ContentDatabase cd : getContentDatabases(vsConnector, vs)) {
         if (cd.getSites() == null) {
           continue;
         }
@@ -1102,12 +1327,134 @@ class SharePointRepository implements Repository {
     }
   }
 
+  /**
+   * Fetches content databases listed in {@code vs} in parallel, in listing order. Content
+   * databases which can not be fetched are logged and skipped.
+   */
+  private List<ContentDatabase> getContentDatabases(SiteConnector vsConnector, VirtualServer vs)
+      throws IOException {
+    SiteDataClient vsSiteDataClient = vsConnector.getSiteDataClient();
+    List<ContentDatabase> contentDatabases =
+        contentDatabaseExecutor.map(
+            vs.getContentDatabases().getContentDatabase(),
+            cdcd -> {
+              try {
+                return vsSiteDataClient.getContentContentDatabase(cdcd.getID(), true);
+              } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to get content database: " + cdcd.getID(), ex);
+                return null;
+              }
+            });
+    contentDatabases.removeIf(Objects::isNull);
+    return contentDatabases;
+  }
+
   private SiteConnector getSiteConnectorForVirtualServer() throws IOException {
     return getSiteConnector(
         sharepointConfiguration.getVirtualServerUrl(),
         sharepointConfiguration.getVirtualServerUrl());
   }
 
+  /** Returns cache for Virtual Server and List metadata, or empty if disabled. */
+  private Optional<RareModificationCache> getRareModificationCache() throws IOException {
+    if (!rareModificationCacheBuilder.isEnabled()) {
+      return Optional.empty();
+    }
+    // Creating the cache may block on I/O, so a monitor would pin a virtual thread.
+    rareModificationCacheLock.lock();
+    try {
+      if (rareModificationCache == null) {
+        rareModificationCache =
+            rareModificationCacheBuilder.build(
+                getSiteConnectorForVirtualServer().getSiteDataClient(), scheduledExecutorService);
+      }
+      return Optional.of(rareModificationCache);
+    } finally {
+      rareModificationCacheLock.unlock();
+    }
+  }
+
+  /** Invalidates cached Virtual Server, without creating cache if not used yet. */
+  private void invalidateCachedVirtualServer() {
+    RareModificationCache cache = rareModificationCache;
+    if (cache != null) {
+      cache.invalidateVirtualServer();
+    }
+  }
+
+  private CachedVirtualServer getCachedVirtualServer(SiteConnector vsConnector)
+      throws IOException {
+    Optional<RareModificationCache> cache = getRareModificationCache();
+    return cache.isPresent()
+        ? cache.get().getVirtualServer()
+        : new CachedVirtualServer(vsConnector.getSiteDataClient().getContentVirtualServer());
+  }
+
+  private CachedList getCachedList(SiteConnector scConnector, String listId) throws IOException {
+    Optional<RareModificationCache> cache = getRareModificationCache();
+    return cache.isPresent()
+        ? cache.get().getList(scConnector.getSiteDataClient(), listId)
+        : new CachedList(scConnector.getSiteDataClient().getContentList(listId));
+  }
+
+  /**
+   * Returns scope id of list {@code listId}, to compare with scope id {@code itemScopeId} of one
+   * of its items. The scope id of {@code cached} is only trusted when it matches: an item can't
+   * share a scope the list no longer has, since scope ids are unique to the object breaking
+   * inheritance. Otherwise the cached entry may be stale, so it is dropped and the list is read
+   * again.
+   */
+  private String getListScopeId(
+      SiteConnector scConnector, String listId, CachedList cached, String itemScopeId)
+      throws IOException {
+    String scopeId = cached.scopeId.toLowerCase(Locale.ENGLISH);
+    RareModificationCache cache = rareModificationCache;
+    if (scopeId.equals(itemScopeId) || cache == null) {
+      return scopeId;
+    }
+    cache.invalidateList(listId);
+    return getCachedList(scConnector, listId).scopeId.toLowerCase(Locale.ENGLISH);
+  }
+
+  private static SiteAndWeb getSiteAndWeb(SiteConnector scConnector) {
+    return new SiteAndWeb(scConnector.getSiteUrl(), scConnector.getWebUrl());
+  }
+
+  /** Looks up list and item id for {@code url} from SharePoint and caches the result. */
+  private Optional<ListItemLocation> getListItemLocation(SiteConnector scConnector, String url)
+      throws IOException {
+    Holder<String> listId = new Holder<String>();
+    Holder<String> itemId = new Holder<String>();
+    boolean result = scConnector.getSiteDataClient().getUrlSegments(url, listId, itemId);
+    if (!result || (itemId.value == null) || (listId.value == null)) {
+      return Optional.empty();
+    }
+    ListItemLocation location = new ListItemLocation(listId.value, itemId.value);
+    urlResolutionCache.putListItem(url, location);
+    return Optional.of(location);
+  }
+
+  private void cacheListItemLocation(String url, String listId, Element row) {
+    String itemId = row.getAttribute(OWS_ID_ATTRIBUTE);
+    if (!Strings.isNullOrEmpty(itemId)) {
+      urlResolutionCache.putListItem(url, new ListItemLocation(listId, itemId));
+    }
+  }
+
+  /** Returns true if {@code data} has a row for the object at {@code url}. */
+  private static boolean isRowForUrl(SiteConnector scConnector, Element data, String url) {
+    if (data == null || "0".equals(data.getAttribute("ItemCount"))) {
+      return false;
+    }
+    List<Element> rows = getChildrenWithName(data, ROW_ELEMENT);
+    if (rows.isEmpty()) {
+      return false;
+    }
+    String rowUrl = rows.get(0).getAttribute(OWS_SERVERURL_ATTRIBUTE);
+    return !Strings.isNullOrEmpty(rowUrl)
+        && url.equals(scConnector.encodeDocId(getCanonicalUrl(rowUrl)));
+  }
+
   private Collection<ApiOperation> getDocIdsSiteCollectionOnly() throws RepositoryException {
     try {
       return Collections.singleton(getPushItemsForSiteCollectionOnly());
@@ -1151,7 +1498,7 @@ class SharePointRepository implements Repository {
           getSiteConnector(
               sharepointConfiguration.getVirtualServerUrl(),
               sharepointConfiguration.getVirtualServerUrl());
-      VirtualServer vs = vsConnector.getSiteDataClient().getContentVirtualServer();
+      VirtualServer vs = getCachedVirtualServer(vsConnector).virtualServer;
 
       IndexingItemBuilder itemBuilder =
           IndexingItemBuilder.fromConfiguration(VIRTUAL_SERVER_ID)
@@ -1160,33 +1507,27 @@ class SharePointRepository implements Repository {
               .setPayload(item.decodePayload());
       RepositoryDoc.Builder docBuilder = new RepositoryDoc.Builder().setItem(itemBuilder.build());
       Set<String> excluded = new TreeSet<String>();
-      for (ContentDatabases.ContentDatabase cdcd : vs.getContentDatabases().getContentDatabase()) {
-        try {
-          ContentDatabase cd =
-              vsConnector.getSiteDataClient().getContentContentDatabase(cdcd.getID(), true);
-          if (cd.getSites() != null) {
-            for (Sites.Site site : cd.getSites().getSite()) {
-              String siteUrl = site.getURL();
-              siteUrl = getCanonicalUrl(siteUrl);
-              if (!sharepointConfiguration.isSiteCollectionIncluded(siteUrl)) {
-                  excluded.add(siteUrl);
-                  continue;
-              }
-              SharePointObject siteCollection =
-                  new SharePointObject.Builder(SharePointObject.SITE_COLLECTION)
-                      .setUrl(siteUrl)
-                      .setObjectId(site.getID())
-                      .setSiteId(site.getID())
-                      .setWebId(site.getID())
-                      .build();
-              docBuilder.addChildId(
-                  vsConnector.encodeDocId(siteUrl),
-                  new PushItem().encodePayload(siteCollection.encodePayload()));
-            }
+      for (ContentDatabase cd : getContentDatabases(vsConnector, vs)) {
+        if (cd.getSites() == null) {
+          continue;
+        }
+        for (Sites.Site site : cd.getSites().getSite()) {
+          String siteUrl = site.getURL();
+          siteUrl = getCanonicalUrl(siteUrl);
+          if (!sharepointConfiguration.isSiteCollectionIncluded(siteUrl)) {
+              excluded.add(siteUrl);
+              continue;
           }
-        } catch (IOException ex) {
-          log.log(
-              Level.WARNING, "Error retrieving sites from content database " + cdcd.getID(), ex);
+          SharePointObject siteCollection =
+              new SharePointObject.Builder(SharePointObject.SITE_COLLECTION)
+                  .setUrl(siteUrl)
+                  .setObjectId(site.getID())
+                  .setSiteId(site.getID())
+                  .setWebId(site.getID())
+                  .build();
+          docBuilder.addChildId(
+              vsConnector.encodeDocId(siteUrl),
+              new PushItem().encodePayload(siteCollection.encodePayload()));
         }
       }
       if (excluded.size() > 0) {
@@ -1283,6 +1624,7 @@ class SharePointRepository implements Repository {
     }
     String parentWebUrl = scConnector.getWebParentUrl();
     SiteConnector parentSiteConnector = getSiteConnector(scConnector.getSiteUrl(), parentWebUrl);
+    // Scope ids decide ACL inheritance, so they are never read from cached metadata.
     Web parentWeb = parentSiteConnector.getSiteDataClient().getContentWeb();
     boolean inheritPermissions =
         Objects.equals(currentWeb.getMetadata().getScopeID(), parentWeb.getMetadata().getScopeID());
@@ -1337,6 +1679,10 @@ class SharePointRepository implements Repository {
       return ApiOperations.deleteItem(polledItem.getName());
     }
 
+    // Items below list root folder always belong to this web.
+    urlResolutionCache.putSiteAndWebPrefix(
+        scConnector.encodeDocId(l.getMetadata().getRootFolder()), getSiteAndWeb(scConnector));
+    // Scope ids decide ACL inheritance, so they are never read from cached metadata.
     Web w = scConnector.getSiteDataClient().getContentWeb();
     String scopeId = l.getMetadata().getScopeID().toLowerCase(Locale.ENGLISH);
     String webScopeId = w.getMetadata().getScopeID().toLowerCase(Locale.ENGLISH);
@@ -1373,27 +1719,30 @@ class SharePointRepository implements Repository {
     }
     listItemBuilder.setTitle(withValue(l.getMetadata().getTitle()));
     RepositoryDoc.Builder listDoc = new RepositoryDoc.Builder().setItem(listItemBuilder.build());
-    addChildIdsToRepositoryDoc(
-        listDoc, processFolder(scConnector, listObject.getListId(), "", listObject));
-    return listDoc.build();
+    return withFolderChildren(listDoc, scConnector, listObject.getListId(), "", listObject);
   }
 
   private ApiOperation getListItemDocContent(
       Item polledItem, SiteConnector scConnector, SharePointObject itemObject) throws IOException {
-    Holder<String> listId = new Holder<String>();
-    Holder<String> itemId = new Holder<String>();
-    boolean result =
-        scConnector.getSiteDataClient().getUrlSegments(itemObject.getUrl(), listId, itemId);
-    if (!result || (itemId.value == null) || (listId.value == null)) {
+    Optional<ListItemLocation> cachedLocation = urlResolutionCache.getListItem(itemObject.getUrl());
+    Optional<ListItemLocation> location =
+        cachedLocation.isPresent()
+            ? cachedLocation
+            : getListItemLocation(scConnector, itemObject.getUrl());
+    if (!location.isPresent()) {
       log.log(
           Level.WARNING,
           "Unable to identify itemId for Item [{0}]-[{1}]. Deleting item",
           new Object[] {polledItem.getName(), itemObject.getUrl()});
       return ApiOperations.deleteItem(polledItem.getName());
     }
-    com.microsoft.schemas.sharepoint.soap.List l =
-        scConnector.getSiteDataClient().getContentList(listId.value);
-    if (l.getMetadata().getNoIndex() == TrueFalseType.TRUE) {
+    String listId = location.get().listId;
+    String itemId = location.get().itemId;
+    CachedList l = getCachedList(scConnector, listId);
+    // Items below list root folder always belong to this web.
+    urlResolutionCache.putSiteAndWebPrefix(
+        scConnector.encodeDocId(l.rootFolder), getSiteAndWeb(scConnector));
+    if (l.noIndex == TrueFalseType.TRUE) {
       log.log(
           Level.INFO,
           "Deleting ListItem [{0}], since list is marked as NoIndex",
@@ -1402,10 +1751,15 @@ class SharePointRepository implements Repository {
     }
     IndexingItemBuilder itemBuilder = IndexingItemBuilder.fromConfiguration(polledItem.getName());
     itemBuilder.setPayload(polledItem.decodePayload());
-    ItemData i = scConnector.getSiteDataClient().getContentItem(listId.value, itemId.value);
+    ItemData i = scConnector.getSiteDataClient().getContentItem(listId, itemId);
 
     Xml xml = i.getXml();
     Element data = getFirstChildWithName(xml, DATA_ELEMENT);
+    if (cachedLocation.isPresent() && !isRowForUrl(scConnector, data, itemObject.getUrl())) {
+      // Item was moved or deleted after its identifiers were cached.
+      urlResolutionCache.invalidateListItem(itemObject.getUrl());
+      return getListItemDocContent(polledItem, scConnector, itemObject);
+    }
     Element row = getChildrenWithName(data, ROW_ELEMENT).get(0);
     String modifiedString = row.getAttribute(OWS_MODIFIED_ATTRIBUTE);
     if (modifiedString == null) {
@@ -1439,169 +1793,207 @@ class SharePointRepository implements Repository {
     // doesn't have a leading '/'.
     String rawFileDirRef = getValueFromIdPrefixedField(row, OWS_FILEDIRREF_ATTRIBUTE);
     String folderDocId = scConnector.encodeDocId("/" + rawFileDirRef);
-    String rootFolderDocId = scConnector.encodeDocId(l.getMetadata().getRootFolder());
+    String rootFolderDocId = scConnector.encodeDocId(l.rootFolder);
     // If the parent is a list, folderDocId will be same as
     // rootFolderDocId. If inheritance chain is not
     // broken, item will inherit its permission from list.
     // If parent is a folder, item will inherit its permissions from parent
     // folder.
     boolean parentIsList = folderDocId.equals(rootFolderDocId);
-    String parentScopeId;
-    String listScopeId = l.getMetadata().getScopeID().toLowerCase(Locale.ENGLISH);
-    String possibleAclParent;
-    if (parentIsList) {
-      parentScopeId = listScopeId;
-      itemBuilder.setContainerName(withValue(l.getMetadata().getID()));
-      possibleAclParent = l.getMetadata().getID();
-    } else {
-      // If current item has same scope id as list then inheritance is not
-      // broken irrespective of current item is inside folder or not.
-      // Since item inside folder points to folder as container, we always need to fetch list item
-      // for folder irrespective of ACL inheritance.
-
-      // Instead of using getUrlSegments and getContent(ListItem), we could
-      // use just getContent(Folder). However, getContent(Folder) always
-      // returns children which could make the call very expensive. In
-      // addition, getContent(ListItem) returns all the metadata for the
-      // folder instead of just its scope so if in the future we need more
-      // metadata we will already have it. GetContentEx(Folder) may provide
-      // a way to get the folder's scope without its children, but it wasn't
-      // investigated.
-      Holder<String> folderListId = new Holder<String>();
-      Holder<String> folderItemId = new Holder<String>();
-      boolean folderResult =
-          scConnector.getSiteDataClient().getUrlSegments(folderDocId, folderListId, folderItemId);
-      if (!folderResult) {
-        throw new IOException("Could not find parent folder's itemId");
-      }
-      if (!listId.value.equals(folderListId.value)) {
-        throw new RepositoryException.Builder()
-            .setErrorMessage("Unexpected listId value " + listId.value)
-            .setErrorType(ErrorType.CLIENT_ERROR)
-            .build();
-      }
-      ItemData folderItem =
-          scConnector.getSiteDataClient().getContentItem(listId.value, folderItemId.value);
-      Element folderData = getFirstChildWithName(folderItem.getXml(), DATA_ELEMENT);
-      Element folderRow = getChildrenWithName(folderData, ROW_ELEMENT).get(0);
-      parentScopeId =
-          getValueFromIdPrefixedField(folderRow, OWS_SCOPEID_ATTRIBUTE).toLowerCase(Locale.ENGLISH);
-      String folderObjectId = getUniqueIdFromRow(folderRow);
-      itemBuilder.setContainerName(withValue(folderObjectId));
-      possibleAclParent = folderObjectId;
-    }
-    Acl.Builder aclBuilder = new Acl.Builder().setInheritanceType(InheritanceType.PARENT_OVERRIDE);
-    if (scopeId.equals(parentScopeId)) {
-      aclBuilder.setInheritFrom(possibleAclParent);
-    } else {
-      // We have to search for the correct scope within the scopes element.
-      // The scope provided in the metadata is for the parent list, not for
-      // the item
-      Scopes scopes = getFirstChildOfType(xml, Scopes.class);
-      boolean hasAcl = false;
-      assert scopes != null;
-      for (Scopes.Scope scope : scopes.getScope()) {
-        if (scope.getId().toLowerCase(Locale.ENGLISH).equals(scopeId)) {
-          aclBuilder
-              .setReaders(scConnector.getScopeAcl(scope))
-              .setInheritFrom(scConnector.getSiteUrl(), SITE_COLLECTION_ADMIN_FRAGMENT);
-          hasAcl = true;
-          break;
-        }
-      }
-      if (!hasAcl) {
-        throw new IOException("Unable to find permission scope for item: " + polledItem.getName());
-      }
-    }
-    itemBuilder.setAcl(aclBuilder.build());
     // This should be in the form of "1234;#0". We want to extract the 0.
     String type = getValueFromIdPrefixedField(row, OWS_FSOBJTYPE_ATTRIBUTE);
     boolean isFolder = "1".equals(type);
-    Element schemaElement = getFirstChildWithName(xml, SCHEMA_ELEMENT);
-    Multimap<String, Object> extractedMetadataValues = extractMetadataValues(schemaElement, row);
-    String contentType = row.getAttribute(OWS_CONTENTTYPE_ATTRIBUTE);
-    String objectType = contentType == null ? "" : getNormalizedObjectType(contentType);
-    if (!Strings.isNullOrEmpty(objectType) && StructuredData.hasObjectDefinition(objectType)) {
-      itemBuilder.setObjectType(withValue(objectType));
-    }
-    itemBuilder.setValues(extractedMetadataValues);
-    if (isFolder) {
-      String serverUrl = row.getAttribute(OWS_SERVERURL_ATTRIBUTE);
-      itemBuilder.setItemType(ItemType.CONTAINER_ITEM);
-      String root = scConnector.encodeDocId(l.getMetadata().getRootFolder());
-      root += "/";
-      String folder = scConnector.encodeDocId(serverUrl);
-      if (!folder.startsWith(root)) {
-        throw new RepositoryException.Builder()
-            .setErrorMessage(
-                String.format("Folder path [%s] doesn't start with root path [%s]", folder, root))
-            .setErrorType(ErrorType.CLIENT_ERROR)
-            .build();
-      }
-      try {
-        String defaultViewUrl = scConnector.encodeDocId(l.getMetadata().getDefaultViewUrl());
-        URI displayPage = buildSharePointUrl(defaultViewUrl).getURI();
-        // SharePoint percent-encodes '/'s in serverUrl, but accepts them
-        // encoded or unencoded. We leave them unencoded for simplicity of
-        // implementation and to not deal with the possibility of
-        // double-encoding.
-        URI displayUrl =
-            new URI(
-                displayPage.getScheme(),
-                displayPage.getAuthority(),
-                displayPage.getPath(),
-                "RootFolder=" + serverUrl,
-                null);
-        itemBuilder.setSourceRepositoryUrl(getNormalizedSourceRepositoryUrl(displayUrl.toString()));
-      } catch (URISyntaxException ex) {
-        throw new IOException(ex);
-      }
-      RepositoryDoc.Builder doc = new RepositoryDoc.Builder();
-      addChildIdsToRepositoryDoc(
-          doc, processAttachments(scConnector, listId.value, itemId.value, row, itemObject));
-      addChildIdsToRepositoryDoc(
-          doc,
-          processFolder(scConnector, listId.value, folder.substring(root.length()), itemObject));
-      return doc.setItem(itemBuilder.build())
-          .setContent(
-              ByteArrayContent.fromString(
-                  null, listItemContentTemplate.apply(extractedMetadataValues)),
-              ContentFormat.HTML)
-          .build();
-    }
     String contentTypeId = row.getAttribute(OWS_CONTENTTYPEID_ATTRIBUTE);
     boolean isDocument =
-        (contentTypeId != null) && contentTypeId.startsWith(CONTENTTYPEID_DOCUMENT_PREFIX);
-    RepositoryDoc.Builder docBuilder = new RepositoryDoc.Builder();
-    if (isDocument) {
-      itemBuilder.setItemType(ItemType.CONTENT_ITEM);
-      docBuilder.setContent(
-          getFileContent(itemObject.getUrl(), itemBuilder, true), ContentFormat.RAW);
-    } else {
-      // Since list items can have attachments as child items, marking list items as containers
-      itemBuilder.setItemType(ItemType.CONTAINER_ITEM);
-      String defaultViewItemUrl = scConnector.encodeDocId(l.getMetadata().getDefaultViewItemUrl());
-      try {
-        URI displayPage = buildSharePointUrl(defaultViewItemUrl).getURI();
-        URI viewItemUri =
-            new URI(
-                displayPage.getScheme(),
-                displayPage.getAuthority(),
-                displayPage.getPath(),
-                "ID=" + itemId.value,
-                null);
-        itemBuilder.setSourceRepositoryUrl(
-            getNormalizedSourceRepositoryUrl(viewItemUri.toString()));
-      } catch (URISyntaxException e) {
-        throw new IOException(e);
+        !isFolder
+            && (contentTypeId != null)
+            && contentTypeId.startsWith(CONTENTTYPEID_DOCUMENT_PREFIX);
+    // The item's file content or attachments only depend on the item's row, so they are fetched
+    // on the item fetch executor while the parent folder's row is looked up and the rest of the
+    // item is built. Content of an item failing its ACL or metadata is discarded.
+    CompletableFuture<DownloadedFile> fileFuture =
+        isDocument
+            ? itemFetchExecutor.submit(() -> downloadFile(itemObject.getUrl()))
+            : CompletableFuture.completedFuture(null);
+    CompletableFuture<Map<String, PushItem>> attachmentsFuture =
+        isDocument
+            ? CompletableFuture.completedFuture(Collections.emptyMap())
+            : itemFetchExecutor.submit(
+                () -> processAttachments(scConnector, listId, itemId, row, itemObject));
+    try {
+      String parentScopeId;
+      String possibleAclParent;
+      if (parentIsList) {
+        parentScopeId = getListScopeId(scConnector, listId, l, scopeId);
+        itemBuilder.setContainerName(withValue(l.id));
+        possibleAclParent = l.id;
+      } else {
+        // If current item has same scope id as list then inheritance is not
+        // broken irrespective of current item is inside folder or not.
+        // Since item inside folder points to folder as container, we always need to fetch list
+        // item for folder irrespective of ACL inheritance.
+        Element folderRow = getFolderRow(scConnector, listId, folderDocId);
+        parentScopeId =
+            getValueFromIdPrefixedField(folderRow, OWS_SCOPEID_ATTRIBUTE)
+                .toLowerCase(Locale.ENGLISH);
+        String folderObjectId = getUniqueIdFromRow(folderRow);
+        itemBuilder.setContainerName(withValue(folderObjectId));
+        possibleAclParent = folderObjectId;
+      }
+      Acl.Builder aclBuilder =
+          new Acl.Builder().setInheritanceType(InheritanceType.PARENT_OVERRIDE);
+      if (scopeId.equals(parentScopeId)) {
+        aclBuilder.setInheritFrom(possibleAclParent);
+      } else {
+        // We have to search for the correct scope within the scopes element.
+        // The scope provided in the metadata is for the parent list, not for
+        // the item
+        Scopes scopes = getFirstChildOfType(xml, Scopes.class);
+        boolean hasAcl = false;
+        assert scopes != null;
+        for (Scopes.Scope scope : scopes.getScope()) {
+          if (scope.getId().toLowerCase(Locale.ENGLISH).equals(scopeId)) {
+            aclBuilder
+                .setReaders(scConnector.getScopeAcl(scope))
+                .setInheritFrom(scConnector.getSiteUrl(), SITE_COLLECTION_ADMIN_FRAGMENT);
+            hasAcl = true;
+            break;
+          }
+        }
+        if (!hasAcl) {
+          throw new IOException(
+              "Unable to find permission scope for item: " + polledItem.getName());
+        }
       }
-      addChildIdsToRepositoryDoc(
-          docBuilder, processAttachments(scConnector, listId.value, itemId.value, row, itemObject));
-      docBuilder.setContent(
-          ByteArrayContent.fromString(null, listItemContentTemplate.apply(extractedMetadataValues)),
-          ContentFormat.HTML);
+      itemBuilder.setAcl(aclBuilder.build());
+      Element schemaElement = getFirstChildWithName(xml, SCHEMA_ELEMENT);
+      Multimap<String, Object> extractedMetadataValues =
+          metadataExtractionPlans.get(getSchemaAttributes(schemaElement)).extract(row);
+      String contentType = row.getAttribute(OWS_CONTENTTYPE_ATTRIBUTE);
+      String objectType = contentType == null ? "" : getNormalizedObjectType(contentType);
+      if (!Strings.isNullOrEmpty(objectType) && StructuredData.hasObjectDefinition(objectType)) {
+        itemBuilder.setObjectType(withValue(objectType));
+      }
+      itemBuilder.setValues(extractedMetadataValues);
+      if (isFolder) {
+        String serverUrl = row.getAttribute(OWS_SERVERURL_ATTRIBUTE);
+        itemBuilder.setItemType(ItemType.CONTAINER_ITEM);
+        String root = scConnector.encodeDocId(l.rootFolder);
+        root += "/";
+        String folder = scConnector.encodeDocId(serverUrl);
+        if (!folder.startsWith(root)) {
+          throw new RepositoryException.Builder()
+              .setErrorMessage(
+                  String.format(
+                      "Folder path [%s] doesn't start with root path [%s]", folder, root))
+              .setErrorType(ErrorType.CLIENT_ERROR)
+              .build();
+        }
+        try {
+          String defaultViewUrl = scConnector.encodeDocId(l.defaultViewUrl);
+          URI displayPage = buildSharePointUrl(defaultViewUrl).getURI();
+          // SharePoint percent-encodes '/'s in serverUrl, but accepts them
+          // encoded or unencoded. We leave them unencoded for simplicity of
+          // implementation and to not deal with the possibility of
+          // double-encoding.
+          URI displayUrl =
+              new URI(
+                  displayPage.getScheme(),
+                  displayPage.getAuthority(),
+                  displayPage.getPath(),
+                  "RootFolder=" + serverUrl,
+                  null);
+          itemBuilder.setSourceRepositoryUrl(
+              getNormalizedSourceRepositoryUrl(displayUrl.toString()));
+        } catch (URISyntaxException ex) {
+          throw new IOException(ex);
+        }
+        RepositoryDoc.Builder doc = new RepositoryDoc.Builder();
+        addChildIdsToRepositoryDoc(doc, ItemFetchExecutor.get(attachmentsFuture));
+        doc.setItem(itemBuilder.build())
+            .setContent(
+                ByteArrayContent.fromString(
+                    null, listItemContentTemplate.apply(extractedMetadataValues)),
+                ContentFormat.HTML);
+        return withFolderChildren(
+            doc, scConnector, listId, folder.substring(root.length()), itemObject);
+      }
+      RepositoryDoc.Builder docBuilder = new RepositoryDoc.Builder();
+      if (isDocument) {
+        itemBuilder.setItemType(ItemType.CONTENT_ITEM);
+        AbstractInputStreamContent content =
+            ItemFetchExecutor.get(fileFuture).applyTo(itemBuilder, true);
+        if (content != null) {
+          docBuilder.setContent(content, ContentFormat.RAW);
+        }
+      } else {
+        // Since list items can have attachments as child items, marking list items as containers
+        itemBuilder.setItemType(ItemType.CONTAINER_ITEM);
+        String defaultViewItemUrl = scConnector.encodeDocId(l.defaultViewItemUrl);
+        try {
+          URI displayPage = buildSharePointUrl(defaultViewItemUrl).getURI();
+          URI viewItemUri =
+              new URI(
+                  displayPage.getScheme(),
+                  displayPage.getAuthority(),
+                  displayPage.getPath(),
+                  "ID=" + itemId,
+                  null);
+          itemBuilder.setSourceRepositoryUrl(
+              getNormalizedSourceRepositoryUrl(viewItemUri.toString()));
+        } catch (URISyntaxException e) {
+          throw new IOException(e);
+        }
+        addChildIdsToRepositoryDoc(docBuilder, ItemFetchExecutor.get(attachmentsFuture));
+        docBuilder.setContent(
+            ByteArrayContent.fromString(
+                null, listItemContentTemplate.apply(extractedMetadataValues)),
+            ContentFormat.HTML);
+      }
+      return docBuilder.setItem(itemBuilder.build()).build();
+    } catch (IOException | RuntimeException e) {
+      // Skip fetches which haven't started yet. A download is left to complete so that its
+      // spooled content can be deleted.
+      attachmentsFuture.cancel(false);
+      fileFuture.thenAccept(
+          file -> {
+            if (file != null) {
+              file.discard();
+            }
+          });
+      throw e;
     }
-    return docBuilder.setItem(itemBuilder.build()).build();
+  }
+
+  /**
+   * Returns the row for the folder {@code folderDocId} in list {@code listId}.
+   *
+   * <p>Instead of using getUrlSegments and getContent(ListItem), we could use just
+   * getContent(Folder). However, getContent(Folder) always returns children which could make the
+   * call very expensive. In addition, getContent(ListItem) returns all the metadata for the folder
+   * instead of just its scope so if in the future we need more metadata we will already have it.
+   * GetContentEx(Folder) may provide a way to get the folder's scope without its children, but it
+   * wasn't investigated.
+   */
+  private Element getFolderRow(SiteConnector scConnector, String listId, String folderDocId)
+      throws IOException {
+    Optional<ListItemLocation> folderLocation = urlResolutionCache.getListItem(folderDocId);
+    if (!folderLocation.isPresent()) {
+      folderLocation = getListItemLocation(scConnector, folderDocId);
+    }
+    if (!folderLocation.isPresent()) {
+      throw new IOException("Could not find parent folder's itemId");
+    }
+    if (!listId.equals(folderLocation.get().listId)) {
+      throw new RepositoryException.Builder()
+          .setErrorMessage("Unexpected listId value " + listId)
+          .setErrorType(ErrorType.CLIENT_ERROR)
+          .build();
+    }
+    ItemData folderItem =
+        scConnector.getSiteDataClient().getContentItem(listId, folderLocation.get().itemId);
+    Element folderData = getFirstChildWithName(folderItem.getXml(), DATA_ELEMENT);
+    return getChildrenWithName(folderData, ROW_ELEMENT).get(0);
   }
 
   private static void addChildIdsToRepositoryDoc(
@@ -1617,20 +2009,30 @@ class SharePointRepository implements Repository {
 
   private ApiOperation getAttachmentDocContent(
       Item polledItem, SiteConnector scConnector, SharePointObject itemObject) throws IOException {
-    Holder<String> listId = new Holder<String>();
-    Holder<String> itemId = new Holder<String>();
-    boolean result =
-        scConnector.getSiteDataClient().getUrlSegments(itemObject.getItemId(), listId, itemId);
-    if (!result || (itemId.value == null) || (listId.value == null)) {
+    Optional<ListItemLocation> cachedLocation =
+        urlResolutionCache.getListItem(itemObject.getItemId());
+    Optional<ListItemLocation> location =
+        cachedLocation.isPresent()
+            ? cachedLocation
+            : getListItemLocation(scConnector, itemObject.getItemId());
+    if (!location.isPresent()) {
       log.log(
           Level.WARNING,
           "Unable to identify itemId for Item {0}. Deleting item",
           polledItem.getName());
       return ApiOperations.deleteItem(polledItem.getName());
     }
-    ItemData itemData = scConnector.getSiteDataClient().getContentItem(listId.value, itemId.value);
+    ItemData itemData =
+        scConnector
+            .getSiteDataClient()
+            .getContentItem(location.get().listId, location.get().itemId);
     Xml xml = itemData.getXml();
     Element data = getFirstChildWithName(xml, DATA_ELEMENT);
+    if (cachedLocation.isPresent() && !isRowForUrl(scConnector, data, itemObject.getItemId())) {
+      // Parent item was moved or deleted after its identifiers were cached.
+      urlResolutionCache.invalidateListItem(itemObject.getItemId());
+      return getAttachmentDocContent(polledItem, scConnector, itemObject);
+    }
     if (data == null) {
       throw new RepositoryException.Builder()
           .setErrorMessage("ItemData from getContentItem is null")
@@ -1675,10 +2077,11 @@ class SharePointRepository implements Repository {
         .setPayload(polledItem.decodePayload())
         .setContainerName(withValue(parentItem))
         .setItemType(ItemType.CONTENT_ITEM);
-    return new RepositoryDoc.Builder()
-        .setItem(itemBuilder.build())
-        .setContent(content, ContentFormat.RAW)
-        .build();
+    RepositoryDoc.Builder docBuilder = new RepositoryDoc.Builder().setItem(itemBuilder.build());
+    if (content != null) {
+      docBuilder.setContent(content, ContentFormat.RAW);
+    }
+    return docBuilder.build();
   }
 
   private static String getFileNameFromUrl(String url) {
@@ -1734,34 +2137,143 @@ class SharePointRepository implements Repository {
     return entries;
   }
 
+  /**
+   * Returns {@code doc} with the children of {@code folderPath} as its child ids. If a maximum
+   * child ids batch size is configured, returns an operation pushing the children in batches of at
+   * most that many items followed by {@code doc} instead. Those batches are built from folder pages
+   * while the operation is executed, so that memory use doesn't grow with the size of the folder.
+   */
+  private ApiOperation withFolderChildren(
+      RepositoryDoc.Builder doc,
+      SiteConnector scConnector,
+      String listGuid,
+      String folderPath,
+      SharePointObject reference)
+      throws IOException {
+    int maxBatchSize = sharepointConfiguration.getChildIdsMaxBatchSize();
+    if (maxBatchSize == 0) {
+      addChildIdsToRepositoryDoc(doc, processFolder(scConnector, listGuid, folderPath, reference));
+      return doc.build();
+    }
+    return new FolderChildrenOperation(
+        doc.build(), scConnector, listGuid, folderPath, reference, maxBatchSize);
+  }
+
   private Map<String, PushItem> processFolder(
       SiteConnector scConnector, String listGuid, String folderPath, SharePointObject reference)
       throws IOException {
-    Paginator<ItemData> folderPaginator =
-        scConnector.getSiteDataClient().getContentFolderChildren(listGuid, folderPath);
-    ItemData folder;
     Map<String, PushItem> entries = new HashMap<>();
-    while ((folder = folderPaginator.next()) != null) {
-      Xml xml = folder.getXml();
-      Element data = getFirstChildWithName(xml, DATA_ELEMENT);
-      for (Element row : getChildrenWithName(data, ROW_ELEMENT)) {
-        String rowUrl = row.getAttribute(OWS_SERVERURL_ATTRIBUTE);
-        String itemId = scConnector.encodeDocId(getCanonicalUrl(rowUrl));
-        String objectId = getUniqueIdFromRow(row);
-        SharePointObject payload =
-            new SharePointObject.Builder(SharePointObject.LIST_ITEM)
-                .setListId(listGuid)
-                .setSiteId(reference.getSiteId())
-                .setWebId(reference.getWebId())
-                .setUrl(itemId)
-                .setObjectId("item")
-                .build();
-        entries.put(objectId, new PushItem().encodePayload(payload.encodePayload()));
+    try (PrefetchingPaginator<ItemData, Void> folderPaginator =
+        pagePrefetcher.prefetch(
+            scConnector.getSiteDataClient().getContentFolderChildren(listGuid, folderPath))) {
+      ItemData folder;
+      while ((folder = folderPaginator.next()) != null) {
+        addFolderEntries(scConnector, listGuid, reference, folder, entries);
       }
     }
     return entries;
   }
 
+  private void addFolderEntries(
+      SiteConnector scConnector,
+      String listGuid,
+      SharePointObject reference,
+      ItemData folder,
+      Map<String, PushItem> entries)
+      throws IOException {
+    Xml xml = folder.getXml();
+    Element data = getFirstChildWithName(xml, DATA_ELEMENT);
+    for (Element row : getChildrenWithName(data, ROW_ELEMENT)) {
+      String rowUrl = row.getAttribute(OWS_SERVERURL_ATTRIBUTE);
+      String itemId = scConnector.encodeDocId(getCanonicalUrl(rowUrl));
+      String objectId = getUniqueIdFromRow(row);
+      cacheListItemLocation(itemId, listGuid, row);
+      SharePointObject payload =
+          new SharePointObject.Builder(SharePointObject.LIST_ITEM)
+              .setListId(listGuid)
+              .setSiteId(reference.getSiteId())
+              .setWebId(reference.getWebId())
+              .setUrl(itemId)
+              .setObjectId("item")
+              .build();
+      entries.put(objectId, new PushItem().encodePayload(payload.encodePayload()));
+    }
+  }
+
+  /**
+   * Pushes the children of a folder in batches of at most {@code maxBatchSize} items, followed by
+   * the folder's container doc. Folder pages are fetched while the operation is executed, so only
+   * the current batch and the pages fetched ahead are held. A failure is thrown from {@link
+   * #execute} before the container doc is pushed, so the container is retried as a whole.
+   */
+  private class FolderChildrenOperation implements ApiOperation {
+    private final ApiOperation containerDoc;
+    private final SiteConnector scConnector;
+    private final String listGuid;
+    private final String folderPath;
+    private final SharePointObject reference;
+    private final int maxBatchSize;
+
+    FolderChildrenOperation(
+        ApiOperation containerDoc,
+        SiteConnector scConnector,
+        String listGuid,
+        String folderPath,
+        SharePointObject reference,
+        int maxBatchSize) {
+      this.containerDoc = containerDoc;
+      this.scConnector = scConnector;
+      this.listGuid = listGuid;
+      this.folderPath = folderPath;
+      this.reference = reference;
+      this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public List<GenericJson> execute(IndexingService service)
+        throws IOException, InterruptedException {
+      return execute(service, Optional.empty());
+    }
+
+    /**
+     * Returns the results of pushing the container doc. Results of pushing the children aren't
+     * kept, since there is one per child.
+     */
+    @Override
+    public List<GenericJson> execute(
+        IndexingService service, Optional<Consumer<Item>> operationModifier)
+        throws IOException, InterruptedException {
+      Map<String, PushItem> pending = new LinkedHashMap<>();
+      try (PrefetchingPaginator<ItemData, Void> folderPaginator =
+          pagePrefetcher.prefetch(
+              scConnector.getSiteDataClient().getContentFolderChildren(listGuid, folderPath))) {
+        ItemData folder;
+        while ((folder = folderPaginator.next()) != null) {
+          addFolderEntries(scConnector, listGuid, reference, folder, pending);
+          while (pending.size() >= maxBatchSize) {
+            pushBatch(service, pending);
+          }
+        }
+      }
+      while (!pending.isEmpty()) {
+        pushBatch(service, pending);
+      }
+      return containerDoc.execute(service, operationModifier);
+    }
+
+    private void pushBatch(IndexingService service, Map<String, PushItem> pending)
+        throws IOException, InterruptedException {
+      PushItems.Builder batch = new PushItems.Builder();
+      Iterator<Map.Entry<String, PushItem>> entries = pending.entrySet().iterator();
+      for (int i = 0; i < maxBatchSize && entries.hasNext(); i++) {
+        Map.Entry<String, PushItem> entry = entries.next();
+        batch.addPushItem(entry.getKey(), entry.getValue());
+        entries.remove();
+      }
+      batch.build().execute(service);
+    }
+  }
+
   private Map<String, PushItem> processAttachments(
       SiteConnector scConnector,
       String listId,
@@ -1797,9 +2309,21 @@ class SharePointRepository implements Repository {
     return entries;
   }
 
+  /**
+   * Returns content of {@code fileUrl}, or null if content is larger than the configured maximum
+   * size. Item metadata is populated in either case.
+   */
   private AbstractInputStreamContent getFileContent(
       String fileUrl, IndexingItemBuilder item, boolean setLastModified) throws IOException {
     checkNotNull(item, "item can not be null");
+    return downloadFile(fileUrl).applyTo(item, setLastModified);
+  }
+
+  /**
+   * Downloads {@code fileUrl}. Doesn't depend on any item state, so that it can run in parallel
+   * with the rest of the item's fetch.
+   */
+  private DownloadedFile downloadFile(String fileUrl) throws IOException {
     SharePointUrl sharepointFileUrl;
     String baseUrl;
     try {
@@ -1809,7 +2333,6 @@ class SharePointRepository implements Repository {
     } catch (URISyntaxException e) {
       throw new IOException(e);
     }
-    item.setSourceRepositoryUrl(getNormalizedSourceRepositoryUrl(fileUrl));
     String filePath = sharepointFileUrl.getURI().getPath();
     String fileExtension = "";
     if (filePath.lastIndexOf('.') > 0) {
@@ -1823,7 +2346,6 @@ class SharePointRepository implements Repository {
           Level.FINER,
           "Overriding content type as {0} for file extension {1}",
           new Object[] {contentType, fileExtension});
-      item.setMimeType(withValue(contentType));
     } else {
       contentType = fi.getFirstHeaderWithName("Content-Type");
       if (contentType != null) {
@@ -1831,24 +2353,74 @@ class SharePointRepository implements Repository {
         if (MIME_TYPE_MAPPING.containsKey(lowerType)) {
           contentType = MIME_TYPE_MAPPING.get(lowerType);
         }
-        item.setMimeType(withValue(contentType));
       }
     }
+    DateTime lastModified = null;
     String lastModifiedString = fi.getFirstHeaderWithName("Last-Modified");
-    if ((lastModifiedString != null) && setLastModified) {
+    if (lastModifiedString != null) {
       try {
-        item.setUpdateTime(
-            withValue(new DateTime(dateFormatRfc1123.get().parse(lastModifiedString))));
+        lastModified = new DateTime(dateFormatRfc1123.get().parse(lastModifiedString));
       } catch (ParseException ex) {
         log.log(Level.INFO, "Could not parse Last-Modified: {0}", lastModifiedString);
       }
     }
     try (InputStream contentStream = fi.getContents()) {
+      if (fileContentSpooler.exceedsMaxSize(fi.getFirstHeaderWithName("Content-Length"))) {
+        log.log(Level.WARNING, "Skipping content of {0}, larger than maximum size", fileUrl);
+        return new DownloadedFile(fileUrl, contentType, lastModified, null);
+      }
       if (isHtmlContent(contentType)) {
-        return htmlContentFilter.getParsedHtmlContent(contentStream, baseUrl, contentType);
-      } else {
-        return new ByteArrayContent(contentType, ByteStreams.toByteArray(contentStream));
+        return new DownloadedFile(
+            fileUrl,
+            contentType,
+            lastModified,
+            htmlContentFilter.getParsedHtmlContent(contentStream, baseUrl, contentType));
+      }
+      Optional<AbstractInputStreamContent> content =
+          fileContentSpooler.spool(contentType, contentStream);
+      if (!content.isPresent()) {
+        log.log(Level.WARNING, "Skipping content of {0}, larger than maximum size", fileUrl);
       }
+      return new DownloadedFile(fileUrl, contentType, lastModified, content.orElse(null));
+    }
+  }
+
+  /** File downloaded for an item, with the metadata its response headers provide. */
+  private static class DownloadedFile {
+    private final String fileUrl;
+    private final String contentType;
+    private final DateTime lastModified;
+    private final AbstractInputStreamContent content;
+
+    DownloadedFile(
+        String fileUrl,
+        String contentType,
+        DateTime lastModified,
+        AbstractInputStreamContent content) {
+      this.fileUrl = fileUrl;
+      this.contentType = contentType;
+      this.lastModified = lastModified;
+      this.content = content;
+    }
+
+    /**
+     * Populates {@code item} metadata from the download, and returns its content, or null if
+     * content is larger than the configured maximum size.
+     */
+    AbstractInputStreamContent applyTo(IndexingItemBuilder item, boolean setLastModified) {
+      item.setSourceRepositoryUrl(getNormalizedSourceRepositoryUrl(fileUrl));
+      if (contentType != null) {
+        item.setMimeType(withValue(contentType));
+      }
+      if ((lastModified != null) && setLastModified) {
+        item.setUpdateTime(withValue(lastModified));
+      }
+      return content;
+    }
+
+    /** Deletes content which won't be uploaded. */
+    void discard() {
+      FileContentSpooler.discard(content);
     }
   }
 
@@ -1866,93 +2438,9 @@ class SharePointRepository implements Repository {
     }
   }
 
-  private static Multimap<String, Object> extractMetadataValues(Element schema, Element row) {
+  private static List<Element> getSchemaAttributes(Element schema) {
     Element elementType = getChildrenWithName(schema, ELEMENT_TYPE_ELEMENT).get(0);
-    List<Element> attributes = getChildrenWithName(elementType, ATTRIBUTE_TYPE_ELEMENT);
-    Map<String, String> fieldMapping = getInternalNameToDisplayNameMapping(attributes);
-    Multimap<String, Object> values = LinkedHashMultimap.create();
-    NamedNodeMap map = row.getAttributes();
-    for (int i = 0; i < map.getLength(); i++) {
-      Attr attribute = (Attr) map.item(i);
-      String attributeName = attribute.getName();
-      if ("ows_MetaInfo".equals(attributeName)) {
-        // ows_MetaInfo is parsed out into other fields for us by SharePoint.
-        // We filter it since it only duplicates those other fields.
-        continue;
-      }
-      addMetadata(
-          fieldMapping.getOrDefault(
-              attributeName,
-              getNormalizedPropertyName(sanitizeInternalFieldName(attributeName))),
-          attribute.getValue(),
-          values);
-    }
-    return values;
-  }
-
-  /**
-   * Generates mapping between field internal name and display names.
-   *
-   * @param attributes from ListItem schema
-   * @return mapping between field internal name and display names.
-   */
-  private static Map<String, String> getInternalNameToDisplayNameMapping(List<Element> attributes) {
-    return attributes
-        .stream()
-        .filter(a -> a.hasAttribute("name") && a.hasAttribute("rs:name"))
-        .collect(
-            Collectors.toMap(
-                a -> a.getAttribute("name"),
-                a -> getNormalizedPropertyName(a.getAttribute("rs:name"))));
-  }
-
-  private static void addMetadata(String name, String value, Multimap<String, Object> values) {
-    if (ALTERNATIVE_VALUE_PATTERN.matcher(value).find()) {
-      // This is a lookup field. We need to take alternative values only.
-      // Ignore the integer part. 314;#pi;#42;#the answer
-      String[] parts = value.split(";#", 0);
-      for (int i = 1; i < parts.length; i += 2) {
-        if (parts[i].isEmpty()) {
-          continue;
-        }
-        values.put(name, parts[i]);
-      }
-    } else if (value.startsWith(";#") && value.endsWith(";#")) {
-      // This is a multi-choice field. Values will be in the form:
-      // ;#value1;#value2;#
-      for (String part : value.split(";#", 0)) {
-        if (part.isEmpty()) {
-          continue;
-        }
-        values.put(name, part);
-      }
-    } else {
-      values.put(name, value);
-    }
-  }
-
-  private static String sanitizeInternalFieldName(String name) {
-    if (name.startsWith("ows_")) {
-      name = name.substring("ows_".length());
-    }
-    name = decodeMetadataName(name);
-    return name;
-  }
-
-  /**
-   * SharePoint encodes special characters as _x????_ where the ? are hex digits. Each such encoding
-   * is a UTF-16 character. For example, _x0020_ is space and _xFFE5_ is the fullwidth yen sign.
-   */
-  @VisibleForTesting
-  static String decodeMetadataName(String name) {
-    Matcher m = METADATA_ESCAPE_PATTERN.matcher(name);
-    StringBuffer sb = new StringBuffer();
-    while (m.find()) {
-      char c = (char) Integer.parseInt(m.group(1), 16);
-      m.appendReplacement(sb, Matcher.quoteReplacement("" + c));
-    }
-    m.appendTail(sb);
-    return sb.toString();
+    return getChildrenWithName(elementType, ATTRIBUTE_TYPE_ELEMENT);
   }
 
   private static boolean elementHasName(Element ele, QName name) {
@@ -2030,17 +2518,6 @@ class SharePointRepository implements Repository {
     return contentType.replaceAll("[^A-Za-z0-9]", "");
   }
 
-  /**
-   * Converts property display name to potential property definition name defined in structured data
-   * by removing non alphanumeric characters from property display name.
-   *
-   * @param displayName property display name to normalized.
-   * @return normalized property definition name to be used for applying structured data.
-   */
-  private static String getNormalizedPropertyName(String displayName) {
-    return displayName.replaceAll("[^A-Za-z0-9]", "");
-  }
-
   /**
    * SharePoint URLs may contain one or more whitespace characters. This breaks URL redirect from
    * search results. Encoding whitespace as %20 to comply with URL specifications.
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Runs per site collection work, such as listing groups, in parallel with a bound on the number of
+ * concurrent requests sent to the farm and to each host. Results are returned in completion order
+ * as they become available, so callers can consume them while the remaining work runs.
+ */
+class SiteCollectionExecutor {
+  static final int DEFAULT_MAX_CONCURRENCY = 8;
+  static final int DEFAULT_MAX_CONCURRENCY_PER_HOST = 4;
+
+  /** Work for a single site collection. */
+  @FunctionalInterface
+  interface Task<K, V> {
+    V apply(K input) throws IOException;
+  }
+
+  private final int maxConcurrency;
+  private final int maxConcurrencyPerHost;
+  private final ExecutorService executor;
+
+  SiteCollectionExecutor(int maxConcurrency, int maxConcurrencyPerHost) {
+    this(maxConcurrency, maxConcurrencyPerHost, ConnectorThreads.PLATFORM);
+  }
+
+  SiteCollectionExecutor(
+      int maxConcurrency, int maxConcurrencyPerHost, ConnectorThreads threads) {
+    checkArgument(maxConcurrency > 0, "max concurrency must be greater than 0");
+    checkArgument(maxConcurrencyPerHost > 0, "max concurrency per host must be greater than 0");
+    checkNotNull(threads);
+    this.maxConcurrency = maxConcurrency;
+    this.maxConcurrencyPerHost = maxConcurrencyPerHost;
+    this.executor =
+        maxConcurrency == 1
+            ? null
+            : threads.newFixedThreadPool(maxConcurrency, "sharepoint-site-collection-%d");
+  }
+
+  /**
+   * Creates executor from configuration.
+   *
+   * <ul>
+   *   <li>sharepoint.identity.groupFetch.maxConcurrency - maximum number of site collections
+   *       whose groups are listed in parallel, default 8. Use 1 to list groups sequentially.
+   *   <li>sharepoint.identity.groupFetch.maxConcurrencyPerHost - maximum number of site
+   *       collections on the same host whose groups are listed in parallel, default 4.
+   * </ul>
+   */
+  static SiteCollectionExecutor fromConfiguration() {
+    checkState(Configuration.isInitialized(), "Configuration not initialized yet");
+    return new SiteCollectionExecutor(
+        Configuration.getInteger(
+                "sharepoint.identity.groupFetch.maxConcurrency", DEFAULT_MAX_CONCURRENCY)
+            .get(),
+        Configuration.getInteger(
+                "sharepoint.identity.groupFetch.maxConcurrencyPerHost",
+                DEFAULT_MAX_CONCURRENCY_PER_HOST)
+            .get(),
+        ConnectorThreads.fromConfiguration());
+  }
+
+  int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  int getMaxConcurrencyPerHost() {
+    return maxConcurrencyPerHost;
+  }
+
+  /**
+   * Applies {@code task} to each of {@code inputs} and returns an iterator over the results in
+   * completion order. Tasks are only submitted as earlier tasks complete, so at most {@code
+   * maxConcurrency} results are pending at once, and at most {@code maxConcurrencyPerHost} tasks
+   * run for inputs with the same {@code hostOf} value. If any task fails, remaining tasks are
+   * cancelled and the iterator throws {@link UncheckedIOException} wrapping the failure.
+   */
+  <K, V> Results<V> iterate(List<K> inputs, Function<K, String> hostOf, Task<K, V> task) {
+    checkNotNull(hostOf);
+    checkNotNull(task);
+    return executor == null
+        ? new SequentialResults<>(inputs, task)
+        : new ParallelResults<>(inputs, hostOf, task);
+  }
+
+  void shutdown() {
+    if (executor != null) {
+      MoreExecutors.shutdownAndAwaitTermination(executor, 10, TimeUnit.SECONDS);
+    }
+  }
+
+  /** Results of {@link #iterate}, which can be cancelled if the caller stops early. */
+  abstract static class Results<V> extends AbstractIterator<V> {
+    /** Cancels tasks which are still pending or running. */
+    abstract void cancel();
+  }
+
+  private static class SequentialResults<K, V> extends Results<V> {
+    private final Task<K, V> task;
+    private Iterator<K> inputs;
+
+    SequentialResults(List<K> inputs, Task<K, V> task) {
+      this.inputs = new ArrayList<>(inputs).iterator();
+      this.task = task;
+    }
+
+    @Override
+    protected V computeNext() {
+      if (!inputs.hasNext()) {
+        return endOfData();
+      }
+      try {
+        return task.apply(inputs.next());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    void cancel() {
+      inputs = Collections.emptyIterator();
+    }
+  }
+
+  private class ParallelResults<K, V> extends Results<V> {
+    private final Task<K, V> task;
+    private final CompletionService<V> completionService;
+    /** Inputs not submitted yet, by host. */
+    private final Map<String, Deque<K>> pendingByHost = new LinkedHashMap<>();
+    /** Host of each submitted task. */
+    private final Map<Future<V>, String> running = new HashMap<>();
+    private final Multiset<String> runningByHost = HashMultiset.create();
+
+    ParallelResults(List<K> inputs, Function<K, String> hostOf, Task<K, V> task) {
+      this.task = task;
+      this.completionService = new ExecutorCompletionService<>(executor);
+      for (K input : inputs) {
+        pendingByHost.computeIfAbsent(hostOf.apply(input), k -> new ArrayDeque<>()).add(input);
+      }
+    }
+
+    @Override
+    protected V computeNext() {
+      submitPending();
+      if (running.isEmpty()) {
+        return endOfData();
+      }
+      Future<V> done;
+      try {
+        done = completionService.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        cancel();
+        throw new UncheckedIOException(
+            new IOException("Interrupted while processing site collections", e));
+      }
+      runningByHost.remove(running.remove(done));
+      try {
+        return Futures.getDone(done);
+      } catch (ExecutionException e) {
+        cancel();
+        if (e.getCause() instanceof IOException) {
+          throw new UncheckedIOException((IOException) e.getCause());
+        }
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new UncheckedIOException(new IOException(e.getCause()));
+      }
+    }
+
+    /** Submits pending inputs until the overall or per host concurrency limits are reached. */
+    private void submitPending() {
+      Iterator<Map.Entry<String, Deque<K>>> hosts = pendingByHost.entrySet().iterator();
+      while (running.size() < maxConcurrency && hosts.hasNext()) {
+        Map.Entry<String, Deque<K>> host = hosts.next();
+        Deque<K> pending = host.getValue();
+        while (running.size() < maxConcurrency
+            && runningByHost.count(host.getKey()) < maxConcurrencyPerHost
+            && !pending.isEmpty()) {
+          K input = pending.poll();
+          running.put(completionService.submit(() -> task.apply(input)), host.getKey());
+          runningByHost.add(host.getKey());
+        }
+        if (pending.isEmpty()) {
+          hosts.remove();
+        }
+      }
+    }
+
+    @Override
+    void cancel() {
+      pendingByHost.clear();
+      for (Future<V> future : running.keySet()) {
+        future.cancel(true);
+      }
+      running.clear();
+      runningByHost.clear();
+    }
+  }
+}
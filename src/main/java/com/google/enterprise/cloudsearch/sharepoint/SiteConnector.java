@@ -62,6 +62,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -78,6 +80,10 @@ class SiteConnector {
       SPBasePermissions.OPEN | SPBasePermissions.VIEWPAGES | SPBasePermissions.VIEWLISTITEMS;
   /** Default identity source for external principals when no domain information is available */
   static final String DEFAULT_REFERENCE_IDENTITY_SOURCE_NAME = "defaultIdentitySource";
+  /** Default expiration for cached member id mappings when no shared cache is provided. */
+  static final long DEFAULT_MEMBER_ID_MAPPING_EXPIRATION_SECS = TimeUnit.MINUTES.toSeconds(30);
+  /** Default expiration for cached site user mappings when no shared cache is provided. */
+  static final long DEFAULT_SITE_USER_MAPPING_EXPIRATION_SECS = TimeUnit.MINUTES.toSeconds(30);
 
   private final SiteDataClient siteDataClient;
   private final UserGroupSoap userGroup;
@@ -86,17 +92,24 @@ class SiteConnector {
   private final String webUrl;
   private final Optional<ActiveDirectoryClient> activeDirectoryClient;
   private final SharePointDeploymentType sharePointDeploymentType;
+  /**
+   * Cache of MemberIdMapping keyed by site collection URL. Shared between all SiteConnector
+   * instances created by the same factory so that webs under a site collection reuse the mapping.
+   */
+  private final MemberIdMappingCache memberIdsCache;
+  /** Cache of site user mapping from UserGroup.GetUserCollectionFromSite, by site collection URL. */
+  private final MemberIdMappingCache siteUserCache;
   /**
    * Lock for refreshing MemberIdMapping. We use a unique lock because it is held while waiting on
-   * I/O.
+   * I/O. Not a monitor, so that a virtual thread waiting on I/O doesn't pin its carrier thread.
    */
-  private final Object refreshMemberIdMappingLock = new Object();
+  private final ReentrantLock refreshMemberIdMappingLock = new ReentrantLock();
 
   /**
    * Lock for refreshing SiteUserMapping. We use a unique lock because it is held while waiting on
    * I/O.
    */
-  private final Object refreshSiteUserMappingLock = new Object();
+  private final ReentrantLock refreshSiteUserMappingLock = new ReentrantLock();
 
   private final ImmutableMap<String, IdentitySourceConfiguration>
       referenceIdentitySourceConfiguration;
@@ -116,6 +129,20 @@ class SiteConnector {
             referenceIdentitySourceConfiguration.get(DEFAULT_REFERENCE_IDENTITY_SOURCE_NAME));
     this.stripDomainInUserPrincipals = builder.stripDomainInUserPrincipals;
     this.sharePointDeploymentType = builder.sharePointDeploymentType;
+    this.memberIdsCache =
+        builder.memberIdsCache != null
+            ? builder.memberIdsCache
+            : new MemberIdMappingCache(
+                "MemberIdMapping",
+                DEFAULT_MEMBER_ID_MAPPING_EXPIRATION_SECS,
+                key -> retrieveMemberIdMapping());
+    this.siteUserCache =
+        builder.siteUserCache != null
+            ? builder.siteUserCache
+            : new MemberIdMappingCache(
+                "SiteUserMapping",
+                DEFAULT_SITE_USER_MAPPING_EXPIRATION_SECS,
+                key -> retrieveSiteUserMapping());
   }
 
   SiteDataClient getSiteDataClient() {
@@ -207,10 +234,14 @@ class SiteConnector {
 
   List<Principal> getSiteCollectionAdmins(Web web) {
     List<Principal> admins = new ArrayList<>();
+    List<UserDescription> siteAdmins = new ArrayList<>();
     for (UserDescription user : web.getUsers().getUser()) {
-      if (user.getIsSiteAdmin() != TrueFalseType.TRUE) {
-        continue;
+      if (user.getIsSiteAdmin() == TrueFalseType.TRUE) {
+        siteAdmins.add(user);
       }
+    }
+    prefetchDomainGroupSids(siteAdmins);
+    for (UserDescription user : siteAdmins) {
       Principal principal = userDescriptionToPrincipal(user);
       if (principal == null) {
         log.log(
@@ -282,7 +313,12 @@ class SiteConnector {
 
   public List<IdentityGroup> getSharePointGroups(RepositoryContext repositoryContext)
       throws IOException {
-    Site site = siteDataClient.getContentSite();
+    return getSharePointGroups(repositoryContext, siteDataClient.getContentSite());
+  }
+
+  /** Returns the SharePoint groups of {@code site}, as returned by SiteData.GetContent. */
+  List<IdentityGroup> getSharePointGroups(RepositoryContext repositoryContext, Site site)
+      throws IOException {
     ImmutableList.Builder<IdentityGroup> groups = new ImmutableList.Builder<>();
     for (GroupMembership.Group group : site.getGroups().getGroup()) {
       String localGroup =
@@ -297,6 +333,7 @@ class SiteConnector {
         groups.add(repositoryContext.buildIdentityGroup(localGroup, EMPTY_MEMBERSHIP));
         continue;
       }
+      prefetchMemberLookups(members);
       ImmutableSet.Builder<Membership> groupMembers = new ImmutableSet.Builder<>();
       for (UserDescription member : members) {
         getMembership(member, repositoryContext).ifPresent(groupMembers::add);
@@ -306,6 +343,34 @@ class SiteConnector {
     return groups.build();
   }
 
+  /**
+   * Resolves domain group SIDs and emails of users without one for {@code members} with batched
+   * Active Directory lookups, instead of one LDAP query per member.
+   */
+  private void prefetchMemberLookups(List<UserDescription> members) {
+    if (!activeDirectoryClient.isPresent()) {
+      return;
+    }
+    prefetchDomainGroupSids(members);
+    List<ActiveDirectoryPrincipal> principals = new ArrayList<>();
+    for (UserDescription member : members) {
+      if (member.getIsDomainGroup() == TrueFalseType.TRUE
+          || !Strings.isNullOrEmpty(member.getEmail())) {
+        continue;
+      }
+      String loginName = decodeUserLoginName(member);
+      if (!Strings.isNullOrEmpty(loginName)) {
+        principals.add(ActiveDirectoryPrincipal.parse(loginName));
+      }
+    }
+    try {
+      activeDirectoryClient.get().prefetchEmailsByPrincipal(principals);
+    } catch (IOException | RuntimeException e) {
+      log.log(
+          Level.WARNING, "Error prefetching user emails. Falling back to individual lookups.", e);
+    }
+  }
+
   private Optional<Membership> getMembership(UserDescription user, RepositoryContext context)
       throws IOException {
     boolean isDomainGroup = (user.getIsDomainGroup() == TrueFalseType.TRUE);
@@ -361,11 +426,8 @@ class SiteConnector {
       return Optional.of(new EntityKey().setId(user.getEmail()));
     }
     if (activeDirectoryClient.isPresent()) {
-      String loginName =
-          isSharePointOnlineDeployment()
-              ? decodeSharePointOnlineClaim(user.getLoginName())
-              : decodeClaim(user.getLoginName(), user.getName());
-      ActiveDirectoryPrincipal principal = ActiveDirectoryPrincipal.parse(loginName);
+      ActiveDirectoryPrincipal principal =
+          ActiveDirectoryPrincipal.parse(decodeUserLoginName(user));
       String userEmailByAccountName =
           activeDirectoryClient.get().getUserEmailByPrincipal(principal);
       if (Strings.isNullOrEmpty(userEmailByAccountName)) {
@@ -376,6 +438,12 @@ class SiteConnector {
     return Optional.empty();
   }
 
+  private String decodeUserLoginName(UserDescription user) {
+    return isSharePointOnlineDeployment()
+        ? decodeSharePointOnlineClaim(user.getLoginName())
+        : decodeClaim(user.getLoginName(), user.getName());
+  }
+
   private List<Principal> generateAcl(
       List<Permission> permissions, final long necessaryPermissionMask) throws IOException {
     List<Principal> permits = new LinkedList<Principal>();
@@ -429,16 +497,11 @@ class SiteConnector {
   }
 
   private MemberIdMapping getMemberIdMapping() throws IOException {
-    try {
-      return retrieveMemberIdMapping();
-    } catch (IOException ex) {
-      throw ex;
-    } catch (Exception ex) {
-      throw new IOException(ex);
-    }
+    // Concurrent callers for the same site collection share a single load.
+    return memberIdsCache.get(siteUrl);
   }
 
-  private MemberIdMapping retrieveMemberIdMapping() throws IOException {
+  MemberIdMapping retrieveMemberIdMapping() throws IOException {
     log.entering("SiteConnector", "retrieveMemberIdMapping");
     Site site = siteDataClient.getContentSite();
     Map<Integer, Principal> map = new HashMap<Integer, Principal>();
@@ -449,6 +512,7 @@ class SiteConnector {
                   site.getMetadata().getURL(), group.getGroup().getName()));
       map.put(group.getGroup().getID(), localGroup);
     }
+    prefetchDomainGroupSids(site.getWeb().getUsers().getUser());
     for (UserDescription user : site.getWeb().getUsers().getUser()) {
       Principal principal = userDescriptionToPrincipal(user);
       if (principal == null) {
@@ -465,7 +529,7 @@ class SiteConnector {
     return mapping;
   }
 
-  private MemberIdMapping retrieveSiteUserMapping() {
+  MemberIdMapping retrieveSiteUserMapping() {
     log.entering("SiteConnector", "retrieveSiteUserMapping");
     GetUserCollectionFromSiteResponse.GetUserCollectionFromSiteResult result =
         userGroup.getUserCollectionFromSite();
@@ -483,6 +547,18 @@ class SiteConnector {
       log.exiting("SiteConnector", "retrieveSiteUserMapping", mapping);
       return mapping;
     }
+    if (activeDirectoryClient.isPresent()) {
+      List<String> sids = new ArrayList<>();
+      for (User user : siteUsers.getUsers().getUser()) {
+        boolean isDomainGroup =
+            (user.getIsDomainGroup()
+                == com.microsoft.schemas.sharepoint.soap.directory.TrueFalseType.TRUE);
+        if (isSidLookup(user.getLoginName(), user.getSid(), isDomainGroup)) {
+          sids.add(user.getSid());
+        }
+      }
+      prefetchUserAccountsBySid(sids);
+    }
     for (User user : siteUsers.getUsers().getUser()) {
       boolean isDomainGroup =
           (user.getIsDomainGroup()
@@ -516,7 +592,8 @@ class SiteConnector {
   private MemberIdMapping refreshMemberIdMapping(MemberIdMapping mapping) throws IOException {
     // Synchronize callers to prevent a rush of invalidations due to multiple
     // callers noticing that the map was out of date at the same time.
-    synchronized (refreshMemberIdMappingLock) {
+    refreshMemberIdMappingLock.lock();
+    try {
       // NOTE: This may block on I/O, so we must be wary of what locks are
       // held.
       MemberIdMapping maybeNewMapping = getMemberIdMapping();
@@ -524,7 +601,9 @@ class SiteConnector {
         // The map has already been refreshed.
         return maybeNewMapping;
       }
-      //memberIdsCache.invalidate(siteUrl);
+      memberIdsCache.refresh(siteUrl);
+    } finally {
+      refreshMemberIdMappingLock.unlock();
     }
     return getMemberIdMapping();
   }
@@ -533,10 +612,11 @@ class SiteConnector {
    * Provide a more recent SiteUserMapping than {@code mapping}, because the mapping is known to be
    * out-of-date.
    */
-  private MemberIdMapping refreshSiteUserMapping(MemberIdMapping mapping) {
+  private MemberIdMapping refreshSiteUserMapping(MemberIdMapping mapping) throws IOException {
     // Synchronize callers to prevent a rush of invalidations due to multiple
     // callers noticing that the map was out of date at the same time.
-    synchronized (refreshSiteUserMappingLock) {
+    refreshSiteUserMappingLock.lock();
+    try {
       // NOTE: This may block on I/O, so we must be wary of what locks are
       // held.
       MemberIdMapping maybeNewMapping = getSiteUserMapping();
@@ -544,13 +624,16 @@ class SiteConnector {
         // The map has already been refreshed.
         return maybeNewMapping;
       }
-      //siteUserCache.invalidate(siteUrl);
+      siteUserCache.refresh(siteUrl);
+    } finally {
+      refreshSiteUserMappingLock.unlock();
     }
     return getSiteUserMapping();
   }
 
-  private MemberIdMapping getSiteUserMapping() {
-    return retrieveSiteUserMapping();
+  private MemberIdMapping getSiteUserMapping() throws IOException {
+    // Concurrent callers for the same site collection share a single load.
+    return siteUserCache.get(siteUrl);
   }
 
   private Principal userDescriptionToPrincipal(UserDescription user) {
@@ -563,12 +646,48 @@ class SiteConnector {
     return getPrincipal(userName, isDomainGroup).orElse(null);
   }
 
-  private String getLoginNameForPrincipal(
-      String loginName, String displayName, String sid, boolean isDomainGroup) {
-    if (isDomainGroup
+  private void prefetchDomainGroupSids(List<UserDescription> users) {
+    if (!activeDirectoryClient.isPresent()) {
+      return;
+    }
+    List<String> sids = new ArrayList<>();
+    for (UserDescription user : users) {
+      boolean isDomainGroup = (user.getIsDomainGroup() == TrueFalseType.TRUE);
+      if (isSidLookup(user.getLoginName(), user.getSid(), isDomainGroup)) {
+        sids.add(user.getSid());
+      }
+    }
+    prefetchUserAccountsBySid(sids);
+  }
+
+  /**
+   * Resolves {@code sids} with batched Active Directory lookups, so that following
+   * {@link #getLoginNameForPrincipal} calls are served from cache. Failures are logged and each
+   * SID is looked up individually later on.
+   */
+  private void prefetchUserAccountsBySid(List<String> sids) {
+    if (sids.isEmpty()) {
+      return;
+    }
+    try {
+      activeDirectoryClient.get().prefetchUserAccountsBySid(sids);
+    } catch (IOException | RuntimeException e) {
+      log.log(
+          Level.WARNING, "Error prefetching SID lookups. Falling back to individual lookups.", e);
+    }
+  }
+
+  /** Returns true if the login name of a principal is resolved by SID in Active Directory. */
+  private boolean isSidLookup(String loginName, String sid, boolean isDomainGroup) {
+    return isDomainGroup
         && activeDirectoryClient.isPresent()
         && loginName.startsWith("c:0+.w|")
-        && !Strings.isNullOrEmpty(sid)) {
+        && !Strings.isNullOrEmpty(sid);
+  }
+
+  private String getLoginNameForPrincipal(
+      String loginName, String displayName, String sid, boolean isDomainGroup) {
+    if (isSidLookup(loginName, sid, isDomainGroup)) {
       try {
         return activeDirectoryClient.get().getUserAccountBySid(sid);
       } catch (IOException ex) {
@@ -725,6 +844,8 @@ class SiteConnector {
     private boolean stripDomainInUserPrincipals;
     private SharePointDeploymentType sharePointDeploymentType =
         SharePointDeploymentType.ON_PREMISES;
+    private MemberIdMappingCache memberIdsCache;
+    private MemberIdMappingCache siteUserCache;
 
     Builder(String siteUrl, String webUrl) {
       this.siteUrl = siteUrl;
@@ -768,6 +889,16 @@ class SiteConnector {
       return this;
     }
 
+    Builder setMemberIdsCache(MemberIdMappingCache memberIdsCache) {
+      this.memberIdsCache = memberIdsCache;
+      return this;
+    }
+
+    Builder setSiteUserCache(MemberIdMappingCache siteUserCache) {
+      this.siteUserCache = siteUserCache;
+      return this;
+    }
+
     SiteConnector build() {
       checkArgument(!Strings.isNullOrEmpty(siteUrl));
       checkArgument(!Strings.isNullOrEmpty(webUrl));
@@ -25,6 +25,12 @@ import java.io.IOException;
 interface SiteConnectorFactory {
   SiteConnector getInstance(String siteUrl, String webUrl) throws IOException;
 
+  /**
+   * Discard cached member id and site user mappings for site collection {@code siteUrl}, typically
+   * because the change feed reported a modification to the site collection or its security.
+   */
+  void invalidateMemberIdMapping(String siteUrl);
+
   @VisibleForTesting
   interface SoapFactory {
     /** The {@code endpoint} string is a SharePoint URL, meaning that spaces are not encoded. */
@@ -53,6 +53,15 @@ class SiteConnectorFactoryImpl implements SiteConnectorFactory {
       referenceIdentitySourceConfiguration;
   private final boolean stripDomainInUserPrincipals;
   private final SharePointDeploymentType sharePointDeploymentType;
+  /**
+   * MemberIdMapping per site collection URL, shared by all SiteConnectors. Mapping is always
+   * retrieved using the site collection root connector.
+   */
+  private final MemberIdMappingCache memberIdsCache;
+  /** Site user mapping per site collection URL, shared by all SiteConnectors. */
+  private final MemberIdMappingCache siteUserCache;
+  private final WebServiceMetricsSink webServiceMetricsSink;
+  private final AdaptiveThrottle throttle;
 
   private SiteConnectorFactoryImpl(Builder builder) {
     soapFactory = checkNotNull(builder.soapFactory);
@@ -63,6 +72,18 @@ class SiteConnectorFactoryImpl implements SiteConnectorFactory {
         checkNotNull(builder.referenceIdentitySourceConfiguration);
     stripDomainInUserPrincipals = checkNotNull(builder.stripDomainInUserPrincipals);
     sharePointDeploymentType = builder.sharePointDeploymentType;
+    memberIdsCache =
+        new MemberIdMappingCache(
+            "MemberIdMapping",
+            builder.memberIdMappingCacheExpirationSecs,
+            siteUrl -> getInstance(siteUrl, siteUrl).retrieveMemberIdMapping());
+    siteUserCache =
+        new MemberIdMappingCache(
+            "SiteUserMapping",
+            builder.siteUserMappingCacheExpirationSecs,
+            siteUrl -> getInstance(siteUrl, siteUrl).retrieveSiteUserMapping());
+    webServiceMetricsSink = checkNotNull(builder.webServiceMetricsSink);
+    throttle = checkNotNull(builder.throttle);
   }
 
   @Override
@@ -82,22 +103,53 @@ class SiteConnectorFactoryImpl implements SiteConnectorFactory {
     requestContext.addContext((BindingProvider) siteDataSoap);
     requestContext.addContext((BindingProvider) userGroupSoap);
     requestContext.addContext((BindingProvider) peopleSoap);
+    siteDataSoap = instrument(SiteDataSoap.class, siteDataSoap, endpoint);
+    userGroupSoap = instrument(UserGroupSoap.class, userGroupSoap, endpointUserGroup);
+    peopleSoap = instrument(PeopleSoap.class, peopleSoap, endpointPeople);
 
     siteConnector =
         new SiteConnector.Builder(site, web)
-            .setSiteDataClient(new SiteDataClient(siteDataSoap, xmlValidation))
+            .setSiteDataClient(SiteDataClient.forLoggedSiteData(siteDataSoap, xmlValidation))
             .setPeople(peopleSoap)
             .setUserGroup(userGroupSoap)
             .setActiveDirectoryClient(activeDirectoryClient.orElse(null))
             .setReferenceIdentitySourceConfiguration(referenceIdentitySourceConfiguration)
             .setStripDomainInUserPrincipals(stripDomainInUserPrincipals)
             .setSharePointDeploymentType(sharePointDeploymentType)
+            .setMemberIdsCache(memberIdsCache)
+            .setSiteUserCache(siteUserCache)
             .build();
     siteConnectors.putIfAbsent(web, siteConnector);
     siteConnector = siteConnectors.get(web);
     return siteConnector;
   }
 
+  @Override
+  public void invalidateMemberIdMapping(String siteUrl) {
+    siteUrl = getCanonicalUrl(siteUrl);
+    memberIdsCache.invalidate(siteUrl);
+    siteUserCache.invalidate(siteUrl);
+  }
+
+  MemberIdMappingCache getMemberIdMappingCache() {
+    return memberIdsCache;
+  }
+
+  MemberIdMappingCache getSiteUserMappingCache() {
+    return siteUserCache;
+  }
+
+  /**
+   * Wraps {@code port} so that its calls are logged and recorded in the metrics sink, and then
+   * throttled. The throttle is outermost so the recorded latency doesn't include the wait for an
+   * {@link AdaptiveThrottle} permit.
+   */
+  private <T> T instrument(Class<T> webServiceInterface, T port, String endpoint)
+      throws IOException {
+    T logged = LoggingWSHandler.create(webServiceInterface, port, webServiceMetricsSink, endpoint);
+    return ThrottlingWSHandler.create(webServiceInterface, logged, throttle, endpoint);
+  }
+
   private static String getEndpoint(String url) throws IOException {
     try {
       return SharePointUrl.escape(url).toString();
@@ -168,6 +220,12 @@ class SiteConnectorFactoryImpl implements SiteConnectorFactory {
     private boolean stripDomainInUserPrincipals;
     private SharePointDeploymentType sharePointDeploymentType =
         SharePointDeploymentType.ON_PREMISES;
+    private long memberIdMappingCacheExpirationSecs =
+        SiteConnector.DEFAULT_MEMBER_ID_MAPPING_EXPIRATION_SECS;
+    private long siteUserMappingCacheExpirationSecs =
+        SiteConnector.DEFAULT_SITE_USER_MAPPING_EXPIRATION_SECS;
+    private WebServiceMetricsSink webServiceMetricsSink = WebServiceMetricsSink.NO_OP;
+    private AdaptiveThrottle throttle = AdaptiveThrottle.DISABLED;
 
     public Builder() {
       soapFactory = new SoapFactoryImpl();
@@ -212,6 +270,26 @@ class SiteConnectorFactoryImpl implements SiteConnectorFactory {
       return this;
     }
 
+    Builder setMemberIdMappingCacheExpirationSecs(long memberIdMappingCacheExpirationSecs) {
+      this.memberIdMappingCacheExpirationSecs = memberIdMappingCacheExpirationSecs;
+      return this;
+    }
+
+    Builder setSiteUserMappingCacheExpirationSecs(long siteUserMappingCacheExpirationSecs) {
+      this.siteUserMappingCacheExpirationSecs = siteUserMappingCacheExpirationSecs;
+      return this;
+    }
+
+    Builder setWebServiceMetricsSink(WebServiceMetricsSink webServiceMetricsSink) {
+      this.webServiceMetricsSink = webServiceMetricsSink;
+      return this;
+    }
+
+    Builder setThrottle(AdaptiveThrottle throttle) {
+      this.throttle = throttle;
+      return this;
+    }
+
     public SiteConnectorFactoryImpl build() {
       return new SiteConnectorFactoryImpl(this);
     }
@@ -17,6 +17,7 @@
 package com.google.enterprise.cloudsearch.sharepoint;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
 import com.microsoft.schemas.sharepoint.soap.ContentDatabase;
 import com.microsoft.schemas.sharepoint.soap.Item;
 import com.microsoft.schemas.sharepoint.soap.ItemData;
@@ -28,9 +29,8 @@ import com.microsoft.schemas.sharepoint.soap.SiteDataSoap;
 import com.microsoft.schemas.sharepoint.soap.VirtualServer;
 import com.microsoft.schemas.sharepoint.soap.Web;
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.Map;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -62,6 +62,28 @@ class SiteDataClient {
   private static final String XMLNS
       = "http://schemas.microsoft.com/sharepoint/soap/";
 
+  /** Rewrites adding SharePoint's namespace to the root element of each response type. */
+  private static final ImmutableMap<String, String> VIRTUAL_SERVER_NS =
+      ImmutableMap.of("<VirtualServer>", "<VirtualServer xmlns='" + XMLNS + "'>");
+  private static final ImmutableMap<String, String> CONTENT_DATABASE_NS =
+      ImmutableMap.of("<ContentDatabase>", "<ContentDatabase xmlns='" + XMLNS + "'>");
+  private static final ImmutableMap<String, String> SITE_NS =
+      ImmutableMap.of("<Site>", "<Site xmlns='" + XMLNS + "'>");
+  private static final ImmutableMap<String, String> WEB_NS =
+      ImmutableMap.of("<Web>", "<Web xmlns='" + XMLNS + "'>");
+  private static final ImmutableMap<String, String> LIST_NS =
+      ImmutableMap.of("<List>", "<List xmlns='" + XMLNS + "'>");
+  private static final ImmutableMap<String, String> FOLDER_NS =
+      ImmutableMap.of("<Folder>", "<Folder xmlns='" + XMLNS + "'>");
+  private static final ImmutableMap<String, String> ATTACHMENTS_NS =
+      ImmutableMap.of("<Item ", "<Item xmlns='" + XMLNS + "' ");
+  private static final ImmutableMap<String, String> SP_CONTENT_DATABASE_NS =
+      ImmutableMap.of("<SPContentDatabase ", "<SPContentDatabase xmlns='" + XMLNS + "' ");
+  private static final ImmutableMap<String, String> SP_SITE_NS =
+      ImmutableMap.of("<SPSite ", "<SPSite xmlns='" + XMLNS + "' ");
+  private static final ImmutableMap<String, String> ITEM_DATA_NS =
+      ImmutableMap.of("<Item>", "<ItemData xmlns='" + XMLNS + "'>", "</Item>", "</ItemData>");
+
   private static final Logger log
       = Logger.getLogger(SiteDataClient.class.getName());
   /**
@@ -75,27 +97,8 @@ class SiteDataClient {
    */
   private static final Schema schema;
 
-  // Unused character range 1 : &#00; - &#08; or &#0; - &#8;
-  private static final String UNUSED_CHAR_RANGE1 = "((0[0-8])|[0-8])";
-  // Unused character range 2 : &#11; - &#12;
-  private static final String UNUSED_CHAR_RANGE2 = "(1[12])";
-  // Unused character range 3 : &#14; - &#31;
-  private static final String UNUSED_CHAR_RANGE3 = "(1[4-9]|2[0-9]|3[01])";
-  // Unused character range 4 : &#127; - &#159;
-  private static final String UNUSED_CHAR_RANGE4 = "(1(2[7-9]|[3-5][0-9]))";
-
-  /** Pattern to match unused character code ranges causing XML parsing to fail. */
-  private static final Pattern BINARY_UNUSED_CHAR_PATTERN =
-      Pattern.compile(
-          "&#("
-              + UNUSED_CHAR_RANGE1
-              + "|"
-              + UNUSED_CHAR_RANGE2
-              + "|"
-              + UNUSED_CHAR_RANGE3
-              + "|"
-              + UNUSED_CHAR_RANGE4
-              + ");");
+  private static final ThreadLocal<Unmarshaller> validatingUnmarshaller = new ThreadLocal<>();
+  private static final ThreadLocal<Unmarshaller> nonValidatingUnmarshaller = new ThreadLocal<>();
 
   static {
     try {
@@ -127,14 +130,30 @@ class SiteDataClient {
   private final boolean xmlValidation;
 
   public SiteDataClient(SiteDataSoap siteDataSoap, boolean xmlValidation) {
+    this(siteDataSoap, xmlValidation, true);
+  }
+
+  private SiteDataClient(SiteDataSoap siteDataSoap, boolean xmlValidation,
+      boolean logCalls) {
     if (siteDataSoap == null) {
       throw new NullPointerException();
     }
-    siteDataSoap = LoggingWSHandler.create(SiteDataSoap.class, siteDataSoap);
+    if (logCalls) {
+      siteDataSoap = LoggingWSHandler.create(SiteDataSoap.class, siteDataSoap);
+    }
     this.siteData = new CheckedExceptionSiteDataSoapAdapter(siteDataSoap);
     this.xmlValidation = xmlValidation;
   }
 
+  /**
+   * Returns a client for {@code siteDataSoap} which is already wrapped by a
+   * {@link LoggingWSHandler}, so that its calls aren't logged twice.
+   */
+  static SiteDataClient forLoggedSiteData(SiteDataSoap siteDataSoap,
+      boolean xmlValidation) {
+    return new SiteDataClient(siteDataSoap, xmlValidation, false);
+  }
+
   public long getSiteAndWeb(String strUrl, Holder<String> strSite,
       Holder<String> strWeb) throws IOException {
     Holder<Long> getSiteAndWebResult = new Holder<Long>();
@@ -157,10 +176,7 @@ class SiteDataClient {
     Holder<String> result = new Holder<String>();
     siteData.getContent(ObjectType.VIRTUAL_SERVER, null, null, null, true,
         false, null, result);
-    String xml = result.value;
-    xml = xml.replace("<VirtualServer>",
-        "<VirtualServer xmlns='" + XMLNS + "'>");
-    VirtualServer vs = jaxbParse(xml, VirtualServer.class);
+    VirtualServer vs = jaxbParse(result.value, VirtualServer.class, VIRTUAL_SERVER_NS);
     log.exiting("SiteDataClient", "getContentVirtualServer", vs);
     return vs;
   }
@@ -171,10 +187,7 @@ class SiteDataClient {
     Holder<String> result = new Holder<String>();
     siteData.getContent(ObjectType.CONTENT_DATABASE, id, null, null,
         retrieveChildItems, false, null, result);
-    String xml = result.value;
-    xml = xml.replace("<ContentDatabase>",
-        "<ContentDatabase xmlns='" + XMLNS + "'>");
-    ContentDatabase cd = jaxbParse(xml, ContentDatabase.class);
+    ContentDatabase cd = jaxbParse(result.value, ContentDatabase.class, CONTENT_DATABASE_NS);
     log.exiting("SiteDataClient", "getContentContentDatabase", cd);
     return cd;
   }
@@ -187,9 +200,7 @@ class SiteDataClient {
     // input value consulted.
     siteData.getContent(ObjectType.SITE_COLLECTION, null, null, null,
         retrieveChildItems, false, null, result);
-    String xml = result.value;
-    xml = xml.replace("<Site>", "<Site xmlns='" + XMLNS + "'>");
-    Site site = jaxbParse(xml, Site.class);
+    Site site = jaxbParse(result.value, Site.class, SITE_NS);
     log.exiting("SiteDataClient", "getContentSite", site);
     return site;
   }
@@ -199,9 +210,7 @@ class SiteDataClient {
     Holder<String> result = new Holder<String>();
     siteData.getContent(ObjectType.SITE, null, null, null, true, false, null,
         result);
-    String xml = result.value;
-    xml = xml.replace("<Web>", "<Web xmlns='" + XMLNS + "'>");
-    Web web = jaxbParse(xml, Web.class);
+    Web web = jaxbParse(result.value, Web.class, WEB_NS);
     log.exiting("SiteDataClient", "getContentWeb", web);
     return web;
   }
@@ -212,10 +221,8 @@ class SiteDataClient {
     Holder<String> result = new Holder<String>();
     siteData.getContent(ObjectType.LIST, id, null, null, false, false, null,
         result);
-    String xml = result.value;
-    xml = xml.replace("<List>", "<List xmlns='" + XMLNS + "'>");
-    com.microsoft.schemas.sharepoint.soap.List list = jaxbParse(xml,
-        com.microsoft.schemas.sharepoint.soap.List.class);
+    com.microsoft.schemas.sharepoint.soap.List list =
+        jaxbParse(result.value, com.microsoft.schemas.sharepoint.soap.List.class, LIST_NS);
     log.exiting("SiteDataClient", "getContentList", list);
     return list;
   }
@@ -227,10 +234,7 @@ class SiteDataClient {
     Holder<String> result = new Holder<String>();
     siteData.getContent(ObjectType.LIST_ITEM, listId, "", itemId, false,
         false, null, result);
-    String xml = result.value;
-    xml = xml.replace("<Item>", "<ItemData xmlns='" + XMLNS + "'>");
-    xml = xml.replace("</Item>", "</ItemData>");
-    ItemData data = jaxbParse(xml, ItemData.class);
+    ItemData data = jaxbParse(result.value, ItemData.class, ITEM_DATA_NS);
     log.exiting("SiteDataClient", "getContentItem", data);
     return data;
   }
@@ -248,9 +252,7 @@ class SiteDataClient {
       Holder<String> result = new Holder<String>();
       siteData.getContent(ObjectType.FOLDER, guid, url, null, true, false,
           lastItemIdOnPage, result);
-      String xml = result.value;
-      xml = xml.replace("<Folder>", "<Folder xmlns='" + XMLNS + "'>");
-      return jaxbParse(xml, ItemData.class);
+      return jaxbParse(result.value, ItemData.class, FOLDER_NS);
     };
   }
 
@@ -261,9 +263,7 @@ class SiteDataClient {
     Holder<String> result = new Holder<String>();
     siteData.getContent(ObjectType.LIST_ITEM_ATTACHMENTS, listId, "",
         itemId, true, false, null, result);
-    String xml = result.value;
-    xml = xml.replace("<Item ", "<Item xmlns='" + XMLNS + "' ");
-    Item item = jaxbParse(xml, Item.class);
+    Item item = jaxbParse(result.value, Item.class, ATTACHMENTS_NS);
     log.exiting("SiteDataClient", "getContentListItemAttachments", item);
     return item;
   }
@@ -299,9 +299,7 @@ class SiteDataClient {
             result,
             moreChanges);
         // XmlProcessingExceptions fine after this point.
-        String xml = result.value;
-        xml = xml.replace("<SPContentDatabase ", "<SPContentDatabase xmlns='" + XMLNS + "' ");
-        return jaxbParse(xml, SPContentDatabase.class);
+        return jaxbParse(result.value, SPContentDatabase.class, SP_CONTENT_DATABASE_NS);
       }
 
       @Override
@@ -342,9 +340,7 @@ class SiteDataClient {
             result,
             moreChanges);
         // XmlProcessingExceptions fine after this point.
-        String xml = result.value;
-        xml = xml.replace("<SPSite ", "<SPSite xmlns='" + XMLNS + "' ");
-        return jaxbParse(xml, SPSite.class);
+        return jaxbParse(result.value, SPSite.class, SP_SITE_NS);
       }
 
       @Override
@@ -357,29 +353,52 @@ class SiteDataClient {
   @VisibleForTesting
   <T> T jaxbParse(String xml, Class<T> klass)
       throws XmlProcessingException {
-    return jaxbParse(xml, klass, xmlValidation);
+    return jaxbParse(xml, klass, ImmutableMap.of(), xmlValidation);
+  }
+
+  private <T> T jaxbParse(String xml, Class<T> klass, Map<String, String> rewrites)
+      throws XmlProcessingException {
+    return jaxbParse(xml, klass, rewrites, xmlValidation);
   }
 
   @VisibleForTesting
   public static <T> T jaxbParse(String xml, Class<T> klass, boolean xmlValidation)
       throws XmlProcessingException {
+    return jaxbParse(xml, klass, ImmutableMap.of(), xmlValidation);
+  }
 
-    // Unsupported character codes such as Unit separator &#31; sometimes
-    // present in response XML, but it prevents the XML from being parsed.
-    // Since GSA can not handle these characters we strip it out.
-
-    xml = BINARY_UNUSED_CHAR_PATTERN.matcher(xml).replaceAll("");
-
-    Source source = new StreamSource(new StringReader(xml));
+  /**
+   * Unmarshals {@code xml} after applying {@code rewrites}. Unsupported character codes such as
+   * Unit separator &#31; are sometimes present in response XML, but prevent the XML from being
+   * parsed, so they are stripped out. Both happen while the parser reads the response.
+   */
+  static <T> T jaxbParse(
+      String xml, Class<T> klass, Map<String, String> rewrites, boolean xmlValidation)
+      throws XmlProcessingException {
+    Source source = new StreamSource(new XmlResponseReader(xml, rewrites));
     try {
-      Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+      return getUnmarshaller(xmlValidation).unmarshal(source, klass).getValue();
+    } catch (JAXBException ex) {
+      throw new XmlProcessingException(ex, xml);
+    }
+  }
+
+  /**
+   * Unmarshallers are not thread safe but are cheap to reuse, so each thread keeps its own instead
+   * of creating one, and setting the schema, for every response.
+   */
+  private static Unmarshaller getUnmarshaller(boolean xmlValidation) throws JAXBException {
+    ThreadLocal<Unmarshaller> threadUnmarshaller =
+        xmlValidation ? validatingUnmarshaller : nonValidatingUnmarshaller;
+    Unmarshaller unmarshaller = threadUnmarshaller.get();
+    if (unmarshaller == null) {
+      unmarshaller = jaxbContext.createUnmarshaller();
       if (xmlValidation) {
         unmarshaller.setSchema(schema);
       }
-      return unmarshaller.unmarshal(source, klass).getValue();
-    } catch (JAXBException ex) {
-      throw new XmlProcessingException(ex, xml);
+      threadUnmarshaller.set(unmarshaller);
     }
+    return unmarshaller;
   }
 
   /**
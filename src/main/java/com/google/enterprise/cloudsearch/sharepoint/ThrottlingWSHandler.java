@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.jws.WebMethod;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.handler.MessageContext;
+
+/**
+ * InvocationHandler that wraps WebService instances so that web method calls wait for an {@link
+ * AdaptiveThrottle} permit for the endpoint host. The JAX-WS transport reports HTTP errors as a
+ * {@link WebServiceException} with the status code in its message, which is how calls the host
+ * rejected as overloaded are recognized. Their Retry-After delay is read from the HTTP response
+ * headers in the port's response context.
+ */
+class ThrottlingWSHandler implements InvocationHandler {
+  private static final Pattern HTTP_STATUS_CODE = Pattern.compile("HTTP status code (\\d{3})");
+
+  private final Object wrapped;
+  private final AdaptiveThrottle throttle;
+  private final String host;
+
+  ThrottlingWSHandler(Object wrapped, AdaptiveThrottle throttle, String host) {
+    this.wrapped = checkNotNull(wrapped);
+    this.throttle = checkNotNull(throttle);
+    this.host = checkNotNull(host);
+  }
+
+  /**
+   * Returns {@code wrapped} as is if {@code throttle} is disabled, or a proxy which throttles
+   * calls to the host of {@code endpoint} otherwise.
+   */
+  static <T> T create(
+      Class<T> webServiceInterface, T wrapped, AdaptiveThrottle throttle, String endpoint)
+      throws IOException {
+    if (!throttle.isEnabled()) {
+      return wrapped;
+    }
+    String host = URI.create(endpoint).getHost();
+    if (host == null) {
+      throw new IOException("No host in web service endpoint " + endpoint);
+    }
+    Object oInstance =
+        Proxy.newProxyInstance(
+            ThrottlingWSHandler.class.getClassLoader(),
+            new Class<?>[] {webServiceInterface},
+            new ThrottlingWSHandler(wrapped, throttle, host));
+    @SuppressWarnings("unchecked")
+    T tInstance = (T) oInstance;
+    return tInstance;
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getAnnotation(WebMethod.class) == null) {
+      return invokeWrapped(method, args);
+    }
+    AdaptiveThrottle.Permit permit = throttle.acquire(host);
+    try {
+      Object ret = invokeWrapped(method, args);
+      permit.succeeded();
+      return ret;
+    } catch (Throwable t) {
+      if (isOverloaded(t)) {
+        permit.overloaded(getRetryAfterMillis());
+      } else {
+        permit.failed();
+      }
+      throw t;
+    }
+  }
+
+  private Object invokeWrapped(Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(wrapped, args);
+    } catch (IllegalAccessException | IllegalArgumentException ex) {
+      throw new RuntimeException("Misconfigured ThrottlingWSHandler", ex);
+    } catch (InvocationTargetException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  /**
+   * Returns the delay asked for by the Retry-After header of the last response to {@code wrapped},
+   * or 0 if it isn't known.
+   */
+  private long getRetryAfterMillis() {
+    if (!(wrapped instanceof BindingProvider)) {
+      return 0;
+    }
+    Map<String, Object> responseContext = ((BindingProvider) wrapped).getResponseContext();
+    Object headers =
+        responseContext == null ? null : responseContext.get(MessageContext.HTTP_RESPONSE_HEADERS);
+    if (!(headers instanceof Map)) {
+      return 0;
+    }
+    for (Map.Entry<?, ?> header : ((Map<?, ?>) headers).entrySet()) {
+      // Header names are case insensitive.
+      if (AdaptiveThrottle.HTTP_RETRY_AFTER_HEADER.equalsIgnoreCase(
+              String.valueOf(header.getKey()))
+          && header.getValue() instanceof List
+          && !((List<?>) header.getValue()).isEmpty()) {
+        return AdaptiveThrottle.parseRetryAfterMillis(
+            String.valueOf(((List<?>) header.getValue()).get(0)));
+      }
+    }
+    return 0;
+  }
+
+  /** Returns true if {@code t} reports HTTP 429 or 503 from the host. */
+  static boolean isOverloaded(Throwable t) {
+    for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+      if (!(cause instanceof WebServiceException) || cause.getMessage() == null) {
+        continue;
+      }
+      Matcher matcher = HTTP_STATUS_CODE.matcher(cause.getMessage());
+      if (matcher.find() && AdaptiveThrottle.isOverloaded(Integer.parseInt(matcher.group(1)))) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
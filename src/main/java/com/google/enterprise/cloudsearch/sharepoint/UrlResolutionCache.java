@@ -0,0 +1,248 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local replacement for {@link SiteDataClient#getSiteAndWeb} and {@link
+ * SiteDataClient#getUrlSegments} lookups, populated from what traversal and change records
+ * already know about a URL.
+ *
+ * <p>Site and web are resolved from exact URL entries, or from URL prefixes which can not contain
+ * a sub web, such as the root folder of a list. Cache misses are expected and callers fall back
+ * to SharePoint.
+ */
+class UrlResolutionCache {
+  static final int DEFAULT_MAX_SIZE = 50000;
+  static final int DEFAULT_EXPIRATION_SECS = 30 * 60;
+
+  private static final Splitter PATH_SPLITTER = Splitter.on('/');
+
+  /** Site collection and web containing a URL. */
+  static final class SiteAndWeb {
+    final String site;
+    final String web;
+
+    SiteAndWeb(String site, String web) {
+      this.site = checkNotNull(site);
+      this.web = checkNotNull(web);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof SiteAndWeb)) {
+        return false;
+      }
+      SiteAndWeb other = (SiteAndWeb) o;
+      return site.equals(other.site) && web.equals(other.web);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(site, web);
+    }
+
+    @Override
+    public String toString() {
+      return "SiteAndWeb(" + site + ", " + web + ")";
+    }
+  }
+
+  /** List and item identifiers for a list item or folder URL. */
+  static final class ListItemLocation {
+    final String listId;
+    final String itemId;
+
+    ListItemLocation(String listId, String itemId) {
+      this.listId = checkNotNull(listId);
+      this.itemId = checkNotNull(itemId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ListItemLocation)) {
+        return false;
+      }
+      ListItemLocation other = (ListItemLocation) o;
+      return listId.equals(other.listId) && itemId.equals(other.itemId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(listId, itemId);
+    }
+
+    @Override
+    public String toString() {
+      return "ListItemLocation(" + listId + ", " + itemId + ")";
+    }
+  }
+
+  private final Cache<String, SiteAndWeb> siteAndWebByUrl;
+  private final Cache<String, ListItemLocation> listItemByUrl;
+  private final PrefixTrie<SiteAndWeb> siteAndWebByPrefix;
+
+  UrlResolutionCache(int maxSize, long expirationSecs) {
+    checkArgument(maxSize >= 0, "maximum size can not be less than 0");
+    checkArgument(expirationSecs >= 0, "cache expiration can not be less than 0");
+    this.siteAndWebByPrefix =
+        new PrefixTrie<>(maxSize, TimeUnit.SECONDS.toNanos(expirationSecs));
+    this.siteAndWebByUrl =
+        CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(expirationSecs, TimeUnit.SECONDS)
+            .build();
+    this.listItemByUrl =
+        CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(expirationSecs, TimeUnit.SECONDS)
+            .build();
+  }
+
+  /**
+   * Creates cache from configuration.
+   *
+   * <ul>
+   *   <li>sharepoint.urlCache.maxSize - maximum entries per lookup kind, default 50000
+   *   <li>sharepoint.urlCache.expirationSecs - default 1800
+   * </ul>
+   */
+  static UrlResolutionCache fromConfiguration() {
+    checkState(Configuration.isInitialized(), "Configuration not initialized yet");
+    return new UrlResolutionCache(
+        Configuration.getInteger("sharepoint.urlCache.maxSize", DEFAULT_MAX_SIZE).get(),
+        Configuration.getInteger("sharepoint.urlCache.expirationSecs", DEFAULT_EXPIRATION_SECS)
+            .get());
+  }
+
+  Optional<SiteAndWeb> getSiteAndWeb(String url) {
+    SiteAndWeb exact = siteAndWebByUrl.getIfPresent(url);
+    if (exact != null) {
+      return Optional.of(exact);
+    }
+    return siteAndWebByPrefix.getLongestPrefixMatch(url);
+  }
+
+  /** Records site and web for exactly {@code url}. */
+  void putSiteAndWeb(String url, SiteAndWeb siteAndWeb) {
+    siteAndWebByUrl.put(url, siteAndWeb);
+  }
+
+  /**
+   * Records site and web for {@code urlPrefix} and every URL below it. Must only be used for
+   * prefixes which can not contain a sub web, such as a list root folder.
+   */
+  void putSiteAndWebPrefix(String urlPrefix, SiteAndWeb siteAndWeb) {
+    siteAndWebByPrefix.put(urlPrefix, siteAndWeb);
+  }
+
+  Optional<ListItemLocation> getListItem(String url) {
+    return Optional.ofNullable(listItemByUrl.getIfPresent(url));
+  }
+
+  void putListItem(String url, ListItemLocation location) {
+    listItemByUrl.put(url, location);
+  }
+
+  /** Discards cached list item identifiers for {@code url}, e.g. after item was moved. */
+  void invalidateListItem(String url) {
+    listItemByUrl.invalidate(url);
+  }
+
+  /**
+   * Trie keyed by '/' separated URL segments. Instead of tracking expiration per entry, the whole
+   * trie is cleared when full or when its oldest entry expires.
+   */
+  private static final class PrefixTrie<V> {
+    private final Node<V> root = new Node<>();
+    private final int maxSize;
+    private final long expirationNanos;
+    private int size;
+    private long firstWriteNanos;
+
+    PrefixTrie(int maxSize, long expirationNanos) {
+      this.maxSize = maxSize;
+      this.expirationNanos = expirationNanos;
+    }
+
+    synchronized Optional<V> getLongestPrefixMatch(String url) {
+      clearIfExpired();
+      Node<V> current = root;
+      V match = null;
+      for (String segment : PATH_SPLITTER.split(url)) {
+        current = current.children.get(segment);
+        if (current == null) {
+          break;
+        }
+        if (current.value != null) {
+          match = current.value;
+        }
+      }
+      return Optional.ofNullable(match);
+    }
+
+    synchronized void put(String urlPrefix, V value) {
+      clearIfExpired();
+      if (size >= maxSize) {
+        // Entries are cheap to learn again from traversal.
+        clear();
+      }
+      if (size == 0) {
+        firstWriteNanos = System.nanoTime();
+      }
+      List<String> segments = PATH_SPLITTER.splitToList(urlPrefix);
+      Node<V> current = root;
+      for (String segment : segments) {
+        current = current.children.computeIfAbsent(segment, k -> new Node<>());
+      }
+      if (current.value == null) {
+        size++;
+      }
+      current.value = value;
+    }
+
+    private void clearIfExpired() {
+      if (size > 0 && System.nanoTime() - firstWriteNanos >= expirationNanos) {
+        clear();
+      }
+    }
+
+    private void clear() {
+      root.children.clear();
+      size = 0;
+    }
+  }
+
+  private static final class Node<V> {
+    private final Map<String, Node<V>> children = new HashMap<>();
+    private V value;
+  }
+}
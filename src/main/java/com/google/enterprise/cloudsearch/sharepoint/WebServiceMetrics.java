@@ -0,0 +1,332 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Aggregates per web method call count, error count, latency histogram and response size of
+ * SharePoint web service calls, overall and per host. Exposed through JMX and a periodic summary
+ * log line, so slow crawls can be attributed without FINE logging. Endpoints are per web, so calls
+ * are aggregated by host rather than endpoint to keep the number of entries bounded by the number
+ * of web applications. Counters of registered {@link MemberIdMappingCache} instances are reported
+ * alongside, since a poor hit rate there shows up as extra web service calls.
+ */
+class WebServiceMetrics implements WebServiceMetricsSink, WebServiceMetricsMXBean {
+  private static final Logger log = Logger.getLogger(WebServiceMetrics.class.getName());
+
+  static final int DEFAULT_SUMMARY_LOG_INTERVAL_SECS = 10 * 60;
+  static final String OBJECT_NAME =
+      "com.google.enterprise.cloudsearch.sharepoint:type=WebServiceMetrics";
+
+  private static final long[] LATENCY_BUCKET_BOUNDS_MILLIS =
+      {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+  private final ConcurrentMap<String, OperationStats> byOperation = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, OperationStats> byHost = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, MemberIdMappingCache> caches = new ConcurrentHashMap<>();
+  private final boolean jmxEnabled;
+  private final int summaryLogIntervalSecs;
+  private ObjectName registeredName;
+
+  WebServiceMetrics(boolean jmxEnabled, int summaryLogIntervalSecs) {
+    checkArgument(summaryLogIntervalSecs >= 0, "summary log interval can not be less than 0");
+    this.jmxEnabled = jmxEnabled;
+    this.summaryLogIntervalSecs = summaryLogIntervalSecs;
+  }
+
+  /**
+   * Creates metrics from configuration.
+   *
+   * <ul>
+   *   <li>sharepoint.metrics.jmxEnabled - register metrics as an MXBean, default true
+   *   <li>sharepoint.metrics.summaryLogIntervalSecs - interval between summary log lines, default
+   *       600. Use 0 to disable summary logging.
+   * </ul>
+   */
+  static WebServiceMetrics fromConfiguration() {
+    checkState(Configuration.isInitialized(), "Configuration not initialized yet");
+    return new WebServiceMetrics(
+        Configuration.getBoolean("sharepoint.metrics.jmxEnabled", true).get(),
+        Configuration.getInteger(
+                "sharepoint.metrics.summaryLogIntervalSecs", DEFAULT_SUMMARY_LOG_INTERVAL_SECS)
+            .get());
+  }
+
+  int getSummaryLogIntervalSecs() {
+    return summaryLogIntervalSecs;
+  }
+
+  @Override
+  public void record(
+      String endpoint, String operation, long durationMillis, long responseChars, boolean failed) {
+    byOperation
+        .computeIfAbsent(operation, k -> new OperationStats())
+        .record(durationMillis, responseChars, failed);
+    byHost
+        .computeIfAbsent(getHost(endpoint) + " " + operation, k -> new OperationStats())
+        .record(durationMillis, responseChars, failed);
+  }
+
+  /** Returns the host and port, if any, of {@code endpoint}, or {@code endpoint} if it has none. */
+  @VisibleForTesting
+  static String getHost(String endpoint) {
+    try {
+      String authority = new URI(endpoint).getRawAuthority();
+      return authority == null ? endpoint : authority.toLowerCase(Locale.ENGLISH);
+    } catch (URISyntaxException e) {
+      return endpoint;
+    }
+  }
+
+  /**
+   * Reports the counters of {@code cache} through JMX and the summary log line, replacing any
+   * cache registered under the same name.
+   */
+  void registerCache(MemberIdMappingCache cache) {
+    caches.put(cache.getName(), cache);
+  }
+
+  /** Registers this instance as an MXBean, replacing any previously registered instance. */
+  synchronized void registerMBean() {
+    if (!jmxEnabled || registeredName != null) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+      registeredName = name;
+    } catch (JMException e) {
+      log.log(Level.WARNING, "Failed to register web service metrics MXBean", e);
+    }
+  }
+
+  synchronized void unregisterMBean() {
+    if (registeredName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+    } catch (JMException e) {
+      log.log(Level.FINE, "Failed to unregister web service metrics MXBean", e);
+    }
+    registeredName = null;
+  }
+
+  /**
+   * Logs a summary line per web method, slowest total latency first, followed by the counters of
+   * registered caches.
+   */
+  void logSummary() {
+    if (!byOperation.isEmpty()) {
+      log.log(Level.INFO, "SharePoint web service calls:\n{0}", getSummary());
+    }
+    if (!caches.isEmpty()) {
+      log.log(Level.INFO, "SharePoint mapping caches: {0}", new TreeMap<>(caches).values());
+    }
+  }
+
+  @Override
+  public Map<String, Long> getCallCounts() {
+    return snapshot(byOperation, s -> s.calls.sum());
+  }
+
+  @Override
+  public Map<String, Long> getErrorCounts() {
+    return snapshot(byOperation, s -> s.errors.sum());
+  }
+
+  @Override
+  public Map<String, Long> getTotalLatencyMillis() {
+    return snapshot(byOperation, s -> s.totalMillis.sum());
+  }
+
+  @Override
+  public Map<String, Long> getMaxLatencyMillis() {
+    return snapshot(byOperation, s -> s.maxMillis.get());
+  }
+
+  @Override
+  public Map<String, Long> getResponseChars() {
+    return snapshot(byOperation, s -> s.responseChars.sum());
+  }
+
+  @Override
+  public long[] getLatencyBucketBoundsMillis() {
+    return LATENCY_BUCKET_BOUNDS_MILLIS.clone();
+  }
+
+  @Override
+  public Map<String, long[]> getLatencyHistograms() {
+    Map<String, long[]> histograms = new TreeMap<>();
+    byOperation.forEach((operation, stats) -> histograms.put(operation, stats.histogram()));
+    return histograms;
+  }
+
+  @Override
+  public Map<String, Long> getCallCountsByHost() {
+    return snapshot(byHost, s -> s.calls.sum());
+  }
+
+  @Override
+  public Map<String, Long> getTotalLatencyMillisByHost() {
+    return snapshot(byHost, s -> s.totalMillis.sum());
+  }
+
+  @Override
+  public Map<String, Long> getCacheCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    caches.forEach(
+        (name, cache) -> {
+          counts.put(name + " hits", cache.getHitCount());
+          counts.put(name + " misses", cache.getMissCount());
+          counts.put(name + " refreshes", cache.getRefreshCount());
+          counts.put(name + " size", cache.getSize());
+        });
+    return counts;
+  }
+
+  @Override
+  public String getSummary() {
+    StringBuilder summary = new StringBuilder();
+    byOperation
+        .entrySet()
+        .stream()
+        .sorted(
+            Comparator.comparingLong(
+                    (Map.Entry<String, OperationStats> e) -> e.getValue().totalMillis.sum())
+                .reversed())
+        .forEach(e -> e.getValue().appendSummary(e.getKey(), summary));
+    return summary.toString();
+  }
+
+  /** Clears web service call metrics. Cache counters are cumulative and are not reset. */
+  @Override
+  public void reset() {
+    byOperation.clear();
+    byHost.clear();
+  }
+
+  private static Map<String, Long> snapshot(
+      Map<String, OperationStats> stats, ToLongFunction<OperationStats> value) {
+    Map<String, Long> snapshot = new TreeMap<>();
+    stats.forEach((key, s) -> snapshot.put(key, value.applyAsLong(s)));
+    return snapshot;
+  }
+
+  @VisibleForTesting
+  static int getBucket(long durationMillis) {
+    for (int i = 0; i < LATENCY_BUCKET_BOUNDS_MILLIS.length; i++) {
+      if (durationMillis <= LATENCY_BUCKET_BOUNDS_MILLIS[i]) {
+        return i;
+      }
+    }
+    return LATENCY_BUCKET_BOUNDS_MILLIS.length;
+  }
+
+  private static class OperationStats {
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalMillis = new LongAdder();
+    private final LongAdder responseChars = new LongAdder();
+    private final LongAccumulator maxMillis = new LongAccumulator(Math::max, 0);
+    private final AtomicLongArray buckets =
+        new AtomicLongArray(LATENCY_BUCKET_BOUNDS_MILLIS.length + 1);
+
+    void record(long durationMillis, long chars, boolean failed) {
+      calls.increment();
+      if (failed) {
+        errors.increment();
+      }
+      totalMillis.add(durationMillis);
+      responseChars.add(chars);
+      maxMillis.accumulate(durationMillis);
+      buckets.incrementAndGet(getBucket(durationMillis));
+    }
+
+    long[] histogram() {
+      long[] histogram = new long[buckets.length()];
+      for (int i = 0; i < histogram.length; i++) {
+        histogram[i] = buckets.get(i);
+      }
+      return histogram;
+    }
+
+    /** Upper bound of the bucket containing the given percentile, or max for the last bucket. */
+    long percentileBound(long[] histogram, long count, double percentile) {
+      long target = (long) Math.ceil(count * percentile);
+      long seen = 0;
+      for (int i = 0; i < LATENCY_BUCKET_BOUNDS_MILLIS.length; i++) {
+        seen += histogram[i];
+        if (seen >= target) {
+          return LATENCY_BUCKET_BOUNDS_MILLIS[i];
+        }
+      }
+      return maxMillis.get();
+    }
+
+    void appendSummary(String operation, StringBuilder summary) {
+      long[] histogram = histogram();
+      long count = calls.sum();
+      summary
+          .append(operation)
+          .append(": calls=")
+          .append(count)
+          .append(" errors=")
+          .append(errors.sum())
+          .append(" totalMs=")
+          .append(totalMillis.sum())
+          .append(" avgMs=")
+          .append(count == 0 ? 0 : totalMillis.sum() / count)
+          .append(" p50Ms<=")
+          .append(percentileBound(histogram, count, 0.5))
+          .append(" p99Ms<=")
+          .append(percentileBound(histogram, count, 0.99))
+          .append(" maxMs=")
+          .append(maxMillis.get())
+          .append(" responseChars=")
+          .append(responseChars.sum())
+          .append('\n');
+    }
+  }
+}
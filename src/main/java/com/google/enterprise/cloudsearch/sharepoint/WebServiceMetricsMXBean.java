@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import java.util.Map;
+
+/**
+ * JMX view of SharePoint web service call metrics. Maps are keyed by web method operation name,
+ * or by "host operation" for the per host attributes. Cache counters are keyed by "cache counter",
+ * e.g. "MemberIdMapping hits".
+ */
+public interface WebServiceMetricsMXBean {
+  Map<String, Long> getCallCounts();
+
+  Map<String, Long> getErrorCounts();
+
+  Map<String, Long> getTotalLatencyMillis();
+
+  Map<String, Long> getMaxLatencyMillis();
+
+  Map<String, Long> getResponseChars();
+
+  /** Upper bounds of latency histogram buckets. The last bucket has no upper bound. */
+  long[] getLatencyBucketBoundsMillis();
+
+  Map<String, long[]> getLatencyHistograms();
+
+  Map<String, Long> getCallCountsByHost();
+
+  Map<String, Long> getTotalLatencyMillisByHost();
+
+  /** Hits, misses, refreshes and size of registered member id mapping caches. */
+  Map<String, Long> getCacheCounts();
+
+  String getSummary();
+
+  void reset();
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+/** Receives one record per SharePoint web service call. */
+@FunctionalInterface
+interface WebServiceMetricsSink {
+  WebServiceMetricsSink NO_OP =
+      (endpoint, operation, durationMillis, responseChars, failed) -> {};
+
+  /**
+   * Records a web service call.
+   *
+   * @param endpoint URL of the web service
+   * @param operation web method operation name
+   * @param durationMillis call duration
+   * @param responseChars number of characters in String values returned by the call
+   * @param failed whether the call threw an exception
+   */
+  void record(
+      String endpoint, String operation, long durationMillis, long responseChars, boolean failed);
+}
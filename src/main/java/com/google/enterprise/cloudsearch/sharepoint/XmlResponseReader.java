@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Reader;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reader over a SiteData XML response which rewrites tags, such as adding SharePoint's namespace
+ * to the root element, and drops character references XML parsers reject. Both are applied while
+ * reading, so the response is never copied.
+ *
+ * <p>Every occurrence of a rewrite target is replaced. Targets must start with {@code '<'}.
+ */
+class XmlResponseReader extends Reader {
+  // Unused character range 1 : &#00; - &#08; or &#0; - &#8;
+  private static final String UNUSED_CHAR_RANGE1 = "((0[0-8])|[0-8])";
+  // Unused character range 2 : &#11; - &#12;
+  private static final String UNUSED_CHAR_RANGE2 = "(1[12])";
+  // Unused character range 3 : &#14; - &#31;
+  private static final String UNUSED_CHAR_RANGE3 = "(1[4-9]|2[0-9]|3[01])";
+  // Unused character range 4 : &#127; - &#159;
+  private static final String UNUSED_CHAR_RANGE4 = "(1(2[7-9]|[3-5][0-9]))";
+
+  /** Pattern to match unused character code ranges causing XML parsing to fail. */
+  static final Pattern BINARY_UNUSED_CHAR_PATTERN =
+      Pattern.compile(
+          "&#("
+              + UNUSED_CHAR_RANGE1
+              + "|"
+              + UNUSED_CHAR_RANGE2
+              + "|"
+              + UNUSED_CHAR_RANGE3
+              + "|"
+              + UNUSED_CHAR_RANGE4
+              + ");");
+
+  /** Length of the longest unused character reference, "&#159;". */
+  private static final int MAX_UNUSED_CHAR_LENGTH = 6;
+
+  private final String xml;
+  private final String[] targets;
+  private final String[] replacements;
+  private final Matcher unusedCharMatcher;
+  private int position;
+  private String pending;
+  private int pendingPosition;
+
+  XmlResponseReader(String xml, Map<String, String> rewrites) {
+    this.xml = checkNotNull(xml);
+    this.targets = new String[rewrites.size()];
+    this.replacements = new String[rewrites.size()];
+    int i = 0;
+    for (Map.Entry<String, String> rewrite : rewrites.entrySet()) {
+      checkArgument(rewrite.getKey().startsWith("<"), "rewrite target must start with '<'");
+      targets[i] = rewrite.getKey();
+      replacements[i] = checkNotNull(rewrite.getValue());
+      i++;
+    }
+    this.unusedCharMatcher = BINARY_UNUSED_CHAR_PATTERN.matcher(xml);
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) {
+    if (len == 0) {
+      return 0;
+    }
+    int count = 0;
+    while (count < len) {
+      if (pending != null) {
+        int n = Math.min(len - count, pending.length() - pendingPosition);
+        pending.getChars(pendingPosition, pendingPosition + n, cbuf, off + count);
+        count += n;
+        pendingPosition += n;
+        if (pendingPosition == pending.length()) {
+          pending = null;
+        }
+        continue;
+      }
+      if (position >= xml.length()) {
+        break;
+      }
+      char c = xml.charAt(position);
+      if (c == '<' && startRewrite()) {
+        continue;
+      }
+      if (c == '&' && skipUnusedChar()) {
+        continue;
+      }
+      // Copy the run up to the next character which may start a rewrite or character reference.
+      int end = position + 1;
+      int limit = Math.min(xml.length(), position + len - count);
+      while (end < limit && xml.charAt(end) != '<' && xml.charAt(end) != '&') {
+        end++;
+      }
+      xml.getChars(position, end, cbuf, off + count);
+      count += end - position;
+      position = end;
+    }
+    return count == 0 ? -1 : count;
+  }
+
+  private boolean startRewrite() {
+    for (int i = 0; i < targets.length; i++) {
+      if (xml.startsWith(targets[i], position)) {
+        position += targets[i].length();
+        pending = replacements[i];
+        pendingPosition = 0;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean skipUnusedChar() {
+    unusedCharMatcher.region(
+        position, Math.min(xml.length(), position + MAX_UNUSED_CHAR_LENGTH));
+    if (!unusedCharMatcher.lookingAt()) {
+      return false;
+    }
+    position = unusedCharMatcher.end();
+    return true;
+  }
+
+  @Override
+  public void close() {}
+}
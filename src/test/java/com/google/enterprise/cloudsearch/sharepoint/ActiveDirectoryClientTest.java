@@ -16,6 +16,7 @@
 
 package com.google.enterprise.cloudsearch.sharepoint;
 
+import static java.util.Arrays.asList;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -25,26 +26,38 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
 import com.google.enterprise.cloudsearch.sharepoint.ActiveDirectoryClient.ADServer;
 import com.google.enterprise.cloudsearch.sharepoint.ActiveDirectoryClient.LdapContextBuilder;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.naming.CommunicationException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.LdapContext;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
@@ -56,6 +69,7 @@ public class ActiveDirectoryClientTest {
   @Rule public ExpectedException thrown = ExpectedException.none();
   @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
   @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
   @Mock ADServer mockAdServer;
   @Mock LdapContextBuilder mockContextBuilder;
@@ -104,6 +118,37 @@ public class ActiveDirectoryClientTest {
     assertEquals("MYDOMAIN\\USER1", actual);
   }
 
+  @Test
+  public void testIdentityCacheStoreWarmStart() throws Exception {
+    Path file = temporaryFolder.getRoot().toPath().resolve("identity-cache");
+    IdentityCacheStore store = new IdentityCacheStore(file, TimeUnit.HOURS.toMillis(1), 0, 0);
+    ActiveDirectoryClient adClient = new ActiveDirectoryClient(mockAdServer, Optional.of(store));
+    when(mockAdServer.getUserAccountBySid("S-1-5-21-736914693-3137354690-2813686979"))
+        .thenReturn(Optional.of("MYDOMAIN"));
+    when(mockAdServer.getUserAccountBySid("S-1-5-21-736914693-3137354690-2813686979-1132"))
+        .thenReturn(Optional.of("USER1"));
+    ActiveDirectoryPrincipal user1 = ActiveDirectoryPrincipal.parse("MYDOMAIN\\user1");
+    when(mockAdServer.getEmailByPrincipal(user1)).thenReturn(Optional.of("user1@mydomain.com"));
+    assertEquals(
+        "MYDOMAIN\\USER1",
+        adClient.getUserAccountBySid("S-1-5-21-736914693-3137354690-2813686979-1132"));
+    assertEquals("user1@mydomain.com", adClient.getUserEmailByPrincipal(user1));
+    adClient.close();
+
+    ADServer restartedServer = mock(ADServer.class);
+    ActiveDirectoryClient restarted =
+        new ActiveDirectoryClient(
+            restartedServer,
+            Optional.of(new IdentityCacheStore(file, TimeUnit.HOURS.toMillis(1), 0, 0)));
+    assertEquals(
+        "MYDOMAIN\\USER1",
+        restarted.getUserAccountBySid("S-1-5-21-736914693-3137354690-2813686979-1132"));
+    assertEquals("user1@mydomain.com", restarted.getUserEmailByPrincipal(user1));
+    verify(restartedServer).start();
+    verifyNoMoreInteractions(restartedServer);
+    restarted.close();
+  }
+
   @Test
   public void testGetUserAccountBySidDomainNotAvailable() throws Exception {
     ActiveDirectoryClient adClient = new ActiveDirectoryClient(mockAdServer);
@@ -361,6 +406,225 @@ public class ActiveDirectoryClientTest {
     client.getUserAccountBySid("S-1-5-21-736914693-3137354690-2813686979-1132");
   }
 
+  @Test
+  public void testGetUserEmailRetriedOnCommunicationException()
+      throws IOException, NamingException {
+    setupLdapContextAndConfig(389);
+    ActiveDirectoryClient client =
+        ActiveDirectoryClient.fromConfiguration(mockContextBuilder).get();
+    NamingEnumeration<SearchResult> mockSearchResult = getMockNamingEnumeration();
+    when(mockContext.search(
+            eq("DC=MYDOMAIN,DC=COM"),
+            eq("(&(objectCategory=person)(objectClass=user)(sAMAccountName=user1))"),
+            any()))
+        .thenThrow(new CommunicationException("connection reset"))
+        .thenReturn(mockSearchResult);
+    when(mockSearchResult.hasMoreElements()).thenReturn(true);
+    Attribute emailAttribute = mock(Attribute.class);
+    when(emailAttribute.get(0)).thenReturn("user1@mydomain.ongoogle.com");
+    Attributes searchResultsAttributes = mock(Attributes.class);
+    when(searchResultsAttributes.get("mail")).thenReturn(emailAttribute);
+    when(mockSearchResult.next())
+        .thenReturn(new SearchResult("result", null, searchResultsAttributes));
+    ActiveDirectoryPrincipal principal = ActiveDirectoryPrincipal.parse("MYDOMAIN\\user1");
+    assertEquals("user1@mydomain.ongoogle.com", client.getUserEmailByPrincipal(principal));
+    // Broken connection is closed and replaced.
+    verify(mockContext).close();
+    verify(mockContextBuilder, times(2)).buildContext(any());
+  }
+
+  @Test
+  public void testCloseClosesPooledConnections() throws IOException, NamingException {
+    setupLdapContextAndConfig(389);
+    ActiveDirectoryClient client =
+        ActiveDirectoryClient.fromConfiguration(mockContextBuilder).get();
+    verify(mockContext, never()).close();
+    client.close();
+    // Connection opened by start() is idle in the pool, and closed with it.
+    verify(mockContext).close();
+  }
+
+  @Test
+  public void testCloseClosesAdServer() throws Exception {
+    ActiveDirectoryClient adClient = new ActiveDirectoryClient(mockAdServer);
+    adClient.close();
+    verify(mockAdServer).close();
+  }
+
+  @Test
+  public void testOrFilter() {
+    assertEquals("(objectSid=S-1-5)", ActiveDirectoryClient.orFilter("objectSid", asList("S-1-5")));
+    assertEquals(
+        "(|(sAMAccountName=a)(sAMAccountName=b\\28x\\29\\2a\\5c))",
+        ActiveDirectoryClient.orFilter("sAMAccountName", asList("a", "b(x)*\\")));
+  }
+
+  @Test
+  public void testDecodeSid() {
+    assertEquals(
+        "S-1-5-21-736914693-3137354690-2813686979-1132",
+        ActiveDirectoryClient.decodeSid(
+            encodeSid(5, 21, 736914693L, 3137354690L, 2813686979L, 1132)));
+  }
+
+  @Test
+  public void testDecodeSidInvalidLength() {
+    thrown.expect(IllegalArgumentException.class);
+    ActiveDirectoryClient.decodeSid(new byte[] {1, 2, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0});
+  }
+
+  @Test
+  public void testPrefetchUserAccountsBySid() throws Exception {
+    ActiveDirectoryClient adClient = new ActiveDirectoryClient(mockAdServer);
+    when(mockAdServer.getUserAccountsBySid(
+            ImmutableSet.of(
+                "S-1-5-21-736914693-3137354690-2813686979",
+                "S-1-5-21-736914693-3137354690-2813686979-1132",
+                "S-1-5-21-736914693-3137354690-2813686979-1133")))
+        .thenReturn(
+            ImmutableMap.of(
+                "S-1-5-21-736914693-3137354690-2813686979", Optional.of("MYDOMAIN"),
+                "S-1-5-21-736914693-3137354690-2813686979-1132", Optional.of("GROUP1")));
+    adClient.prefetchUserAccountsBySid(
+        asList(
+            "S-1-5-21-736914693-3137354690-2813686979-1132",
+            "S-1-5-21-736914693-3137354690-2813686979-1133",
+            "invalid",
+            ""));
+    assertEquals(
+        "MYDOMAIN\\GROUP1",
+        adClient.getUserAccountBySid("S-1-5-21-736914693-3137354690-2813686979-1132"));
+    assertNull(adClient.getUserAccountBySid("S-1-5-21-736914693-3137354690-2813686979-1133"));
+    verify(mockAdServer, never()).getUserAccountBySid(any());
+  }
+
+  @Test
+  public void testPrefetchEmailsByPrincipal() throws Exception {
+    ActiveDirectoryClient adClient = new ActiveDirectoryClient(mockAdServer);
+    ActiveDirectoryPrincipal user1 = ActiveDirectoryPrincipal.parse("MYDOMAIN\\user1");
+    ActiveDirectoryPrincipal user2 = ActiveDirectoryPrincipal.parse("MYDOMAIN\\user2");
+    when(mockAdServer.getEmailsByPrincipal(ImmutableSet.of(user1, user2)))
+        .thenReturn(ImmutableMap.of(user1, Optional.of("user1@mydomain.com")));
+    adClient.prefetchEmailsByPrincipal(asList(user1, user2));
+    assertEquals("user1@mydomain.com", adClient.getUserEmailByPrincipal(user1));
+    assertNull(adClient.getUserEmailByPrincipal(user2));
+    verify(mockAdServer, never()).getEmailByPrincipal(any());
+  }
+
+  @Test
+  public void testGetUserAccountsBySidWithLdap() throws IOException, NamingException {
+    setupLdapContextAndConfig(389);
+    ActiveDirectoryClient client =
+        ActiveDirectoryClient.fromConfiguration(mockContextBuilder).get();
+    NamingEnumeration<SearchResult> mockSearchResult = getMockNamingEnumeration();
+    when(mockContext.search(
+            eq("DC=MYDOMAIN,DC=COM"),
+            eq(
+                "(|(objectSid=s-1-5-21-736914693-3137354690-2813686979)"
+                    + "(objectSid=s-1-5-21-736914693-3137354690-2813686979-1132)"
+                    + "(objectSid=s-1-5-21-736914693-3137354690-2813686979-1133))"),
+            any()))
+        .thenReturn(mockSearchResult);
+    when(mockSearchResult.hasMore()).thenReturn(true, true, false);
+    when(mockSearchResult.next())
+        .thenReturn(
+            new SearchResult(
+                "domain",
+                null,
+                attributes(
+                    "name",
+                    "MYDOMAIN",
+                    "objectSid",
+                    encodeSid(5, 21, 736914693L, 3137354690L, 2813686979L))),
+            new SearchResult(
+                "group",
+                null,
+                attributes(
+                    "sAMAccountName",
+                    "GROUP1",
+                    "objectSid",
+                    encodeSid(5, 21, 736914693L, 3137354690L, 2813686979L, 1132))));
+    client.prefetchUserAccountsBySid(
+        asList(
+            "s-1-5-21-736914693-3137354690-2813686979-1132",
+            "s-1-5-21-736914693-3137354690-2813686979-1133"));
+    assertEquals(
+        "MYDOMAIN\\GROUP1",
+        client.getUserAccountBySid("s-1-5-21-736914693-3137354690-2813686979-1132"));
+    assertNull(client.getUserAccountBySid("s-1-5-21-736914693-3137354690-2813686979-1133"));
+  }
+
+  @Test
+  public void testGetEmailsByPrincipalWithLdap() throws IOException, NamingException {
+    setupLdapContextAndConfig(389);
+    ActiveDirectoryClient client =
+        ActiveDirectoryClient.fromConfiguration(mockContextBuilder).get();
+    NamingEnumeration<SearchResult> mockSamAccountResult = getMockNamingEnumeration();
+    when(mockContext.search(
+            eq("DC=MYDOMAIN,DC=COM"),
+            eq(
+                "(&(objectCategory=person)(objectClass=user)"
+                    + "(|(sAMAccountName=user1)(sAMAccountName=user2)))"),
+            any()))
+        .thenReturn(mockSamAccountResult);
+    when(mockSamAccountResult.hasMore()).thenReturn(true, false);
+    when(mockSamAccountResult.next())
+        .thenReturn(
+            new SearchResult(
+                "user1",
+                null,
+                attributes("sAMAccountName", "User1", "mail", "user1@mydomain.ongoogle.com")));
+    NamingEnumeration<SearchResult> mockUpnResult = getMockNamingEnumeration();
+    when(mockContext.search(
+            eq("DC=MYDOMAIN,DC=COM"),
+            eq("(&(objectCategory=person)(objectClass=user)(userPrincipalName=u3@mydomain.com))"),
+            any()))
+        .thenReturn(mockUpnResult);
+    when(mockUpnResult.hasMore()).thenReturn(true, false);
+    when(mockUpnResult.next())
+        .thenReturn(
+            new SearchResult(
+                "u3",
+                null,
+                attributes(
+                    "userPrincipalName",
+                    "u3@mydomain.com",
+                    "mail",
+                    "user3@mydomain.ongoogle.com")));
+    ActiveDirectoryPrincipal user1 = ActiveDirectoryPrincipal.parse("MYDOMAIN\\user1");
+    ActiveDirectoryPrincipal user1NoDomain = ActiveDirectoryPrincipal.parse("USER1");
+    ActiveDirectoryPrincipal user2 = ActiveDirectoryPrincipal.parse("MYDOMAIN\\user2");
+    ActiveDirectoryPrincipal user3 = ActiveDirectoryPrincipal.parse("u3@mydomain.com");
+    ActiveDirectoryPrincipal otherDomain = ActiveDirectoryPrincipal.parse("OTHER\\user4");
+    client.prefetchEmailsByPrincipal(asList(user1, user1NoDomain, user2, user3, otherDomain));
+    assertEquals("user1@mydomain.ongoogle.com", client.getUserEmailByPrincipal(user1));
+    assertEquals("user1@mydomain.ongoogle.com", client.getUserEmailByPrincipal(user1NoDomain));
+    assertNull(client.getUserEmailByPrincipal(user2));
+    assertEquals("user3@mydomain.ongoogle.com", client.getUserEmailByPrincipal(user3));
+    assertNull(client.getUserEmailByPrincipal(otherDomain));
+  }
+
+  private static Attributes attributes(Object... namesAndValues) {
+    Attributes attributes = new BasicAttributes();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      attributes.put((String) namesAndValues[i], namesAndValues[i + 1]);
+    }
+    return attributes;
+  }
+
+  private static byte[] encodeSid(long authority, long... subAuthorities) {
+    ByteBuffer sid =
+        ByteBuffer.allocate(8 + 4 * subAuthorities.length).order(ByteOrder.LITTLE_ENDIAN);
+    sid.put((byte) 1).put((byte) subAuthorities.length);
+    for (int shift = 40; shift >= 0; shift -= 8) {
+      sid.put((byte) (authority >> shift));
+    }
+    for (long subAuthority : subAuthorities) {
+      sid.putInt((int) subAuthority);
+    }
+    return sid.array();
+  }
+
   private void setupLadapContextAndConfig() throws NamingException {
     setupLdapContextAndConfig(3268);
   }
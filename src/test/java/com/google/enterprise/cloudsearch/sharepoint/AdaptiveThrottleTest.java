@@ -0,0 +1,301 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link AdaptiveThrottle}. */
+public class AdaptiveThrottleTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testInvalidMinConcurrency() {
+    thrown.expect(IllegalArgumentException.class);
+    new AdaptiveThrottle(0, 8, 300);
+  }
+
+  @Test
+  public void testMaxLessThanMinConcurrency() {
+    thrown.expect(IllegalArgumentException.class);
+    new AdaptiveThrottle(4, 2, 300);
+  }
+
+  @Test
+  public void testDisabledNeverBlocks() throws IOException {
+    assertFalse(AdaptiveThrottle.DISABLED.isEnabled());
+    for (int i = 0; i < 100; i++) {
+      AdaptiveThrottle.DISABLED.acquire("sp.com").overloaded(TimeUnit.MINUTES.toMillis(5));
+    }
+    AdaptiveThrottle.DISABLED.acquire("sp.com");
+  }
+
+  @Test
+  public void testOverloadedHalvesLimit() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    assertTrue(throttle.isEnabled());
+    throttle.acquire("sp.com").overloaded(0);
+    assertEquals(4, throttle.getLimit("sp.com"), 0);
+    assertEquals(8, throttle.getLimit("other.com"), 0);
+  }
+
+  @Test
+  public void testOverloadedOncePerEpisode() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    AdaptiveThrottle.Permit first = throttle.acquire("sp.com");
+    AdaptiveThrottle.Permit second = throttle.acquire("sp.com");
+    first.overloaded(0);
+    // Sent before the limit was decreased, so part of the same overload episode.
+    second.overloaded(0);
+    assertEquals(4, throttle.getLimit("sp.com"), 0);
+    throttle.acquire("sp.com").overloaded(0);
+    assertEquals(2, throttle.getLimit("sp.com"), 0);
+  }
+
+  @Test
+  public void testOverloadedNotBelowMin() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(3, 8, 300);
+    for (int i = 0; i < 5; i++) {
+      throttle.acquire("sp.com").overloaded(0);
+    }
+    assertEquals(3, throttle.getLimit("sp.com"), 0);
+  }
+
+  @Test
+  public void testSucceededIncreasesLimitUpToMax() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    throttle.acquire("sp.com").overloaded(0);
+    for (int i = 0; i < 4; i++) {
+      throttle.acquire("sp.com").succeeded();
+    }
+    double limit = throttle.getLimit("sp.com");
+    assertTrue("limit " + limit, limit > 4 && limit < 5);
+    for (int i = 0; i < 100; i++) {
+      throttle.acquire("sp.com").succeeded();
+    }
+    assertEquals(8, throttle.getLimit("sp.com"), 0);
+  }
+
+  @Test
+  public void testFailedKeepsLimit() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    throttle.acquire("sp.com").overloaded(0);
+    throttle.acquire("sp.com").failed();
+    assertEquals(4, throttle.getLimit("sp.com"), 0);
+  }
+
+  @Test
+  public void testHostsCaseInsensitive() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    throttle.acquire("SP.com").overloaded(0);
+    assertEquals(4, throttle.getLimit("sp.COM"), 0);
+  }
+
+  @Test
+  public void testAcquireWaitsForRelease() throws Exception {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 1, 300);
+    AdaptiveThrottle.Permit held = throttle.acquire("sp.com");
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread waiter =
+        new Thread(
+            () -> {
+              try {
+                throttle.acquire("sp.com").succeeded();
+                acquired.countDown();
+              } catch (IOException e) {
+                throw new AssertionError(e);
+              }
+            });
+    waiter.start();
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    held.succeeded();
+    assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    waiter.join();
+  }
+
+  @Test
+  public void testReleasedOnlyOnce() throws Exception {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 1, 300);
+    AdaptiveThrottle.Permit permit = throttle.acquire("sp.com");
+    permit.succeeded();
+    permit.failed();
+    AdaptiveThrottle.Permit held = throttle.acquire("sp.com");
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread waiter =
+        new Thread(
+            () -> {
+              try {
+                throttle.acquire("sp.com").succeeded();
+                acquired.countDown();
+              } catch (IOException e) {
+                throw new AssertionError(e);
+              }
+            });
+    waiter.start();
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    held.succeeded();
+    assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    waiter.join();
+  }
+
+  @Test
+  public void testRetryAfterHoldsBackRequests() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    throttle.acquire("sp.com").overloaded(200);
+    long start = System.nanoTime();
+    throttle.acquire("sp.com").succeeded();
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+  }
+
+  @Test
+  public void testRetryAfterCapped() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 0);
+    throttle.acquire("sp.com").overloaded(TimeUnit.MINUTES.toMillis(5));
+    long start = System.nanoTime();
+    throttle.acquire("sp.com").succeeded();
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+  }
+
+  @Test
+  public void testAcquireInterrupted() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 1, 300);
+    throttle.acquire("sp.com");
+    Thread.currentThread().interrupt();
+    try {
+      thrown.expect(IOException.class);
+      throttle.acquire("sp.com");
+    } finally {
+      assertTrue(Thread.interrupted());
+    }
+  }
+
+  @Test
+  public void testScheduledConcurrency() throws Exception {
+    CrawlSchedule schedule = schedule("sp.com", "08:00-18:00 concurrency=1");
+    AdaptiveThrottle throttle =
+        new AdaptiveThrottle(true, 1, 8, 300, () -> schedule, clockAt("12:00"));
+    AdaptiveThrottle.Permit held = throttle.acquire("sp.com");
+    // Other hosts are not limited by the schedule.
+    throttle.acquire("other.com");
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread waiter =
+        new Thread(
+            () -> {
+              try {
+                throttle.acquire("sp.com").succeeded();
+                acquired.countDown();
+              } catch (IOException e) {
+                throw new AssertionError(e);
+              }
+            });
+    waiter.start();
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    held.succeeded();
+    assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    waiter.join();
+  }
+
+  @Test
+  public void testScheduledConcurrencyOutsideWindow() throws IOException {
+    CrawlSchedule schedule = schedule("sp.com", "08:00-18:00 concurrency=1");
+    AdaptiveThrottle throttle =
+        new AdaptiveThrottle(true, 1, 8, 300, () -> schedule, clockAt("20:00"));
+    for (int i = 0; i < 8; i++) {
+      throttle.acquire("sp.com");
+    }
+  }
+
+  @Test
+  public void testScheduledRate() throws IOException {
+    CrawlSchedule schedule = schedule("default", "00:00-00:00 rate=20");
+    AdaptiveThrottle throttle =
+        new AdaptiveThrottle(true, 1, 8, 300, () -> schedule, clockAt("12:00"));
+    long start = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      throttle.acquire("sp.com").succeeded();
+    }
+    // The first request is sent right away, the others 50 ms apart.
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+  }
+
+  @Test
+  public void testNotAdaptive() throws IOException {
+    AdaptiveThrottle throttle =
+        new AdaptiveThrottle(
+            false, 1, 8, 300, () -> CrawlSchedule.NONE, clockAt("12:00"));
+    assertTrue(throttle.isEnabled());
+    throttle.acquire("sp.com").overloaded(200);
+    assertEquals(8, throttle.getLimit("sp.com"), 0);
+    // Retry-After is still honored.
+    assertTrue(throttle.isHeldBack("sp.com"));
+    long start = System.nanoTime();
+    throttle.acquire("sp.com").succeeded();
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+    assertEquals(8, throttle.getLimit("sp.com"), 0);
+  }
+
+  @Test
+  public void testIsOverloaded() {
+    assertTrue(AdaptiveThrottle.isOverloaded(429));
+    assertTrue(AdaptiveThrottle.isOverloaded(503));
+    assertFalse(AdaptiveThrottle.isOverloaded(500));
+    assertFalse(AdaptiveThrottle.isOverloaded(200));
+  }
+
+  @Test
+  public void testParseRetryAfterMillis() {
+    assertEquals(0, AdaptiveThrottle.parseRetryAfterMillis(null));
+    assertEquals(0, AdaptiveThrottle.parseRetryAfterMillis(""));
+    assertEquals(0, AdaptiveThrottle.parseRetryAfterMillis("soon"));
+    assertEquals(0, AdaptiveThrottle.parseRetryAfterMillis("-5"));
+    assertEquals(120000, AdaptiveThrottle.parseRetryAfterMillis(" 120 "));
+    assertEquals(
+        0, AdaptiveThrottle.parseRetryAfterMillis("Wed, 21 Oct 2015 07:28:00 GMT"));
+    String inOneHour =
+        ZonedDateTime.now(ZoneOffset.UTC).plusHours(1).format(RFC_1123_DATE_TIME);
+    long millis = AdaptiveThrottle.parseRetryAfterMillis(inOneHour);
+    assertTrue("millis " + millis, millis > TimeUnit.MINUTES.toMillis(58));
+    assertTrue("millis " + millis, millis <= TimeUnit.HOURS.toMillis(1));
+  }
+
+  private static CrawlSchedule schedule(String host, String windows) {
+    Properties properties = new Properties();
+    properties.setProperty(host, windows);
+    return CrawlSchedule.parse(properties);
+  }
+
+  private static Clock clockAt(String time) {
+    return Clock.fixed(
+        LocalDate.of(2018, 10, 1).atTime(LocalTime.parse(time)).toInstant(ZoneOffset.UTC),
+        ZoneOffset.UTC);
+  }
+}
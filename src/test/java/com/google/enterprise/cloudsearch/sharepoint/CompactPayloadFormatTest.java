@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link CompactPayloadFormat}. */
+public class CompactPayloadFormatTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private static final String SITE_ID = "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}";
+  private static final String LIST_URL =
+      "http://localhost:1/sites/SiteCollection/Lists/Custom List";
+
+  @Test
+  public void testListItemRoundTrip() throws IOException {
+    SharePointObject item =
+        new SharePointObject.Builder(SharePointObject.LIST_ITEM)
+            .setSiteId(SITE_ID)
+            .setWebId("{B2EA1067-3A54-4AB7-A459-C8EC864B97EB}")
+            .setListId("133fcb96-7e9b-46c9-b5f3-09770a35ad8a")
+            .setUrl(LIST_URL + "/Test Folder/2_.000")
+            .setObjectId("item")
+            .build();
+    byte[] payload = CompactPayloadFormat.encode(item).get();
+    assertTrue(CompactPayloadFormat.isCompact(payload));
+    assertEquals(item, CompactPayloadFormat.decode(payload));
+    assertTrue(payload.length < item.encodeJsonPayload().length / 2);
+  }
+
+  @Test
+  public void testAttachmentUrlRelativeToItem() throws IOException {
+    String attachmentUrl = LIST_URL + "/Attachments/2/file.txt";
+    SharePointObject attachment =
+        new SharePointObject.Builder(SharePointObject.ATTACHMENT)
+            .setSiteId(SITE_ID)
+            .setWebId(SITE_ID)
+            .setListId("{133fcb96-7e9b-46c9-b5f3-09770a35ad8a}")
+            .setItemId(LIST_URL + "/2_.000")
+            .setObjectId(attachmentUrl)
+            .setUrl(attachmentUrl)
+            .build();
+    byte[] payload = CompactPayloadFormat.encode(attachment).get();
+    assertEquals(attachment, CompactPayloadFormat.decode(payload));
+    // Item URL is written once, and the attachment URL once after it.
+    assertTrue(payload.length < 3 + 3 * 17 + LIST_URL.length() + 2 * 40);
+  }
+
+  @Test
+  public void testTextAndMixedCaseGuid() throws IOException {
+    SharePointObject web =
+        new SharePointObject.Builder(SharePointObject.WEB)
+            .setSiteId("{Bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setWebId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c")
+            .setObjectId("{bb3bb2dd-6ea7-471b-a361-6fb67988755g}")
+            .setUrl("http://\u00e9xample.com/\ud83d\ude00/\ud83d\ude01")
+            .setListId("")
+            .build();
+    assertEquals(web, CompactPayloadFormat.decode(CompactPayloadFormat.encode(web).get()));
+  }
+
+  @Test
+  public void testVirtualServerRoundTrip() throws IOException {
+    SharePointObject vs = new SharePointObject.Builder(SharePointObject.VIRTUAL_SERVER).build();
+    byte[] payload = CompactPayloadFormat.encode(vs).get();
+    assertEquals(9, payload.length);
+    assertEquals(vs, CompactPayloadFormat.decode(payload));
+  }
+
+  @Test
+  public void testNoObjectTypeRoundTrip() throws IOException {
+    SharePointObject empty = new SharePointObject();
+    assertEquals(empty, CompactPayloadFormat.decode(CompactPayloadFormat.encode(empty).get()));
+  }
+
+  @Test
+  public void testUnknownKeysNotEncoded() throws IOException {
+    SharePointObject parsed =
+        SharePointObject.parse("{\"objectType\":\"WEB\",\"extra\":\"value\"}".getBytes(UTF_8));
+    assertEquals(Optional.empty(), CompactPayloadFormat.encode(parsed));
+  }
+
+  @Test
+  public void testUnsupportedObjectTypeNotEncoded() throws IOException {
+    SharePointObject parsed = SharePointObject.parse("{\"objectType\":\"FOO\"}".getBytes(UTF_8));
+    assertEquals(Optional.empty(), CompactPayloadFormat.encode(parsed));
+  }
+
+  @Test
+  public void testJsonIsNotCompact() throws IOException {
+    SharePointObject vs = new SharePointObject.Builder(SharePointObject.VIRTUAL_SERVER).build();
+    assertFalse(CompactPayloadFormat.isCompact(vs.encodeJsonPayload()));
+    assertFalse(CompactPayloadFormat.isCompact(new byte[0]));
+  }
+
+  @Test
+  public void testUnsupportedVersion() throws IOException {
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Unsupported payload version 2");
+    CompactPayloadFormat.decode(new byte[] {0, 2, 1, 0, 0, 0, 0, 0, 0});
+  }
+
+  @Test
+  public void testUnsupportedObjectType() throws IOException {
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Unsupported object type 9");
+    CompactPayloadFormat.decode(new byte[] {0, 1, 9, 0, 0, 0, 0, 0, 0});
+  }
+
+  @Test
+  public void testTruncated() throws IOException {
+    SharePointObject web =
+        new SharePointObject.Builder(SharePointObject.WEB)
+            .setSiteId(SITE_ID)
+            .setUrl(LIST_URL)
+            .build();
+    byte[] payload = CompactPayloadFormat.encode(web).get();
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Truncated payload");
+    CompactPayloadFormat.decode(Arrays.copyOf(payload, payload.length - 1));
+  }
+
+  @Test
+  public void testTrailingData() throws IOException {
+    SharePointObject vs = new SharePointObject.Builder(SharePointObject.VIRTUAL_SERVER).build();
+    byte[] payload = CompactPayloadFormat.encode(vs).get();
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Unexpected data after payload");
+    CompactPayloadFormat.decode(Arrays.copyOf(payload, payload.length + 1));
+  }
+
+  @Test
+  public void testInvalidPrefixField() throws IOException {
+    // Site id refers to the URL, which comes after it.
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Invalid prefix field 5");
+    CompactPayloadFormat.decode(new byte[] {0, 1, 3, 6, 5, 0, 0});
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link ConnectorThreads}. */
+public class ConnectorThreadsTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+
+  @Test
+  public void testFromConfigurationNotInitialized() {
+    thrown.expect(IllegalStateException.class);
+    ConnectorThreads.fromConfiguration();
+  }
+
+  @Test
+  public void testFromConfigurationDefault() {
+    Configuration.initConfig(new Properties());
+    assertSame(ConnectorThreads.PLATFORM, ConnectorThreads.fromConfiguration());
+  }
+
+  @Test
+  public void testFromConfigurationEnabled() {
+    Properties config = new Properties();
+    config.put("sharepoint.virtualThreads.enabled", "true");
+    Configuration.initConfig(config);
+    assertEquals(
+        ConnectorThreads.isVirtualThreadSupported(),
+        ConnectorThreads.fromConfiguration().isVirtual());
+  }
+
+  @Test
+  public void testPlatformThreads() {
+    Thread thread =
+        ConnectorThreads.PLATFORM.newThreadFactory("sharepoint-test-%d").newThread(() -> {});
+    assertEquals("sharepoint-test-0", thread.getName());
+    assertTrue(thread.isDaemon());
+    assertFalse(ConnectorThreads.PLATFORM.isVirtual());
+  }
+
+  @Test
+  public void testVirtualThreads() throws Exception {
+    assumeTrue(ConnectorThreads.isVirtualThreadSupported());
+    ExecutorService pool =
+        ConnectorThreads.virtual().newFixedThreadPool(2, "sharepoint-test-%d");
+    try {
+      Thread thread = pool.submit(Thread::currentThread).get(10, TimeUnit.SECONDS);
+      assertTrue(thread.getName().startsWith("sharepoint-test-"));
+      assertTrue(thread.isDaemon());
+      assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testVirtualThreadsNotSupported() {
+    assumeFalse(ConnectorThreads.isVirtualThreadSupported());
+    thrown.expect(IllegalStateException.class);
+    ConnectorThreads.virtual();
+  }
+
+  @Test
+  public void testInvalidMaxThreads() {
+    thrown.expect(IllegalArgumentException.class);
+    ConnectorThreads.PLATFORM.newFixedThreadPool(0, "sharepoint-test-%d");
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link ContentDatabaseExecutor}. */
+public class ContentDatabaseExecutorTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private ContentDatabaseExecutor executor;
+
+  @After
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testInvalidMaxConcurrency() {
+    thrown.expect(IllegalArgumentException.class);
+    new ContentDatabaseExecutor(0);
+  }
+
+  @Test
+  public void testEmptyInput() throws IOException {
+    executor = new ContentDatabaseExecutor(4);
+    assertEquals(
+        Collections.emptyList(), executor.map(Collections.<String>emptyList(), id -> id));
+  }
+
+  @Test
+  public void testResultsInInputOrder() throws IOException {
+    executor = new ContentDatabaseExecutor(4);
+    CountDownLatch firstReleased = new CountDownLatch(1);
+    List<String> results =
+        executor.map(
+            ImmutableList.of("db1", "db2", "db3"),
+            id -> {
+              if ("db1".equals(id)) {
+                // db1 completes last.
+                await(firstReleased);
+              } else if ("db3".equals(id)) {
+                firstReleased.countDown();
+              }
+              return id + "-token";
+            });
+    assertEquals(ImmutableList.of("db1-token", "db2-token", "db3-token"), results);
+  }
+
+  @Test
+  public void testConcurrencyBounded() throws IOException {
+    executor = new ContentDatabaseExecutor(2);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    executor.map(
+        ImmutableList.of(1, 2, 3, 4, 5, 6),
+        id -> {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          try {
+            Thread.sleep(20);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          running.decrementAndGet();
+          return id;
+        });
+    assertTrue(maxRunning.get() <= 2);
+  }
+
+  @Test
+  public void testSequentialRunsOnCallerThread() throws IOException {
+    executor = new ContentDatabaseExecutor(1);
+    Thread caller = Thread.currentThread();
+    List<Boolean> results =
+        executor.map(ImmutableList.of("db1", "db2"), id -> Thread.currentThread() == caller);
+    assertEquals(ImmutableList.of(true, true), results);
+  }
+
+  @Test
+  public void testIOExceptionPropagated() throws IOException {
+    executor = new ContentDatabaseExecutor(4);
+    thrown.expect(IOException.class);
+    thrown.expectMessage("db2 failed");
+    executor.map(
+        ImmutableList.of("db1", "db2", "db3"),
+        id -> {
+          if ("db2".equals(id)) {
+            throw new IOException("db2 failed");
+          }
+          return id;
+        });
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      if (!latch.await(10, TimeUnit.SECONDS)) {
+        throw new IOException("timed out");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.enterprise.cloudsearch.sharepoint.CrawlSchedule.Limits;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalTime;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/** Unit tests for {@link CrawlSchedule}. */
+public class CrawlScheduleTest {
+  private static final Limits BUSINESS_HOURS = new Limits(Optional.of(5.0), Optional.of(4));
+  private static final Limits NIGHT = new Limits(Optional.of(50.0), Optional.empty());
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testNone() {
+    assertEquals(Limits.UNLIMITED, CrawlSchedule.NONE.getLimits("sp.com", LocalTime.NOON));
+  }
+
+  @Test
+  public void testDefaultHost() {
+    CrawlSchedule schedule =
+        parse("default", "08:00-18:00 rate=5 concurrency=4, 18:00-08:00 rate=50");
+    assertEquals(BUSINESS_HOURS, schedule.getLimits("sp.com", LocalTime.of(8, 0)));
+    assertEquals(BUSINESS_HOURS, schedule.getLimits("sp.com", LocalTime.of(17, 59)));
+    assertEquals(NIGHT, schedule.getLimits("sp.com", LocalTime.of(18, 0)));
+    assertEquals(NIGHT, schedule.getLimits("sp.com", LocalTime.MIDNIGHT));
+    assertEquals(NIGHT, schedule.getLimits("sp.com", LocalTime.of(7, 59)));
+  }
+
+  @Test
+  public void testHostOverridesDefault() {
+    Properties properties = new Properties();
+    properties.setProperty("default", "00:00-00:00 rate=50");
+    properties.setProperty("SP.com", "08:00-18:00 rate=5 concurrency=4");
+    CrawlSchedule schedule = CrawlSchedule.parse(properties);
+    assertEquals(BUSINESS_HOURS, schedule.getLimits("sp.COM", LocalTime.NOON));
+    assertEquals(Limits.UNLIMITED, schedule.getLimits("sp.com", LocalTime.MIDNIGHT));
+    assertEquals(NIGHT, schedule.getLimits("other.com", LocalTime.NOON));
+  }
+
+  @Test
+  public void testFirstMatchingWindow() {
+    CrawlSchedule schedule =
+        parse("sp.com", "08:00-18:00 rate=5 concurrency=4, 00:00-00:00 rate=50");
+    assertEquals(BUSINESS_HOURS, schedule.getLimits("sp.com", LocalTime.NOON));
+    assertEquals(NIGHT, schedule.getLimits("sp.com", LocalTime.of(20, 0)));
+  }
+
+  @Test
+  public void testInvalidTime() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("25:00-08:00");
+    parse("default", "25:00-08:00 rate=5");
+  }
+
+  @Test
+  public void testInvalidWindow() {
+    thrown.expect(IllegalArgumentException.class);
+    parse("default", "08:00 rate=5");
+  }
+
+  @Test
+  public void testUnknownLimit() {
+    thrown.expect(IllegalArgumentException.class);
+    parse("default", "08:00-18:00 bandwidth=5");
+  }
+
+  @Test
+  public void testInvalidRate() {
+    thrown.expect(IllegalArgumentException.class);
+    parse("default", "08:00-18:00 rate=0");
+  }
+
+  @Test
+  public void testInvalidConcurrency() {
+    thrown.expect(IllegalArgumentException.class);
+    parse("default", "08:00-18:00 concurrency=-1");
+  }
+
+  @Test
+  public void testHostWithPort() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("sp.com:8080");
+    parse("sp.com:8080", "08:00-18:00 rate=5");
+  }
+
+  @Test
+  public void testLoaderReloadsChangedFile() throws IOException {
+    Path file = temporaryFolder.newFile("schedule.properties").toPath();
+    write(file, "default = 00:00-00:00 rate=5 concurrency=4", 1000);
+    AtomicLong nanos = new AtomicLong();
+    CrawlSchedule.Loader loader =
+        new CrawlSchedule.Loader(file, TimeUnit.SECONDS.toNanos(60), nanos::get);
+    assertEquals(BUSINESS_HOURS, loader.get().getLimits("sp.com", LocalTime.NOON));
+
+    write(file, "default = 00:00-00:00 rate=50", 2000);
+    // Not checked again until the reload interval has passed.
+    assertEquals(BUSINESS_HOURS, loader.get().getLimits("sp.com", LocalTime.NOON));
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(60));
+    assertEquals(NIGHT, loader.get().getLimits("sp.com", LocalTime.NOON));
+  }
+
+  @Test
+  public void testLoaderKeepsScheduleOnInvalidFile() throws IOException {
+    Path file = temporaryFolder.newFile("schedule.properties").toPath();
+    write(file, "default = 00:00-00:00 rate=5 concurrency=4", 1000);
+    AtomicLong nanos = new AtomicLong();
+    CrawlSchedule.Loader loader =
+        new CrawlSchedule.Loader(file, TimeUnit.SECONDS.toNanos(60), nanos::get);
+    write(file, "default = always", 2000);
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(60));
+    assertEquals(BUSINESS_HOURS, loader.get().getLimits("sp.com", LocalTime.NOON));
+  }
+
+  @Test
+  public void testLoaderInvalidFile() throws IOException {
+    Path file = temporaryFolder.newFile("schedule.properties").toPath();
+    write(file, "default = always", 1000);
+    thrown.expect(IllegalArgumentException.class);
+    new CrawlSchedule.Loader(file, TimeUnit.SECONDS.toNanos(60), System::nanoTime);
+  }
+
+  private static CrawlSchedule parse(String host, String windows) {
+    Properties properties = new Properties();
+    properties.setProperty(host, windows);
+    return CrawlSchedule.parse(properties);
+  }
+
+  private static void write(Path file, String content, long modifiedMillis) throws IOException {
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(modifiedMillis));
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.common.io.ByteStreams;
+import com.google.enterprise.cloudsearch.sharepoint.FileContentSpooler.TempFileContent;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link FileContentSpooler}. */
+public class FileContentSpoolerTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testNegativeThreshold() {
+    thrown.expect(IllegalArgumentException.class);
+    new FileContentSpooler(-1, 100);
+  }
+
+  @Test
+  public void testNegativeMaxSize() {
+    thrown.expect(IllegalArgumentException.class);
+    new FileContentSpooler(10, -1);
+  }
+
+  @Test
+  public void testNoMaxSize() throws IOException {
+    FileContentSpooler spooler = new FileContentSpooler(4, 0);
+    assertFalse(spooler.exceedsMaxSize(Long.toString(Long.MAX_VALUE)));
+    Optional<AbstractInputStreamContent> content =
+        spooler.spool("text/plain", stream("larger than threshold"));
+    assertEquals("larger than threshold", read(content.get()));
+  }
+
+  @Test
+  public void testExceedsMaxSize() {
+    FileContentSpooler spooler = new FileContentSpooler(10, 100);
+    assertFalse(spooler.exceedsMaxSize(null));
+    assertFalse(spooler.exceedsMaxSize("not a number"));
+    assertFalse(spooler.exceedsMaxSize("100"));
+    assertTrue(spooler.exceedsMaxSize(" 101 "));
+  }
+
+  @Test
+  public void testSmallContentInMemory() throws IOException {
+    FileContentSpooler spooler = new FileContentSpooler(10, 100);
+    Optional<AbstractInputStreamContent> content = spooler.spool("text/plain", stream("small"));
+    assertTrue(content.get() instanceof ByteArrayContent);
+    assertEquals("text/plain", content.get().getType());
+    assertEquals("small", read(content.get()));
+  }
+
+  @Test
+  public void testLargeContentSpilledAndRetrySupported() throws IOException {
+    FileContentSpooler spooler = new FileContentSpooler(4, 100);
+    Optional<AbstractInputStreamContent> content =
+        spooler.spool("text/plain", stream("larger than threshold"));
+    TempFileContent tempContent = (TempFileContent) content.get();
+    assertTrue(Files.exists(tempContent.getFile()));
+    assertEquals("larger than threshold".length(), tempContent.getLength());
+    assertTrue(tempContent.retrySupported());
+    assertEquals("larger than threshold", read(tempContent));
+    assertEquals("larger than threshold", read(tempContent));
+    FileContentSpooler.discard(tempContent);
+    assertFalse(Files.exists(tempContent.getFile()));
+  }
+
+  @Test
+  public void testContentOverMaxSizeInMemory() throws IOException {
+    FileContentSpooler spooler = new FileContentSpooler(10, 4);
+    assertFalse(spooler.spool("text/plain", stream("small")).isPresent());
+  }
+
+  @Test
+  public void testContentOverMaxSizeSpilled() throws IOException {
+    FileContentSpooler spooler = new FileContentSpooler(4, 10);
+    assertFalse(spooler.spool("text/plain", stream("larger than max size")).isPresent());
+  }
+
+  @Test
+  public void testContentAtMaxSizeSpilled() throws IOException {
+    FileContentSpooler spooler = new FileContentSpooler(4, 10);
+    Optional<AbstractInputStreamContent> content = spooler.spool(null, stream("0123456789"));
+    assertEquals("0123456789", read(content.get()));
+  }
+
+  @Test
+  public void testCloseDeletesContent() throws IOException {
+    FileContentSpooler spooler = new FileContentSpooler(4, 100);
+    TempFileContent unread =
+        (TempFileContent) spooler.spool("text/plain", stream("never read")).get();
+    TempFileContent read = (TempFileContent) spooler.spool("text/plain", stream("read once")).get();
+    assertEquals("read once", read(read));
+    assertTrue(Files.exists(unread.getFile()));
+    assertTrue(Files.exists(read.getFile()));
+    spooler.close();
+    assertFalse(Files.exists(unread.getFile()));
+    assertFalse(Files.exists(read.getFile()));
+  }
+
+  @Test
+  public void testCollectedContentDeleted() throws Exception {
+    FileContentSpooler spooler = new FileContentSpooler(4, 100);
+    Path file = ((TempFileContent) spooler.spool(null, stream("never read")).get()).getFile();
+    assertTrue(Files.exists(file));
+    for (int i = 0; i < 50 && Files.exists(file); i++) {
+      System.gc();
+      Thread.sleep(10);
+      spooler.spool(null, stream("small"));
+    }
+    assertFalse(Files.exists(file));
+  }
+
+  private static InputStream stream(String value) {
+    return new ByteArrayInputStream(value.getBytes(UTF_8));
+  }
+
+  private static String read(AbstractInputStreamContent content) throws IOException {
+    try (InputStream in = content.getInputStream()) {
+      return new String(ByteStreams.toByteArray(in), UTF_8);
+    }
+  }
+}
@@ -19,12 +19,16 @@ package com.google.enterprise.cloudsearch.sharepoint;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.google.common.io.CountingInputStream;
 import com.google.enterprise.cloudsearch.sharepoint.HttpClientImpl.ConnectionFactory;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -186,6 +190,7 @@ public class HttpClientImplTest {
     verifyConnectionSetup(url, connection, inOrder, false);
     inOrder.verify(connection).getHeaderField(HttpClientImpl.HTTP_REDIRECT_LOCATION_HEADER);
     inOrder.verify(connection).getInputStream();
+    inOrder.verify(contentStream).read(any(byte[].class));
     inOrder.verify(contentStream).close();
     verifyConnectionSetup(redirectUrl, redirectConnection, inOrder, false);
     inOrder.verify(redirectConnection).getHeaderField(HttpClientImpl.HTTP_SHAREPOINT_ERROR_HEADER);
@@ -299,6 +304,7 @@ public class HttpClientImplTest {
     InOrder inOrder = inOrder(connectionFactory, requestContext, connection, errorStream);
     verifyConnectionSetup(url, connection, inOrder, false);
     inOrder.verify(connection).getErrorStream();
+    inOrder.verify(errorStream).read(any(byte[].class));
     inOrder.verify(errorStream).close();
     verifyNoMoreInteractions(connectionFactory, requestContext, connection, errorStream);
   }
@@ -339,6 +345,7 @@ public class HttpClientImplTest {
     assertEquals(null, client.issueGetRequest(url));
     InOrder inOrder = inOrder(connectionFactory, requestContext, connection);
     verifyConnectionSetup(url, connection, inOrder, true);
+    inOrder.verify(connection).getErrorStream();
     verifyNoMoreInteractions(connectionFactory, requestContext, connection);
   }
 
@@ -365,6 +372,7 @@ public class HttpClientImplTest {
     verifyConnectionSetup(url, connection, inOrder, false);
     inOrder.verify(connection).getHeaderField(HttpClientImpl.HTTP_REDIRECT_LOCATION_HEADER);
     inOrder.verify(connection).getInputStream();
+    inOrder.verify(contentStream).read(any(byte[].class));
     inOrder.verify(contentStream).close();
     verifyNoMoreInteractions(connectionFactory, requestContext, connection, contentStream);
   }
@@ -389,6 +397,7 @@ public class HttpClientImplTest {
     InOrder inOrder = inOrder(connectionFactory, requestContext, connection, contentStream);
     verifyConnectionSetup(url, connection, inOrder, false);
     inOrder.verify(connection).getInputStream();
+    inOrder.verify(contentStream).read(any(byte[].class));
     inOrder.verify(contentStream).close();
     verifyNoMoreInteractions(connectionFactory, requestContext, connection, contentStream);
   }
@@ -419,10 +428,225 @@ public class HttpClientImplTest {
     InOrder inOrder = inOrder(connectionFactory, requestContext, connection, errorStream);
     verifyConnectionSetup(url, connection, inOrder, false);
     inOrder.verify(connection).getErrorStream();
+    inOrder.verify(errorStream).read(any(byte[].class));
     inOrder.verify(errorStream).close();
     verifyNoMoreInteractions(connectionFactory, requestContext, connection, errorStream);
   }
 
+  @Test
+  public void testIssueGetRequestRedirectDrainsBoundedBody() throws IOException {
+    URL url = new URL("http://sp.com");
+    HttpClient client =
+        new HttpClientImpl.Builder()
+            .setSharePointRequestContext(requestContext)
+            .setConnectionFactory(connectionFactory)
+            .setPerformBrowserLeniency(true)
+            .build();
+    CountingInputStream redirectBody =
+        new CountingInputStream(new ByteArrayInputStream(new byte[1024 * 1024]));
+    HttpURLConnection connection =
+        setUpConnection(302, redirectBody, Collections.emptyList(), null);
+    when(connection.getHeaderField(HttpClientImpl.HTTP_REDIRECT_LOCATION_HEADER))
+        .thenReturn("http://sp.com/home");
+    when(connectionFactory.getConnection(url)).thenReturn(connection);
+    URL redirectUrl = new URL("http://sp.com/home");
+    HttpURLConnection redirectConnection =
+        setUpConnection(200, contentStream, Collections.emptyList(), null);
+    when(connectionFactory.getConnection(redirectUrl)).thenReturn(redirectConnection);
+    assertEquals(contentStream, client.issueGetRequest(url).getContents());
+    assertEquals(HttpClientImpl.MAX_DRAIN_BYTES, redirectBody.getCount());
+  }
+
+  @Test
+  public void testIssueGetRequestThrottleSucceeded() throws IOException {
+    URL url = new URL("http://sp.com");
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    HttpClient client =
+        new HttpClientImpl.Builder()
+            .setSharePointRequestContext(requestContext)
+            .setConnectionFactory(connectionFactory)
+            .setThrottle(throttle)
+            .build();
+    HttpURLConnection connection =
+        setUpConnection(200, contentStream, Collections.emptyList(), null);
+    when(connectionFactory.getConnection(url)).thenReturn(connection);
+    client.issueGetRequest(url).getContents().close();
+    verify(contentStream).close();
+    assertEquals(8, throttle.getLimit("sp.com"), 0);
+  }
+
+  @Test
+  public void testIssueGetRequestThrottleHeldUntilContentsClosed() throws IOException {
+    URL url = new URL("http://sp.com");
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    HttpClient client =
+        new HttpClientImpl.Builder()
+            .setSharePointRequestContext(requestContext)
+            .setConnectionFactory(connectionFactory)
+            .setThrottle(throttle)
+            .build();
+    HttpURLConnection connection =
+        setUpConnection(200, contentStream, Collections.emptyList(), null);
+    when(connectionFactory.getConnection(url)).thenReturn(connection);
+    InputStream contents = client.issueGetRequest(url).getContents();
+    // Download counts against the host's concurrent requests until its contents are closed.
+    assertEquals(1, throttle.getInFlight("sp.com"));
+    contents.close();
+    assertEquals(0, throttle.getInFlight("sp.com"));
+    contents.close();
+    assertEquals(0, throttle.getInFlight("sp.com"));
+  }
+
+  @Test
+  public void testIssueGetRequestThrottleRuntimeException() throws IOException {
+    URL url = new URL("http://sp.com");
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 1, 300);
+    HttpClient client =
+        new HttpClientImpl.Builder()
+            .setSharePointRequestContext(requestContext)
+            .setConnectionFactory(connectionFactory)
+            .setThrottle(throttle)
+            .build();
+    HttpURLConnection failed = Mockito.mock(HttpURLConnection.class);
+    when(failed.getResponseCode()).thenThrow(new IllegalStateException("unexpected"));
+    when(connectionFactory.getConnection(url)).thenReturn(failed);
+    try {
+      client.issueGetRequest(url);
+      fail("missing IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertEquals("unexpected", e.getMessage());
+    }
+    assertEquals(0, throttle.getInFlight("sp.com"));
+  }
+
+  @Test
+  public void testIssueGetRequestThrottleRedirectReleasesPermit() throws IOException {
+    URL url = new URL("http://sp.com/file");
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 1, 300);
+    HttpClient client =
+        new HttpClientImpl.Builder()
+            .setSharePointRequestContext(requestContext)
+            .setConnectionFactory(connectionFactory)
+            .setPerformBrowserLeniency(true)
+            .setThrottle(throttle)
+            .build();
+    HttpURLConnection redirect =
+        setUpConnection(
+            302, new ByteArrayInputStream(new byte[0]), Collections.emptyList(), null);
+    when(redirect.getHeaderField(HttpClientImpl.HTTP_REDIRECT_LOCATION_HEADER))
+        .thenReturn("http://sp.com/redirected");
+    HttpURLConnection connection =
+        setUpConnection(200, contentStream, Collections.emptyList(), null);
+    when(connectionFactory.getConnection(url)).thenReturn(redirect);
+    when(connectionFactory.getConnection(new URL("http://sp.com/redirected")))
+        .thenReturn(connection);
+    // With a single permit for the host, the redirect must release its permit before following.
+    InputStream contents = client.issueGetRequest(url).getContents();
+    assertEquals(1, throttle.getInFlight("sp.com"));
+    contents.close();
+    assertEquals(0, throttle.getInFlight("sp.com"));
+  }
+
+  @Test
+  public void testIssueGetRequestThrottleSharePointError2() throws IOException {
+    URL url = new URL("http://sp.com");
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    HttpClient client =
+        new HttpClientImpl.Builder()
+            .setSharePointRequestContext(requestContext)
+            .setConnectionFactory(connectionFactory)
+            .setThrottle(throttle)
+            .build();
+    HttpURLConnection connection = setUpConnection(200, null, Collections.emptyList(), null);
+    when(connectionFactory.getConnection(url)).thenReturn(connection);
+    when(connection.getHeaderField(HttpClientImpl.HTTP_SHAREPOINT_ERROR_HEADER)).thenReturn("2");
+    when(connection.getHeaderField(AdaptiveThrottle.HTTP_RETRY_AFTER_HEADER)).thenReturn("0");
+    try {
+      client.issueGetRequest(url);
+      fail("missing IO exception");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("Got error 2 from SharePoint"));
+    }
+    assertEquals(4, throttle.getLimit("sp.com"), 0);
+  }
+
+  @Test
+  public void testIssueGetRequestThrottleServiceUnavailable() throws IOException {
+    URL url = new URL("http://sp.com");
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    HttpClient client =
+        new HttpClientImpl.Builder()
+            .setSharePointRequestContext(requestContext)
+            .setConnectionFactory(connectionFactory)
+            .setPerformBrowserLeniency(true)
+            .setThrottle(throttle)
+            .build();
+    HttpURLConnection connection = setUpConnection(503, null, Collections.emptyList(), null);
+    when(connectionFactory.getConnection(url)).thenReturn(connection);
+    try {
+      client.issueGetRequest(url);
+      fail("missing IO exception");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("Got status code 503"));
+    }
+    assertEquals(4, throttle.getLimit("sp.com"), 0);
+  }
+
+  @Test
+  public void testIssueGetRequestThrottleConnectFailure() throws IOException {
+    URL url = new URL("http://sp.com");
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 1, 300);
+    HttpClient client =
+        new HttpClientImpl.Builder()
+            .setSharePointRequestContext(requestContext)
+            .setConnectionFactory(connectionFactory)
+            .setThrottle(throttle)
+            .build();
+    HttpURLConnection failed = Mockito.mock(HttpURLConnection.class);
+    when(failed.getResponseCode()).thenThrow(new IOException("connection refused"));
+    HttpURLConnection connection =
+        setUpConnection(200, contentStream, Collections.emptyList(), null);
+    when(connectionFactory.getConnection(url)).thenReturn(failed, connection);
+    try {
+      client.issueGetRequest(url);
+      fail("missing IO exception");
+    } catch (IOException e) {
+      assertEquals("connection refused", e.getMessage());
+    }
+    // The only permit for the host was released, so the next request does not block.
+    client.issueGetRequest(url).getContents().close();
+    assertEquals(0, throttle.getInFlight("sp.com"));
+  }
+
+  @Test
+  public void testConfigureConnectionPool() {
+    String previous = System.getProperty(HttpClientImpl.HTTP_MAX_CONNECTIONS_PROPERTY);
+    try {
+      System.clearProperty(HttpClientImpl.HTTP_MAX_CONNECTIONS_PROPERTY);
+      HttpClientImpl.configureConnectionPool(12);
+      assertEquals("12", System.getProperty(HttpClientImpl.HTTP_MAX_CONNECTIONS_PROPERTY));
+      // A value set by an earlier configuration is not mistaken for an explicit one.
+      HttpClientImpl.configureConnectionPool(30);
+      assertEquals("30", System.getProperty(HttpClientImpl.HTTP_MAX_CONNECTIONS_PROPERTY));
+      // An explicitly set system property takes precedence.
+      System.setProperty(HttpClientImpl.HTTP_MAX_CONNECTIONS_PROPERTY, "5");
+      HttpClientImpl.configureConnectionPool(40);
+      assertEquals("5", System.getProperty(HttpClientImpl.HTTP_MAX_CONNECTIONS_PROPERTY));
+    } finally {
+      if (previous == null) {
+        System.clearProperty(HttpClientImpl.HTTP_MAX_CONNECTIONS_PROPERTY);
+      } else {
+        System.setProperty(HttpClientImpl.HTTP_MAX_CONNECTIONS_PROPERTY, previous);
+      }
+    }
+  }
+
+  @Test
+  public void testConfigureConnectionPoolInvalid() {
+    thrown.expect(IllegalArgumentException.class);
+    HttpClientImpl.configureConnectionPool(0);
+  }
+
   private void verifyConnectionSetup(
       URL url, HttpURLConnection connection, InOrder inOrder, boolean followRedirects)
       throws IOException {
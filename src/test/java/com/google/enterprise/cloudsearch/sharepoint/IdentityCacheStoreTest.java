@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/** Unit tests for {@link IdentityCacheStore}. */
+public class IdentityCacheStoreTest {
+  private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final long NEGATIVE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final AtomicLong clock = new AtomicLong(TimeUnit.DAYS.toMillis(100));
+
+  private IdentityCacheStore newStore(Path file) throws IOException {
+    return new IdentityCacheStore(file, TTL_MILLIS, NEGATIVE_TTL_MILLIS, 0, clock::get);
+  }
+
+  @Test
+  public void testInvalidTtl() throws IOException {
+    thrown.expect(IllegalArgumentException.class);
+    new IdentityCacheStore(temporaryFolder.getRoot().toPath().resolve("cache"), 0, 0, 0);
+  }
+
+  @Test
+  public void testInvalidNegativeTtl() throws IOException {
+    thrown.expect(IllegalArgumentException.class);
+    new IdentityCacheStore(temporaryFolder.getRoot().toPath().resolve("cache"), 1, -1, 0);
+  }
+
+  @Test
+  public void testMissingFileCreated() throws IOException {
+    Path file = temporaryFolder.getRoot().toPath().resolve("dir/cache");
+    IdentityCacheStore store = newStore(file);
+    assertEquals(ImmutableMap.of(), store.getAll("sid"));
+    store.close();
+    assertEquals(ImmutableList.of(IdentityCacheStore.VERSION_HEADER), Files.readAllLines(file));
+  }
+
+  @Test
+  public void testEntriesSurviveRestart() throws IOException {
+    Path file = temporaryFolder.getRoot().toPath().resolve("cache");
+    IdentityCacheStore store = newStore(file);
+    store.put("sid", "S-1-5-21-1", Optional.of("MYDOMAIN"));
+    store.put("sid", "S-1-5-21-1-500", Optional.empty());
+    store.put("email", "MYDOMAIN\\user\twith tab", Optional.of("user@mydomain.com"));
+    store.close();
+
+    IdentityCacheStore restarted = newStore(file);
+    assertEquals(
+        ImmutableMap.of("S-1-5-21-1", Optional.of("MYDOMAIN"), "S-1-5-21-1-500", Optional.empty()),
+        restarted.getAll("sid"));
+    assertEquals(
+        ImmutableMap.of("MYDOMAIN\\user\twith tab", Optional.of("user@mydomain.com")),
+        restarted.getAll("email"));
+    restarted.close();
+  }
+
+  @Test
+  public void testLatestEntryWins() throws IOException {
+    Path file = temporaryFolder.getRoot().toPath().resolve("cache");
+    IdentityCacheStore store = newStore(file);
+    store.put("sid", "S-1-5-21-1", Optional.of("OLDDOMAIN"));
+    store.flush();
+    clock.addAndGet(1000);
+    store.put("sid", "S-1-5-21-1", Optional.of("MYDOMAIN"));
+    store.close();
+
+    IdentityCacheStore restarted = newStore(file);
+    assertEquals(
+        ImmutableMap.of("S-1-5-21-1", Optional.of("MYDOMAIN")), restarted.getAll("sid"));
+    restarted.close();
+    // Loading compacts the file to the latest entry.
+    assertEquals(2, Files.readAllLines(file).size());
+  }
+
+  @Test
+  public void testExpiredEntriesDropped() throws IOException {
+    Path file = temporaryFolder.getRoot().toPath().resolve("cache");
+    IdentityCacheStore store = newStore(file);
+    store.put("sid", "S-1-5-21-1", Optional.of("MYDOMAIN"));
+    store.flush();
+    clock.addAndGet(TTL_MILLIS / 2);
+    store.put("sid", "S-1-5-21-2", Optional.of("OTHERDOMAIN"));
+    store.close();
+
+    clock.addAndGet(TTL_MILLIS / 2 + 1);
+    IdentityCacheStore restarted = newStore(file);
+    assertEquals(
+        ImmutableMap.of("S-1-5-21-2", Optional.of("OTHERDOMAIN")), restarted.getAll("sid"));
+    restarted.close();
+  }
+
+  @Test
+  public void testUnresolvedEntriesExpireSooner() throws IOException {
+    Path file = temporaryFolder.getRoot().toPath().resolve("cache");
+    IdentityCacheStore store = newStore(file);
+    store.put("sid", "S-1-5-21-1", Optional.of("MYDOMAIN"));
+    store.put("sid", "S-1-5-21-1-500", Optional.empty());
+    store.close();
+
+    clock.addAndGet(NEGATIVE_TTL_MILLIS - 1);
+    IdentityCacheStore restarted = newStore(file);
+    assertEquals(
+        ImmutableMap.of("S-1-5-21-1", Optional.of("MYDOMAIN"), "S-1-5-21-1-500", Optional.empty()),
+        restarted.getAll("sid"));
+    restarted.close();
+
+    clock.addAndGet(2);
+    restarted = newStore(file);
+    assertEquals(ImmutableMap.of("S-1-5-21-1", Optional.of("MYDOMAIN")), restarted.getAll("sid"));
+    restarted.close();
+  }
+
+  @Test
+  public void testUnknownVersionIgnored() throws IOException {
+    Path file = temporaryFolder.getRoot().toPath().resolve("cache");
+    Files.write(
+        file, ImmutableList.of("#sharepoint-identity-cache v0", "sid\tS-1-5-21-1\tMYDOMAIN\t0"));
+    IdentityCacheStore store = newStore(file);
+    assertEquals(ImmutableMap.of(), store.getAll("sid"));
+    store.close();
+  }
+
+  @Test
+  public void testInvalidEntriesSkipped() throws IOException {
+    Path file = temporaryFolder.getRoot().toPath().resolve("cache");
+    long now = clock.get();
+    Files.write(
+        file,
+        ImmutableList.of(
+            IdentityCacheStore.VERSION_HEADER,
+            "sid\tS-1-5-21-1",
+            "sid\tS-1-5-21-2\tMYDOMAIN\tnot a number",
+            "sid\tS-1-5-21-3\tMYDOMAIN\t" + now),
+        UTF_8);
+    IdentityCacheStore store = newStore(file);
+    assertEquals(ImmutableMap.of("S-1-5-21-3", Optional.of("MYDOMAIN")), store.getAll("sid"));
+    store.close();
+  }
+
+  @Test
+  public void testEscape() {
+    String value = "a\\b\tc\nd\re";
+    assertEquals("a\\\\b\\tc\\nd\\re", IdentityCacheStore.escape(value));
+    assertEquals(value, IdentityCacheStore.unescape(IdentityCacheStore.escape(value)));
+  }
+}
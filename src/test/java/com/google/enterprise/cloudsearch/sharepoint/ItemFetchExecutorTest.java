@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link ItemFetchExecutor}. */
+public class ItemFetchExecutorTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private ItemFetchExecutor executor;
+
+  @After
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testInvalidMaxConcurrency() {
+    thrown.expect(IllegalArgumentException.class);
+    new ItemFetchExecutor(0);
+  }
+
+  @Test
+  public void testSequentialRunsOnCallerThreadInOrder() throws Exception {
+    executor = new ItemFetchExecutor(1);
+    Thread caller = Thread.currentThread();
+    List<String> steps = new ArrayList<>();
+    CompletableFuture<Thread> first =
+        executor.submit(
+            () -> {
+              steps.add("first");
+              return Thread.currentThread();
+            });
+    assertTrue(first.isDone());
+    executor.submit(() -> steps.add("second"));
+    assertSame(caller, ItemFetchExecutor.get(first));
+    assertEquals(2, steps.size());
+    assertEquals("first", steps.get(0));
+  }
+
+  @Test
+  public void testParallelRunsOnPoolThread() throws Exception {
+    executor = new ItemFetchExecutor(2);
+    assertNotSame(
+        Thread.currentThread(), ItemFetchExecutor.get(executor.submit(Thread::currentThread)));
+  }
+
+  @Test
+  public void testTasksRunConcurrently() throws Exception {
+    executor = new ItemFetchExecutor(2);
+    CountDownLatch firstStarted = new CountDownLatch(1);
+    CountDownLatch secondStarted = new CountDownLatch(1);
+    CompletableFuture<Boolean> first =
+        executor.submit(
+            () -> {
+              firstStarted.countDown();
+              await(secondStarted);
+              return true;
+            });
+    CompletableFuture<Boolean> second =
+        executor.submit(
+            () -> {
+              secondStarted.countDown();
+              await(firstStarted);
+              return true;
+            });
+    assertTrue(ItemFetchExecutor.get(first));
+    assertTrue(ItemFetchExecutor.get(second));
+  }
+
+  @Test
+  public void testFailureDoesNotAffectOtherTasks() throws Exception {
+    executor = new ItemFetchExecutor(2);
+    CompletableFuture<String> failed =
+        executor.submit(
+            () -> {
+              throw new IOException("step failed");
+            });
+    CompletableFuture<String> succeeded = executor.submit(() -> "content");
+    assertEquals("content", ItemFetchExecutor.get(succeeded));
+    failed.handle((v, e) -> v).join();
+    assertTrue(failed.isCompletedExceptionally());
+  }
+
+  @Test
+  public void testIOExceptionPropagated() throws Exception {
+    executor = new ItemFetchExecutor(2);
+    CompletableFuture<String> result =
+        executor.submit(
+            () -> {
+              throw new IOException("step failed");
+            });
+    thrown.expect(IOException.class);
+    thrown.expectMessage("step failed");
+    ItemFetchExecutor.get(result);
+  }
+
+  @Test
+  public void testIOExceptionPropagatedSequential() throws Exception {
+    executor = new ItemFetchExecutor(1);
+    CompletableFuture<String> result =
+        executor.submit(
+            () -> {
+              throw new IOException("step failed");
+            });
+    thrown.expect(IOException.class);
+    thrown.expectMessage("step failed");
+    ItemFetchExecutor.get(result);
+  }
+
+  @Test
+  public void testRuntimeExceptionPropagated() throws Exception {
+    executor = new ItemFetchExecutor(2);
+    CompletableFuture<String> result =
+        executor.submit(
+            () -> {
+              throw new IllegalStateException("bad state");
+            });
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("bad state");
+    ItemFetchExecutor.get(result);
+  }
+
+  @Test
+  public void testInterruptedWhileWaiting() throws Exception {
+    executor = new ItemFetchExecutor(2);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<Boolean> result =
+        executor.submit(
+            () -> {
+              await(release);
+              return true;
+            });
+    Thread.currentThread().interrupt();
+    try {
+      ItemFetchExecutor.get(result);
+      throw new AssertionError("expected IOException");
+    } catch (IOException expected) {
+      assertTrue(Thread.interrupted());
+    } finally {
+      release.countDown();
+    }
+    assertFalse(Thread.currentThread().isInterrupted());
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      if (!latch.await(10, TimeUnit.SECONDS)) {
+        throw new IOException("timed out");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+}
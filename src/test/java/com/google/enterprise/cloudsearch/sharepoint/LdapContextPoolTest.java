@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.enterprise.cloudsearch.sharepoint.LdapContextPool.ContextFactory;
+import java.io.IOException;
+import javax.naming.CommunicationException;
+import javax.naming.ldap.LdapContext;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/** Unit tests for {@link LdapContextPool}. */
+@RunWith(MockitoJUnitRunner.class)
+public class LdapContextPoolTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Mock ContextFactory mockFactory;
+  @Mock LdapContext mockContext1;
+  @Mock LdapContext mockContext2;
+
+  @Test
+  public void testInvalidMaxSize() {
+    thrown.expect(IllegalArgumentException.class);
+    new LdapContextPool(mockFactory, 0, 0, 1);
+  }
+
+  @Test
+  public void testReleasedContextReused() throws IOException {
+    when(mockFactory.create()).thenReturn(mockContext1);
+    LdapContextPool pool = new LdapContextPool(mockFactory, 2, 0, 1);
+    LdapContext context = pool.borrow();
+    pool.release(context);
+    assertSame(context, pool.borrow());
+    verify(mockFactory, times(1)).create();
+  }
+
+  @Test
+  public void testConcurrentBorrowsOpenSeparateContexts() throws IOException {
+    when(mockFactory.create()).thenReturn(mockContext1, mockContext2);
+    LdapContextPool pool = new LdapContextPool(mockFactory, 2, 0, 1);
+    LdapContext first = pool.borrow();
+    LdapContext second = pool.borrow();
+    assertNotSame(first, second);
+    pool.release(first);
+    pool.release(second);
+    assertEquals(2, pool.getIdleCount());
+  }
+
+  @Test
+  public void testBorrowTimesOutWhenExhausted() throws IOException {
+    when(mockFactory.create()).thenReturn(mockContext1);
+    LdapContextPool pool = new LdapContextPool(mockFactory, 1, 0, 1);
+    pool.borrow();
+    thrown.expect(IOException.class);
+    thrown.expectMessage(containsString("Timed out"));
+    pool.borrow();
+  }
+
+  @Test
+  public void testInvalidateClosesAndFreesSlot() throws Exception {
+    when(mockFactory.create()).thenReturn(mockContext1, mockContext2);
+    LdapContextPool pool = new LdapContextPool(mockFactory, 1, 0, 1);
+    pool.invalidate(pool.borrow());
+    verify(mockContext1).close();
+    assertSame(mockContext2, pool.borrow());
+  }
+
+  @Test
+  public void testCreateFailureFreesSlot() throws IOException {
+    when(mockFactory.create()).thenThrow(new IOException("unreachable")).thenReturn(mockContext1);
+    LdapContextPool pool = new LdapContextPool(mockFactory, 1, 0, 1);
+    try {
+      pool.borrow();
+    } catch (IOException expected) {
+    }
+    assertSame(mockContext1, pool.borrow());
+  }
+
+  @Test
+  public void testHealthCheckClosesFailedIdleContexts() throws Exception {
+    when(mockFactory.create()).thenReturn(mockContext1, mockContext2);
+    when(mockContext2.getAttributes("")).thenThrow(new CommunicationException("reset"));
+    LdapContextPool pool = new LdapContextPool(mockFactory, 2, 0, 1);
+    LdapContext first = pool.borrow();
+    LdapContext second = pool.borrow();
+    pool.release(first);
+    pool.release(second);
+    pool.checkIdleConnections();
+    assertEquals(1, pool.getIdleCount());
+    verify(mockContext1, never()).close();
+    verify(mockContext2).close();
+    assertSame(mockContext1, pool.borrow());
+  }
+
+  @Test
+  public void testHealthCheckSkipsBorrowedContexts() throws Exception {
+    when(mockFactory.create()).thenReturn(mockContext1);
+    LdapContextPool pool = new LdapContextPool(mockFactory, 1, 0, 1);
+    pool.borrow();
+    pool.checkIdleConnections();
+    verify(mockContext1, never()).getAttributes("");
+  }
+
+  @Test
+  public void testCloseClosesIdleContexts() throws Exception {
+    when(mockFactory.create()).thenReturn(mockContext1);
+    LdapContextPool pool = new LdapContextPool(mockFactory, 1, 0, 1);
+    pool.release(pool.borrow());
+    pool.close();
+    verify(mockContext1).close();
+    assertEquals(0, pool.getIdleCount());
+  }
+
+  @Test
+  public void testCloseStopsHealthCheckAndClosesBorrowedContexts() throws Exception {
+    when(mockFactory.create()).thenReturn(mockContext1, mockContext2);
+    LdapContextPool pool = new LdapContextPool(mockFactory, 2, 60, 1);
+    assertFalse(pool.isHealthCheckStopped());
+    LdapContext idle = pool.borrow();
+    LdapContext borrowed = pool.borrow();
+    pool.release(idle);
+    pool.close();
+    assertTrue(pool.isHealthCheckStopped());
+    verify(mockContext1).close();
+    verify(mockContext2, never()).close();
+    // Contexts in use when the pool closed are closed once released.
+    pool.release(borrowed);
+    verify(mockContext2).close();
+    assertEquals(0, pool.getIdleCount());
+  }
+}
@@ -19,6 +19,7 @@ package com.google.enterprise.cloudsearch.sharepoint;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import com.google.common.collect.ImmutableMap;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
@@ -135,6 +136,52 @@ public class LoggingWSHandlerTest {
         record.getParameters());
   }
 
+  @Test
+  public void testMetricsRecorded() {
+    setLevel(Level.WARNING);
+    WebServiceMetrics metrics = new WebServiceMetrics(false, 0);
+    WebServiceInterface ws =
+        LoggingWSHandler.create(
+            WebServiceInterface.class, new WebServiceClass(), metrics, "http://sp/_vti_bin");
+    Holder<String> output = new Holder<String>();
+    assertEquals("return", ws.stringMethod(output));
+    ws.noArgMethod();
+    ws.noArgMethod();
+    assertEquals(0, logLog.getLog().size());
+    assertEquals(
+        ImmutableMap.of("noArgMethod", 2L, "stringMethod", 1L), metrics.getCallCounts());
+    assertEquals(
+        ImmutableMap.of("noArgMethod", 0L, "stringMethod", 0L), metrics.getErrorCounts());
+    assertEquals(
+        ImmutableMap.of("noArgMethod", 0L, "stringMethod", (long) "return12345".length()),
+        metrics.getResponseChars());
+    assertEquals(
+        ImmutableMap.of("sp noArgMethod", 2L, "sp stringMethod", 1L),
+        metrics.getCallCountsByHost());
+  }
+
+  @Test
+  public void testMetricsRecordFailure() {
+    WebServiceMetrics metrics = new WebServiceMetrics(false, 0);
+    WebServiceInterface ws =
+        LoggingWSHandler.create(
+            WebServiceInterface.class, new WebServiceClass(), metrics, "http://sp/_vti_bin");
+    try {
+      ws.failingMethod();
+    } catch (IllegalStateException expected) {
+    }
+    assertEquals(ImmutableMap.of("failingMethod", 1L), metrics.getCallCounts());
+    assertEquals(ImmutableMap.of("failingMethod", 1L), metrics.getErrorCounts());
+  }
+
+  @Test
+  public void testMetricsNotRecordedForPlainMethod() {
+    WebServiceMetrics metrics = new WebServiceMetrics(false, 0);
+    LoggingWSHandler.create(PlainInterface.class, new PlainClass(), metrics, "endpoint")
+        .normalMethod("arg");
+    assertEquals(ImmutableMap.of(), metrics.getCallCounts());
+  }
+
   @Test
   @SuppressWarnings("unchecked")
   public void testWrongObject() {
@@ -167,6 +214,14 @@ public class LoggingWSHandlerTest {
 
     @WebMethod(operationName = "noArgMethod")
     public void noArgMethod();
+
+    @WebMethod(operationName = "stringMethod")
+    public String stringMethod(
+      @WebParam(name = "outputOnly", mode = WebParam.Mode.OUT)
+      Holder<String> outputOnly);
+
+    @WebMethod(operationName = "failingMethod")
+    public void failingMethod();
   }
 
   private static class WebServiceClass implements WebServiceInterface {
@@ -183,6 +238,17 @@ public class LoggingWSHandlerTest {
 
     @Override
     public void noArgMethod() {}
+
+    @Override
+    public String stringMethod(Holder<String> outputOnly) {
+      outputOnly.value = "12345";
+      return "return";
+    }
+
+    @Override
+    public void failingMethod() {
+      throw new IllegalStateException("failed");
+    }
   }
 
   @Retention(value = RetentionPolicy.RUNTIME)
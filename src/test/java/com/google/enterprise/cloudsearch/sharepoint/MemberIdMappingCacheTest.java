@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.cloudsearch.sdk.indexing.Acl;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link MemberIdMappingCache}. */
+public class MemberIdMappingCacheTest {
+  private static final String SITE_URL = "http://localhost:1/sites/SiteCollection";
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final AtomicInteger loadCount = new AtomicInteger();
+
+  @After
+  public void shutdownExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testNegativeExpiration() {
+    thrown.expect(IllegalArgumentException.class);
+    new MemberIdMappingCache("test", -1, siteUrl -> newMapping());
+  }
+
+  @Test
+  public void testGetCachesMapping() throws IOException {
+    MemberIdMappingCache cache = new MemberIdMappingCache("test", 60, siteUrl -> newMapping());
+    MemberIdMapping first = cache.get(SITE_URL);
+    assertSame(first, cache.get(SITE_URL));
+    assertEquals(1, loadCount.get());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(0, cache.getRefreshCount());
+  }
+
+  @Test
+  public void testRefreshLoadsNewMapping() throws IOException {
+    MemberIdMappingCache cache = new MemberIdMappingCache("test", 60, siteUrl -> newMapping());
+    MemberIdMapping first = cache.get(SITE_URL);
+    cache.refresh(SITE_URL);
+    assertNotSame(first, cache.get(SITE_URL));
+    assertEquals(2, loadCount.get());
+    assertEquals(1, cache.getRefreshCount());
+  }
+
+  @Test
+  public void testInvalidate() throws IOException {
+    MemberIdMappingCache cache = new MemberIdMappingCache("test", 60, siteUrl -> newMapping());
+    cache.get(SITE_URL);
+    cache.invalidate(SITE_URL);
+    cache.get(SITE_URL);
+    assertEquals(2, loadCount.get());
+    assertEquals(0, cache.getRefreshCount());
+  }
+
+  @Test
+  public void testLoadIOExceptionPropagated() throws IOException {
+    MemberIdMappingCache cache =
+        new MemberIdMappingCache(
+            "test",
+            60,
+            siteUrl -> {
+              throw new IOException("failed");
+            });
+    thrown.expect(IOException.class);
+    thrown.expectMessage("failed");
+    cache.get(SITE_URL);
+  }
+
+  @Test
+  public void testConcurrentMissesShareLoad() throws Exception {
+    CountDownLatch loadStarted = new CountDownLatch(1);
+    CountDownLatch releaseLoad = new CountDownLatch(1);
+    MemberIdMappingCache cache =
+        new MemberIdMappingCache(
+            "test",
+            60,
+            siteUrl -> {
+              loadStarted.countDown();
+              try {
+                releaseLoad.await(10, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+              }
+              return newMapping();
+            });
+    List<Future<MemberIdMapping>> results = new ArrayList<>();
+    results.add(executor.submit(() -> cache.get(SITE_URL)));
+    loadStarted.await(10, TimeUnit.SECONDS);
+    for (int i = 0; i < 4; i++) {
+      results.add(executor.submit(() -> cache.get(SITE_URL)));
+    }
+    releaseLoad.countDown();
+    MemberIdMapping expected = results.get(0).get(10, TimeUnit.SECONDS);
+    for (Future<MemberIdMapping> result : results) {
+      assertSame(expected, result.get(10, TimeUnit.SECONDS));
+    }
+    assertEquals(1, loadCount.get());
+  }
+
+  private MemberIdMapping newMapping() {
+    loadCount.incrementAndGet();
+    return new MemberIdMapping(ImmutableMap.of(1, Acl.getUserPrincipal("user1")));
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/** Unit tests for {@link MetadataExtractionPlan}. */
+public class MetadataExtractionPlanTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private Document document;
+
+  @Before
+  public void setUp() throws ParserConfigurationException {
+    document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+  }
+
+  @Test
+  public void testSchemaDisplayNames() {
+    MetadataExtractionPlan plan =
+        MetadataExtractionPlan.compile(
+            ImmutableList.of(
+                field("ows_Title", "Title"), field("ows_Due_x0020_Date", "Due Date (UTC)")));
+    Multimap<String, Object> expected = LinkedHashMultimap.create();
+    expected.put("Title", "Item 1");
+    expected.put("DueDateUTC", "2018-05-01");
+    assertEquals(
+        expected, plan.extract(row("ows_Title", "Item 1", "ows_Due_x0020_Date", "2018-05-01")));
+  }
+
+  @Test
+  public void testAttributeMissingFromSchema() {
+    MetadataExtractionPlan plan =
+        MetadataExtractionPlan.compile(ImmutableList.of(field("ows_Title", "Title")));
+    assertEquals("CustomField", plan.getPropertyName("ows_Custom_x0020_Field_x002e_"));
+    assertEquals("FileRef", plan.getPropertyName("ows_FileRef"));
+    assertEquals("xAB", plan.getPropertyName("ows__xAB_"));
+  }
+
+  @Test
+  public void testMetaInfoSkipped() {
+    MetadataExtractionPlan plan = MetadataExtractionPlan.compile(ImmutableList.of());
+    Multimap<String, Object> expected = LinkedHashMultimap.create();
+    expected.put("Title", "Item 1");
+    assertEquals(expected, plan.extract(row("ows_MetaInfo", "1;#", "ows_Title", "Item 1")));
+  }
+
+  @Test
+  public void testLookupValues() {
+    MetadataExtractionPlan plan = MetadataExtractionPlan.compile(ImmutableList.of());
+    Multimap<String, Object> expected = LinkedHashMultimap.create();
+    expected.put("Lookup", "pi");
+    expected.put("Lookup", "the answer");
+    expected.put("Empty", "b");
+    assertEquals(
+        expected,
+        plan.extract(
+            row("ows_Lookup", "314;#pi;#42;#the answer", "ows_Empty", "1;#;#2;#b;#3;#")));
+  }
+
+  @Test
+  public void testMultiChoiceValues() {
+    MetadataExtractionPlan plan = MetadataExtractionPlan.compile(ImmutableList.of());
+    Multimap<String, Object> expected = LinkedHashMultimap.create();
+    expected.put("Choice", "choice a");
+    expected.put("Choice", "choice b");
+    assertEquals(
+        expected,
+        plan.extract(row("ows_Choice", ";#choice a;#;#choice b;#", "ows_Empty", ";#")));
+  }
+
+  @Test
+  public void testPlainValues() {
+    MetadataExtractionPlan plan = MetadataExtractionPlan.compile(ImmutableList.of());
+    Multimap<String, Object> expected = LinkedHashMultimap.create();
+    expected.put("Number", "314");
+    expected.put("Text", "a;#b");
+    expected.put("Start", ";#a");
+    assertEquals(
+        expected, plan.extract(row("ows_Number", "314", "ows_Text", "a;#b", "ows_Start", ";#a")));
+  }
+
+  @Test
+  public void testDecodeMetadataName() {
+    assertEquals(
+        "Custom Field.", MetadataExtractionPlan.decodeMetadataName("Custom_x0020_Field_x002e_"));
+    assertEquals("\uffe5", MetadataExtractionPlan.decodeMetadataName("_xffe5_"));
+    assertEquals("_x_x0020", MetadataExtractionPlan.decodeMetadataName("_x_x0020"));
+    assertEquals("__x0020", MetadataExtractionPlan.decodeMetadataName("_x005f__x0020"));
+    assertEquals("_xFFE5_", MetadataExtractionPlan.decodeMetadataName("_xFFE5_"));
+  }
+
+  @Test
+  public void testDuplicateField() {
+    thrown.expect(IllegalStateException.class);
+    MetadataExtractionPlan.compile(
+        ImmutableList.of(field("ows_Title", "Title"), field("ows_Title", "Other Title")));
+  }
+
+  @Test
+  public void testPlanCacheSharesPlanForSameSchema() {
+    MetadataExtractionPlan.PlanCache cache = new MetadataExtractionPlan.PlanCache(10);
+    MetadataExtractionPlan plan = cache.get(ImmutableList.of(field("ows_Title", "Title")));
+    assertSame(plan, cache.get(ImmutableList.of(field("ows_Title", "Title"))));
+    assertNotSame(plan, cache.get(ImmutableList.of(field("ows_Title", "Name"))));
+  }
+
+  @Test
+  public void testPlanCacheComparesAllFields() {
+    MetadataExtractionPlan.PlanCache cache = new MetadataExtractionPlan.PlanCache(10);
+    MetadataExtractionPlan plan = cache.get(ImmutableList.of(field("ows_Title", "Title")));
+    MetadataExtractionPlan longer =
+        cache.get(ImmutableList.of(field("ows_Title", "Title"), field("ows_Author", "Author")));
+    assertNotSame(plan, longer);
+    assertEquals("Author", longer.getPropertyName("ows_Author"));
+    assertNotSame(longer, cache.get(ImmutableList.of(field("ows_Title", "Title"))));
+  }
+
+  @Test
+  public void testPlanCacheDisabled() {
+    MetadataExtractionPlan.PlanCache cache = new MetadataExtractionPlan.PlanCache(0);
+    MetadataExtractionPlan plan = cache.get(ImmutableList.of(field("ows_Title", "Title")));
+    assertNotSame(plan, cache.get(ImmutableList.of(field("ows_Title", "Title"))));
+    assertEquals("Title", plan.getPropertyName("ows_Title"));
+  }
+
+  private Element field(String name, String displayName) {
+    Element field = document.createElement("s:AttributeType");
+    field.setAttribute("name", name);
+    field.setAttribute("rs:name", displayName);
+    return field;
+  }
+
+  private Element row(String... attributes) {
+    Element row = document.createElement("z:row");
+    for (int i = 0; i < attributes.length; i += 2) {
+      row.setAttribute(attributes[i], attributes[i + 1]);
+    }
+    return row;
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.enterprise.cloudsearch.sharepoint.PagePrefetcher.PrefetchingPaginator;
+import com.google.enterprise.cloudsearch.sharepoint.SiteDataClient.CursorPaginator;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link PagePrefetcher}. */
+public class PagePrefetcherTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private PagePrefetcher prefetcher;
+
+  @After
+  public void shutdown() {
+    if (prefetcher != null) {
+      prefetcher.shutdown();
+    }
+  }
+
+  @Test
+  public void testInvalidDepth() {
+    thrown.expect(IllegalArgumentException.class);
+    new PagePrefetcher(-1);
+  }
+
+  @Test
+  public void testDisabledFetchesOnCallerThread() throws IOException {
+    prefetcher = new PagePrefetcher(0);
+    Thread caller = Thread.currentThread();
+    try (PrefetchingPaginator<Thread, Void> pages =
+        prefetcher.prefetch(() -> Thread.currentThread())) {
+      assertSame(caller, pages.next());
+    }
+  }
+
+  @Test
+  public void testPrefetchFetchesOnOtherThread() throws IOException {
+    prefetcher = new PagePrefetcher(1);
+    Thread caller = Thread.currentThread();
+    try (PrefetchingPaginator<Thread, Void> pages =
+        prefetcher.prefetch(() -> Thread.currentThread())) {
+      assertNotSame(caller, pages.next());
+    }
+  }
+
+  @Test
+  public void testPagesReturnedInOrder() throws IOException {
+    prefetcher = new PagePrefetcher(2);
+    try (PrefetchingPaginator<Integer, Integer> pages =
+        prefetcher.prefetch(new CountingPaginator(5))) {
+      for (int i = 1; i <= 5; i++) {
+        assertEquals(Integer.valueOf(i), pages.next());
+      }
+      assertNull(pages.next());
+      assertNull(pages.next());
+    }
+  }
+
+  @Test
+  public void testNextPageFetchedBeforeRequested() throws Exception {
+    prefetcher = new PagePrefetcher(1);
+    CountDownLatch secondFetched = new CountDownLatch(1);
+    CountingPaginator counting =
+        new CountingPaginator(10) {
+          @Override
+          public Integer next() throws IOException {
+            Integer page = super.next();
+            if (page == 2) {
+              secondFetched.countDown();
+            }
+            return page;
+          }
+        };
+    try (PrefetchingPaginator<Integer, Integer> pages = prefetcher.prefetch(counting)) {
+      assertEquals(Integer.valueOf(1), pages.next());
+      await(secondFetched);
+    }
+  }
+
+  @Test
+  public void testLookaheadBounded() throws Exception {
+    prefetcher = new PagePrefetcher(2);
+    CountingPaginator counting = new CountingPaginator(100);
+    try (PrefetchingPaginator<Integer, Integer> pages = prefetcher.prefetch(counting)) {
+      assertEquals(Integer.valueOf(1), pages.next());
+      // Page 1 returned, pages 2 and 3 fetched ahead.
+      counting.awaitFetched(3);
+      Thread.sleep(50);
+      assertEquals(3, counting.getFetched());
+    }
+  }
+
+  @Test
+  public void testCursorAfterLastPageReturned() throws Exception {
+    prefetcher = new PagePrefetcher(2);
+    CountingPaginator counting = new CountingPaginator(100);
+    try (PrefetchingPaginator<Integer, Integer> pages = prefetcher.prefetch(counting)) {
+      assertEquals(Integer.valueOf(0), pages.getCursor());
+      assertEquals(Integer.valueOf(1), pages.next());
+      counting.awaitFetched(3);
+      assertEquals(Integer.valueOf(1), pages.getCursor());
+      assertEquals(Integer.valueOf(2), pages.next());
+      assertEquals(Integer.valueOf(2), pages.getCursor());
+    }
+  }
+
+  @Test
+  public void testFailureThrownInOrderAndResumes() throws Exception {
+    prefetcher = new PagePrefetcher(2);
+    IOException failure = new IOException("page 2 failed");
+    CountingPaginator counting =
+        new CountingPaginator(3) {
+          @Override
+          public Integer next() throws IOException {
+            Integer page = super.next();
+            if (page != null && page == 2) {
+              throw failure;
+            }
+            return page;
+          }
+        };
+    try (PrefetchingPaginator<Integer, Integer> pages = prefetcher.prefetch(counting)) {
+      assertEquals(Integer.valueOf(1), pages.next());
+      try {
+        pages.next();
+        fail("expected IOException");
+      } catch (IOException e) {
+        assertSame(failure, e);
+      }
+      // No page is fetched after the failed one until the caller asks for it.
+      Thread.sleep(50);
+      assertEquals(2, counting.getFetched());
+      // As for SiteData change logs, the cursor is past the failed page.
+      assertEquals(Integer.valueOf(2), pages.getCursor());
+      assertEquals(Integer.valueOf(3), pages.next());
+      assertNull(pages.next());
+    }
+  }
+
+  @Test
+  public void testRuntimeExceptionPropagated() throws IOException {
+    prefetcher = new PagePrefetcher(1);
+    try (PrefetchingPaginator<Integer, Void> pages =
+        prefetcher.prefetch(
+            () -> {
+              throw new IllegalStateException("bad page");
+            })) {
+      thrown.expect(IllegalStateException.class);
+      thrown.expectMessage("bad page");
+      pages.next();
+    }
+  }
+
+  @Test
+  public void testCloseStopsFetching() throws Exception {
+    prefetcher = new PagePrefetcher(1);
+    CountDownLatch inFlight = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountingPaginator counting =
+        new CountingPaginator(100) {
+          @Override
+          public Integer next() throws IOException {
+            Integer page = super.next();
+            if (page == 2) {
+              inFlight.countDown();
+              await(release);
+            }
+            return page;
+          }
+        };
+    PrefetchingPaginator<Integer, Integer> pages = prefetcher.prefetch(counting);
+    assertEquals(Integer.valueOf(1), pages.next());
+    await(inFlight);
+    pages.close();
+    release.countDown();
+    Thread.sleep(50);
+    assertEquals(2, counting.getFetched());
+    thrown.expect(IllegalStateException.class);
+    pages.next();
+  }
+
+  /** Returns pages 1 to {@code count}, with the number of pages fetched as cursor. */
+  private static class CountingPaginator implements CursorPaginator<Integer, Integer> {
+    private final int count;
+    private final AtomicInteger fetched = new AtomicInteger();
+
+    CountingPaginator(int count) {
+      this.count = count;
+    }
+
+    @Override
+    public Integer next() throws IOException {
+      int page = fetched.incrementAndGet();
+      return page <= count ? page : null;
+    }
+
+    @Override
+    public Integer getCursor() {
+      return Math.min(fetched.get(), count);
+    }
+
+    int getFetched() {
+      return fetched.get();
+    }
+
+    void awaitFetched(int pages) throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (fetched.get() < pages) {
+        if (System.nanoTime() > deadline) {
+          throw new AssertionError("timed out waiting for " + pages + " pages");
+        }
+        Thread.sleep(1);
+      }
+    }
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      if (!latch.await(10, TimeUnit.SECONDS)) {
+        throw new IOException("timed out");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+}
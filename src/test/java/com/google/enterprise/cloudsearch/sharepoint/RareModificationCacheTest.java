@@ -18,6 +18,11 @@ package com.google.enterprise.cloudsearch.sharepoint;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.google.common.util.concurrent.ExecutionError;
 import com.google.common.util.concurrent.UncheckedExecutionException;
@@ -62,8 +67,6 @@ public class RareModificationCacheTest {
     SiteDataClient siteDataClient2 = new SiteDataClient(siteDataSoap, false);
 
     Object v1 = new RareModificationCache.VirtualServerKey(siteDataClient);
-    Object w1 = new RareModificationCache.WebKey(siteDataClient);
-    Object w2 = new RareModificationCache.WebKey(siteDataClient2);
     Object l1 = new RareModificationCache.ListKey(siteDataClient, "{SomeGUID}");
     Object l2
         = new RareModificationCache.ListKey(siteDataClient2, "{SomeGUID}");
@@ -72,26 +75,14 @@ public class RareModificationCacheTest {
 
     assertEquals(v1, v1);
     assertEquals(v1.hashCode(), v1.hashCode());
-    assertEquals(w1, w1);
-    assertEquals(w1.hashCode(), w1.hashCode());
     assertEquals(l1, l1);
     assertEquals(l1.hashCode(), l1.hashCode());
 
-    assertNotEquals(v1, w1);
-    assertNotEquals(v1.hashCode(), w1.hashCode());
     assertNotEquals(v1, l1);
     assertNotEquals(v1.hashCode(), l1.hashCode());
-    assertNotEquals(w1, v1);
-    assertNotEquals(w1.hashCode(), v1.hashCode());
-    assertNotEquals(w1, l1);
-    assertNotEquals(w1.hashCode(), l1.hashCode());
     assertNotEquals(l1, v1);
     assertNotEquals(l1.hashCode(), v1.hashCode());
-    assertNotEquals(l1, w1);
-    assertNotEquals(l1.hashCode(), w1.hashCode());
 
-    assertNotEquals(w1, w2);
-    assertNotEquals(w1.hashCode(), w2.hashCode());
     assertNotEquals(l1, l2);
     assertNotEquals(l1.hashCode(), l2.hashCode());
     assertNotEquals(l1, l3);
@@ -121,6 +112,51 @@ public class RareModificationCacheTest {
     });
   }
 
+  @Test
+  public void testGetListCached() throws IOException {
+    SiteDataClient webClient = mock(SiteDataClient.class);
+    when(webClient.getContentList("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}"))
+        .thenReturn(parseList());
+    RareModificationCache.CachedList first
+        = cache.getList(webClient, "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}");
+    assertSame(first,
+        cache.getList(webClient, "{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}"));
+    assertEquals("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}", first.id);
+    verify(webClient).getContentList("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}");
+  }
+
+  @Test
+  public void testInvalidateList() throws IOException {
+    SiteDataClient webClient = mock(SiteDataClient.class);
+    when(webClient.getContentList("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}"))
+        .thenReturn(parseList());
+    cache.getList(webClient, "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}");
+    cache.invalidateList("{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}");
+    cache.getList(webClient, "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}");
+    verify(webClient, times(2))
+        .getContentList("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilderNegativeMaximumSize() {
+    new RareModificationCache.Builder()
+        .setMaximumSize(-1)
+        .build(siteDataClient, executor);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilderNegativeRefreshAfterWrite() {
+    new RareModificationCache.Builder()
+        .setRefreshAfterWriteSecs(-1)
+        .build(siteDataClient, executor);
+  }
+
+  private static com.microsoft.schemas.sharepoint.soap.List parseList()
+      throws IOException {
+    return SiteDataClient.jaxbParse(SharePointResponseHelper.getListResponse(),
+        com.microsoft.schemas.sharepoint.soap.List.class, false);
+  }
+
   private void assertNotEquals(Object o, Object o2) {
     assertFalse(o.equals(o2));
   }
@@ -139,12 +139,59 @@ public class SharePointConfigurationTest {
     SharePointConfiguration.fromConfiguration();
   }
 
+  @Test
+  public void testNegativeMemberIdMappingCacheExpirationSecs() throws Exception {
+    Properties baseConfiguration = getBaseConfiguration();
+    baseConfiguration.put("sharepoint.memberIdMappingCache.expirationSecs", "-1");
+    setupConfig.initConfig(baseConfiguration);
+    thrown.expect(InvalidConfigurationException.class);
+    thrown.expectMessage("Invalid SharePoint Configuration");
+    SharePointConfiguration.fromConfiguration();
+  }
+
+  @Test
+  public void testZeroChangesMaxBatchSize() throws Exception {
+    Properties baseConfiguration = getBaseConfiguration();
+    baseConfiguration.put("sharepoint.changes.maxBatchSize", "0");
+    setupConfig.initConfig(baseConfiguration);
+    thrown.expect(InvalidConfigurationException.class);
+    thrown.expectMessage("Invalid SharePoint Configuration");
+    SharePointConfiguration.fromConfiguration();
+  }
+
+  @Test
+  public void testNegativeGroupCacheMaxGroups() throws Exception {
+    Properties baseConfiguration = getBaseConfiguration();
+    baseConfiguration.put("sharepoint.identity.groupCache.maxGroups", "-1");
+    setupConfig.initConfig(baseConfiguration);
+    thrown.expect(InvalidConfigurationException.class);
+    thrown.expectMessage("Invalid SharePoint Configuration");
+    SharePointConfiguration.fromConfiguration();
+  }
+
+  @Test
+  public void testNegativeChildIdsMaxBatchSize() throws Exception {
+    Properties baseConfiguration = getBaseConfiguration();
+    baseConfiguration.put("sharepoint.childIds.maxBatchSize", "-1");
+    setupConfig.initConfig(baseConfiguration);
+    thrown.expect(InvalidConfigurationException.class);
+    thrown.expectMessage("Invalid SharePoint Configuration");
+    SharePointConfiguration.fromConfiguration();
+  }
+
   @Test
   public void testFromConfigurationWithNonDefaults() throws Exception {
     Properties baseConfiguration = getBaseConfiguration();
     baseConfiguration.put("sharepoint.userAgent", "agent");
     baseConfiguration.put("sharepoint.webservices.socketTimeoutSecs", "50");
     baseConfiguration.put("sharepoint.webservices.readTimeOutSecs", "120");
+    baseConfiguration.put("sharepoint.memberIdMappingCache.expirationSecs", "300");
+    baseConfiguration.put("sharepoint.siteUserMappingCache.expirationSecs", "120");
+    baseConfiguration.put("sharepoint.changes.maxBatchSize", "500");
+    baseConfiguration.put("sharepoint.childIds.maxBatchSize", "1000");
+    baseConfiguration.put("sharepoint.identity.incrementalGroupSync", "true");
+    baseConfiguration.put("sharepoint.identity.groupCache.maxGroups", "5000");
+    baseConfiguration.put("sharepoint.http.maxConnectionsPerHost", "8");
     baseConfiguration.put("api.referenceIdentitySources", "GDC-PSL");
     baseConfiguration.put("api.referenceIdentitySource.GDC-PSL.id", "idSourceGdcPsl");
     setupConfig.initConfig(baseConfiguration);
@@ -161,6 +208,13 @@ public class SharePointConfigurationTest {
     assertEquals(
         TimeUnit.MILLISECONDS.convert(120, TimeUnit.SECONDS),
         configuration.getWebservicesReadTimeoutMills());
+    assertEquals(300, configuration.getMemberIdMappingCacheExpirationSecs());
+    assertEquals(120, configuration.getSiteUserMappingCacheExpirationSecs());
+    assertEquals(500, configuration.getChangesMaxBatchSize());
+    assertEquals(1000, configuration.getChildIdsMaxBatchSize());
+    assertEquals(true, configuration.isIncrementalGroupSync());
+    assertEquals(5000, configuration.getGroupCacheMaxGroups());
+    assertEquals(8, configuration.getMaxConnectionsPerHost());
     assertEquals(
         ImmutableMap.of(
             "GDC-PSL", new IdentitySourceConfiguration.Builder("idSourceGdcPsl").build()),
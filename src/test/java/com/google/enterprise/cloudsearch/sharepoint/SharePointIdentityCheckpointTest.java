@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.cloudsearch.sharepoint.SharePointIdentityCheckpoint.SiteCollectionToken;
+import java.io.IOException;
+import org.junit.Test;
+
+/** Unit tests for {@link SharePointIdentityCheckpoint} */
+public class SharePointIdentityCheckpointTest {
+  private static final SiteCollectionToken TOKEN1 = new SiteCollectionToken("{id1}", "ch1");
+  private static final SiteCollectionToken TOKEN2 = new SiteCollectionToken("{id2}", "ch2");
+  private static final SiteCollectionToken TOKEN3 = new SiteCollectionToken("{id3}", "ch3");
+
+  @Test
+  public void testParseEmpty() throws IOException {
+    assertEquals(SharePointIdentityCheckpoint.empty(), SharePointIdentityCheckpoint.parse(null));
+    assertEquals(
+        SharePointIdentityCheckpoint.empty(), SharePointIdentityCheckpoint.parse(new byte[0]));
+  }
+
+  @Test
+  public void testParseWithoutTokens() throws IOException {
+    SharePointIdentityCheckpoint parsed =
+        SharePointIdentityCheckpoint.parse("{}".getBytes(UTF_8));
+    assertEquals(ImmutableMap.of(), parsed.getTokens());
+    assertEquals(ImmutableMap.of(), parsed.getPendingTokens());
+    assertNull(parsed.getLastContentDatabaseId());
+  }
+
+  @Test
+  public void testNextPageKeepsPreviousTokensUntilComplete() throws IOException {
+    SharePointIdentityCheckpoint previous =
+        SharePointIdentityCheckpoint.empty()
+            .nextPage("cd1", ImmutableMap.of("http://site1", TOKEN1), false);
+    assertEquals(ImmutableMap.of("http://site1", TOKEN1), previous.getTokens());
+
+    SharePointIdentityCheckpoint page1 =
+        previous.nextPage("cd1", ImmutableMap.of("http://site2", TOKEN2), true);
+    SharePointIdentityCheckpoint parsed =
+        SharePointIdentityCheckpoint.parse(page1.encodePayload());
+    assertEquals(page1, parsed);
+    assertEquals("cd1", parsed.getLastContentDatabaseId());
+    assertEquals(TOKEN1, parsed.getToken("http://site1"));
+    assertNull(parsed.getToken("http://site2"));
+    assertEquals(ImmutableMap.of("http://site2", TOKEN2), parsed.getPendingTokens());
+
+    // site1 no longer exists, so its token is dropped once the traversal completes.
+    SharePointIdentityCheckpoint page2 =
+        parsed.nextPage("cd2", ImmutableMap.of("http://site3", TOKEN3), false);
+    assertNull(page2.getLastContentDatabaseId());
+    assertEquals(
+        ImmutableMap.of("http://site2", TOKEN2, "http://site3", TOKEN3), page2.getTokens());
+    assertEquals(ImmutableMap.of(), page2.getPendingTokens());
+  }
+}
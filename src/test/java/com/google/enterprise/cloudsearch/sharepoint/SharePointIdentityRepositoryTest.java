@@ -20,6 +20,8 @@ import static org.hamcrest.CoreMatchers.anything;
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
@@ -27,9 +29,12 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.api.services.cloudidentity.v1.model.EntityKey;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Streams;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
@@ -38,13 +43,18 @@ import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRul
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
 import com.google.enterprise.cloudsearch.sdk.identity.IdentityGroup;
 import com.google.enterprise.cloudsearch.sdk.identity.RepositoryContext;
+import com.google.enterprise.cloudsearch.sharepoint.SharePointIdentityCheckpoint.SiteCollectionToken;
+import com.google.enterprise.cloudsearch.sharepoint.SiteDataClient.CursorPaginator;
 import com.microsoft.schemas.sharepoint.soap.ContentDatabase;
+import com.microsoft.schemas.sharepoint.soap.ContentDatabases;
+import com.microsoft.schemas.sharepoint.soap.SPSite;
 import com.microsoft.schemas.sharepoint.soap.Site;
 import com.microsoft.schemas.sharepoint.soap.VirtualServer;
 import com.microsoft.schemas.sharepoint.soap.directory.UserGroupSoap;
 import com.microsoft.schemas.sharepoint.soap.people.PeopleSoap;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -59,6 +69,12 @@ import org.mockito.junit.MockitoJUnitRunner;
 /** Unit tests for {@link SharePointIdentityRepository} */
 @RunWith(MockitoJUnitRunner.class)
 public class SharePointIdentityRepositoryTest {
+  private static final String XMLNS = "http://schemas.microsoft.com/sharepoint/soap/";
+  private static final String SITE_COLLECTION_URL = "http://localhost:1/sites/SiteCollection";
+  private static final String SITE_COLLECTION_ID = "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}";
+  private static final String SITE_COLLECTION_CHANGE_ID =
+      "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;634762601982930000;726";
+
   @Rule public ExpectedException thrown = ExpectedException.none();
   @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
   @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
@@ -69,6 +85,7 @@ public class SharePointIdentityRepositoryTest {
   @Mock PeopleSoap peopleSoap;
   @Mock UserGroupSoap userGroupSoap;
   @Mock ActiveDirectoryClient activeDirectoryClient;
+  @Mock CursorPaginator<SPSite, String> siteChangesPaginator;
   RepositoryContext repoContext;
 
   @Before
@@ -84,6 +101,7 @@ public class SharePointIdentityRepositoryTest {
         .thenReturn(siteConnectorFactoryBuilder);
     when(siteConnectorFactoryBuilder.setSharePointDeploymentType(any()))
         .thenReturn(siteConnectorFactoryBuilder);
+    when(siteConnectorFactoryBuilder.setThrottle(any())).thenReturn(siteConnectorFactoryBuilder);
   }
 
   @Test
@@ -258,6 +276,171 @@ public class SharePointIdentityRepositoryTest {
     assertEquals(expected, actual);
   }
 
+  @Test
+  public void testListGroupsIncrementalReusesUnchangedSiteCollection() throws IOException {
+    SharePointIdentityRepository repo = getSharePointIdentityRepository();
+    Properties baseConfig = getBaseConfig();
+    baseConfig.put("sharepoint.server", SITE_COLLECTION_URL);
+    baseConfig.put("sharepoint.identity.incrementalGroupSync", "true");
+    overrideConfig(baseConfig);
+    repo.init(repoContext);
+    setupSiteCollectionForGroups(
+        SITE_COLLECTION_URL, SharePointResponseHelper.getSiteCollectionResponse());
+    CheckpointCloseableIterable<IdentityGroup> first = repo.listGroups(null /* Checkpoint */);
+    List<IdentityGroup> firstGroups = ImmutableList.copyOf(first);
+    assertFalse(first.hasMore());
+    assertEquals(
+        new SiteCollectionToken(SITE_COLLECTION_ID, SITE_COLLECTION_CHANGE_ID),
+        SharePointIdentityCheckpoint.parse(first.getCheckpoint()).getToken(SITE_COLLECTION_URL));
+
+    // Only list item changes since the checkpoint.
+    setupSiteChanges(SharePointResponseHelper.getChangesForSiteCollection(), "newToken");
+    CheckpointCloseableIterable<IdentityGroup> second = repo.listGroups(first.getCheckpoint());
+    assertEquals(firstGroups, ImmutableList.copyOf(second));
+    verify(siteDataClient, times(1)).getContentSite();
+    assertEquals(
+        new SiteCollectionToken(SITE_COLLECTION_ID, "newToken"),
+        SharePointIdentityCheckpoint.parse(second.getCheckpoint()).getToken(SITE_COLLECTION_URL));
+  }
+
+  @Test
+  public void testListGroupsIncrementalRefetchesSiteCollectionWithSecurityChanges()
+      throws IOException {
+    SharePointIdentityRepository repo = getSharePointIdentityRepository();
+    Properties baseConfig = getBaseConfig();
+    baseConfig.put("sharepoint.server", SITE_COLLECTION_URL);
+    baseConfig.put("sharepoint.identity.incrementalGroupSync", "true");
+    overrideConfig(baseConfig);
+    repo.init(repoContext);
+    setupSiteCollectionForGroups(
+        SITE_COLLECTION_URL, SharePointResponseHelper.getSiteCollectionResponse());
+    CheckpointCloseableIterable<IdentityGroup> first = repo.listGroups(null /* Checkpoint */);
+    List<IdentityGroup> firstGroups = ImmutableList.copyOf(first);
+
+    // Changes are read up to the first security update.
+    setupSiteChanges(SharePointResponseHelper.getChangesSitePermissionsChange(), null);
+    CheckpointCloseableIterable<IdentityGroup> second = repo.listGroups(first.getCheckpoint());
+    assertEquals(firstGroups, ImmutableList.copyOf(second));
+    verify(siteDataClient, times(2)).getContentSite();
+    assertEquals(
+        new SiteCollectionToken(SITE_COLLECTION_ID, SITE_COLLECTION_CHANGE_ID),
+        SharePointIdentityCheckpoint.parse(second.getCheckpoint()).getToken(SITE_COLLECTION_URL));
+  }
+
+  @Test
+  public void testListGroupsIncrementalRefetchesGroupsOverCacheSize() throws IOException {
+    SharePointIdentityRepository repo = getSharePointIdentityRepository();
+    Properties baseConfig = getBaseConfig();
+    baseConfig.put("sharepoint.server", SITE_COLLECTION_URL);
+    baseConfig.put("sharepoint.identity.incrementalGroupSync", "true");
+    baseConfig.put("sharepoint.identity.groupCache.maxGroups", "1");
+    overrideConfig(baseConfig);
+    repo.init(repoContext);
+    setupSiteCollectionForGroups(
+        SITE_COLLECTION_URL, SharePointResponseHelper.getSiteCollectionResponse());
+    CheckpointCloseableIterable<IdentityGroup> first = repo.listGroups(null /* Checkpoint */);
+    List<IdentityGroup> firstGroups = ImmutableList.copyOf(first);
+
+    setupSiteChanges(SharePointResponseHelper.getChangesForSiteCollection(), "newToken");
+    CheckpointCloseableIterable<IdentityGroup> second = repo.listGroups(first.getCheckpoint());
+    assertEquals(firstGroups, ImmutableList.copyOf(second));
+    verify(siteDataClient, times(2)).getContentSite();
+  }
+
+  @Test
+  public void testListGroupsNotIncrementalIgnoresChangeTokens() throws IOException {
+    SharePointIdentityRepository repo = getSharePointIdentityRepository();
+    Properties baseConfig = getBaseConfig();
+    baseConfig.put("sharepoint.server", SITE_COLLECTION_URL);
+    overrideConfig(baseConfig);
+    repo.init(repoContext);
+    setupSiteCollectionForGroups(
+        SITE_COLLECTION_URL, SharePointResponseHelper.getSiteCollectionResponse());
+    CheckpointCloseableIterable<IdentityGroup> first = repo.listGroups(null /* Checkpoint */);
+    repo.listGroups(first.getCheckpoint());
+    verify(siteDataClient, times(2)).getContentSite();
+  }
+
+  @Test
+  public void testListGroupsVirtualServerOneContentDatabasePerPage() throws IOException {
+    SharePointIdentityRepository repo = getSharePointIdentityRepository();
+    Properties baseConfig = getBaseConfig();
+    overrideConfig(baseConfig);
+    repo.init(repoContext);
+    setupVirtualServerForGroups();
+    ContentDatabases.ContentDatabase emptyListing = new ContentDatabases.ContentDatabase();
+    emptyListing.setID("{ffffffff-2912-4927-9eda-1ea2f0977cf8}");
+    siteDataClient
+        .getContentVirtualServer()
+        .getContentDatabases()
+        .getContentDatabase()
+        .add(emptyListing);
+    when(siteDataClient.getContentContentDatabase("{ffffffff-2912-4927-9eda-1ea2f0977cf8}", true))
+        .thenReturn(new ContentDatabase());
+
+    CheckpointCloseableIterable<IdentityGroup> first = repo.listGroups(null /* Checkpoint */);
+    assertEquals(6, ImmutableList.copyOf(first).size());
+    assertTrue(first.hasMore());
+    assertEquals(
+        "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+        SharePointIdentityCheckpoint.parse(first.getCheckpoint()).getLastContentDatabaseId());
+
+    CheckpointCloseableIterable<IdentityGroup> second = repo.listGroups(first.getCheckpoint());
+    assertEquals(ImmutableList.of(), ImmutableList.copyOf(second));
+    assertFalse(second.hasMore());
+    SharePointIdentityCheckpoint checkpoint =
+        SharePointIdentityCheckpoint.parse(second.getCheckpoint());
+    assertNull(checkpoint.getLastContentDatabaseId());
+    assertEquals(
+        ImmutableSet.of("http://localhost:1", SITE_COLLECTION_URL),
+        checkpoint.getTokens().keySet());
+  }
+
+  @Test
+  public void testListGroupsVirtualServerCheckpointWithoutIteration() throws IOException {
+    SharePointIdentityRepository repo = getSharePointIdentityRepository();
+    Properties baseConfig = getBaseConfig();
+    baseConfig.put("sharepoint.identity.groupFetch.maxConcurrencyPerHost", "1");
+    overrideConfig(baseConfig);
+    repo.init(repoContext);
+    setupVirtualServerForGroups();
+    CheckpointCloseableIterable<IdentityGroup> groups = repo.listGroups(null /* Checkpoint */);
+    SharePointIdentityCheckpoint checkpoint =
+        SharePointIdentityCheckpoint.parse(groups.getCheckpoint());
+    assertEquals(
+        ImmutableSet.of("http://localhost:1", SITE_COLLECTION_URL),
+        checkpoint.getTokens().keySet());
+    assertEquals(6, ImmutableList.copyOf(groups).size());
+  }
+
+  @Test
+  public void testListGroupsVirtualServerSiteCollectionError() throws IOException {
+    SharePointIdentityRepository repo = getSharePointIdentityRepository();
+    Properties baseConfig = getBaseConfig();
+    overrideConfig(baseConfig);
+    repo.init(repoContext);
+    setupVirtualServerForGroups();
+    when(siteDataClient.getContentSite()).thenThrow(new IOException("site failed"));
+    thrown.expect(IOException.class);
+    thrown.expectMessage("site failed");
+    repo.listGroups(null /* Checkpoint */);
+  }
+
+  private void setupSiteChanges(String changes, String cursor) throws IOException {
+    when(siteDataClient.getChangesSPSite(SITE_COLLECTION_ID, SITE_COLLECTION_CHANGE_ID))
+        .thenReturn(siteChangesPaginator);
+    when(siteChangesPaginator.next())
+        .thenReturn(
+            SiteDataClient.jaxbParse(
+                changes.replace("<SPSite ", "<SPSite xmlns='" + XMLNS + "' "),
+                SPSite.class,
+                false))
+        .thenReturn(null);
+    if (cursor != null) {
+      when(siteChangesPaginator.getCursor()).thenReturn(cursor);
+    }
+  }
+
   private Properties getBaseConfig() {
     Properties properties = new Properties();
     properties.put("sharepoint.server", "http://localhost:1");
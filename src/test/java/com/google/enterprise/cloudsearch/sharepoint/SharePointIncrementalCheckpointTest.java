@@ -16,6 +16,7 @@
 
 package com.google.enterprise.cloudsearch.sharepoint;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -24,6 +25,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.enterprise.cloudsearch.sharepoint.SharePointIncrementalCheckpoint.ChangeObjectType;
 import com.google.enterprise.cloudsearch.sharepoint.SharePointIncrementalCheckpoint.DiffKind;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Objects;
 import org.junit.Rule;
@@ -162,4 +164,116 @@ public class SharePointIncrementalCheckpointTest {
             .build(),
         checkpoint1.diff(checkpoint2));
   }
+
+  @Test
+  public void testDiffUnsortedTokens() throws IOException {
+    SharePointIncrementalCheckpoint checkpoint1 =
+        SharePointIncrementalCheckpoint.parse(
+            ("{\"objectType\":\"CONTENT_DB\","
+                    + "\"tokens\":{\"obj3\":\"ch3\",\"obj1\":\"ch1\",\"obj2\":\"ch2\"}}")
+                .getBytes(UTF_8));
+    SharePointIncrementalCheckpoint checkpoint2 =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB)
+            .addChangeToken("obj4", "ch4")
+            .addChangeToken("obj3", "ch3")
+            .addChangeToken("obj1", "ch1updated")
+            .build();
+    assertEquals(
+        ImmutableMap.builder()
+            .put(DiffKind.ADD, Collections.singleton("obj4"))
+            .put(DiffKind.REMOVE, Collections.singleton("obj2"))
+            .put(DiffKind.MODIFIED, Collections.singleton("obj1"))
+            .put(DiffKind.NOT_MODIFIED, Collections.singleton("obj3"))
+            .build(),
+        checkpoint1.diff(checkpoint2));
+  }
+
+  @Test
+  public void testEncodeCompactJson() throws IOException {
+    SharePointIncrementalCheckpoint checkpoint =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB)
+            .addChangeToken("obj1", "ch1")
+            .build();
+    String payload = new String(checkpoint.encodePayload(), UTF_8);
+    assertFalse(payload.contains("\n"));
+    assertFalse(payload.contains(" "));
+    assertTrue(payload.contains("\"version\":2"));
+    assertEquals(2, SharePointIncrementalCheckpoint.parse(payload.getBytes(UTF_8)).getVersion());
+  }
+
+  @Test
+  public void testParsePrettyPrintedVersion1() throws IOException {
+    String payload =
+        "{\n  \"objectType\" : \"CONTENT_DB\",\n  \"tokens\" : {\n"
+            + "    \"obj2\" : \"ch2\",\n    \"obj1\" : \"ch1\"\n  }\n}";
+    SharePointIncrementalCheckpoint parsed =
+        SharePointIncrementalCheckpoint.parse(payload.getBytes(UTF_8));
+    assertEquals(1, parsed.getVersion());
+    assertEquals(ChangeObjectType.CONTENT_DB, parsed.getObjectType());
+    assertEquals(ImmutableMap.of("obj1", "ch1", "obj2", "ch2"), parsed.getTokens());
+    assertEquals(Collections.emptyMap(), parsed.getSiteTokens());
+  }
+
+  @Test
+  public void testLargeCheckpointCompressed() throws IOException {
+    SharePointIncrementalCheckpoint.Builder builder =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB);
+    for (int i = 0; i < 100; i++) {
+      String id = String.format("{4fb7dea1-2912-4927-9eda-%012d}", i);
+      builder.addChangeToken(id, "1;0;" + id + ";634727056594000000;" + (600 + i));
+    }
+    SharePointIncrementalCheckpoint checkpoint = builder.build();
+    byte[] payload = checkpoint.encodePayload();
+    assertEquals((byte) 0x1f, payload[0]);
+    assertEquals((byte) 0x8b, payload[1]);
+    assertTrue(payload.length < checkpoint.toString().length() / 2);
+    assertEquals(checkpoint, SharePointIncrementalCheckpoint.parse(payload));
+    assertTrue(Arrays.equals(payload, checkpoint.encodePayload()));
+  }
+
+  @Test
+  public void testSiteTokens() throws IOException {
+    SharePointIncrementalCheckpoint checkpoint =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB)
+            .addChangeToken("db1", "ch3")
+            .addChangeToken("db2", "ch4")
+            .addSiteChangeToken("db1", "site2", "ch2")
+            .addSiteChangeToken("db1", "site1", "ch1")
+            .build();
+    SharePointIncrementalCheckpoint parsed =
+        SharePointIncrementalCheckpoint.parse(checkpoint.encodePayload());
+    assertEquals(checkpoint, parsed);
+    assertEquals(
+        ImmutableMap.of("db1", ImmutableMap.of("site1", "ch1", "site2", "ch2")),
+        parsed.getSiteTokens());
+    // Change tokens of site collections don't affect their content DB.
+    assertEquals(
+        Collections.singleton("db1"),
+        parsed
+            .diff(
+                new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB)
+                    .addChangeToken("db1", "ch3")
+                    .addChangeToken("db2", "ch5")
+                    .build())
+            .get(DiffKind.NOT_MODIFIED));
+  }
+
+  @Test
+  public void testNoSiteTokensNotEncoded() throws IOException {
+    SharePointIncrementalCheckpoint checkpoint =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB)
+            .addChangeToken("db1", "ch1")
+            .build();
+    assertEquals(Collections.emptyMap(), checkpoint.getSiteTokens());
+    assertFalse(new String(checkpoint.encodePayload(), UTF_8).contains("siteTokens"));
+  }
+
+  @Test
+  public void testParseUnsupportedVersion() throws IOException {
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Unsupported checkpoint version 3");
+    SharePointIncrementalCheckpoint.parse(
+        "{\"version\":3,\"objectType\":\"CONTENT_DB\",\"tokens\":{\"obj1\":\"ch1\"}}"
+            .getBytes(UTF_8));
+  }
 }
@@ -135,6 +135,47 @@ public class SharePointObjectTest {
     assertEquals("http://sp.com", parsed.getUrl());
   }
 
+  @Test
+  public void testEncodePayloadCompact() throws IOException {
+    SharePointObject item =
+        new SharePointObject.Builder(SharePointObject.LIST_ITEM)
+            .setUrl("http://sp.com/web/list/1_.000")
+            .setSiteId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setWebId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setObjectId("item")
+            .setListId("{133fcb96-7e9b-46c9-b5f3-09770a35ad8a}")
+            .build();
+    byte[] encoded = item.encodePayload();
+    assertTrue(CompactPayloadFormat.isCompact(encoded));
+    assertEquals(item, SharePointObject.parse(encoded));
+  }
+
+  @Test
+  public void testParseJsonPayload() throws IOException {
+    SharePointObject item =
+        new SharePointObject.Builder(SharePointObject.LIST_ITEM)
+            .setUrl("http://sp.com/web/list/1_.000")
+            .setSiteId("siteId")
+            .setWebId("webId")
+            .setObjectId("item")
+            .setListId("listId")
+            .build();
+    assertEquals(item, SharePointObject.parse(item.encodeJsonPayload()));
+  }
+
+  @Test
+  public void testEncodePayloadUnknownKeysAsJson() throws IOException {
+    GenericJson toParse = new GenericJson();
+    toParse.setFactory(JSON_FACTORY);
+    toParse.put("objectType", "WEB");
+    toParse.put("url", "http://sp.com/web");
+    toParse.put("addedLater", "value");
+    SharePointObject parsed = SharePointObject.parse(toParse.toPrettyString().getBytes());
+    byte[] encoded = parsed.encodePayload();
+    assertFalse(CompactPayloadFormat.isCompact(encoded));
+    assertEquals(parsed, SharePointObject.parse(encoded));
+  }
+
   private void validateParseAndEquals(SharePointObject object) throws IOException {
     byte[] encoded = object.encodePayload();
     SharePointObject parsed = SharePointObject.parse(encoded);
@@ -27,9 +27,13 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
@@ -45,6 +49,7 @@ import com.google.api.services.cloudsearch.v1.model.Item;
 import com.google.api.services.cloudsearch.v1.model.ItemMetadata;
 import com.google.api.services.cloudsearch.v1.model.NamedProperty;
 import com.google.api.services.cloudsearch.v1.model.ObjectDefinition;
+import com.google.api.services.cloudsearch.v1.model.Operation;
 import com.google.api.services.cloudsearch.v1.model.Principal;
 import com.google.api.services.cloudsearch.v1.model.PropertyDefinition;
 import com.google.api.services.cloudsearch.v1.model.PushItem;
@@ -57,6 +62,8 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterableImpl;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterableImpl.CompareCheckpointCloseableIterableRule;
@@ -73,6 +80,7 @@ import com.google.enterprise.cloudsearch.sdk.indexing.DefaultAcl.DefaultAclMode;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingItemBuilder;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingItemBuilder.FieldOrValue;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingItemBuilder.ItemType;
+import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService.ContentFormat;
 import com.google.enterprise.cloudsearch.sdk.indexing.StructuredData;
 import com.google.enterprise.cloudsearch.sdk.indexing.StructuredData.ResetStructuredDataRule;
@@ -112,6 +120,8 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Handler;
 import java.util.logging.Logger;
@@ -164,6 +174,7 @@ public class SharePointRepositoryTest {
     when(httpClientBuilder.setSharePointRequestContext(any())).thenReturn(httpClientBuilder);
     when(httpClientBuilder.setMaxRedirectsAllowed(20)).thenReturn(httpClientBuilder);
     when(httpClientBuilder.setPerformBrowserLeniency(true)).thenReturn(httpClientBuilder);
+    when(httpClientBuilder.setThrottle(any())).thenReturn(httpClientBuilder);
     when(httpClientBuilder.build()).thenReturn(httpClient);
     when(siteConnectorFactoryBuilder.setRequestContext(any()))
         .thenReturn(siteConnectorFactoryBuilder);
@@ -178,6 +189,13 @@ public class SharePointRepositoryTest {
         .thenReturn(siteConnectorFactoryBuilder);
     when(siteConnectorFactoryBuilder.setSharePointDeploymentType(any()))
         .thenReturn(siteConnectorFactoryBuilder);
+    when(siteConnectorFactoryBuilder.setMemberIdMappingCacheExpirationSecs(anyLong()))
+        .thenReturn(siteConnectorFactoryBuilder);
+    when(siteConnectorFactoryBuilder.setSiteUserMappingCacheExpirationSecs(anyLong()))
+        .thenReturn(siteConnectorFactoryBuilder);
+    when(siteConnectorFactoryBuilder.setWebServiceMetricsSink(any()))
+        .thenReturn(siteConnectorFactoryBuilder);
+    when(siteConnectorFactoryBuilder.setThrottle(any())).thenReturn(siteConnectorFactoryBuilder);
     PropertyDefinition author =
         new PropertyDefinition()
             .setName("CreatedBy")
@@ -234,6 +252,7 @@ public class SharePointRepositoryTest {
     inOrder.verify(httpClientBuilder).setSharePointRequestContext(requestContext);
     inOrder.verify(httpClientBuilder).setMaxRedirectsAllowed(20);
     inOrder.verify(httpClientBuilder).setPerformBrowserLeniency(true);
+    inOrder.verify(httpClientBuilder).setThrottle(any());
     inOrder.verify(httpClientBuilder).build();
     inOrder.verify(siteConnectorFactoryBuilder).setRequestContext(requestContext);
     inOrder.verify(siteConnectorFactoryBuilder).setXmlValidation(false);
@@ -243,6 +262,10 @@ public class SharePointRepositoryTest {
     inOrder
         .verify(siteConnectorFactoryBuilder)
         .setSharePointDeploymentType(SharePointDeploymentType.ON_PREMISES);
+    inOrder.verify(siteConnectorFactoryBuilder).setMemberIdMappingCacheExpirationSecs(1800);
+    inOrder.verify(siteConnectorFactoryBuilder).setSiteUserMappingCacheExpirationSecs(1800);
+    inOrder.verify(siteConnectorFactoryBuilder).setWebServiceMetricsSink(any());
+    inOrder.verify(siteConnectorFactoryBuilder).setThrottle(any());
     inOrder.verify(siteConnectorFactoryBuilder).build();
     verifyNoMoreInteractions(httpClientBuilder, siteConnectorFactoryBuilder);
   }
@@ -289,6 +312,7 @@ public class SharePointRepositoryTest {
     inOrder.verify(httpClientBuilder).setSharePointRequestContext(requestContext);
     inOrder.verify(httpClientBuilder).setMaxRedirectsAllowed(20);
     inOrder.verify(httpClientBuilder).setPerformBrowserLeniency(true);
+    inOrder.verify(httpClientBuilder).setThrottle(any());
     inOrder.verify(httpClientBuilder).build();
     inOrder.verify(siteConnectorFactoryBuilder).setRequestContext(requestContext);
     inOrder.verify(siteConnectorFactoryBuilder).setXmlValidation(false);
@@ -298,6 +322,10 @@ public class SharePointRepositoryTest {
     inOrder
         .verify(siteConnectorFactoryBuilder)
         .setSharePointDeploymentType(SharePointDeploymentType.ON_PREMISES);
+    inOrder.verify(siteConnectorFactoryBuilder).setMemberIdMappingCacheExpirationSecs(1800);
+    inOrder.verify(siteConnectorFactoryBuilder).setSiteUserMappingCacheExpirationSecs(1800);
+    inOrder.verify(siteConnectorFactoryBuilder).setWebServiceMetricsSink(any());
+    inOrder.verify(siteConnectorFactoryBuilder).setThrottle(any());
     inOrder.verify(siteConnectorFactoryBuilder).build();
     verifyNoMoreInteractions(httpClientBuilder, siteConnectorFactoryBuilder);
   }
@@ -330,6 +358,7 @@ public class SharePointRepositoryTest {
         .thenReturn(siteConnectorFactoryBuilder);
     properties.put("sharepoint.userAgent", "custom-user-agent");
     properties.put("sharepoint.deploymentType", "ONLINE");
+    properties.put("sharepoint.memberIdMappingCache.expirationSecs", "600");
     overrideConfig(properties);
     setupVirtualServerForInit();
     repo.init(repoContext);
@@ -344,6 +373,7 @@ public class SharePointRepositoryTest {
     inOrder.verify(httpClientBuilder).setSharePointRequestContext(requestContext);
     inOrder.verify(httpClientBuilder).setMaxRedirectsAllowed(20);
     inOrder.verify(httpClientBuilder).setPerformBrowserLeniency(false);
+    inOrder.verify(httpClientBuilder).setThrottle(any());
     inOrder.verify(httpClientBuilder).build();
     inOrder.verify(siteConnectorFactoryBuilder).setRequestContext(requestContext);
     inOrder.verify(siteConnectorFactoryBuilder).setXmlValidation(true);
@@ -353,6 +383,10 @@ public class SharePointRepositoryTest {
     inOrder
         .verify(siteConnectorFactoryBuilder)
         .setSharePointDeploymentType(SharePointDeploymentType.ONLINE);
+    inOrder.verify(siteConnectorFactoryBuilder).setMemberIdMappingCacheExpirationSecs(600);
+    inOrder.verify(siteConnectorFactoryBuilder).setSiteUserMappingCacheExpirationSecs(1800);
+    inOrder.verify(siteConnectorFactoryBuilder).setWebServiceMetricsSink(any());
+    inOrder.verify(siteConnectorFactoryBuilder).setThrottle(any());
     inOrder.verify(siteConnectorFactoryBuilder).build();
     verifyNoMoreInteractions(httpClientBuilder, siteConnectorFactoryBuilder);
   }
@@ -995,6 +1029,198 @@ public class SharePointRepositoryTest {
     assertEquals(expectedDoc.build(), actual);
   }
 
+  @Test
+  public void testGetListDocContentChildIdsInBatches() throws Exception {
+    Properties config = getBaseConfig();
+    config.put("sharepoint.childIds.maxBatchSize", "1");
+    SharePointRepository repo = setUpDefaultRepository(config);
+    repo.init(repoContext);
+    SiteConnector scRoot =
+        new SiteConnector.Builder("http://localhost:1", "http://localhost:1")
+            .setSiteDataClient(siteDataClient)
+            .setPeople(peopleSoap)
+            .setUserGroup(userGroupSoap)
+            .build();
+    when(siteConnectorFactory.getInstance("http://localhost:1", "http://localhost:1"))
+        .thenReturn(scRoot);
+    setupGetSiteAndWeb(
+        "http://localhost:1/Lists/Custom List/AllItems.aspx",
+        "http://localhost:1",
+        "http://localhost:1",
+        0);
+    String rootSite =
+        SharePointResponseHelper.getSiteCollectionResponse()
+            .replaceAll("/sites/SiteCollection", "");
+    setupSite(rootSite);
+    String rootWeb =
+        SharePointResponseHelper.getWebResponse().replaceAll("/sites/SiteCollection", "");
+    setupWeb(rootWeb);
+    String listResponse =
+        SharePointResponseHelper.getListResponse()
+            .replaceAll("/sites/SiteCollection", "")
+            .replace(
+                "ScopeID=\"{f9cb02b3-7f29-4cac-804f-ba6e14f1eb39}\"",
+                "ScopeID=\"{01abac8c-66c8-4fed-829c-8dd02bbf40dd}\"");
+    setupList(listResponse, "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}");
+    String listRootFolderResponse =
+        SharePointResponseHelper.getListRootFolderContentResponse()
+            .replaceAll("/sites/SiteCollection", "");
+    setupFolder(listRootFolderResponse, "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}", "");
+    SharePointObject listPayload =
+        new SharePointObject.Builder(SharePointObject.LIST)
+            .setUrl("http://localhost:1/Lists/Custom List/AllItems.aspx")
+            .setObjectId("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}")
+            .setSiteId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setWebId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setListId("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}")
+            .build();
+
+    Item entry =
+        new Item()
+            .setName("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}")
+            .encodePayload(listPayload.encodePayload());
+
+    IndexingItemBuilder itemBuilder =
+        new IndexingItemBuilder("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}")
+            .setAcl(
+                new Acl.Builder()
+                    .setInheritanceType(InheritanceType.PARENT_OVERRIDE)
+                    .setInheritFrom("http://localhost:1")
+                    .build())
+            .setSourceRepositoryUrl(
+                FieldOrValue.withValue("http://localhost:1/Lists/Custom%20List/AllItems.aspx"))
+            .setContainerName(FieldOrValue.withValue("http://localhost:1"))
+            .setUpdateTime(
+                FieldOrValue.withValue(
+                    getParsedDateTime(
+                        SharePointRepository.MODIFIED_DATE_LIST_FORMAT, "2012-05-04 21:24:32Z")))
+            .setItemType(ItemType.CONTAINER_ITEM)
+            .setTitle(FieldOrValue.withValue("Custom List"))
+            .setPayload(listPayload.encodePayload());
+
+    Map<String, PushItem> children =
+        getChildEntriesForList("http://localhost:1/Lists/Custom List");
+    List<String> calls = new ArrayList<>();
+    IndexingService indexingService = newRecordingIndexingService(calls);
+    repo.getDoc(entry).execute(indexingService);
+    // One batch per child, in folder page order, followed by the list itself.
+    InOrder inOrder = inOrder(indexingService);
+    inOrder
+        .verify(indexingService)
+        .push(
+            "{FD87F56D-DBE1-4EB1-8379-0B83082615E0}",
+            children.get("{FD87F56D-DBE1-4EB1-8379-0B83082615E0}"));
+    inOrder
+        .verify(indexingService)
+        .push(
+            "{CE33B6B7-9F5E-4224-8D77-9C42E6290FE6}",
+            children.get("{CE33B6B7-9F5E-4224-8D77-9C42E6290FE6}"));
+    assertEquals(3, calls.size());
+    assertEquals(
+        ImmutableList.of(
+            "push {FD87F56D-DBE1-4EB1-8379-0B83082615E0}",
+            "push {CE33B6B7-9F5E-4224-8D77-9C42E6290FE6}"),
+        calls.subList(0, 2));
+  }
+
+  @Test
+  public void testGetListDocContentChildIdsInBatchesFolderPageFailure() throws Exception {
+    Properties config = getBaseConfig();
+    config.put("sharepoint.childIds.maxBatchSize", "1");
+    SharePointRepository repo = setUpDefaultRepository(config);
+    repo.init(repoContext);
+    SiteConnector scRoot =
+        new SiteConnector.Builder("http://localhost:1", "http://localhost:1")
+            .setSiteDataClient(siteDataClient)
+            .setPeople(peopleSoap)
+            .setUserGroup(userGroupSoap)
+            .build();
+    when(siteConnectorFactory.getInstance("http://localhost:1", "http://localhost:1"))
+        .thenReturn(scRoot);
+    setupGetSiteAndWeb(
+        "http://localhost:1/Lists/Custom List/AllItems.aspx",
+        "http://localhost:1",
+        "http://localhost:1",
+        0);
+    String rootSite =
+        SharePointResponseHelper.getSiteCollectionResponse()
+            .replaceAll("/sites/SiteCollection", "");
+    setupSite(rootSite);
+    String rootWeb =
+        SharePointResponseHelper.getWebResponse().replaceAll("/sites/SiteCollection", "");
+    setupWeb(rootWeb);
+    String listResponse =
+        SharePointResponseHelper.getListResponse()
+            .replaceAll("/sites/SiteCollection", "")
+            .replace(
+                "ScopeID=\"{f9cb02b3-7f29-4cac-804f-ba6e14f1eb39}\"",
+                "ScopeID=\"{01abac8c-66c8-4fed-829c-8dd02bbf40dd}\"");
+    setupList(listResponse, "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}");
+    ItemData firstPage =
+        SiteDataClient.jaxbParse(
+            SharePointResponseHelper.getListRootFolderContentResponse()
+                .replaceAll("/sites/SiteCollection", ""),
+            ItemData.class,
+            false);
+    AtomicBoolean firstPageReturned = new AtomicBoolean();
+    Paginator<ItemData> folderPages =
+        () -> {
+          if (firstPageReturned.getAndSet(true)) {
+            throw new IOException("page failed");
+          }
+          return firstPage;
+        };
+    when(siteDataClient.getContentFolderChildren("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}", ""))
+        .thenReturn(folderPages);
+    SharePointObject listPayload =
+        new SharePointObject.Builder(SharePointObject.LIST)
+            .setUrl("http://localhost:1/Lists/Custom List/AllItems.aspx")
+            .setObjectId("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}")
+            .setSiteId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setWebId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setListId("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}")
+            .build();
+    Item entry =
+        new Item()
+            .setName("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}")
+            .encodePayload(listPayload.encodePayload());
+
+    ApiOperation operation = repo.getDoc(entry);
+    List<String> calls = new ArrayList<>();
+    try {
+      operation.execute(newRecordingIndexingService(calls));
+      fail("expected IOException");
+    } catch (IOException expected) {
+      assertEquals("page failed", expected.getMessage());
+    }
+    // Children of the first page are pushed, but the list itself isn't.
+    assertEquals(
+        ImmutableList.of(
+            "push {FD87F56D-DBE1-4EB1-8379-0B83082615E0}",
+            "push {CE33B6B7-9F5E-4224-8D77-9C42E6290FE6}"),
+        calls);
+  }
+
+  /**
+   * Returns an indexing service recording its calls in {@code calls}, as "push id" for pushed
+   * items and as the method name otherwise. Every call succeeds.
+   */
+  private static IndexingService newRecordingIndexingService(List<String> calls) {
+    return mock(
+        IndexingService.class,
+        invocation -> {
+          String method = invocation.getMethod().getName();
+          if (method.equals("push")) {
+            calls.add("push " + invocation.getArgument(0));
+            return Futures.immediateFuture(new Item());
+          }
+          calls.add(method);
+          return invocation.getMethod().getReturnType() == ListenableFuture.class
+              ? Futures.immediateFuture(new Operation())
+              : RETURNS_DEFAULTS.answer(invocation);
+        });
+  }
+
   @Test
   public void testGetListDocContentNoIndex() throws IOException {
     SharePointRepository repo = setUpDefaultRepository();
@@ -1175,6 +1401,178 @@ public class SharePointRepositoryTest {
                 .setTextValues(new TextValues().setValues(ImmutableList.of("alpha", "beta")))));
   }
 
+  @Test
+  public void testGetListItemDocContentParallelFetch() throws Exception {
+    Properties properties = getBaseConfig();
+    properties.put("sharepoint.itemFetch.maxConcurrency", "4");
+    SharePointRepository repo = setUpDefaultRepository(properties);
+    repo.init(repoContext);
+    SiteConnector scRoot =
+        new SiteConnector.Builder("http://localhost:1", "http://localhost:1")
+            .setSiteDataClient(siteDataClient)
+            .setPeople(peopleSoap)
+            .setUserGroup(userGroupSoap)
+            .build();
+    when(siteConnectorFactory.getInstance("http://localhost:1", "http://localhost:1"))
+        .thenReturn(scRoot);
+    setupGetSiteAndWeb(
+        "http://localhost:1/Lists/Custom List/Test Folder/2_.000",
+        "http://localhost:1",
+        "http://localhost:1",
+        0);
+    String rootSite =
+        SharePointResponseHelper.getSiteCollectionResponse()
+            .replaceAll("/sites/SiteCollection", "");
+    setupSite(rootSite);
+    String rootWeb =
+        SharePointResponseHelper.getWebResponse().replaceAll("/sites/SiteCollection", "");
+    setupWeb(rootWeb);
+    String listResponse =
+        SharePointResponseHelper.getListResponse()
+            .replaceAll("/sites/SiteCollection", "")
+            .replace(
+                "ScopeID=\"{f9cb02b3-7f29-4cac-804f-ba6e14f1eb39}\"",
+                "ScopeID=\"{2e29615c-59e7-493b-b08a-3642949cc069}\"");
+    setupList(listResponse, "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}");
+    SharePointObject payloadItem =
+        new SharePointObject.Builder(SharePointObject.LIST_ITEM)
+            .setListId("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}")
+            .setSiteId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setWebId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setUrl("http://localhost:1/Lists/Custom List/Test Folder/2_.000")
+            .setObjectId("item")
+            .build();
+    setupUrlSegments(
+        "http://localhost:1/Lists/Custom List/Test Folder/2_.000",
+        "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}",
+        "2");
+    String listItemResponse =
+        SharePointResponseHelper.getListItemResponse()
+            .replaceAll("/sites/SiteCollection", "")
+            .replaceAll("sites/SiteCollection/", "");
+    setupListItem(listItemResponse, "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}", "2");
+    setupUrlSegments(
+        "http://localhost:1/Lists/Custom List/Test Folder",
+        "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}",
+        "1");
+    String folderResponse =
+        SharePointResponseHelper.loadTestResponse("sites-SiteCollection-Lists-CustomList-1-li.xml")
+            .replaceAll("/sites/SiteCollection", "")
+            .replaceAll("sites/SiteCollection/", "")
+            .replace("<Item>", "<ItemData xmlns='" + XMLNS + "'>")
+            .replace("</Item>", "</ItemData>");
+    ItemData folderItem = SiteDataClient.jaxbParse(folderResponse, ItemData.class, false);
+    // The parent folder's row and the item's attachments are each only returned once both
+    // lookups are in flight.
+    CountDownLatch inFlight = new CountDownLatch(2);
+    AtomicBoolean overlapped = new AtomicBoolean(true);
+    doAnswer(
+            invocation -> {
+              inFlight.countDown();
+              overlapped.compareAndSet(true, inFlight.await(10, TimeUnit.SECONDS));
+              return folderItem;
+            })
+        .when(siteDataClient)
+        .getContentItem("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}", "1");
+    doAnswer(
+            invocation -> {
+              inFlight.countDown();
+              overlapped.compareAndSet(true, inFlight.await(10, TimeUnit.SECONDS));
+              return new com.microsoft.schemas.sharepoint.soap.Item();
+            })
+        .when(siteDataClient)
+        .getContentListItemAttachments("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}", "2");
+
+    Item entry =
+        new Item()
+            .setName("{E7156244-AC2F-4402-AA74-7A365726CD02}")
+            .encodePayload(payloadItem.encodePayload());
+    RepositoryDoc returnedDoc = (RepositoryDoc) repo.getDoc(entry);
+    Item expected =
+        new IndexingItemBuilder("{E7156244-AC2F-4402-AA74-7A365726CD02}")
+            .setAcl(
+                new Acl.Builder()
+                    .setInheritanceType(InheritanceType.PARENT_OVERRIDE)
+                    .setInheritFrom("{CE33B6B7-9F5E-4224-8D77-9C42E6290FE6}")
+                    .build())
+            .setContainerName(FieldOrValue.withValue("{CE33B6B7-9F5E-4224-8D77-9C42E6290FE6}"))
+            .setItemType(ItemType.CONTAINER_ITEM)
+            .build();
+    assertEquals(expected.getAcl(), returnedDoc.getItem().getAcl());
+    assertEquals(expected.getItemType(), returnedDoc.getItem().getItemType());
+    assertEquals(
+        expected.getMetadata().getContainerName(),
+        returnedDoc.getItem().getMetadata().getContainerName());
+    assertTrue(overlapped.get());
+  }
+
+  @Test
+  public void testGetListItemDocContentMissingScope() throws Exception {
+    SharePointRepository repo = setUpDefaultRepository();
+    repo.init(repoContext);
+    SiteConnector scRoot =
+        new SiteConnector.Builder("http://localhost:1", "http://localhost:1")
+            .setSiteDataClient(siteDataClient)
+            .setPeople(peopleSoap)
+            .setUserGroup(userGroupSoap)
+            .build();
+    when(siteConnectorFactory.getInstance("http://localhost:1", "http://localhost:1"))
+        .thenReturn(scRoot);
+    setupGetSiteAndWeb(
+        "http://localhost:1/Lists/Custom List/2_.000",
+        "http://localhost:1",
+        "http://localhost:1",
+        0);
+    String rootSite =
+        SharePointResponseHelper.getSiteCollectionResponse()
+            .replaceAll("/sites/SiteCollection", "");
+    setupSite(rootSite);
+    String rootWeb =
+        SharePointResponseHelper.getWebResponse().replaceAll("/sites/SiteCollection", "");
+    setupWeb(rootWeb);
+    String listResponse =
+        SharePointResponseHelper.getListResponse()
+            .replaceAll("/sites/SiteCollection", "")
+            .replace(
+                "ScopeID=\"{f9cb02b3-7f29-4cac-804f-ba6e14f1eb39}\"",
+                "ScopeID=\"{2e29615c-59e7-493b-b08a-3642949cc069}\"");
+    setupList(listResponse, "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}");
+    SharePointObject payloadItem =
+        new SharePointObject.Builder(SharePointObject.LIST_ITEM)
+            .setListId("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}")
+            .setSiteId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setWebId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setUrl("http://localhost:1/Lists/Custom List/2_.000")
+            .setObjectId("item")
+            .build();
+    setupUrlSegments(
+        "http://localhost:1/Lists/Custom List/2_.000",
+        "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}",
+        "2");
+    // Item has an attachment, but a scope not listed in the response.
+    String listItemResponse =
+        SharePointResponseHelper.getListItemResponse()
+            .replaceAll("/Test Folder", "")
+            .replaceAll("/Test%20Folder", "")
+            .replaceAll("/sites/SiteCollection", "")
+            .replaceAll("sites/SiteCollection/", "")
+            .replace(
+                "ows_ScopeId='2;#{2E29615C-59E7-493B-B08A-3642949CC069}'",
+                "ows_ScopeId='2;#{00000000-0000-0000-0000-000000000000}'");
+    setupListItem(listItemResponse, "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}", "2");
+
+    Item entry =
+        new Item()
+            .setName("{E7156244-AC2F-4402-AA74-7A365726CD02}")
+            .encodePayload(payloadItem.encodePayload());
+    try {
+      repo.getDoc(entry);
+      fail("expected RepositoryException");
+    } catch (RepositoryException expected) {
+      // The item's scope isn't in the response.
+    }
+  }
+
   @Test
   public void testGetListItemDocContentFolder() throws Exception {
     Properties properties = getBaseConfig();
@@ -2600,10 +2998,12 @@ public class SharePointRepositoryTest {
   }
 
   @Test
-  public void testGetChangesSitePermissions() throws IOException {
+  public void testGetChangesBatchFullSiteCollectionOnly() throws IOException {
     SharePointRepository repo = getSharePointRepository();
     Properties properties = getBaseConfig();
     properties.put("sharepoint.siteCollectionOnly", "true");
+    properties.put("sharepoint.changes.maxBatchSize", "1");
+    properties.put("sharepoint.pagePrefetch.depth", "0");
     overrideConfig(properties);
     SiteConnector scRoot =
         new SiteConnector.Builder("http://localhost:1", "http://localhost:1")
@@ -2617,11 +3017,162 @@ public class SharePointRepositoryTest {
         SharePointResponseHelper.getSiteCollectionResponse()
             .replaceAll("/sites/SiteCollection", "");
     setupSite(rootSite);
-    setupGetSiteAndWeb("http://localhost:1", "http://localhost:1", "http://localhost:1", 0);
     String changes726 =
-        SharePointResponseHelper.getChangesSitePermissionsChange()
-            .replace("<SPSite ", "<SPSite xmlns='" + XMLNS + "' ");
-    when(siteChangesPaginator.next())
+        SharePointResponseHelper.getChangesForSiteCollection()
+            .replace("<SPSite ", "<SPSite xmlns='" + XMLNS + "' ")
+            .replaceAll("/sites/SiteCollection", "");
+    when(siteChangesPaginator.next())
+        .thenReturn(SiteDataClient.jaxbParse(changes726, SPSite.class, false))
+        .thenReturn(SiteDataClient.jaxbParse(changes726, SPSite.class, false));
+    when(siteChangesPaginator.getCursor())
+        .thenReturn("1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;634762601982930000;728");
+    when(siteDataClient.getChangesSPSite(
+            "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+            "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;634762601982930000;724"))
+        .thenReturn(siteChangesPaginator);
+    repo.init(repoContext);
+    SharePointIncrementalCheckpoint checkpointOld =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.SITE_COLLECTION)
+            .addChangeToken(
+                "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+                "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;634762601982930000;724")
+            .build();
+    SharePointIncrementalCheckpoint checkpoint =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.SITE_COLLECTION)
+            .addChangeToken(
+                "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+                "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;634762601982930000;728")
+            .build();
+    SharePointObject listItemObject =
+        new SharePointObject.Builder(SharePointObject.LIST_ITEM)
+            .setListId("{133fcb96-7e9b-46c9-b5f3-09770a35ad8a}")
+            .setSiteId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setWebId("{b2ea1067-3a54-4ab7-a459-c8ec864b97eb}")
+            .setUrl("http://localhost:1/Lists/Announcements/2_.000")
+            .setObjectId("item")
+            .build();
+    CheckpointCloseableIterable<ApiOperation> expected =
+        new CheckpointCloseableIterableImpl.Builder<>(
+                Collections.<ApiOperation>singleton(
+                    new PushItems.Builder()
+                        .addPushItem(
+                            "{5085BE94-B5C1-45C8-A047-D0F03344FE31}",
+                            new PushItem()
+                                .setType("MODIFIED")
+                                .encodePayload(listItemObject.encodePayload()))
+                        .build()))
+            .setCheckpoint(checkpoint.encodePayload())
+            .setHasMore(true)
+            .build();
+
+    CheckpointCloseableIterable<ApiOperation> changes =
+        repo.getChanges(checkpointOld.encodePayload());
+    assertTrue(checkpointIterableRule.compare(expected, changes));
+    verify(siteChangesPaginator, times(1)).next();
+  }
+
+  @Test
+  public void testGetChangesBatchFullPrefetchSiteCollectionOnly() throws IOException {
+    SharePointRepository repo = getSharePointRepository();
+    Properties properties = getBaseConfig();
+    properties.put("sharepoint.siteCollectionOnly", "true");
+    properties.put("sharepoint.changes.maxBatchSize", "1");
+    properties.put("sharepoint.pagePrefetch.depth", "1");
+    overrideConfig(properties);
+    SiteConnector scRoot =
+        new SiteConnector.Builder("http://localhost:1", "http://localhost:1")
+            .setSiteDataClient(siteDataClient)
+            .setPeople(peopleSoap)
+            .setUserGroup(userGroupSoap)
+            .build();
+    when(siteConnectorFactory.getInstance("http://localhost:1", "http://localhost:1"))
+        .thenReturn(scRoot);
+    String rootSite =
+        SharePointResponseHelper.getSiteCollectionResponse()
+            .replaceAll("/sites/SiteCollection", "");
+    setupSite(rootSite);
+    String changes726 =
+        SharePointResponseHelper.getChangesForSiteCollection()
+            .replace("<SPSite ", "<SPSite xmlns='" + XMLNS + "' ")
+            .replaceAll("/sites/SiteCollection", "");
+    when(siteChangesPaginator.next())
+        .thenReturn(SiteDataClient.jaxbParse(changes726, SPSite.class, false))
+        .thenReturn(SiteDataClient.jaxbParse(changes726, SPSite.class, false));
+    // Cursor before any page, after the page processed, and after the page fetched ahead.
+    when(siteChangesPaginator.getCursor())
+        .thenReturn(
+            "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;634762601982930000;724",
+            "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;634762601982930000;728",
+            "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;634762601982930000;730");
+    when(siteDataClient.getChangesSPSite(
+            "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+            "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;634762601982930000;724"))
+        .thenReturn(siteChangesPaginator);
+    repo.init(repoContext);
+    SharePointIncrementalCheckpoint checkpointOld =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.SITE_COLLECTION)
+            .addChangeToken(
+                "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+                "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;634762601982930000;724")
+            .build();
+    SharePointIncrementalCheckpoint checkpoint =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.SITE_COLLECTION)
+            .addChangeToken(
+                "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+                "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;634762601982930000;728")
+            .build();
+    SharePointObject listItemObject =
+        new SharePointObject.Builder(SharePointObject.LIST_ITEM)
+            .setListId("{133fcb96-7e9b-46c9-b5f3-09770a35ad8a}")
+            .setSiteId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setWebId("{b2ea1067-3a54-4ab7-a459-c8ec864b97eb}")
+            .setUrl("http://localhost:1/Lists/Announcements/2_.000")
+            .setObjectId("item")
+            .build();
+    CheckpointCloseableIterable<ApiOperation> expected =
+        new CheckpointCloseableIterableImpl.Builder<>(
+                Collections.<ApiOperation>singleton(
+                    new PushItems.Builder()
+                        .addPushItem(
+                            "{5085BE94-B5C1-45C8-A047-D0F03344FE31}",
+                            new PushItem()
+                                .setType("MODIFIED")
+                                .encodePayload(listItemObject.encodePayload()))
+                        .build()))
+            .setCheckpoint(checkpoint.encodePayload())
+            .setHasMore(true)
+            .build();
+
+    CheckpointCloseableIterable<ApiOperation> changes =
+        repo.getChanges(checkpointOld.encodePayload());
+    // Checkpoint holds the change token after the page processed, not after the page fetched
+    // ahead of the full batch.
+    assertTrue(checkpointIterableRule.compare(expected, changes));
+  }
+
+  @Test
+  public void testGetChangesSitePermissions() throws IOException {
+    SharePointRepository repo = getSharePointRepository();
+    Properties properties = getBaseConfig();
+    properties.put("sharepoint.siteCollectionOnly", "true");
+    overrideConfig(properties);
+    SiteConnector scRoot =
+        new SiteConnector.Builder("http://localhost:1", "http://localhost:1")
+            .setSiteDataClient(siteDataClient)
+            .setPeople(peopleSoap)
+            .setUserGroup(userGroupSoap)
+            .build();
+    when(siteConnectorFactory.getInstance("http://localhost:1", "http://localhost:1"))
+        .thenReturn(scRoot);
+    String rootSite =
+        SharePointResponseHelper.getSiteCollectionResponse()
+            .replaceAll("/sites/SiteCollection", "");
+    setupSite(rootSite);
+    setupGetSiteAndWeb("http://localhost:1", "http://localhost:1", "http://localhost:1", 0);
+    String changes726 =
+        SharePointResponseHelper.getChangesSitePermissionsChange()
+            .replace("<SPSite ", "<SPSite xmlns='" + XMLNS + "' ");
+    when(siteChangesPaginator.next())
         .thenReturn(SiteDataClient.jaxbParse(changes726, SPSite.class, false))
         .thenReturn(null);
     when(siteChangesPaginator.getCursor())
@@ -2666,6 +3217,7 @@ public class SharePointRepositoryTest {
     CheckpointCloseableIterable<ApiOperation> changes =
         repo.getChanges(checkpointOld.encodePayload());
     assertTrue(checkpointIterableRule.compare(expected, changes));
+    verify(siteConnectorFactory).invalidateMemberIdMapping("http://localhost:1");
   }
 
   @Test
@@ -2953,6 +3505,200 @@ public class SharePointRepositoryTest {
     assertTrue(checkpointIterableRule.compare(expected, changes));
   }
 
+  @Test
+  public void testGetChangesRetriesSiteCollectionCheckpointVirtualServer() throws IOException {
+    SharePointRepository repo = setUpDefaultRepository();
+    SiteConnector scRoot =
+        new SiteConnector.Builder("http://localhost:1", "http://localhost:1")
+            .setSiteDataClient(siteDataClient)
+            .setPeople(peopleSoap)
+            .setUserGroup(userGroupSoap)
+            .build();
+    when(siteConnectorFactory.getInstance("http://localhost:1", "http://localhost:1"))
+        .thenReturn(scRoot);
+    String rootSite =
+        SharePointResponseHelper.getSiteCollectionResponse()
+            .replaceAll("/sites/SiteCollection", "");
+    setupSite(rootSite);
+    setupGetSiteAndWeb("http://localhost:1", "http://localhost:1", "http://localhost:1", 0);
+    String changes726 =
+        SharePointResponseHelper.getChangesForcontentDB()
+            .replace("<SPContentDatabase ", "<SPContentDatabase xmlns='" + XMLNS + "' ")
+            .replace("<SPSite ", "<SPSite Id='{bb3bb2dd-6ea7-471b-a361-6fb67988755c}' ")
+            .replaceAll("/sites/SiteCollection", "");
+    when(cdChangesPaginator.next())
+        .thenReturn(SiteDataClient.jaxbParse(changes726, SPContentDatabase.class, false))
+        .thenReturn(null);
+    when(cdChangesPaginator.getCursor())
+        .thenReturn("1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603");
+    when(siteDataClient.getChangesContentDatabase(
+            "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+            "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;600"))
+        .thenReturn(cdChangesPaginator);
+
+    repo.init(repoContext);
+    // No changes for the content DB since the checkpoint, but site collection changes left to
+    // process from an earlier change token.
+    SharePointIncrementalCheckpoint checkpointOld =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB)
+            .addChangeToken(
+                "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+                "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603")
+            .addSiteChangeToken(
+                "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+                "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+                "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;600")
+            .build();
+    SharePointIncrementalCheckpoint checkpoint =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB)
+            .addChangeToken(
+                "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+                "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603")
+            .build();
+    SharePointObject listItemObject =
+        new SharePointObject.Builder(SharePointObject.LIST_ITEM)
+            .setListId("{133fcb96-7e9b-46c9-b5f3-09770a35ad8a}")
+            .setSiteId("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}")
+            .setWebId("{b2ea1067-3a54-4ab7-a459-c8ec864b97eb}")
+            .setUrl("http://localhost:1/Lists/Announcements/2_.000")
+            .setObjectId("item")
+            .build();
+    CheckpointCloseableIterable<ApiOperation> expected =
+        new CheckpointCloseableIterableImpl.Builder<>(
+                Collections.<ApiOperation>singleton(
+                    new PushItems.Builder()
+                        .addPushItem(
+                            "{5085BE94-B5C1-45C8-A047-D0F03344FE31}",
+                            new PushItem()
+                                .setType("MODIFIED")
+                                .encodePayload(listItemObject.encodePayload()))
+                        .build()))
+            .setCheckpoint(checkpoint.encodePayload())
+            .setHasMore(false)
+            .build();
+
+    CheckpointCloseableIterable<ApiOperation> changes =
+        repo.getChanges(checkpointOld.encodePayload());
+    assertTrue(checkpointIterableRule.compare(expected, changes));
+  }
+
+  @Test
+  public void testGetChangesFailingSiteCollectionCheckpointVirtualServer() throws IOException {
+    SharePointRepository repo = setUpDefaultRepository();
+    SiteConnector scRoot =
+        new SiteConnector.Builder("http://localhost:1", "http://localhost:1")
+            .setSiteDataClient(siteDataClient)
+            .setPeople(peopleSoap)
+            .setUserGroup(userGroupSoap)
+            .build();
+    when(siteConnectorFactory.getInstance("http://localhost:1", "http://localhost:1"))
+        .thenReturn(scRoot);
+    String rootSite =
+        SharePointResponseHelper.getSiteCollectionResponse()
+            .replaceAll("/sites/SiteCollection", "");
+    setupSite(rootSite);
+    setupGetSiteAndWeb("http://localhost:1", "http://localhost:1", "http://localhost:1", 0);
+    doThrow(new IOException("site collection unavailable"))
+        .when(siteDataClient)
+        .getSiteAndWeb(eq("http://localhost:1/failing"), any(), any());
+    String changes726 =
+        SharePointResponseHelper.getChangesForcontentDB()
+            .replace("<SPContentDatabase ", "<SPContentDatabase xmlns='" + XMLNS + "' ")
+            .replace("<SPSite ", "<SPSite Id='{bb3bb2dd-6ea7-471b-a361-6fb67988755c}' ")
+            .replace(
+                "<SPWeb Change=\"Unchanged\"",
+                "<SPWeb Change=\"Update\" ServerUrl=\"http://localhost:1\""
+                    + " DisplayUrl=\"/failing\" InternalUrl=\"/siteurl=/siteid="
+                    + "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}/weburl=/webid="
+                    + "{b2ea1067-3a54-4ab7-a459-c8ec864b97eb}/\"")
+            .replaceAll("/sites/SiteCollection", "");
+    when(cdChangesPaginator.next())
+        .thenReturn(SiteDataClient.jaxbParse(changes726, SPContentDatabase.class, false))
+        .thenReturn(null);
+    when(cdChangesPaginator.getCursor())
+        .thenReturn("1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603");
+    when(siteDataClient.getChangesContentDatabase(
+            "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+            "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;600"))
+        .thenReturn(cdChangesPaginator);
+
+    repo.init(repoContext);
+    SharePointIncrementalCheckpoint checkpointOld =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB)
+            .addChangeToken(
+                "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+                "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;600")
+            .build();
+    // Content DB change token advances, failed site collection is retried from the failed page.
+    SharePointIncrementalCheckpoint checkpoint =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB)
+            .addChangeToken(
+                "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+                "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603")
+            .addSiteChangeToken(
+                "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+                "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+                "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;600")
+            .build();
+    CheckpointCloseableIterable<ApiOperation> expected =
+        new CheckpointCloseableIterableImpl.Builder<>(
+                Collections.<ApiOperation>singleton(new PushItems.Builder().build()))
+            .setCheckpoint(checkpoint.encodePayload())
+            .setHasMore(false)
+            .build();
+
+    CheckpointCloseableIterable<ApiOperation> changes =
+        repo.getChanges(checkpointOld.encodePayload());
+    assertTrue(checkpointIterableRule.compare(expected, changes));
+  }
+
+  @Test
+  public void testGetChangesFailingSiteCollectionRetryVirtualServer() throws IOException {
+    SharePointRepository repo = setUpDefaultRepository();
+    SiteConnector scRoot =
+        new SiteConnector.Builder("http://localhost:1", "http://localhost:1")
+            .setSiteDataClient(siteDataClient)
+            .setPeople(peopleSoap)
+            .setUserGroup(userGroupSoap)
+            .build();
+    when(siteConnectorFactory.getInstance("http://localhost:1", "http://localhost:1"))
+        .thenReturn(scRoot);
+    String rootSite =
+        SharePointResponseHelper.getSiteCollectionResponse()
+            .replaceAll("/sites/SiteCollection", "");
+    setupSite(rootSite);
+    setupGetSiteAndWeb("http://localhost:1", "http://localhost:1", "http://localhost:1", 0);
+    // Such as for a change token no longer in the change log.
+    when(cdChangesPaginator.next()).thenThrow(new IOException("invalid change token"));
+    when(siteDataClient.getChangesContentDatabase(
+            "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+            "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;600"))
+        .thenReturn(cdChangesPaginator);
+
+    repo.init(repoContext);
+    SharePointIncrementalCheckpoint checkpointOld =
+        new SharePointIncrementalCheckpoint.Builder(ChangeObjectType.CONTENT_DB)
+            .addChangeToken(
+                "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+                "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603")
+            .addSiteChangeToken(
+                "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+                "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+                "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;600")
+            .build();
+    // Batch doesn't fail, site collection keeps its change token.
+    CheckpointCloseableIterable<ApiOperation> expected =
+        new CheckpointCloseableIterableImpl.Builder<>(
+                Collections.<ApiOperation>singleton(new PushItems.Builder().build()))
+            .setCheckpoint(checkpointOld.encodePayload())
+            .setHasMore(false)
+            .build();
+
+    CheckpointCloseableIterable<ApiOperation> changes =
+        repo.getChanges(checkpointOld.encodePayload());
+    assertTrue(checkpointIterableRule.compare(expected, changes));
+  }
+
   @Test
   public void testIsHtmlContent() {
     assertFalse(SharePointRepository.isHtmlContent(null));
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link SiteCollectionExecutor}. */
+public class SiteCollectionExecutorTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private SiteCollectionExecutor executor;
+
+  @After
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testInvalidMaxConcurrency() {
+    thrown.expect(IllegalArgumentException.class);
+    new SiteCollectionExecutor(0, 1);
+  }
+
+  @Test
+  public void testInvalidMaxConcurrencyPerHost() {
+    thrown.expect(IllegalArgumentException.class);
+    new SiteCollectionExecutor(1, 0);
+  }
+
+  @Test
+  public void testEmptyInput() {
+    executor = new SiteCollectionExecutor(4, 2);
+    assertFalse(
+        executor.iterate(Collections.<String>emptyList(), SiteCollectionExecutorTest::host, s -> s)
+            .hasNext());
+  }
+
+  @Test
+  public void testResultsInCompletionOrder() {
+    executor = new SiteCollectionExecutor(4, 4);
+    CountDownLatch firstReleased = new CountDownLatch(1);
+    SiteCollectionExecutor.Results<String> results =
+        executor.iterate(
+            ImmutableList.of("http://host1/sites/1", "http://host1/sites/2"),
+            SiteCollectionExecutorTest::host,
+            site -> {
+              if (site.endsWith("1")) {
+                // sites/1 completes after sites/2 is returned.
+                await(firstReleased);
+              }
+              return site;
+            });
+    assertEquals("http://host1/sites/2", results.next());
+    firstReleased.countDown();
+    assertEquals("http://host1/sites/1", results.next());
+    assertFalse(results.hasNext());
+  }
+
+  @Test
+  public void testConcurrencyBoundedPerHost() throws Exception {
+    executor = new SiteCollectionExecutor(4, 1);
+    Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+    AtomicInteger maxRunningPerHost = new AtomicInteger();
+    BlockingQueue<String> started = new LinkedBlockingQueue<>();
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> sites =
+        ImmutableList.of(
+            "http://host1/sites/1",
+            "http://host1/sites/2",
+            "http://host1/sites/3",
+            "http://host2/sites/1",
+            "http://host2/sites/2");
+    SiteCollectionExecutor.Results<String> results =
+        executor.iterate(
+            sites,
+            SiteCollectionExecutorTest::host,
+            site -> {
+              AtomicInteger hostRunning =
+                  running.computeIfAbsent(host(site), k -> new AtomicInteger());
+              maxRunningPerHost.accumulateAndGet(hostRunning.incrementAndGet(), Math::max);
+              started.add(site);
+              await(release);
+              hostRunning.decrementAndGet();
+              return site;
+            });
+    ExecutorService consumer = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<String>> consumed = consumer.submit(() -> ImmutableList.copyOf(results));
+      // Only the first site collection of each host starts until they are released.
+      assertEquals(
+          ImmutableSet.of("http://host1/sites/1", "http://host2/sites/1"),
+          ImmutableSet.of(
+              started.poll(10, TimeUnit.SECONDS), started.poll(10, TimeUnit.SECONDS)));
+      assertTrue(started.isEmpty());
+      release.countDown();
+      assertEquals(
+          ImmutableSet.copyOf(sites),
+          ImmutableSet.copyOf(consumed.get(10, TimeUnit.SECONDS)));
+    } finally {
+      consumer.shutdownNow();
+    }
+    assertEquals(1, maxRunningPerHost.get());
+  }
+
+  @Test
+  public void testSequentialRunsOnCallerThread() {
+    executor = new SiteCollectionExecutor(1, 1);
+    Thread caller = Thread.currentThread();
+    assertEquals(
+        ImmutableList.of(true, true),
+        ImmutableList.copyOf(
+            executor.iterate(
+                ImmutableList.of("http://host1/sites/1", "http://host1/sites/2"),
+                SiteCollectionExecutorTest::host,
+                site -> Thread.currentThread() == caller)));
+  }
+
+  @Test
+  public void testTasksSubmittedLazily() {
+    executor = new SiteCollectionExecutor(2, 2);
+    Map<String, Boolean> started = new ConcurrentHashMap<>();
+    executor.iterate(
+        ImmutableList.of("http://host1/sites/1", "http://host2/sites/1"),
+        SiteCollectionExecutorTest::host,
+        site -> started.put(site, true));
+    assertTrue(started.isEmpty());
+  }
+
+  @Test
+  public void testIOExceptionPropagated() {
+    executor = new SiteCollectionExecutor(4, 4);
+    SiteCollectionExecutor.Results<String> results =
+        executor.iterate(
+            ImmutableList.of("http://host1/sites/1"),
+            SiteCollectionExecutorTest::host,
+            site -> {
+              throw new IOException("site failed");
+            });
+    thrown.expect(UncheckedIOException.class);
+    thrown.expectMessage("site failed");
+    results.next();
+  }
+
+  @Test
+  public void testCancelSkipsPending() {
+    executor = new SiteCollectionExecutor(2, 1);
+    SiteCollectionExecutor.Results<String> results =
+        executor.iterate(
+            ImmutableList.of("http://host1/sites/1", "http://host1/sites/2"),
+            SiteCollectionExecutorTest::host,
+            site -> site);
+    assertEquals("http://host1/sites/1", results.next());
+    results.cancel();
+    assertFalse(results.hasNext());
+  }
+
+  private static String host(String url) {
+    return url.split("/")[2];
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      if (!latch.await(10, TimeUnit.SECONDS)) {
+        throw new IOException("timed out");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+}
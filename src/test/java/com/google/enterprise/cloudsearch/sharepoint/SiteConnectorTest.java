@@ -20,10 +20,14 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
 import com.google.api.services.cloudidentity.v1.model.EntityKey;
 import com.google.api.services.cloudidentity.v1.model.Membership;
@@ -38,7 +42,9 @@ import com.google.enterprise.cloudsearch.sdk.identity.RepositoryContext;
 import com.google.enterprise.cloudsearch.sdk.indexing.Acl;
 import com.google.enterprise.cloudsearch.sharepoint.SharePointConfiguration.SharePointDeploymentType;
 import com.google.enterprise.cloudsearch.sharepoint.SiteConnector.SPBasePermissions;
+import com.google.enterprise.cloudsearch.sharepoint.SiteConnectorFactory.SoapFactory;
 import com.microsoft.schemas.sharepoint.soap.ACL;
+import com.microsoft.schemas.sharepoint.soap.ObjectType;
 import com.microsoft.schemas.sharepoint.soap.Permission;
 import com.microsoft.schemas.sharepoint.soap.PermissionsForACL;
 import com.microsoft.schemas.sharepoint.soap.Scopes.Scope;
@@ -68,6 +74,8 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Holder;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -178,6 +186,108 @@ public class SiteConnectorTest {
     assertEquals(Arrays.asList(spUser1, teamSiteOwners), sc.getWebAcls(web));
   }
 
+  @Test
+  public void testGetWebAclsMemberIdMappingCached() throws IOException {
+    Permission permSpUser1 = createPermission(2, SiteConnector.LIST_ITEM_MASK);
+    Web web = new Web();
+    web.setACL(new ACL());
+    web.getACL().setPermissions(new PermissionsForACL());
+    web.getACL().getPermissions().getPermission().add(permSpUser1);
+    SiteDataSoap factorySiteData =
+        mock(SiteDataSoap.class, withSettings().extraInterfaces(BindingProvider.class));
+    doAnswer(
+            invocation -> {
+              @SuppressWarnings("unchecked")
+              Holder<String> result = (Holder<String>) invocation.getArgument(7);
+              result.value = loadTestResponse("sites-SiteCollection-sc.xml");
+              return null;
+            })
+        .when(factorySiteData)
+        .getContent(
+            eq(ObjectType.SITE_COLLECTION),
+            eq(null),
+            eq(null),
+            eq(null),
+            eq(true),
+            eq(false),
+            eq(null),
+            any());
+    SoapFactory soapFactory = mock(SoapFactory.class);
+    when(soapFactory.newSiteData(any())).thenReturn(factorySiteData);
+    when(soapFactory.newUserGroup(any()))
+        .thenReturn(
+            mock(UserGroupSoap.class, withSettings().extraInterfaces(BindingProvider.class)));
+    when(soapFactory.newPeople(any()))
+        .thenReturn(mock(PeopleSoap.class, withSettings().extraInterfaces(BindingProvider.class)));
+    SiteConnectorFactoryImpl factory =
+        new SiteConnectorFactoryImpl.Builder()
+            .setSoapFactory(soapFactory)
+            .setRequestContext(mock(SharePointRequestContext.class))
+            .setReferenceIdentitySourceConfiguration(
+                ImmutableMap.of(
+                    "GDC-PSL", new IdentitySourceConfiguration.Builder("idSourceGdcPsl").build()))
+            .build();
+    SiteConnector sc =
+        factory.getInstance(
+            "http://localhost:1/sites/SiteCollection", "http://localhost:1/sites/SiteCollection");
+    Principal spUser1 = Acl.getUserPrincipal("GDC-PSL\\spuser1", "idSourceGdcPsl");
+    assertEquals(Arrays.asList(spUser1), sc.getWebAcls(web));
+    assertEquals(Arrays.asList(spUser1), sc.getWebAcls(web));
+    verify(factorySiteData, times(1))
+        .getContent(
+            eq(ObjectType.SITE_COLLECTION),
+            any(),
+            any(),
+            any(),
+            anyBoolean(),
+            anyBoolean(),
+            any(),
+            any());
+
+    factory.invalidateMemberIdMapping("http://localhost:1/sites/SiteCollection");
+    assertEquals(Arrays.asList(spUser1), sc.getWebAcls(web));
+    verify(factorySiteData, times(2))
+        .getContent(
+            eq(ObjectType.SITE_COLLECTION),
+            any(),
+            any(),
+            any(),
+            anyBoolean(),
+            anyBoolean(),
+            any(),
+            any());
+  }
+
+  @Test
+  public void testGetWebAclsSharedMemberIdsCache() throws IOException {
+    Permission permSpUser1 = createPermission(2, SiteConnector.LIST_ITEM_MASK);
+    Web web = new Web();
+    web.setACL(new ACL());
+    web.getACL().setPermissions(new PermissionsForACL());
+    web.getACL().getPermissions().getPermission().add(permSpUser1);
+    MemberIdMapping mapping =
+        new MemberIdMapping(
+            ImmutableMap.of(2, Acl.getUserPrincipal("GDC-PSL\\spuser1")));
+    MemberIdMappingCache memberIdsCache =
+        new MemberIdMappingCache("MemberIdMapping", 60, siteUrl -> mapping);
+    SiteConnector sc =
+        new SiteConnector.Builder(
+                "http://localhost:1/sites/SiteCollection",
+                "http://localhost:1/sites/SiteCollection/subsite")
+            .setSiteDataClient(siteDataClient)
+            .setPeople(peopleSoap)
+            .setUserGroup(userGroupSoap)
+            .setMemberIdsCache(memberIdsCache)
+            .build();
+    assertEquals(
+        Arrays.asList(Acl.getUserPrincipal("GDC-PSL\\spuser1")), sc.getWebAcls(web));
+    assertEquals(
+        mapping, memberIdsCache.get("http://localhost:1/sites/SiteCollection"));
+    assertEquals(1, memberIdsCache.getMissCount());
+    assertEquals(1, memberIdsCache.getHitCount());
+    verify(siteDataClient, times(0)).getContentSite();
+  }
+
   @Test
   public void testGetListAcls() throws IOException {
     // GDC_PSL\\spuser1
@@ -261,6 +371,9 @@ public class SiteConnectorTest {
     Principal admin = Acl.getUserPrincipal("GDC-PSL\\administrator", "idSourceGdcPsl");
     Principal group300 = Acl.getGroupPrincipal("group300@gdc-psl.com", "idSourceGdcPsl");
     assertEquals(Arrays.asList(spUser1, teamSiteOwners, admin, group300), sc.getListAcl(list));
+    // Site user mapping is served from cache on subsequent ACL computations.
+    assertEquals(Arrays.asList(spUser1, teamSiteOwners, admin, group300), sc.getListAcl(list));
+    verify(userGroupSoap, times(1)).getUserCollectionFromSite();
   }
 
   @Test
@@ -453,6 +566,9 @@ public class SiteConnectorTest {
     assertThat(
         sc.getSharePointGroups(context),
         equalTo(ImmutableList.of(teamOwners, teamMembers, teamVisitors)));
+    verify(adLookupClient)
+        .prefetchEmailsByPrincipal(
+            ImmutableList.of(spUser2, ActiveDirectoryPrincipal.parse("GDC-PSL\\spuser4")));
   }
 
   @Test
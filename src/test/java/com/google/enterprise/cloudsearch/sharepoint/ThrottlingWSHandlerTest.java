@@ -0,0 +1,264 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.jws.WebMethod;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.handler.MessageContext;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link ThrottlingWSHandler}. */
+public class ThrottlingWSHandlerTest {
+  private static final String ENDPOINT = "http://sp.com/sites/one/_vti_bin/UserGroup.asmx";
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testDisabledNotWrapped() throws IOException {
+    WebServiceInterface wrapped = new WebServiceClass(null);
+    assertSame(
+        wrapped,
+        ThrottlingWSHandler.create(
+            WebServiceInterface.class, wrapped, AdaptiveThrottle.DISABLED, ENDPOINT));
+  }
+
+  @Test
+  public void testEndpointWithoutHost() throws IOException {
+    thrown.expect(IOException.class);
+    ThrottlingWSHandler.create(
+        WebServiceInterface.class,
+        new WebServiceClass(null),
+        new AdaptiveThrottle(1, 8, 300),
+        "UserGroup.asmx");
+  }
+
+  @Test
+  public void testSucceeded() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    throttle.acquire("sp.com").overloaded(0);
+    WebServiceInterface proxy =
+        ThrottlingWSHandler.create(
+            WebServiceInterface.class, new WebServiceClass(null), throttle, ENDPOINT);
+    assertEquals("result", proxy.webServiceMethod());
+    assertTrue(throttle.getLimit("sp.com") > 4);
+  }
+
+  @Test
+  public void testServiceUnavailable() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    WebServiceException error =
+        new WebServiceException("The server sent HTTP status code 503: Service Unavailable");
+    WebServiceInterface proxy =
+        ThrottlingWSHandler.create(
+            WebServiceInterface.class, new WebServiceClass(error), throttle, ENDPOINT);
+    try {
+      proxy.webServiceMethod();
+      fail("missing WebServiceException");
+    } catch (WebServiceException e) {
+      assertSame(error, e);
+    }
+    assertEquals(4, throttle.getLimit("sp.com"), 0);
+  }
+
+  @Test
+  public void testServiceUnavailableRetryAfter() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    WebServiceException error =
+        new WebServiceException("The server sent HTTP status code 503: Service Unavailable");
+    WebServiceInterface wrapped =
+        mock(WebServiceInterface.class, withSettings().extraInterfaces(BindingProvider.class));
+    when(wrapped.webServiceMethod()).thenThrow(error);
+    when(((BindingProvider) wrapped).getResponseContext())
+        .thenReturn(
+            ImmutableMap.<String, Object>of(
+                MessageContext.HTTP_RESPONSE_HEADERS,
+                ImmutableMap.of("retry-after", ImmutableList.of("120"))));
+    WebServiceInterface proxy =
+        ThrottlingWSHandler.create(WebServiceInterface.class, wrapped, throttle, ENDPOINT);
+    try {
+      proxy.webServiceMethod();
+      fail("missing WebServiceException");
+    } catch (WebServiceException e) {
+      assertSame(error, e);
+    }
+    assertTrue(throttle.isHeldBack("sp.com"));
+  }
+
+  @Test
+  public void testServiceUnavailableWithoutResponseHeaders() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    WebServiceInterface proxy =
+        ThrottlingWSHandler.create(
+            WebServiceInterface.class,
+            new WebServiceClass(new WebServiceException("The server sent HTTP status code 429")),
+            throttle,
+            ENDPOINT);
+    try {
+      proxy.webServiceMethod();
+      fail("missing WebServiceException");
+    } catch (WebServiceException e) {
+      // expected
+    }
+    assertFalse(throttle.isHeldBack("sp.com"));
+    assertEquals(4, throttle.getLimit("sp.com"), 0);
+  }
+
+  @Test
+  public void testOtherFailure() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    WebServiceInterface proxy =
+        ThrottlingWSHandler.create(
+            WebServiceInterface.class,
+            new WebServiceClass(new WebServiceException("The server sent HTTP status code 500")),
+            throttle,
+            ENDPOINT);
+    try {
+      proxy.webServiceMethod();
+      fail("missing WebServiceException");
+    } catch (WebServiceException e) {
+      // expected
+    }
+    assertEquals(8, throttle.getLimit("sp.com"), 0);
+  }
+
+  @Test
+  public void testNonWebMethodNotThrottled() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 1, 300);
+    WebServiceInterface proxy =
+        ThrottlingWSHandler.create(
+            WebServiceInterface.class, new WebServiceClass(null), throttle, ENDPOINT);
+    // Holding the only permit for the host does not block calls which are not web methods.
+    throttle.acquire("sp.com");
+    assertEquals("plain", proxy.plainMethod());
+  }
+
+  @Test
+  public void testMetricsExcludePermitWait() throws Exception {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 1, 300);
+    WebServiceMetrics metrics = new WebServiceMetrics(false, 0);
+    WebServiceInterface proxy =
+        ThrottlingWSHandler.create(
+            WebServiceInterface.class,
+            LoggingWSHandler.create(
+                WebServiceInterface.class, new WebServiceClass(null), metrics, ENDPOINT),
+            throttle,
+            ENDPOINT);
+    AdaptiveThrottle.Permit permit = throttle.acquire("sp.com");
+    Thread releaser =
+        new Thread(
+            () -> {
+              try {
+                Thread.sleep(500);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              permit.succeeded();
+            });
+    long startNanos = System.nanoTime();
+    releaser.start();
+    assertEquals("result", proxy.webServiceMethod());
+    assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(500));
+    releaser.join();
+    assertEquals(ImmutableMap.of("webServiceMethod", 1L), metrics.getCallCounts());
+    assertTrue(metrics.getMaxLatencyMillis().get("webServiceMethod") < 500);
+  }
+
+  @Test
+  public void testRetryAfterThroughLoggingProxy() throws IOException {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(1, 8, 300);
+    WebServiceException error =
+        new WebServiceException("The server sent HTTP status code 503: Service Unavailable");
+    WebServiceInterface wrapped =
+        mock(WebServiceInterface.class, withSettings().extraInterfaces(BindingProvider.class));
+    when(wrapped.webServiceMethod()).thenThrow(error);
+    when(((BindingProvider) wrapped).getResponseContext())
+        .thenReturn(
+            ImmutableMap.<String, Object>of(
+                MessageContext.HTTP_RESPONSE_HEADERS,
+                ImmutableMap.of("Retry-After", ImmutableList.of("120"))));
+    WebServiceInterface proxy =
+        ThrottlingWSHandler.create(
+            WebServiceInterface.class,
+            LoggingWSHandler.create(WebServiceInterface.class, wrapped),
+            throttle,
+            ENDPOINT);
+    try {
+      proxy.webServiceMethod();
+      fail("missing WebServiceException");
+    } catch (WebServiceException e) {
+      assertSame(error, e);
+    }
+    assertTrue(throttle.isHeldBack("sp.com"));
+  }
+
+  @Test
+  public void testIsOverloaded() {
+    assertTrue(
+        ThrottlingWSHandler.isOverloaded(
+            new RuntimeException(
+                new WebServiceException("The server sent HTTP status code 429: Too Many"))));
+    assertFalse(
+        ThrottlingWSHandler.isOverloaded(
+            new WebServiceException("The server sent HTTP status code 401: Unauthorized")));
+    assertFalse(ThrottlingWSHandler.isOverloaded(new IOException("HTTP status code 503")));
+    assertFalse(ThrottlingWSHandler.isOverloaded(new WebServiceException((String) null)));
+  }
+
+  private interface WebServiceInterface {
+    @WebMethod(operationName = "webServiceMethod")
+    String webServiceMethod();
+
+    String plainMethod();
+  }
+
+  private static class WebServiceClass implements WebServiceInterface {
+    private final RuntimeException error;
+
+    WebServiceClass(RuntimeException error) {
+      this.error = error;
+    }
+
+    @Override
+    public String webServiceMethod() {
+      if (error != null) {
+        throw error;
+      }
+      return "result";
+    }
+
+    @Override
+    public String plainMethod() {
+      return "plain";
+    }
+  }
+}
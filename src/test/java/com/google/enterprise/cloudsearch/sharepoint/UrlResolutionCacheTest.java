@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.enterprise.cloudsearch.sharepoint.UrlResolutionCache.ListItemLocation;
+import com.google.enterprise.cloudsearch.sharepoint.UrlResolutionCache.SiteAndWeb;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link UrlResolutionCache}. */
+public class UrlResolutionCacheTest {
+  private static final String SITE = "http://localhost:1/sites/SiteCollection";
+  private static final String LIST_ROOT = SITE + "/Lists/Custom List";
+  private static final SiteAndWeb SITE_AND_WEB = new SiteAndWeb(SITE, SITE);
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private final UrlResolutionCache cache = new UrlResolutionCache(100, 60);
+
+  @Test
+  public void testNegativeMaxSize() {
+    thrown.expect(IllegalArgumentException.class);
+    new UrlResolutionCache(-1, 60);
+  }
+
+  @Test
+  public void testNegativeExpiration() {
+    thrown.expect(IllegalArgumentException.class);
+    new UrlResolutionCache(100, -1);
+  }
+
+  @Test
+  public void testExactSiteAndWeb() {
+    cache.putSiteAndWeb(SITE, SITE_AND_WEB);
+    assertEquals(Optional.of(SITE_AND_WEB), cache.getSiteAndWeb(SITE));
+    assertFalse(cache.getSiteAndWeb(SITE + "/subsite").isPresent());
+  }
+
+  @Test
+  public void testPrefixSiteAndWeb() {
+    cache.putSiteAndWebPrefix(LIST_ROOT, SITE_AND_WEB);
+    assertEquals(Optional.of(SITE_AND_WEB), cache.getSiteAndWeb(LIST_ROOT));
+    assertEquals(
+        Optional.of(SITE_AND_WEB), cache.getSiteAndWeb(LIST_ROOT + "/Test Folder/2_.000"));
+    assertFalse(cache.getSiteAndWeb(LIST_ROOT + " 2/2_.000").isPresent());
+    assertFalse(cache.getSiteAndWeb(SITE + "/Lists").isPresent());
+  }
+
+  @Test
+  public void testLongestPrefixWins() {
+    SiteAndWeb subsite = new SiteAndWeb(SITE, SITE + "/subsite");
+    cache.putSiteAndWebPrefix(SITE + "/Lists", SITE_AND_WEB);
+    cache.putSiteAndWebPrefix(SITE + "/Lists/Sub", subsite);
+    assertEquals(Optional.of(subsite), cache.getSiteAndWeb(SITE + "/Lists/Sub/1_.000"));
+    assertEquals(Optional.of(SITE_AND_WEB), cache.getSiteAndWeb(SITE + "/Lists/Other/1_.000"));
+  }
+
+  @Test
+  public void testPrefixClearedWhenFull() {
+    UrlResolutionCache small = new UrlResolutionCache(1, 60);
+    small.putSiteAndWebPrefix(LIST_ROOT, SITE_AND_WEB);
+    small.putSiteAndWebPrefix(SITE + "/Shared Documents", SITE_AND_WEB);
+    assertFalse(small.getSiteAndWeb(LIST_ROOT + "/2_.000").isPresent());
+    assertEquals(
+        Optional.of(SITE_AND_WEB), small.getSiteAndWeb(SITE + "/Shared Documents/a.doc"));
+  }
+
+  @Test
+  public void testPrefixExpired() {
+    UrlResolutionCache expired = new UrlResolutionCache(100, 0);
+    expired.putSiteAndWebPrefix(LIST_ROOT, SITE_AND_WEB);
+    assertFalse(expired.getSiteAndWeb(LIST_ROOT + "/2_.000").isPresent());
+  }
+
+  @Test
+  public void testListItem() {
+    ListItemLocation location =
+        new ListItemLocation("{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}", "2");
+    cache.putListItem(LIST_ROOT + "/2_.000", location);
+    assertEquals(Optional.of(location), cache.getListItem(LIST_ROOT + "/2_.000"));
+    cache.invalidateListItem(LIST_ROOT + "/2_.000");
+    assertFalse(cache.getListItem(LIST_ROOT + "/2_.000").isPresent());
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link WebServiceMetrics}. */
+public class WebServiceMetricsTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testNegativeSummaryInterval() {
+    thrown.expect(IllegalArgumentException.class);
+    new WebServiceMetrics(false, -1);
+  }
+
+  @Test
+  public void testGetBucket() {
+    assertEquals(0, WebServiceMetrics.getBucket(0));
+    assertEquals(0, WebServiceMetrics.getBucket(10));
+    assertEquals(1, WebServiceMetrics.getBucket(11));
+    assertEquals(9, WebServiceMetrics.getBucket(30000));
+    assertEquals(10, WebServiceMetrics.getBucket(30001));
+  }
+
+  @Test
+  public void testGetHost() {
+    assertEquals("sp.com", WebServiceMetrics.getHost("http://SP.com/sites/a/_vti_bin/Lists.asmx"));
+    assertEquals("sp.com:8080", WebServiceMetrics.getHost("https://sp.com:8080/_vti_bin"));
+    assertEquals("endpoint", WebServiceMetrics.getHost("endpoint"));
+    assertEquals("not a uri", WebServiceMetrics.getHost("not a uri"));
+  }
+
+  @Test
+  public void testRecordManyWebsSameHost() {
+    WebServiceMetrics metrics = new WebServiceMetrics(false, 0);
+    for (int i = 0; i < 100; i++) {
+      metrics.record("http://sp.com/sites/s" + i + "/_vti_bin/SiteData.asmx", "GetContent", 1, 0,
+          false);
+    }
+    assertEquals(ImmutableMap.of("sp.com GetContent", 100L), metrics.getCallCountsByHost());
+  }
+
+  @Test
+  public void testRecord() {
+    WebServiceMetrics metrics = new WebServiceMetrics(false, 0);
+    metrics.record("http://a/_vti_bin/SiteData.asmx", "GetContent", 5, 100, false);
+    metrics.record("http://b/_vti_bin/SiteData.asmx", "GetContent", 200, 50, false);
+    metrics.record("http://b/_vti_bin/SiteData.asmx", "GetContent", 40000, 0, true);
+    metrics.record("http://b/_vti_bin/UserGroup.asmx", "GetUserCollectionFromSite", 20, 10, false);
+
+    assertEquals(
+        ImmutableMap.of("GetContent", 3L, "GetUserCollectionFromSite", 1L),
+        metrics.getCallCounts());
+    assertEquals(
+        ImmutableMap.of("GetContent", 1L, "GetUserCollectionFromSite", 0L),
+        metrics.getErrorCounts());
+    assertEquals(
+        ImmutableMap.of("GetContent", 40205L, "GetUserCollectionFromSite", 20L),
+        metrics.getTotalLatencyMillis());
+    assertEquals(
+        ImmutableMap.of("GetContent", 40000L, "GetUserCollectionFromSite", 20L),
+        metrics.getMaxLatencyMillis());
+    assertEquals(
+        ImmutableMap.of("GetContent", 150L, "GetUserCollectionFromSite", 10L),
+        metrics.getResponseChars());
+    assertArrayEquals(
+        new long[] {1, 0, 0, 1, 0, 0, 0, 0, 0, 0, 1},
+        metrics.getLatencyHistograms().get("GetContent"));
+    assertEquals(
+        ImmutableMap.of(
+            "a GetContent", 1L, "b GetContent", 2L, "b GetUserCollectionFromSite", 1L),
+        metrics.getCallCountsByHost());
+    assertEquals(
+        ImmutableMap.of(
+            "a GetContent", 5L, "b GetContent", 40200L, "b GetUserCollectionFromSite", 20L),
+        metrics.getTotalLatencyMillisByHost());
+  }
+
+  @Test
+  public void testSummarySlowestFirst() {
+    WebServiceMetrics metrics = new WebServiceMetrics(false, 0);
+    metrics.record("endpoint", "GetListItems", 5, 0, false);
+    metrics.record("endpoint", "GetContent", 100, 20, false);
+    metrics.record("endpoint", "GetContent", 200, 30, true);
+    assertEquals(
+        "GetContent: calls=2 errors=1 totalMs=300 avgMs=150 p50Ms<=100 p99Ms<=250 maxMs=200"
+            + " responseChars=50\n"
+            + "GetListItems: calls=1 errors=0 totalMs=5 avgMs=5 p50Ms<=10 p99Ms<=10 maxMs=5"
+            + " responseChars=0\n",
+        metrics.getSummary());
+  }
+
+  @Test
+  public void testReset() {
+    WebServiceMetrics metrics = new WebServiceMetrics(false, 0);
+    metrics.record("endpoint", "GetContent", 100, 20, false);
+    metrics.reset();
+    assertEquals(ImmutableMap.of(), metrics.getCallCounts());
+    assertEquals("", metrics.getSummary());
+  }
+
+  @Test
+  public void testCacheCounts() throws IOException {
+    WebServiceMetrics metrics = new WebServiceMetrics(false, 0);
+    MemberIdMappingCache cache =
+        new MemberIdMappingCache(
+            "MemberIdMapping",
+            60,
+            siteUrl -> new MemberIdMapping(ImmutableMap.of()));
+    metrics.registerCache(cache);
+    cache.get("http://localhost:1/sites/SiteCollection");
+    cache.get("http://localhost:1/sites/SiteCollection");
+    cache.refresh("http://localhost:1/sites/SiteCollection");
+    assertEquals(
+        ImmutableMap.of(
+            "MemberIdMapping hits", 1L,
+            "MemberIdMapping misses", 1L,
+            "MemberIdMapping refreshes", 1L,
+            "MemberIdMapping size", 0L),
+        metrics.getCacheCounts());
+    metrics.reset();
+    assertEquals(1L, (long) metrics.getCacheCounts().get("MemberIdMapping hits"));
+  }
+
+  @Test
+  public void testRegisterMBean() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(WebServiceMetrics.OBJECT_NAME);
+    WebServiceMetrics metrics = new WebServiceMetrics(true, 0);
+    metrics.registerMBean();
+    try {
+      metrics.record("endpoint", "GetContent", 100, 20, false);
+      TabularData callCounts = (TabularData) server.getAttribute(name, "CallCounts");
+      CompositeData row = callCounts.get(new Object[] {"GetContent"});
+      assertEquals(1L, row.get("value"));
+      // A second instance replaces the first one.
+      WebServiceMetrics replacement = new WebServiceMetrics(true, 0);
+      replacement.registerMBean();
+      assertTrue(
+          ((TabularData) server.getAttribute(name, "CallCounts")).isEmpty());
+      replacement.unregisterMBean();
+    } finally {
+      metrics.unregisterMBean();
+    }
+    assertFalse(server.isRegistered(name));
+  }
+
+  @Test
+  public void testJmxDisabled() throws JMException {
+    WebServiceMetrics metrics = new WebServiceMetrics(false, 0);
+    metrics.registerMBean();
+    assertFalse(
+        ManagementFactory.getPlatformMBeanServer()
+            .isRegistered(new ObjectName(WebServiceMetrics.OBJECT_NAME)));
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.cloudsearch.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CharStreams;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link XmlResponseReader}. */
+public class XmlResponseReaderTest {
+  private static final Map<String, String> ITEM_REWRITES =
+      ImmutableMap.of("<Item>", "<ItemData xmlns='ns'>", "</Item>", "</ItemData>");
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testTargetMustStartWithTag() {
+    thrown.expect(IllegalArgumentException.class);
+    new XmlResponseReader("<Item/>", ImmutableMap.of("Item", "ItemData"));
+  }
+
+  @Test
+  public void testNoRewrites() throws IOException {
+    assertEquals("<Site a='1'>x &amp; y</Site>", read("<Site a='1'>x &amp; y</Site>"));
+  }
+
+  @Test
+  public void testRewritesAllOccurrences() throws IOException {
+    assertEquals(
+        "<ItemData xmlns='ns'><Item/></ItemData><ItemData xmlns='ns'></ItemData>",
+        read("<Item><Item/></Item><Item></Item>", ITEM_REWRITES));
+  }
+
+  @Test
+  public void testUnusedCharsRemoved() throws IOException {
+    assertEquals(
+        "<a>x&#9;y&#10;z&#13;&#160;</a>",
+        read("<a>x&#0;&#08;&#9;y&#10;&#11;&#12;z&#13;&#14;&#31;&#127;&#159;&#160;</a>"));
+  }
+
+  @Test
+  public void testPartialCharReferenceKept() throws IOException {
+    assertEquals("<a>&#31</a>", read("<a>&#31</a>"));
+    assertEquals("<a>&#3", read("<a>&#3"));
+  }
+
+  @Test
+  public void testSmallReadsMatchBulkRead() throws IOException {
+    String xml = "<Item>a&#31;b&amp;c<Item/>d</Item>";
+    String expected = read(xml, ITEM_REWRITES);
+    Reader reader = new XmlResponseReader(xml, ITEM_REWRITES);
+    StringBuilder actual = new StringBuilder();
+    char[] buffer = new char[1];
+    while (reader.read(buffer, 0, 1) != -1) {
+      actual.append(buffer[0]);
+    }
+    assertEquals(expected, actual.toString());
+  }
+
+  private static String read(String xml) throws IOException {
+    return read(xml, ImmutableMap.of());
+  }
+
+  private static String read(String xml, Map<String, String> rewrites) throws IOException {
+    return CharStreams.toString(new XmlResponseReader(xml, rewrites));
+  }
+}